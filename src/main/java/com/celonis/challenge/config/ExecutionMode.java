@@ -0,0 +1,12 @@
+package com.celonis.challenge.config;
+
+public enum ExecutionMode {
+    /**
+     * Every running task holds a worker thread, sleeping between steps
+     */
+    THREAD,
+    /**
+     * Tasks give their worker back between steps and are resumed by the timer wheel
+     */
+    CONTINUATION
+}
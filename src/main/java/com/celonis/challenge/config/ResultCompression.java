@@ -0,0 +1,115 @@
+package com.celonis.challenge.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public enum ResultCompression {
+    /**
+     * Results are stored as they were received
+     */
+    NONE(null, ""),
+    /**
+     * Results are stored gzip compressed and served with Content-Encoding: gzip
+     */
+    GZIP("gzip", ".gz"),
+    /**
+     * Results are stored zlib compressed and served with Content-Encoding: deflate
+     */
+    DEFLATE("deflate", ".deflate");
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final String contentCoding;
+    private final String suffix;
+
+    ResultCompression(String contentCoding, String suffix) {
+        this.contentCoding = contentCoding;
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return token of the Content-Encoding header, null for NONE
+     */
+    public String getContentCoding() {
+        return contentCoding;
+    }
+
+    /**
+     * @return file name suffix of results stored with this compression
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * @param out:   stream the compressed bytes are written to
+     * @param level: Deflater level, 1 (fastest) to 9 (smallest)
+     * @return stream compressing into out
+     * @throws IOException IOException
+     */
+    public OutputStream compress(OutputStream out, int level) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_BYTES) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            case DEFLATE:
+                return new DeflaterOutputStream(out, new Deflater(level), BUFFER_BYTES) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        // the Deflater was passed in, so DeflaterOutputStream leaves its native memory to us
+                        def.end();
+                    }
+                };
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * @param in: stream of compressed bytes
+     * @return stream of the original bytes
+     * @throws IOException IOException
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_BYTES);
+            case DEFLATE:
+                return new InflaterInputStream(in, new Inflater(), BUFFER_BYTES) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * @param file: stored result
+     * @return compression of a stored result, told by its file name
+     */
+    public static ResultCompression of(Path file) {
+        String name = file.getFileName().toString();
+        for (ResultCompression compression : values()) {
+            if (compression != NONE && name.endsWith(compression.suffix)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+}
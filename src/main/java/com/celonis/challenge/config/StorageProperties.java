@@ -0,0 +1,102 @@
+package com.celonis.challenge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Paths;
+
+@Component
+@ConfigurationProperties(prefix = "task.storage")
+public class StorageProperties {
+
+    /**
+     * Directory the results of STORE_FILE tasks are written to, shared by all nodes
+     */
+    private String directory = Paths.get(System.getProperty("java.io.tmpdir"), "task-results").toString();
+
+    /**
+     * Bytes handed to one FileChannel transfer, progress is reported after each of them
+     */
+    private long transferChunkBytes = 8 * 1024 * 1024;
+
+    /**
+     * Let the servlet container send results with sendfile when it supports it
+     */
+    private boolean sendfile = true;
+
+    /**
+     * Size the result store is trimmed to by evicting unreferenced results, least recently used first
+     */
+    private long maxBytes = 10L * 1024 * 1024 * 1024;
+
+    /**
+     * How long a result no task references anymore is kept for reuse
+     */
+    private long unreferencedTtlMillis = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Compression new results are stored with, results stored before keep theirs
+     */
+    private ResultCompression compression = ResultCompression.NONE;
+
+    /**
+     * Deflater level of the compression, 1 (fastest) to 9 (smallest)
+     */
+    private int compressionLevel = 6;
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public long getTransferChunkBytes() {
+        return transferChunkBytes;
+    }
+
+    public void setTransferChunkBytes(long transferChunkBytes) {
+        this.transferChunkBytes = transferChunkBytes;
+    }
+
+    public boolean isSendfile() {
+        return sendfile;
+    }
+
+    public void setSendfile(boolean sendfile) {
+        this.sendfile = sendfile;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getUnreferencedTtlMillis() {
+        return unreferencedTtlMillis;
+    }
+
+    public void setUnreferencedTtlMillis(long unreferencedTtlMillis) {
+        this.unreferencedTtlMillis = unreferencedTtlMillis;
+    }
+
+    public ResultCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(ResultCompression compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+}
@@ -0,0 +1,169 @@
+package com.celonis.challenge.config;
+
+import com.celonis.challenge.model.TaskType;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+@Component
+@ConfigurationProperties(prefix = "task.executor")
+public class TaskExecutorProperties {
+
+    /**
+     * How long-running tasks wait between their steps
+     */
+    private ExecutionMode mode = ExecutionMode.THREAD;
+
+    /**
+     * Number of worker threads kept alive
+     */
+    private int coreSize = 8;
+
+    /**
+     * Upper bound of worker threads, only reached once the queue is full
+     */
+    private int maxSize = 32;
+
+    /**
+     * Number of tasks waiting for a worker before new submissions are rejected
+     */
+    private int queueCapacity = 1000;
+
+    /**
+     * Value of the Retry-After header sent back when a submission is rejected
+     */
+    private int retryAfterSeconds = 5;
+
+    /**
+     * Worker threads running the steps of tasks in CONTINUATION mode
+     */
+    private int continuationThreads = 4;
+
+    /**
+     * Number of tasks that may be suspended on the timer wheel in CONTINUATION mode
+     */
+    private int continuationCapacity = 100_000;
+
+    /**
+     * Resolution of the timer wheel
+     */
+    private long timerTickMillis = 10;
+
+    /**
+     * Number of buckets of the timer wheel, rounded up to a power of two
+     */
+    private int timerWheelSize = 512;
+
+    /**
+     * Maximum number of queued and running tasks per task type
+     */
+    private Map<TaskType, Integer> typeLimits = new EnumMap<>(TaskType.class);
+
+    /**
+     * Share of the workers per task type while tasks of several types wait for one, 1 when not set
+     */
+    private Map<TaskType, Integer> typeWeights = new EnumMap<>(TaskType.class);
+
+    /**
+     * Maximum run time per task type, for tasks without a deadline of their own
+     */
+    private Map<TaskType, Long> deadlineMillis = new EnumMap<>(TaskType.class);
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ExecutionMode mode) {
+        this.mode = mode;
+    }
+
+    public int getCoreSize() {
+        return coreSize;
+    }
+
+    public void setCoreSize(int coreSize) {
+        this.coreSize = coreSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getContinuationThreads() {
+        return continuationThreads;
+    }
+
+    public void setContinuationThreads(int continuationThreads) {
+        this.continuationThreads = continuationThreads;
+    }
+
+    public int getContinuationCapacity() {
+        return continuationCapacity;
+    }
+
+    public void setContinuationCapacity(int continuationCapacity) {
+        this.continuationCapacity = continuationCapacity;
+    }
+
+    public long getTimerTickMillis() {
+        return timerTickMillis;
+    }
+
+    public void setTimerTickMillis(long timerTickMillis) {
+        this.timerTickMillis = timerTickMillis;
+    }
+
+    public int getTimerWheelSize() {
+        return timerWheelSize;
+    }
+
+    public void setTimerWheelSize(int timerWheelSize) {
+        this.timerWheelSize = timerWheelSize;
+    }
+
+    public Map<TaskType, Integer> getTypeLimits() {
+        return typeLimits;
+    }
+
+    public void setTypeLimits(Map<TaskType, Integer> typeLimits) {
+        this.typeLimits = typeLimits;
+    }
+
+    public Map<TaskType, Integer> getTypeWeights() {
+        return typeWeights;
+    }
+
+    public void setTypeWeights(Map<TaskType, Integer> typeWeights) {
+        this.typeWeights = typeWeights;
+    }
+
+    public Map<TaskType, Long> getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public void setDeadlineMillis(Map<TaskType, Long> deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+}
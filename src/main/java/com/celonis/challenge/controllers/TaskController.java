@@ -1,16 +1,37 @@
 package com.celonis.challenge.controllers;
 
 import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.TaskBatchResult;
+import com.celonis.challenge.model.TaskCursor;
+import com.celonis.challenge.model.TaskPage;
+import com.celonis.challenge.model.TaskProgressView;
+import com.celonis.challenge.model.TaskQuery;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.exceptions.BadRequestException;
+import com.celonis.challenge.security.SimpleHeaderFilter;
 import com.celonis.challenge.services.FileService;
+import com.celonis.challenge.services.TaskEventStreamService;
 import com.celonis.challenge.services.TaskService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Date;
 import java.util.List;
 
 @RestController
@@ -21,22 +42,84 @@ public class TaskController {
 
     private final TaskService taskService;
     private final FileService fileService;
+    private final TaskEventStreamService taskEventStreamService;
+    private final ObjectMapper objectMapper;
 
-    public TaskController(TaskService taskService, FileService fileService) {
+    public TaskController(TaskService taskService, FileService fileService, TaskEventStreamService taskEventStreamService,
+                          ObjectMapper objectMapper) {
         this.taskService = taskService;
         this.fileService = fileService;
+        this.taskEventStreamService = taskEventStreamService;
+        this.objectMapper = objectMapper;
     }
 
     @GetMapping("/")
-    public List<ProjectGenerationTask> listTasks() {
-        return taskService.listTasks();
+    public TaskPage listTasks(@RequestParam(required = false) TaskStatus status,
+                              @RequestParam(required = false) TaskType type,
+                              @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date createdFrom,
+                              @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date createdTo,
+                              @RequestParam(required = false) String cursor,
+                              @RequestParam(defaultValue = "0") int limit) {
+        TaskQuery taskQuery = toTaskQuery(status, type, createdFrom, createdTo, cursor);
+        taskQuery.setLimit(limit);
+        return taskService.listTasks(taskQuery);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StreamingResponseBody streamTasks(@RequestParam(required = false) TaskStatus status,
+                                             @RequestParam(required = false) TaskType type,
+                                             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date createdFrom,
+                                             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date createdTo,
+                                             @RequestParam(required = false) String cursor) {
+        log.info("Request received : streaming tasks");
+        TaskQuery taskQuery = toTaskQuery(status, type, createdFrom, createdTo, cursor);
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        return outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.writeStartArray();
+                taskService.streamTasks(taskQuery, task -> {
+                    try {
+                        writer.writeValue(generator, task);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
     }
 
     @PostMapping("/")
-    public ProjectGenerationTask createTask(@RequestBody @Valid ProjectGenerationTask projectGenerationTask) {
+    public ProjectGenerationTask createTask(@RequestBody @Valid ProjectGenerationTask projectGenerationTask,
+                                            @RequestAttribute(SimpleHeaderFilter.TENANT_ATTRIBUTE) String tenant) {
+        projectGenerationTask.setTenant(tenant);
         return taskService.createTask(projectGenerationTask);
     }
 
+    @PostMapping("/batch")
+    public TaskBatchResult createTasks(@RequestBody List<ProjectGenerationTask> projectGenerationTasks,
+                                       @RequestAttribute(SimpleHeaderFilter.TENANT_ATTRIBUTE) String tenant) {
+        log.info("Request received : creating {} tasks", projectGenerationTasks.size());
+        for (ProjectGenerationTask projectGenerationTask : projectGenerationTasks) {
+            if (projectGenerationTask != null) {
+                projectGenerationTask.setTenant(tenant);
+            }
+        }
+        return taskService.createTasks(projectGenerationTasks);
+    }
+
+    @PostMapping("/batch/execute")
+    public TaskBatchResult executeTasks(@RequestBody List<String> taskIds) {
+        log.info("Request received : executing {} tasks", taskIds.size());
+        return taskService.executeTasks(taskIds);
+    }
+
+    @PostMapping("/batch/cancel")
+    public TaskBatchResult cancelTasks(@RequestBody List<String> taskIds) {
+        log.info("Request received : canceling {} tasks", taskIds.size());
+        return taskService.cancelTasks(taskIds);
+    }
+
     @GetMapping("/{taskId}")
     public ProjectGenerationTask getTask(@PathVariable String taskId) {
         return taskService.getTask(taskId);
@@ -61,10 +144,10 @@ public class TaskController {
     }
 
     @GetMapping("/{taskId}/result")
-    public ResponseEntity<FileSystemResource> getResult(@PathVariable String taskId) {
+    public void getResult(@PathVariable String taskId, HttpServletRequest request, HttpServletResponse response) throws IOException {
         log.info("Request received : getting result {}", taskId);
         ProjectGenerationTask projectGenerationTask = taskService.getTask(taskId);
-        return fileService.getTaskResult(projectGenerationTask);
+        fileService.writeTaskResult(projectGenerationTask, request, response);
     }
 
     @PostMapping("/{taskId}/cancel")
@@ -75,9 +158,35 @@ public class TaskController {
     }
 
     @GetMapping("/{taskId}/progress")
-    public int getProgress(@PathVariable String taskId) {
-        log.info("Request received : getting progress {}", taskId);
-        ProjectGenerationTask projectGenerationTask = taskService.getTask(taskId);
-        return taskService.getTask(projectGenerationTask.getId()).getProgress();
+    public TaskProgressView getProgress(@PathVariable String taskId) {
+        log.debug("Request received : getting progress {}", taskId);
+        return taskService.getProgress(taskId);
+    }
+
+    @GetMapping(value = "/{taskId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamEvents(@PathVariable String taskId) {
+        log.info("Request received : streaming events of task {}", taskId);
+        return taskEventStreamService.subscribe(List.of(taskId));
+    }
+
+    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamEvents(@RequestParam("ids") List<String> taskIds) {
+        log.info("Request received : streaming events of {} tasks", taskIds.size());
+        if (taskIds.isEmpty()) {
+            throw new BadRequestException("At least one task id is required");
+        }
+        return taskEventStreamService.subscribe(taskIds);
+    }
+
+    private TaskQuery toTaskQuery(TaskStatus status, TaskType type, Date createdFrom, Date createdTo, String cursor) {
+        TaskQuery taskQuery = new TaskQuery();
+        taskQuery.setTaskStatus(status);
+        taskQuery.setTaskType(type);
+        taskQuery.setCreatedFrom(createdFrom);
+        taskQuery.setCreatedTo(createdTo);
+        if (cursor != null) {
+            taskQuery.setAfter(TaskCursor.decode(cursor));
+        }
+        return taskQuery;
     }
 }
@@ -0,0 +1,15 @@
+package com.celonis.challenge.exceptions;
+
+public class TooManyRequestsException extends RuntimeException {
+
+    private final int retryAfterSeconds;
+
+    public TooManyRequestsException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -2,19 +2,30 @@ package com.celonis.challenge.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Entity
+@Table(name = "project_generation_task", indexes = {
+        @Index(name = "idx_task_status_created_on", columnList = "task_status, created_on"),
+        @Index(name = "idx_task_type", columnList = "task_type"),
+        @Index(name = "idx_task_status_lease", columnList = "task_status, lease_expires_at, created_on"),
+        @Index(name = "idx_task_queue_flow", columnList = "task_status, lease_expires_at, task_type, tenant, priority, created_on"),
+        @Index(name = "idx_task_status_not_before", columnList = "task_status, not_before"),
+        @Index(name = "idx_task_storage_location", columnList = "storage_location")
+})
 public class ProjectGenerationTask {
 
     @Id
     @GeneratedValue(generator = "uuid")
-    @GenericGenerator(name = "uuid", strategy = "uuid2")
+    @GenericGenerator(name = "uuid", strategy = "com.celonis.challenge.model.TimeOrderedUuidGenerator")
     private String id;
 
     @Column(name = "task_name", nullable = false)
@@ -33,19 +44,60 @@ public class ProjectGenerationTask {
     @Enumerated(EnumType.STRING)
     private TaskStatus taskStatus;
 
-    @ElementCollection
-    @CollectionTable(name = "task_parameters", joinColumns = @JoinColumn(name = "task_id"))
-    @MapKeyColumn(name = "parameter_key")
-    @Column(name = "parameter_value")
+    @Convert(converter = TaskParametersConverter.class)
+    @Column(name = "parameters", length = 4000)
     private Map<String, String> parameters = new HashMap<>();
 
     @Column(nullable = false, name = "task_progress")
     private int progress;
 
+    @Column(name = "deadline_millis")
+    private Long deadlineMillis;
+
+    @Column(nullable = false, name = "priority")
+    @Enumerated(EnumType.STRING)
+    private TaskPriority priority = TaskPriority.NORMAL;
+
+    @Column(name = "tenant")
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private String tenant;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "not_before")
+    private Date notBefore;
+
+    @Column(name = "cron")
+    private String cron;
+
+    @Column(name = "interval_millis")
+    private Long intervalMillis;
+
+    @Column(name = "schedule_id", updatable = false)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private String scheduleId;
+
+    @Convert(converter = TaskDependenciesConverter.class)
+    @Column(name = "depends_on", length = 4000, updatable = false)
+    private List<String> dependsOn = new ArrayList<>();
+
     @Column(name = "storage_location")
     @JsonIgnore
     private String storageLocation;
 
+    @Column(name = "lease_owner")
+    @JsonIgnore
+    private String leaseOwner;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "lease_expires_at")
+    @JsonIgnore
+    private Date leaseExpiresAt;
+
+    @Version
+    @Column(nullable = false, name = "version")
+    @JsonIgnore
+    private long version;
+
     public int getProgress() {
         return progress;
     }
@@ -102,6 +154,70 @@ public class ProjectGenerationTask {
         this.creationDate = creationDate;
     }
 
+    public Long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public void setDeadlineMillis(Long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public TaskPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(TaskPriority priority) {
+        this.priority = priority;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public Date getNotBefore() {
+        return notBefore;
+    }
+
+    public void setNotBefore(Date notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    public String getCron() {
+        return cron;
+    }
+
+    public void setCron(String cron) {
+        this.cron = cron;
+    }
+
+    public Long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(Long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public String getScheduleId() {
+        return scheduleId;
+    }
+
+    public void setScheduleId(String scheduleId) {
+        this.scheduleId = scheduleId;
+    }
+
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
     public String getStorageLocation() {
         return storageLocation;
     }
@@ -110,4 +226,35 @@ public class ProjectGenerationTask {
         this.storageLocation = storageLocation;
     }
 
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public void setLeaseOwner(String leaseOwner) {
+        this.leaseOwner = leaseOwner;
+    }
+
+    public Date getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    /**
+     * @return true if the task is RUNNING without a lease, waiting in the queue for a node to claim it
+     */
+    public boolean isQueued() {
+        return taskStatus == TaskStatus.RUNNING && leaseExpiresAt == null;
+    }
+
+    public void setLeaseExpiresAt(Date leaseExpiresAt) {
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
 }
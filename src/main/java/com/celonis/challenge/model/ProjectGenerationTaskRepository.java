@@ -1,14 +1,40 @@
 package com.celonis.challenge.model;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Optional;
 
 @Repository
-public interface ProjectGenerationTaskRepository extends JpaRepository<ProjectGenerationTask, String> {
+public interface ProjectGenerationTaskRepository extends JpaRepository<ProjectGenerationTask, String>, ProjectGenerationTaskRepositoryCustom {
     List<ProjectGenerationTask> findByTaskStatus(TaskStatus taskStatus);
 
     List<ProjectGenerationTask> findByTaskStatusAndCreationDateBefore(TaskStatus taskStatus, Date creationDateBefore);
+
+    @Query("select new com.celonis.challenge.model.TaskProgressView(t.id, t.taskStatus, t.progress, t.leaseExpiresAt) "
+            + "from ProjectGenerationTask t where t.id = :id")
+    Optional<TaskProgressView> findProgressById(@Param("id") String id);
+
+    @Query("select new com.celonis.challenge.model.TaskProgressView(t.id, t.taskStatus, t.progress, t.leaseExpiresAt) "
+            + "from ProjectGenerationTask t where t.id in :ids")
+    List<TaskProgressView> findProgressByIdIn(@Param("ids") Collection<String> ids);
+
+    @Query("select new com.celonis.challenge.model.TaskProgressView(t.id, t.taskStatus, t.progress, t.leaseExpiresAt) "
+            + "from ProjectGenerationTask t where t.taskStatus = :taskStatus")
+    List<TaskProgressView> findProgressByTaskStatus(@Param("taskStatus") TaskStatus taskStatus);
+
+    @Query("select t.id from ProjectGenerationTask t where t.taskStatus = :taskStatus and t.creationDate < :creationDateBefore")
+    List<String> findIdsByTaskStatusAndCreationDateBefore(@Param("taskStatus") TaskStatus taskStatus,
+                                                          @Param("creationDateBefore") Date creationDateBefore);
+
+    @Query("select new com.celonis.challenge.model.StorageReferenceCount(t.storageLocation, count(t)) "
+            + "from ProjectGenerationTask t where t.storageLocation is not null group by t.storageLocation")
+    List<StorageReferenceCount> countByStorageLocation();
+
+    boolean existsByStorageLocation(String storageLocation);
 }
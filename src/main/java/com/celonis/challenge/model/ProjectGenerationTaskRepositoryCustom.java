@@ -0,0 +1,272 @@
+package com.celonis.challenge.model;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface ProjectGenerationTaskRepositoryCustom {
+
+    /**
+     * Writes the progress of many running tasks as one JDBC batch per chunk. A task is only
+     * written while it is RUNNING under the lease and at the version of the run the progress
+     * belongs to, so a run that lost its task never overwrites the progress of the next one.
+     * Progress is not a status transition, so the version is not incremented.
+     *
+     * @param updates: Progress of the runs, with the lease owner and version of each
+     * @return number of updated rows
+     */
+    int updateRunningProgress(Collection<TaskProgressUpdate> updates);
+
+    /**
+     * Keyset page of tasks ordered by creation date then id
+     *
+     * @param taskQuery: Filters, position and page size
+     * @return at most taskQuery.limit tasks following the cursor
+     */
+    List<ProjectGenerationTask> findPage(TaskQuery taskQuery);
+
+    /**
+     * Deletes one bounded batch of tasks with a set-based DELETE statement.
+     * Tasks waiting for their notBefore time are kept, the dependency edges of deleted tasks are deleted with them.
+     *
+     * @param taskStatus:         Status of the tasks to delete
+     * @param creationDateBefore: Only tasks created before this date are deleted
+     * @param batchSize:          Maximum number of tasks to delete
+     * @return number of deleted tasks
+     */
+    int deleteBatch(TaskStatus taskStatus, Date creationDateBefore, int batchSize);
+
+    /**
+     * Moves one task to a new status if it is still in the expected status and version, with a
+     * single conditional UPDATE that also increments the version. Every status transition of a
+     * single task goes through this method, so of two concurrent transitions from the same
+     * state exactly one succeeds. The lease of the task is cleared, a task moved to RUNNING is
+     * queued until a node claims it.
+     *
+     * @param taskId:          Task ID
+     * @param expectedStatus:  Status the task must still be in
+     * @param expectedVersion: Version the task must still have
+     * @param newStatus:       Status to set
+     * @param progress:        Progress to write together with the status
+     * @return whether the task was in the expected state and has been updated to version expectedVersion + 1
+     */
+    boolean compareAndSetStatus(String taskId, TaskStatus expectedStatus, long expectedVersion, TaskStatus newStatus, int progress);
+
+    /**
+     * Moves many tasks to a new status, every one with its own compare-and-set on the status and
+     * version it was read with, sent as one JDBC batch per chunk. Of the tasks changed since they
+     * were read none is updated. Versions are incremented and leases cleared like in
+     * {@link #compareAndSetStatus}, the given tasks are left as they are.
+     *
+     * @param tasks:     Tasks as read, with the progress to write
+     * @param newStatus: Status to set
+     * @return tasks that were still in their status and version and have been updated
+     */
+    List<ProjectGenerationTask> compareAndSetStatuses(List<ProjectGenerationTask> tasks, TaskStatus newStatus);
+
+    /**
+     * Writes the storage location of a task without touching its status or version, so a
+     * result stored while the task is canceled does not bring the task back to life. Only a
+     * RUNNING task still leased by the owner at the version of its claim is updated.
+     *
+     * @param taskId:          Task ID
+     * @param storageLocation: Location of the stored result
+     * @param owner:           Lease owner of the run that stored the result
+     * @param version:         Version of the claim
+     * @return number of updated rows
+     */
+    int updateStorageLocation(String taskId, String storageLocation, String owner, long version);
+
+    /**
+     * Claims queued tasks, RUNNING tasks without lease, for one node. The limit is shared round-robin
+     * between the flows of queued tasks, one per type and tenant, so a backlog of one flow does not
+     * hold back the others; within a flow higher priorities are claimed first, then the oldest. When
+     * there are more flows than the limit, the flow served first moves on with every claim. Candidate
+     * rows are locked with SELECT ... FOR UPDATE SKIP LOCKED where the database supports it, so
+     * concurrent claimers pick disjoint tasks, and every claim is a conditional UPDATE on the version
+     * read, which it increments.
+     *
+     * @param owner:          Node claiming the tasks
+     * @param leaseExpiresAt: End of the lease unless it is renewed
+     * @param limit:          Maximum number of tasks to claim
+     * @param excludedTypes:  Types the node has no capacity for, their tasks are left to the others
+     * @return claimed tasks, at the version of the claim, by priority and then creation order
+     */
+    List<ProjectGenerationTask> claimQueued(String owner, Date leaseExpiresAt, int limit, Collection<TaskType> excludedTypes);
+
+    /**
+     * Claims the oldest RUNNING tasks whose lease expired, left over by a node that stopped
+     * renewing it, the same way {@link #claimQueued} claims queued tasks
+     *
+     * @param owner:          Node claiming the tasks
+     * @param now:            Leases that ended before are expired
+     * @param leaseExpiresAt: End of the new lease unless it is renewed
+     * @param limit:          Maximum number of tasks to claim
+     * @param excludedTypes:  Types the node has no capacity for, their tasks are left to the others
+     * @return claimed tasks, at the version of the claim
+     */
+    List<ProjectGenerationTask> claimExpired(String owner, Date now, Date leaseExpiresAt, int limit, Collection<TaskType> excludedTypes);
+
+    /**
+     * Gives queued tasks a node claimed but could not start back to the queue, at the version they
+     * had before the claim, so a compare-and-set of a request that read them before still succeeds.
+     * One conditional UPDATE per task in a JDBC batch, a task changed since the claim is left alone.
+     *
+     * @param owner: Node holding the leases
+     * @param tasks: Tasks as returned by {@link #claimQueued}
+     * @return number of released claims
+     */
+    int releaseClaims(String owner, List<ProjectGenerationTask> tasks);
+
+    /**
+     * Ends the leases of tasks a node claimed after their lease expired but could not recover, so the
+     * next claim of expired tasks recovers them. The version of the claim is kept, the run of the node
+     * that held them before stays unable to write them.
+     *
+     * @param owner: Node holding the leases
+     * @param tasks: Tasks as returned by {@link #claimExpired}
+     * @param now:   New end of the leases
+     * @return number of expired leases
+     */
+    int expireClaims(String owner, List<ProjectGenerationTask> tasks, Date now);
+
+    /**
+     * Counts the queued tasks of a type, RUNNING tasks without lease
+     *
+     * @param taskType: Task type
+     * @return number of queued tasks
+     */
+    int countQueued(TaskType taskType);
+
+    /**
+     * Extends the leases a node holds on running tasks, with one UPDATE statement per chunk.
+     * An expired lease is not extended, another node may be claiming the task already.
+     *
+     * @param owner:          Node holding the leases
+     * @param taskIds:        Task IDs
+     * @param now:            Leases that ended before are not extended
+     * @param leaseExpiresAt: New end of the leases
+     * @return number of leases still held and extended
+     */
+    int renewLeases(String owner, Collection<String> taskIds, Date now, Date leaseExpiresAt);
+
+    /**
+     * Reads which of the given tasks a node still holds the lease of, with one SELECT per chunk.
+     * A task canceled, completed or claimed by another node in the meantime is missing.
+     *
+     * @param owner:   Node holding the leases
+     * @param taskIds: Task IDs
+     * @return version of every task still RUNNING under a lease of the node, by task ID
+     */
+    Map<String, Long> findLeaseVersions(String owner, Collection<String> taskIds);
+
+    /**
+     * Gives the leases a node holds back to the queue, so any node can claim the tasks again.
+     * The version is incremented, a run still going on the node cannot write the task anymore.
+     *
+     * @param owner:   Node holding the leases
+     * @param taskIds: Task IDs
+     * @return number of released leases
+     */
+    int releaseLeases(String owner, Collection<String> taskIds);
+
+    /**
+     * Ends every lease of a node at once, used by a node restarting under the same name
+     * for the tasks its previous run left behind
+     *
+     * @param owner: Node holding the leases
+     * @param now:   New end of the leases
+     * @return number of expired leases
+     */
+    int expireLeases(String owner, Date now);
+
+    /**
+     * Keyset page of the PENDING tasks waiting for a notBefore time, ordered by that time then id
+     *
+     * @param notBeforeBefore: Only tasks due before this time are read
+     * @param afterNotBefore:  notBefore of the last task of the previous page
+     * @param afterId:         ID of the last task of the previous page, null for the first page
+     * @param limit:           Maximum number of tasks to read
+     * @return tasks due before notBeforeBefore following the position
+     */
+    List<ProjectGenerationTask> findScheduled(Date notBeforeBefore, Date afterNotBefore, String afterId, int limit);
+
+    /**
+     * Moves the notBefore time of a PENDING recurring task to its next occurrence if it still has
+     * the expected version, which is incremented. Of the nodes firing the same occurrence only one
+     * advances the task, and only that one starts the run.
+     *
+     * @param taskId:          Task ID
+     * @param expectedVersion: Version the task must still have
+     * @param notBefore:       Time of the next occurrence
+     * @return whether the task was PENDING at the expected version and has been advanced
+     */
+    boolean advanceSchedule(String taskId, long expectedVersion, Date notBefore);
+
+    /**
+     * Inserts new tasks with JDBC batch statements, bypassing the persistence context.
+     * The tasks must already carry their id, their dependency edges are inserted with them.
+     *
+     * @param tasks: New tasks
+     * @return number of inserted tasks
+     */
+    int insertAll(List<ProjectGenerationTask> tasks);
+
+    /**
+     * Inserts the dependency edges of tasks with JDBC batch statements, one per task and task it depends on
+     *
+     * @param tasks: Tasks with their dependsOn IDs
+     * @return number of inserted edges
+     */
+    int insertDependencies(List<ProjectGenerationTask> tasks);
+
+    /**
+     * Deletes the dependency edges of tasks, with one DELETE statement per chunk. Edges of other
+     * tasks to the given ones are kept, those tasks wait for a task that no longer exists.
+     *
+     * @param taskIds: IDs of the depending tasks
+     * @return number of deleted edges
+     */
+    int deleteDependencies(Collection<String> taskIds);
+
+    /**
+     * Reads the PENDING tasks depending on any of the given tasks through the dependency edges,
+     * with one SELECT per chunk
+     *
+     * @param upstreamIds: IDs of the tasks depended on
+     * @return every waiting dependent once
+     */
+    List<ProjectGenerationTask> findWaitingDependents(Collection<String> upstreamIds);
+
+    /**
+     * Keyset page of the PENDING tasks with dependencies, ordered by id
+     *
+     * @param afterId: ID of the last task of the previous page, null for the first page
+     * @param limit:   Maximum number of tasks to read
+     * @return tasks following the position
+     */
+    List<ProjectGenerationTask> findWaiting(String afterId, int limit);
+
+    /**
+     * Reads the status of many tasks with one SELECT per chunk
+     *
+     * @param taskIds: Task IDs
+     * @return status by task ID, tasks that do not exist are missing
+     */
+    Map<String, TaskStatus> findStatuses(Collection<String> taskIds);
+
+    /**
+     * @return whether the task_parameters join table of the former mapping still holds parameters
+     */
+    boolean hasLegacyParameters();
+
+    /**
+     * Moves the parameters of one bounded batch of tasks from the task_parameters join table
+     * into the JSON parameters column, then deletes the moved rows.
+     *
+     * @param batchSize: Maximum number of tasks to migrate
+     * @return number of migrated tasks, 0 once the join table is empty
+     */
+    int migrateLegacyParameters(int batchSize);
+}
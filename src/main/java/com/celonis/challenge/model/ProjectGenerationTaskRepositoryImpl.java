@@ -0,0 +1,650 @@
+package com.celonis.challenge.model;
+
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProjectGenerationTaskRepositoryImpl implements ProjectGenerationTaskRepositoryCustom {
+
+    static final int CHUNK_SIZE = 500;
+
+    // large enough for drivers that only rewrite batches beyond a few statements
+    private static final int BATCH_COUNT_PROBE_SIZE = 8;
+
+    private static final TaskParametersConverter PARAMETERS_CONVERTER = new TaskParametersConverter();
+
+    private static final TaskDependenciesConverter DEPENDENCIES_CONVERTER = new TaskDependenciesConverter();
+
+    private static final String TASK_COLUMNS = "id, task_name, created_on, task_type, task_status, task_progress,"
+            + " deadline_millis, priority, tenant, not_before, cron, interval_millis, schedule_id, depends_on, storage_location, parameters,"
+            + " lease_owner, lease_expires_at, version";
+
+    // the task columns of the alias t in joins
+    private static final String JOINED_TASK_COLUMNS = "t." + TASK_COLUMNS.replace(", ", ", t.");
+
+    private static final RowMapper<ProjectGenerationTask> TASK_ROW_MAPPER = ProjectGenerationTaskRepositoryImpl::mapTask;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private volatile String lockClause;
+
+    private volatile Boolean reportsBatchCounts;
+
+    // flow served first by the next claim of queued tasks
+    private final AtomicInteger nextFlow = new AtomicInteger();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    public ProjectGenerationTaskRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public int updateRunningProgress(Collection<TaskProgressUpdate> updates) {
+        List<Object[]> rows = new ArrayList<>(updates.size());
+        for (TaskProgressUpdate update : updates) {
+            rows.add(new Object[]{update.getProgress(), update.getTaskId(), update.getLeaseOwner(), update.getVersion()});
+        }
+        return updateClaims("task_progress = ?", rows);
+    }
+
+    @Override
+    public List<ProjectGenerationTask> findPage(TaskQuery taskQuery) {
+        CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<ProjectGenerationTask> criteriaQuery = criteriaBuilder.createQuery(ProjectGenerationTask.class);
+        Root<ProjectGenerationTask> root = criteriaQuery.from(ProjectGenerationTask.class);
+
+        List<Predicate> predicates = new ArrayList<>();
+        if (taskQuery.getTaskStatus() != null) {
+            predicates.add(criteriaBuilder.equal(root.get("taskStatus"), taskQuery.getTaskStatus()));
+        }
+        if (taskQuery.getTaskType() != null) {
+            predicates.add(criteriaBuilder.equal(root.get("taskType"), taskQuery.getTaskType()));
+        }
+        if (taskQuery.getCreatedFrom() != null) {
+            predicates.add(criteriaBuilder.greaterThanOrEqualTo(root.get("creationDate"), taskQuery.getCreatedFrom()));
+        }
+        if (taskQuery.getCreatedTo() != null) {
+            predicates.add(criteriaBuilder.lessThan(root.get("creationDate"), taskQuery.getCreatedTo()));
+        }
+        TaskCursor after = taskQuery.getAfter();
+        if (after != null) {
+            predicates.add(criteriaBuilder.or(
+                    criteriaBuilder.greaterThan(root.get("creationDate"), after.getCreationDate()),
+                    criteriaBuilder.and(
+                            criteriaBuilder.equal(root.get("creationDate"), after.getCreationDate()),
+                            criteriaBuilder.greaterThan(root.get("id"), after.getId()))));
+        }
+
+        criteriaQuery.where(predicates.toArray(new Predicate[0]))
+                .orderBy(criteriaBuilder.asc(root.get("creationDate")), criteriaBuilder.asc(root.get("id")));
+
+        return entityManager.createQuery(criteriaQuery)
+                .setMaxResults(taskQuery.getLimit())
+                .getResultList();
+    }
+
+    @Override
+    @Transactional
+    public int deleteBatch(TaskStatus taskStatus, Date creationDateBefore, int batchSize) {
+        List<String> ids = jdbcTemplate.queryForList(
+                "SELECT id FROM project_generation_task WHERE task_status = ? AND created_on < ? AND not_before IS NULL"
+                        + " LIMIT ? FOR UPDATE",
+                String.class, taskStatus.name(), creationDateBefore, batchSize);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        List<Object> parameters = new ArrayList<>(ids);
+        parameters.add(taskStatus.name());
+        deleteDependencies(ids);
+        return jdbcTemplate.update("DELETE FROM project_generation_task WHERE id IN ("
+                + String.join(", ", Collections.nCopies(ids.size(), "?")) + ") AND task_status = ?", parameters.toArray());
+    }
+
+    @Override
+    public boolean compareAndSetStatus(String taskId, TaskStatus expectedStatus, long expectedVersion, TaskStatus newStatus, int progress) {
+        return jdbcTemplate.update("UPDATE project_generation_task SET task_status = ?, task_progress = ?, version = version + 1,"
+                        + " lease_owner = NULL, lease_expires_at = NULL WHERE id = ? AND task_status = ? AND version = ?",
+                newStatus.name(), progress, taskId, expectedStatus.name(), expectedVersion) == 1;
+    }
+
+    @Override
+    public List<ProjectGenerationTask> compareAndSetStatuses(List<ProjectGenerationTask> tasks, TaskStatus newStatus) {
+        List<ProjectGenerationTask> updated = new ArrayList<>(tasks.size());
+        for (int from = 0; from < tasks.size(); from += CHUNK_SIZE) {
+            List<ProjectGenerationTask> chunk = tasks.subList(from, Math.min(from + CHUNK_SIZE, tasks.size()));
+            List<Object[]> rows = new ArrayList<>(chunk.size());
+            for (ProjectGenerationTask task : chunk) {
+                rows.add(new Object[]{newStatus.name(), task.getProgress(), task.getId(), task.getTaskStatus().name(), task.getVersion()});
+            }
+            int[] counts = conditionalBatchUpdate("UPDATE project_generation_task SET task_status = ?, task_progress = ?,"
+                    + " version = version + 1, lease_owner = NULL, lease_expires_at = NULL"
+                    + " WHERE id = ? AND task_status = ? AND version = ?", rows);
+            for (int i = 0; i < chunk.size(); i++) {
+                if (counts[i] == 1) {
+                    updated.add(chunk.get(i));
+                }
+            }
+        }
+        return updated;
+    }
+
+    @Override
+    public int updateStorageLocation(String taskId, String storageLocation, String owner, long version) {
+        return updateClaims("storage_location = ?", Collections.singletonList(new Object[]{storageLocation, taskId, owner, version}));
+    }
+
+    @Override
+    @Transactional
+    public List<ProjectGenerationTask> claimQueued(String owner, Date leaseExpiresAt, int limit, Collection<TaskType> excludedTypes) {
+        List<Object> arguments = new ArrayList<>();
+        Map<List<Object>, QueueFlow> flowsByKey = new HashMap<>();
+        jdbcTemplate.query("SELECT DISTINCT task_type, tenant, priority FROM project_generation_task"
+                        + " WHERE task_status = 'RUNNING' AND lease_expires_at IS NULL" + typeCondition(excludedTypes, arguments),
+                resultSet -> {
+                    TaskType taskType = TaskType.valueOf(resultSet.getString(1));
+                    String tenant = resultSet.getString(2);
+                    flowsByKey.computeIfAbsent(Arrays.asList(taskType, tenant), key -> new QueueFlow(taskType, tenant))
+                            .priorities.add(TaskPriority.valueOf(resultSet.getString(3)));
+                }, arguments.toArray());
+        if (flowsByKey.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // flows in a fixed order, the first one served moves on with every claim
+        List<QueueFlow> flows = new ArrayList<>(flowsByKey.values());
+        flows.sort(Comparator.comparing((QueueFlow flow) -> flow.taskType)
+                .thenComparing(flow -> flow.tenant, Comparator.nullsFirst(Comparator.naturalOrder())));
+        Collections.rotate(flows, -Math.floorMod(nextFlow.getAndIncrement(), flows.size()));
+        for (QueueFlow flow : flows) {
+            flow.priorities.sort(Comparator.comparing(TaskPriority::getWeight).reversed());
+        }
+
+        // every flow takes an equal share of what is left, until the limit is reached or the flows are drained
+        List<ProjectGenerationTask> candidates = new ArrayList<>();
+        List<QueueFlow> active = new ArrayList<>(flows);
+        while (candidates.size() < limit && !active.isEmpty()) {
+            int share = Math.max(1, (limit - candidates.size()) / active.size());
+            for (Iterator<QueueFlow> iterator = active.iterator(); iterator.hasNext() && candidates.size() < limit; ) {
+                int wanted = Math.min(share, limit - candidates.size());
+                if (selectQueued(iterator.next(), wanted, candidates) < wanted) {
+                    iterator.remove();
+                }
+            }
+        }
+        candidates.sort(Comparator.comparing((ProjectGenerationTask task) -> task.getPriority().getWeight()).reversed()
+                .thenComparing(ProjectGenerationTask::getCreationDate)
+                .thenComparing(ProjectGenerationTask::getId));
+        return lease(candidates, owner, leaseExpiresAt);
+    }
+
+    @Override
+    @Transactional
+    public List<ProjectGenerationTask> claimExpired(String owner, Date now, Date leaseExpiresAt, int limit,
+                                                    Collection<TaskType> excludedTypes) {
+        return claim("lease_expires_at < ?", List.of(now), excludedTypes, owner, leaseExpiresAt, limit);
+    }
+
+    @Override
+    public int releaseClaims(String owner, List<ProjectGenerationTask> tasks) {
+        List<Object[]> rows = new ArrayList<>(tasks.size());
+        for (ProjectGenerationTask task : tasks) {
+            rows.add(new Object[]{task.getVersion() - 1, task.getId(), owner, task.getVersion()});
+        }
+        return updateClaims("lease_owner = NULL, lease_expires_at = NULL, version = ?", rows);
+    }
+
+    @Override
+    public int expireClaims(String owner, List<ProjectGenerationTask> tasks, Date now) {
+        List<Object[]> rows = new ArrayList<>(tasks.size());
+        for (ProjectGenerationTask task : tasks) {
+            rows.add(new Object[]{now, task.getId(), owner, task.getVersion()});
+        }
+        return updateClaims("lease_expires_at = ?", rows);
+    }
+
+    @Override
+    public int countQueued(TaskType taskType) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE task_status = 'RUNNING'"
+                + " AND lease_expires_at IS NULL AND task_type = ?", Integer.class, taskType.name());
+    }
+
+    @Override
+    public int renewLeases(String owner, Collection<String> taskIds, Date now, Date leaseExpiresAt) {
+        return updateLeases("lease_expires_at = ?", List.of(leaseExpiresAt), " AND lease_expires_at >= ?", List.of(now), owner, taskIds);
+    }
+
+    @Override
+    public Map<String, Long> findLeaseVersions(String owner, Collection<String> taskIds) {
+        Map<String, Long> versions = new HashMap<>();
+        List<String> ids = new ArrayList<>(taskIds);
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size()));
+            List<Object> parameters = new ArrayList<>();
+            parameters.add(owner);
+            parameters.addAll(chunk);
+            jdbcTemplate.query("SELECT id, version FROM project_generation_task WHERE lease_owner = ? AND task_status = 'RUNNING'"
+                            + " AND id IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")",
+                    resultSet -> {
+                        versions.put(resultSet.getString(1), resultSet.getLong(2));
+                    }, parameters.toArray());
+        }
+        return versions;
+    }
+
+    @Override
+    public int releaseLeases(String owner, Collection<String> taskIds) {
+        return updateLeases("lease_owner = NULL, lease_expires_at = NULL, version = version + 1", List.of(), "", List.of(), owner, taskIds);
+    }
+
+    @Override
+    public int expireLeases(String owner, Date now) {
+        return jdbcTemplate.update("UPDATE project_generation_task SET lease_expires_at = ?"
+                + " WHERE lease_owner = ? AND task_status = 'RUNNING'", now, owner);
+    }
+
+    @Override
+    public List<ProjectGenerationTask> findScheduled(Date notBeforeBefore, Date afterNotBefore, String afterId, int limit) {
+        if (afterId == null) {
+            return jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM project_generation_task WHERE task_status = 'PENDING'"
+                    + " AND not_before < ? ORDER BY not_before, id LIMIT ?", TASK_ROW_MAPPER, notBeforeBefore, limit);
+        }
+        return jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM project_generation_task WHERE task_status = 'PENDING'"
+                        + " AND not_before < ? AND (not_before > ? OR (not_before = ? AND id > ?)) ORDER BY not_before, id LIMIT ?",
+                TASK_ROW_MAPPER, notBeforeBefore, afterNotBefore, afterNotBefore, afterId, limit);
+    }
+
+    @Override
+    public boolean advanceSchedule(String taskId, long expectedVersion, Date notBefore) {
+        return jdbcTemplate.update("UPDATE project_generation_task SET not_before = ?, version = version + 1"
+                + " WHERE id = ? AND task_status = 'PENDING' AND version = ?", notBefore, taskId, expectedVersion) == 1;
+    }
+
+    @Override
+    @Transactional
+    public int insertAll(List<ProjectGenerationTask> tasks) {
+        List<Object[]> rows = new ArrayList<>(tasks.size());
+        for (ProjectGenerationTask task : tasks) {
+            rows.add(new Object[]{task.getId(), task.getName(), task.getCreationDate(), task.getTaskType().name(),
+                    task.getTaskStatus().name(), task.getProgress(), task.getDeadlineMillis(), task.getPriority().name(),
+                    task.getTenant(), task.getNotBefore(), task.getCron(), task.getIntervalMillis(), task.getScheduleId(),
+                    DEPENDENCIES_CONVERTER.convertToDatabaseColumn(task.getDependsOn()), task.getStorageLocation(),
+                    PARAMETERS_CONVERTER.convertToDatabaseColumn(task.getParameters()), task.getVersion()});
+        }
+
+        int inserted = 0;
+        for (int from = 0; from < rows.size(); from += CHUNK_SIZE) {
+            inserted += Arrays.stream(jdbcTemplate.batchUpdate("INSERT INTO project_generation_task"
+                            + " (id, task_name, created_on, task_type, task_status, task_progress, deadline_millis, priority, tenant,"
+                            + " not_before, cron, interval_millis, schedule_id, depends_on, storage_location, parameters, version)"
+                            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    rows.subList(from, Math.min(from + CHUNK_SIZE, rows.size()))))
+                    // an INSERT that did not happen fails the batch, so a row without count was inserted
+                    .map(count -> count == Statement.SUCCESS_NO_INFO ? 1 : count)
+                    .sum();
+        }
+        insertDependencies(tasks);
+        return inserted;
+    }
+
+    @Override
+    public int insertDependencies(List<ProjectGenerationTask> tasks) {
+        List<Object[]> rows = new ArrayList<>();
+        for (ProjectGenerationTask task : tasks) {
+            if (task.getDependsOn() != null) {
+                for (String upstreamId : task.getDependsOn()) {
+                    rows.add(new Object[]{task.getId(), upstreamId});
+                }
+            }
+        }
+
+        int inserted = 0;
+        for (int from = 0; from < rows.size(); from += CHUNK_SIZE) {
+            inserted += Arrays.stream(jdbcTemplate.batchUpdate("INSERT INTO task_dependency (task_id, upstream_id) VALUES (?, ?)",
+                    rows.subList(from, Math.min(from + CHUNK_SIZE, rows.size()))))
+                    .map(count -> count == Statement.SUCCESS_NO_INFO ? 1 : count)
+                    .sum();
+        }
+        return inserted;
+    }
+
+    @Override
+    public int deleteDependencies(Collection<String> taskIds) {
+        int deleted = 0;
+        List<String> ids = new ArrayList<>(taskIds);
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size()));
+            deleted += jdbcTemplate.update("DELETE FROM task_dependency WHERE task_id IN ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")", chunk.toArray());
+        }
+        return deleted;
+    }
+
+    @Override
+    public List<ProjectGenerationTask> findWaitingDependents(Collection<String> upstreamIds) {
+        // a task waiting for several of the upstream tasks is read once
+        Map<String, ProjectGenerationTask> dependents = new LinkedHashMap<>();
+        List<String> ids = new ArrayList<>(upstreamIds);
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size()));
+            // driven by the index on upstream_id, the tasks are read by primary key
+            jdbcTemplate.query("SELECT " + JOINED_TASK_COLUMNS + " FROM task_dependency d"
+                            + " JOIN project_generation_task t ON t.id = d.task_id WHERE d.upstream_id IN ("
+                            + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ") AND t.task_status = 'PENDING'",
+                    TASK_ROW_MAPPER, chunk.toArray()).forEach(task -> dependents.putIfAbsent(task.getId(), task));
+        }
+        return new ArrayList<>(dependents.values());
+    }
+
+    @Override
+    public List<ProjectGenerationTask> findWaiting(String afterId, int limit) {
+        if (afterId == null) {
+            return jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM project_generation_task WHERE task_status = 'PENDING'"
+                    + " AND depends_on IS NOT NULL ORDER BY id LIMIT ?", TASK_ROW_MAPPER, limit);
+        }
+        return jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM project_generation_task WHERE task_status = 'PENDING'"
+                + " AND depends_on IS NOT NULL AND id > ? ORDER BY id LIMIT ?", TASK_ROW_MAPPER, afterId, limit);
+    }
+
+    @Override
+    public Map<String, TaskStatus> findStatuses(Collection<String> taskIds) {
+        Map<String, TaskStatus> statuses = new HashMap<>();
+        List<String> ids = new ArrayList<>(taskIds);
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size()));
+            jdbcTemplate.query("SELECT id, task_status FROM project_generation_task WHERE id IN ("
+                            + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")",
+                    resultSet -> {
+                        statuses.put(resultSet.getString(1), TaskStatus.valueOf(resultSet.getString(2)));
+                    }, chunk.toArray());
+        }
+        return statuses;
+    }
+
+    @Override
+    public boolean hasLegacyParameters() {
+        try {
+            return !jdbcTemplate.queryForList("SELECT task_id FROM task_parameters LIMIT 1", String.class).isEmpty();
+        } catch (BadSqlGrammarException e) {
+            // the join table was never created or is already dropped
+            return false;
+        }
+    }
+
+    @Override
+    @Transactional
+    public int migrateLegacyParameters(int batchSize) {
+        List<String> ids = jdbcTemplate.queryForList("SELECT DISTINCT task_id FROM task_parameters LIMIT ?", String.class, batchSize);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        Map<String, Map<String, String>> parametersByTask = new HashMap<>();
+        jdbcTemplate.query("SELECT task_id, parameter_key, parameter_value FROM task_parameters WHERE task_id IN (" + placeholders + ")",
+                resultSet -> {
+                    parametersByTask.computeIfAbsent(resultSet.getString(1), id -> new HashMap<>())
+                            .put(resultSet.getString(2), resultSet.getString(3));
+                }, ids.toArray());
+
+        List<Object[]> rows = new ArrayList<>(parametersByTask.size());
+        parametersByTask.forEach((id, parameters) -> rows.add(new Object[]{PARAMETERS_CONVERTER.convertToDatabaseColumn(parameters), id}));
+        // parameters written through the new column since the upgrade win over the copied ones
+        jdbcTemplate.batchUpdate("UPDATE project_generation_task SET parameters = ? WHERE id = ? AND parameters IS NULL", rows);
+        jdbcTemplate.update("DELETE FROM task_parameters WHERE task_id IN (" + placeholders + ")", ids.toArray());
+        return ids.size();
+    }
+
+    private List<ProjectGenerationTask> claim(String leaseCondition, List<Object> conditionArguments, Collection<TaskType> excludedTypes,
+                                              String owner, Date leaseExpiresAt, int limit) {
+        List<Object> arguments = new ArrayList<>(conditionArguments);
+        String typeCondition = typeCondition(excludedTypes, arguments);
+        arguments.add(limit);
+        List<ProjectGenerationTask> candidates = jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM project_generation_task"
+                        + " WHERE task_status = 'RUNNING' AND " + leaseCondition + typeCondition + " ORDER BY created_on, id LIMIT ?"
+                        + getLockClause(),
+                TASK_ROW_MAPPER, arguments.toArray());
+        return lease(candidates, owner, leaseExpiresAt);
+    }
+
+    /**
+     * Locks up to wanted more queued tasks of a flow, highest priority first and oldest first within
+     * a priority, continuing where the previous selection of the flow stopped
+     *
+     * @return number of tasks added to the candidates
+     */
+    private int selectQueued(QueueFlow flow, int wanted, List<ProjectGenerationTask> candidates) {
+        int selected = 0;
+        while (selected < wanted && flow.priority < flow.priorities.size()) {
+            List<Object> arguments = new ArrayList<>();
+            arguments.add(flow.taskType.name());
+            String tenantCondition = " AND tenant IS NULL";
+            if (flow.tenant != null) {
+                tenantCondition = " AND tenant = ?";
+                arguments.add(flow.tenant);
+            }
+            arguments.add(flow.priorities.get(flow.priority).name());
+            arguments.add(wanted - selected);
+            arguments.add(flow.offset);
+            List<ProjectGenerationTask> tasks = jdbcTemplate.query("SELECT " + TASK_COLUMNS + " FROM project_generation_task"
+                            + " WHERE task_status = 'RUNNING' AND lease_expires_at IS NULL AND task_type = ?" + tenantCondition
+                            + " AND priority = ? ORDER BY created_on, id LIMIT ? OFFSET ?" + getLockClause(),
+                    TASK_ROW_MAPPER, arguments.toArray());
+            candidates.addAll(tasks);
+            selected += tasks.size();
+            if (selected < wanted) {
+                // this priority is drained, the next one starts from its oldest task
+                flow.priority++;
+                flow.offset = 0;
+            } else {
+                flow.offset += tasks.size();
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Conditional UPDATE of the lease of every candidate at the version it was read with
+     *
+     * @return candidates claimed, at the version of the claim
+     */
+    private List<ProjectGenerationTask> lease(List<ProjectGenerationTask> candidates, String owner, Date leaseExpiresAt) {
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+
+        List<Object[]> rows = new ArrayList<>(candidates.size());
+        for (ProjectGenerationTask candidate : candidates) {
+            rows.add(new Object[]{owner, leaseExpiresAt, candidate.getId(), candidate.getVersion()});
+        }
+        int[] counts = conditionalBatchUpdate("UPDATE project_generation_task SET lease_owner = ?, lease_expires_at = ?,"
+                + " version = version + 1 WHERE id = ? AND version = ? AND task_status = 'RUNNING'", rows);
+
+        List<ProjectGenerationTask> claimed = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            if (counts[i] == 1) {
+                ProjectGenerationTask task = candidates.get(i);
+                task.setLeaseOwner(owner);
+                task.setLeaseExpiresAt(leaseExpiresAt);
+                task.setVersion(task.getVersion() + 1);
+                claimed.add(task);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Condition leaving out the given types, their names are added to the arguments
+     */
+    private static String typeCondition(Collection<TaskType> excludedTypes, List<Object> arguments) {
+        if (excludedTypes.isEmpty()) {
+            return "";
+        }
+        excludedTypes.forEach(taskType -> arguments.add(taskType.name()));
+        return " AND task_type NOT IN (" + String.join(", ", Collections.nCopies(excludedTypes.size(), "?")) + ")";
+    }
+
+    /**
+     * Conditional UPDATE of claims still held at the version of the claim, the assignment arguments
+     * come first in every row, then id, owner and version
+     */
+    private int updateClaims(String assignments, List<Object[]> rows) {
+        int updated = 0;
+        for (int from = 0; from < rows.size(); from += CHUNK_SIZE) {
+            updated += Arrays.stream(conditionalBatchUpdate("UPDATE project_generation_task SET " + assignments
+                            + " WHERE id = ? AND lease_owner = ? AND version = ? AND task_status = 'RUNNING'",
+                    rows.subList(from, Math.min(from + CHUNK_SIZE, rows.size()))))
+                    .filter(count -> count == 1)
+                    .sum();
+        }
+        return updated;
+    }
+
+    private int updateLeases(String assignments, List<Object> assignmentArguments, String condition, List<Object> conditionArguments,
+                             String owner, Collection<String> taskIds) {
+        int updated = 0;
+        List<String> ids = new ArrayList<>(taskIds);
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size()));
+            List<Object> parameters = new ArrayList<>(assignmentArguments);
+            parameters.add(owner);
+            parameters.addAll(conditionArguments);
+            parameters.addAll(chunk);
+            updated += jdbcTemplate.update("UPDATE project_generation_task SET " + assignments
+                    + " WHERE lease_owner = ? AND task_status = 'RUNNING'" + condition + " AND id IN ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")", parameters.toArray());
+        }
+        return updated;
+    }
+
+    /**
+     * Conditional UPDATE of every row, with the number of rows each of them updated. Drivers that
+     * answer batches with SUCCESS_NO_INFO, such as MySQL with rewriteBatchedStatements or Oracle,
+     * cannot tell a lost compare-and-set from a won one, so the rows are then updated one by one.
+     */
+    private int[] conditionalBatchUpdate(String sql, List<Object[]> rows) {
+        if (!reportsBatchCounts()) {
+            int[] counts = new int[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                counts[i] = jdbcTemplate.update(sql, rows.get(i));
+            }
+            return counts;
+        }
+        int[] counts = jdbcTemplate.batchUpdate(sql, rows);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                // unknown, taken as lost: a claim left behind expires, a status change is read again
+                counts[i] = 0;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Whether the driver reports the rows updated by every statement of a batch, found out once
+     * with a batch of updates that match no row
+     */
+    private boolean reportsBatchCounts() {
+        Boolean reportsBatchCounts = this.reportsBatchCounts;
+        if (reportsBatchCounts == null) {
+            int[] counts = jdbcTemplate.batchUpdate("UPDATE project_generation_task SET version = version WHERE id = ?",
+                    Collections.nCopies(BATCH_COUNT_PROBE_SIZE, new Object[]{""}));
+            reportsBatchCounts = Arrays.stream(counts).allMatch(count -> count == 0);
+            this.reportsBatchCounts = reportsBatchCounts;
+        }
+        return reportsBatchCounts;
+    }
+
+    /**
+     * Locking clause of claims, H2 and MySQL before 8.0 cannot skip locked rows and wait for them instead,
+     * the conditional UPDATE of the claim still hands every task to one node only
+     */
+    private String getLockClause() {
+        String lockClause = this.lockClause;
+        if (lockClause == null) {
+            lockClause = jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+                DatabaseMetaData metaData = connection.getMetaData();
+                String product = metaData.getDatabaseProductName();
+                boolean skipLocked = "PostgreSQL".equals(product)
+                        || ("MySQL".equals(product) && metaData.getDatabaseMajorVersion() >= 8);
+                return skipLocked ? " FOR UPDATE SKIP LOCKED" : " FOR UPDATE";
+            });
+            this.lockClause = lockClause;
+        }
+        return lockClause;
+    }
+
+    /**
+     * Queued tasks of one type and tenant, with where the selection of a claim stopped
+     */
+    private static final class QueueFlow {
+
+        private final TaskType taskType;
+
+        private final String tenant;
+
+        private final List<TaskPriority> priorities = new ArrayList<>();
+
+        private int priority;
+
+        private int offset;
+
+        private QueueFlow(TaskType taskType, String tenant) {
+            this.taskType = taskType;
+            this.tenant = tenant;
+        }
+    }
+
+    private static ProjectGenerationTask mapTask(ResultSet resultSet, int rowNum) throws SQLException {
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setId(resultSet.getString("id"));
+        task.setName(resultSet.getString("task_name"));
+        task.setCreationDate(resultSet.getTimestamp("created_on"));
+        task.setTaskType(TaskType.valueOf(resultSet.getString("task_type")));
+        task.setTaskStatus(TaskStatus.valueOf(resultSet.getString("task_status")));
+        task.setProgress(resultSet.getInt("task_progress"));
+        long deadlineMillis = resultSet.getLong("deadline_millis");
+        task.setDeadlineMillis(resultSet.wasNull() ? null : deadlineMillis);
+        task.setPriority(TaskPriority.valueOf(resultSet.getString("priority")));
+        task.setTenant(resultSet.getString("tenant"));
+        task.setNotBefore(resultSet.getTimestamp("not_before"));
+        task.setCron(resultSet.getString("cron"));
+        long intervalMillis = resultSet.getLong("interval_millis");
+        task.setIntervalMillis(resultSet.wasNull() ? null : intervalMillis);
+        task.setScheduleId(resultSet.getString("schedule_id"));
+        task.setDependsOn(DEPENDENCIES_CONVERTER.convertToEntityAttribute(resultSet.getString("depends_on")));
+        task.setStorageLocation(resultSet.getString("storage_location"));
+        task.setParameters(PARAMETERS_CONVERTER.convertToEntityAttribute(resultSet.getString("parameters")));
+        task.setLeaseOwner(resultSet.getString("lease_owner"));
+        task.setLeaseExpiresAt(resultSet.getTimestamp("lease_expires_at"));
+        task.setVersion(resultSet.getLong("version"));
+        return task;
+    }
+}
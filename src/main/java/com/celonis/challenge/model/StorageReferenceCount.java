@@ -0,0 +1,20 @@
+package com.celonis.challenge.model;
+
+public class StorageReferenceCount {
+
+    private final String storageLocation;
+    private final long references;
+
+    public StorageReferenceCount(String storageLocation, long references) {
+        this.storageLocation = storageLocation;
+        this.references = references;
+    }
+
+    public String getStorageLocation() {
+        return storageLocation;
+    }
+
+    public long getReferences() {
+        return references;
+    }
+}
@@ -0,0 +1,53 @@
+package com.celonis.challenge.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Outcome of one item of a batch request, with the HTTP status the single-task endpoint would have answered
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TaskBatchItem {
+
+    private final int index;
+    private final String taskId;
+    private final int status;
+    private final String error;
+    private final ProjectGenerationTask task;
+
+    public TaskBatchItem(int index, String taskId, int status, String error, ProjectGenerationTask task) {
+        this.index = index;
+        this.taskId = taskId;
+        this.status = status;
+        this.error = error;
+        this.task = task;
+    }
+
+    /**
+     * @return position of the item in the request
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return reason the item failed, null on success
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the created or canceled task, null otherwise
+     */
+    public ProjectGenerationTask getTask() {
+        return task;
+    }
+}
@@ -0,0 +1,27 @@
+package com.celonis.challenge.model;
+
+import java.util.List;
+
+public class TaskBatchResult {
+
+    private final List<TaskBatchItem> items;
+
+    public TaskBatchResult(List<TaskBatchItem> items) {
+        this.items = items;
+    }
+
+    public int getSucceeded() {
+        return (int) items.stream().filter(item -> item.getError() == null).count();
+    }
+
+    public int getFailed() {
+        return items.size() - getSucceeded();
+    }
+
+    /**
+     * @return one item per requested task, in request order
+     */
+    public List<TaskBatchItem> getItems() {
+        return items;
+    }
+}
@@ -0,0 +1,49 @@
+package com.celonis.challenge.model;
+
+import com.celonis.challenge.exceptions.BadRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Keyset position in the (creation date, id) ordering of tasks, exchanged with
+ * clients as an opaque string
+ */
+public class TaskCursor {
+
+    private final Date creationDate;
+    private final String id;
+
+    public TaskCursor(Date creationDate, String id) {
+        this.creationDate = creationDate;
+        this.id = id;
+    }
+
+    public static TaskCursor of(ProjectGenerationTask projectGenerationTask) {
+        return new TaskCursor(projectGenerationTask.getCreationDate(), projectGenerationTask.getId());
+    }
+
+    public static TaskCursor decode(String value) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(':');
+            return new TaskCursor(new Date(Long.parseLong(decoded.substring(0, separator))), decoded.substring(separator + 1));
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+    }
+
+    public String encode() {
+        String value = creationDate.getTime() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,46 @@
+package com.celonis.challenge.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the IDs of the tasks a task depends on as one JSON array in its own row, in the
+ * order they were given. Tasks without dependencies keep the column empty.
+ */
+@Converter
+public class TaskDependenciesConverter implements AttributeConverter<List<String>, String> {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<ArrayList<String>> LIST_TYPE = new TypeReference<ArrayList<String>>() {
+    };
+
+    @Override
+    public String convertToDatabaseColumn(List<String> dependsOn) {
+        if (dependsOn == null || dependsOn.isEmpty()) {
+            return null;
+        }
+        try {
+            return OBJECT_MAPPER.writeValueAsString(dependsOn);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Task dependencies cannot be written as JSON", e);
+        }
+    }
+
+    @Override
+    public List<String> convertToEntityAttribute(String json) {
+        if (json == null || json.isEmpty()) {
+            return new ArrayList<>();
+        }
+        try {
+            return OBJECT_MAPPER.readValue(json, LIST_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Task dependencies are not a JSON array of strings", e);
+        }
+    }
+}
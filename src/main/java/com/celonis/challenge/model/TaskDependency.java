@@ -0,0 +1,78 @@
+package com.celonis.challenge.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Edge of the task dependency graph, from a task to one of the tasks it waits for. The edges
+ * are written and read with JDBC by the task repository, this entity only maps their table,
+ * indexed by upstream task so the tasks waiting for a finished task are found without a scan.
+ */
+@Entity
+@Table(name = "task_dependency", indexes = {
+        @Index(name = "idx_task_dependency_upstream", columnList = "upstream_id")
+})
+@IdClass(TaskDependency.Key.class)
+public class TaskDependency {
+
+    @Id
+    @Column(name = "task_id")
+    private String taskId;
+
+    @Id
+    @Column(name = "upstream_id")
+    private String upstreamId;
+
+    protected TaskDependency() {
+    }
+
+    public TaskDependency(String taskId, String upstreamId) {
+        this.taskId = taskId;
+        this.upstreamId = upstreamId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public String getUpstreamId() {
+        return upstreamId;
+    }
+
+    public static class Key implements Serializable {
+
+        private String taskId;
+        private String upstreamId;
+
+        public Key() {
+        }
+
+        public Key(String taskId, String upstreamId) {
+            this.taskId = taskId;
+            this.upstreamId = upstreamId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(taskId, key.taskId) && Objects.equals(upstreamId, key.upstreamId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(taskId, upstreamId);
+        }
+    }
+}
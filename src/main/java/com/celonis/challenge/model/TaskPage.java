@@ -0,0 +1,25 @@
+package com.celonis.challenge.model;
+
+import java.util.List;
+
+public class TaskPage {
+
+    private final List<ProjectGenerationTask> items;
+    private final String nextCursor;
+
+    public TaskPage(List<ProjectGenerationTask> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<ProjectGenerationTask> getItems() {
+        return items;
+    }
+
+    /**
+     * @return cursor of the next page, or null on the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,47 @@
+package com.celonis.challenge.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores the parameters of a task as one JSON object in its own row. Keys are written
+ * sorted, so equal maps always give equal column values.
+ */
+@Converter
+public class TaskParametersConverter implements AttributeConverter<Map<String, String>, String> {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<HashMap<String, String>> MAP_TYPE = new TypeReference<HashMap<String, String>>() {
+    };
+
+    @Override
+    public String convertToDatabaseColumn(Map<String, String> parameters) {
+        if (parameters == null || parameters.isEmpty()) {
+            return null;
+        }
+        try {
+            return OBJECT_MAPPER.writeValueAsString(new TreeMap<>(parameters));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Task parameters cannot be written as JSON", e);
+        }
+    }
+
+    @Override
+    public Map<String, String> convertToEntityAttribute(String json) {
+        if (json == null || json.isEmpty()) {
+            return new HashMap<>();
+        }
+        try {
+            return OBJECT_MAPPER.readValue(json, MAP_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Task parameters are not a JSON object of strings", e);
+        }
+    }
+}
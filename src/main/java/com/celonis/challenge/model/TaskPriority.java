@@ -0,0 +1,21 @@
+package com.celonis.challenge.model;
+
+/**
+ * Priority class of a task. While tasks wait for a worker, a task gets a share of the
+ * workers of its type and tenant proportional to the weight of its class.
+ */
+public enum TaskPriority {
+    LOW(1),
+    NORMAL(4),
+    HIGH(16);
+
+    private final int weight;
+
+    TaskPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,32 @@
+package com.celonis.challenge.model;
+
+public class TaskProgressUpdate {
+
+    private final String taskId;
+    private final String leaseOwner;
+    private final long version;
+    private final int progress;
+
+    public TaskProgressUpdate(String taskId, String leaseOwner, long version, int progress) {
+        this.taskId = taskId;
+        this.leaseOwner = leaseOwner;
+        this.version = version;
+        this.progress = progress;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+}
@@ -0,0 +1,45 @@
+package com.celonis.challenge.model;
+
+import java.util.Date;
+
+public class TaskProgressView {
+
+    private final String id;
+    private final TaskStatus taskStatus;
+    private final int progress;
+    private final boolean queued;
+
+    public TaskProgressView(String id, TaskStatus taskStatus, int progress) {
+        this(id, taskStatus, progress, false);
+    }
+
+    public TaskProgressView(String id, TaskStatus taskStatus, int progress, boolean queued) {
+        this.id = id;
+        this.taskStatus = taskStatus;
+        this.progress = progress;
+        this.queued = queued;
+    }
+
+    /**
+     * Progress as read from the database, a RUNNING task without lease is still queued
+     */
+    public TaskProgressView(String id, TaskStatus taskStatus, int progress, Date leaseExpiresAt) {
+        this(id, taskStatus, progress, taskStatus == TaskStatus.RUNNING && leaseExpiresAt == null);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public TaskStatus getTaskStatus() {
+        return taskStatus;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    public boolean isQueued() {
+        return queued;
+    }
+}
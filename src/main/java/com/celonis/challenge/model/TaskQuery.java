@@ -0,0 +1,64 @@
+package com.celonis.challenge.model;
+
+import java.util.Date;
+
+/**
+ * Filters and keyset position of a task listing
+ */
+public class TaskQuery {
+
+    private TaskStatus taskStatus;
+    private TaskType taskType;
+    private Date createdFrom;
+    private Date createdTo;
+    private TaskCursor after;
+    private int limit;
+
+    public TaskStatus getTaskStatus() {
+        return taskStatus;
+    }
+
+    public void setTaskStatus(TaskStatus taskStatus) {
+        this.taskStatus = taskStatus;
+    }
+
+    public TaskType getTaskType() {
+        return taskType;
+    }
+
+    public void setTaskType(TaskType taskType) {
+        this.taskType = taskType;
+    }
+
+    public Date getCreatedFrom() {
+        return createdFrom;
+    }
+
+    public void setCreatedFrom(Date createdFrom) {
+        this.createdFrom = createdFrom;
+    }
+
+    public Date getCreatedTo() {
+        return createdTo;
+    }
+
+    public void setCreatedTo(Date createdTo) {
+        this.createdTo = createdTo;
+    }
+
+    public TaskCursor getAfter() {
+        return after;
+    }
+
+    public void setAfter(TaskCursor after) {
+        this.after = after;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+}
@@ -1,9 +1,62 @@
 package com.celonis.challenge.model;
 
+/**
+ * Status of a task, with the transitions allowed between them kept as one bit mask
+ * per status, so checking a transition is a shift and an AND without allocation.
+ */
 public enum TaskStatus {
     PENDING,
     RUNNING,
     COMPLETED,
     CANCELED,
-    FAILED
+    FAILED;
+
+    private static final int[] TRANSITIONS = new int[values().length];
+
+    private static final int FINISHED = bits(COMPLETED, CANCELED, FAILED);
+
+    static {
+        allow(PENDING, RUNNING, CANCELED);
+        allow(RUNNING, COMPLETED, CANCELED, FAILED);
+        allow(CANCELED, RUNNING);
+        allow(FAILED, RUNNING);
+    }
+
+    /**
+     * @param status: Status to move to
+     * @return true if a task in this status may move to the given one
+     */
+    public boolean canTransitionTo(TaskStatus status) {
+        return (TRANSITIONS[ordinal()] & bit(status)) != 0;
+    }
+
+    /**
+     * @return true if the run of the task is over, canceled and failed tasks may still be executed again
+     */
+    public boolean isFinished() {
+        return (FINISHED & bit(this)) != 0;
+    }
+
+    /**
+     * @return true if name and parameters of a task in this status may be changed
+     */
+    public boolean isEditable() {
+        return this == PENDING;
+    }
+
+    private static void allow(TaskStatus from, TaskStatus... to) {
+        TRANSITIONS[from.ordinal()] = bits(to);
+    }
+
+    private static int bits(TaskStatus... statuses) {
+        int bits = 0;
+        for (TaskStatus status : statuses) {
+            bits |= bit(status);
+        }
+        return bits;
+    }
+
+    private static int bit(TaskStatus status) {
+        return 1 << status.ordinal();
+    }
 }
@@ -0,0 +1,56 @@
+package com.celonis.challenge.model;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates version 7 UUIDs: 48 bits of Unix milliseconds, then a 12 bit sequence and 62 random bits.
+ * Ids of one node sort in creation order, as bytes and as strings, so new rows are appended to
+ * the right edge of the primary key instead of splitting pages all over a clustered index.
+ */
+public class TimeOrderedUuidGenerator implements IdentifierGenerator {
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+    private static long lastMillis;
+    private static int sequence;
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) {
+        return nextId();
+    }
+
+    /**
+     * @return the next id, strictly greater than every id this JVM generated before
+     */
+    public static String nextId() {
+        long millis;
+        int next;
+        synchronized (TimeOrderedUuidGenerator.class) {
+            millis = Math.max(System.currentTimeMillis(), lastMillis);
+            if (millis == lastMillis) {
+                if (sequence == MAX_SEQUENCE) {
+                    // the sequence of this millisecond is used up, borrow the next one
+                    millis++;
+                    sequence = ThreadLocalRandom.current().nextInt(MAX_SEQUENCE / 2);
+                } else {
+                    sequence++;
+                }
+            } else {
+                // a random start keeps ids of different nodes in the same millisecond apart
+                sequence = ThreadLocalRandom.current().nextInt(MAX_SEQUENCE / 2);
+            }
+            lastMillis = millis;
+            next = sequence;
+        }
+
+        long mostSignificantBits = (millis << 16) | 0x7000L | next;
+        long leastSignificantBits = (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSignificantBits, leastSignificantBits).toString();
+    }
+}
@@ -13,8 +13,17 @@ import java.io.IOException;
 @Component
 public class SimpleHeaderFilter extends OncePerRequestFilter {
 
+    /**
+     * Request attribute holding the caller, tasks are scheduled fairly across callers
+     */
+    public static final String TENANT_ATTRIBUTE = "com.celonis.challenge.security.tenant";
+
+    public static final String DEFAULT_TENANT = "default";
+
     private static final String HEADER_NAME = "Celonis-Auth";
     private static final String HEADER_VALUE = "totally_secret";
+    private static final String TENANT_HEADER_NAME = "Celonis-Tenant";
+    private static final int MAX_TENANT_LENGTH = 64;
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, @NonNull HttpServletResponse response,
@@ -32,6 +41,17 @@ public class SimpleHeaderFilter extends OncePerRequestFilter {
             response.getWriter().append("Not authorized");
             return;
         }
+
+        String tenant = request.getHeader(TENANT_HEADER_NAME);
+        tenant = tenant == null ? "" : tenant.trim();
+        if (tenant.isEmpty()) {
+            tenant = DEFAULT_TENANT;
+        } else if (tenant.length() > MAX_TENANT_LENGTH) {
+            response.setStatus(400);
+            response.getWriter().append("Invalid tenant");
+            return;
+        }
+        request.setAttribute(TENANT_ATTRIBUTE, tenant);
         filterChain.doFilter(request, response);
     }
 }
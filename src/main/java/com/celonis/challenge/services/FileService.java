@@ -1,58 +1,169 @@
 package com.celonis.challenge.services;
 
+import com.celonis.challenge.config.ResultCompression;
+import com.celonis.challenge.config.StorageProperties;
 import com.celonis.challenge.exceptions.BadRequestException;
 import com.celonis.challenge.exceptions.InternalException;
 import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
-import org.apache.commons.io.IOUtils;
-import org.springframework.core.io.FileSystemResource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpRange;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 
-import java.io.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+import static java.nio.file.StandardOpenOption.READ;
 
 @Component
 public class FileService {
 
+    private static final Logger log = LogManager.getLogger(FileService.class);
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
 
-    public FileService(ProjectGenerationTaskRepository projectGenerationTaskRepository) {
+    private final StorageProperties storageProperties;
+
+    private final ResultStore resultStore;
+
+    public FileService(ProjectGenerationTaskRepository projectGenerationTaskRepository, StorageProperties storageProperties,
+                       ResultStore resultStore) {
         this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.storageProperties = storageProperties;
+        this.resultStore = resultStore;
     }
 
     /**
-     * GET FILE STORAGE TASK RESULT
+     * WRITE FILE STORAGE TASK RESULT
+     * Supports single byte ranges (If-Range aware) and conditional GET with a strong ETag.
+     * The body is handed to the container's sendfile support when available and
+     * transferred from a FileChannel otherwise. Compressed results are sent as they are
+     * stored to clients accepting their Content-Encoding and decompressed for all others,
+     * the decompressed body has no known length and is sent without range support.
      *
      * @param projectGenerationTask: Project generation task
-     * @return ResponseEntity<FileSystemResource>
+     * @param request:               HTTP request
+     * @param response:              HTTP response
+     * @throws IOException IOException
      */
-    public ResponseEntity<FileSystemResource> getTaskResult(ProjectGenerationTask projectGenerationTask) {
+    public void writeTaskResult(ProjectGenerationTask projectGenerationTask, HttpServletRequest request,
+                                HttpServletResponse response) throws IOException {
         if (projectGenerationTask.getTaskType() != TaskType.STORE_FILE) {
             throw new BadRequestException("Get Result is only supported for store file");
         }
 
         if (projectGenerationTask.getTaskStatus() == TaskStatus.PENDING) {
-            return ResponseEntity
-                    .status(HttpStatus.OK)
-                    .build();
+            response.setStatus(HttpServletResponse.SC_OK);
+            return;
         }
 
-        File inputFile = new File(projectGenerationTask.getStorageLocation());
-        if (!inputFile.exists()) {
+        File inputFile = projectGenerationTask.getStorageLocation() == null ? null : new File(projectGenerationTask.getStorageLocation());
+        if (inputFile == null || !inputFile.isFile()) {
             throw new InternalException("File not generated yet");
         }
 
-        HttpHeaders respHeaders = new HttpHeaders();
-        respHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-        respHeaders.setContentDispositionFormData("attachment", "FileTest.rtf");
+        resultStore.touch(inputFile.getPath());
+        ResultCompression compression = ResultCompression.of(inputFile.toPath());
+        boolean decompress = false;
+        if (compression != ResultCompression.NONE) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            decompress = !accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING), compression.getContentCoding());
+        }
+
+        long length = inputFile.length();
+        String eTag = eTag(inputFile, decompress ? ResultCompression.NONE : compression);
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, decompress ? "none" : "bytes");
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, inputFile.lastModified());
+
+        if (matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
-        return new ResponseEntity<>(new FileSystemResource(inputFile), respHeaders, HttpStatus.OK);
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+                .filename(projectGenerationTask.getId() + ".rtf")
+                .build()
+                .toString());
+
+        if (decompress) {
+            try (InputStream in = compression.decompress(Files.newInputStream(inputFile.toPath()))) {
+                in.transferTo(response.getOutputStream());
+            }
+            return;
+        }
+        if (compression != ResultCompression.NONE) {
+            // ranges of an encoded representation address the encoded bytes
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, compression.getContentCoding());
+        }
+
+        long start = 0;
+        long end = length;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (rangeHeader != null && (ifRange == null || ifRange.trim().equals(eTag))) {
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(rangeHeader);
+            } catch (IllegalArgumentException e) {
+                ranges = List.of();
+            }
+            // several ranges would need a multipart body, the full entity is an allowed answer to them
+            if (ranges.size() == 1) {
+                HttpRange range = ranges.get(0);
+                if (length == 0 || range.getRangeStart(length) >= length) {
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                start = range.getRangeStart(length);
+                end = range.getRangeEnd(length) + 1;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + length);
+            }
+        }
+        response.setContentLengthLong(end - start);
+
+        if (storageProperties.isSendfile() && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // the container writes the file with sendfile once the request returns
+            request.setAttribute(SENDFILE_FILENAME, inputFile.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+
+        try (FileChannel in = FileChannel.open(inputFile.toPath(), READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position < end) {
+                position += in.transferTo(position, end - position, out);
+            }
+        }
     }
 
     /**
@@ -63,14 +174,98 @@ public class FileService {
      * @throws IOException IOException
      */
     public void storeResult(ProjectGenerationTask projectGenerationTask, URL url) throws IOException {
-        String taskId = projectGenerationTask.getId();
-        File outputFile = File.createTempFile(taskId, ".rtf");
-        outputFile.deleteOnExit();
-        projectGenerationTask.setStorageLocation(outputFile.getAbsolutePath());
-        projectGenerationTaskRepository.save(projectGenerationTask);
-        try (InputStream is = url.openStream();
-             OutputStream os = new FileOutputStream(outputFile)) {
-            IOUtils.copy(is, os);
+        storeResult(projectGenerationTask, url, progress -> {
+        });
+    }
+
+    /**
+     * STORE FILE STORAGE TASK RESULT
+     * The content goes to the {@link ResultStore}, identical results share one file.
+     * Only the storage location of the task is written, its status belongs to the executor, and
+     * only while the run still holds the lease of its claim. A result the task held before is
+     * released, also when the same content is stored again, since the store counted a new
+     * reference for it. A run that lost its lease releases the new reference instead.
+     *
+     * @param projectGenerationTask: Project generation task
+     * @param url:                   URL
+     * @param progressListener:      Receives the progress in percent after every transferred chunk,
+     *                               may throw to abort the copy
+     * @throws IOException IOException
+     */
+    public void storeResult(ProjectGenerationTask projectGenerationTask, URL url, IntConsumer progressListener) throws IOException {
+        String previousLocation = projectGenerationTask.getStorageLocation();
+        AtomicBoolean referenced = new AtomicBoolean();
+        Path stored = resultStore.store(url, progressListener, outputFile -> referenced.set(
+                projectGenerationTaskRepository.updateStorageLocation(projectGenerationTask.getId(), outputFile.toString(),
+                        projectGenerationTask.getLeaseOwner(), projectGenerationTask.getVersion()) == 1));
+        if (!referenced.get()) {
+            log.warn("Task={} left its run while the result was stored, dropping the result", projectGenerationTask.getId());
+            resultStore.release(stored.toString());
+            return;
+        }
+
+        projectGenerationTask.setStorageLocation(stored.toString());
+        if (previousLocation != null) {
+            resultStore.release(previousLocation);
+        }
+    }
+
+    private String eTag(File file, ResultCompression encoding) {
+        String hash = resultStore.hashOf(file.getPath());
+        if (hash != null) {
+            // every representation needs its own strong validator
+            return encoding == ResultCompression.NONE ? "\"" + hash + "\"" : "\"" + hash + "-" + encoding.getContentCoding() + "\"";
+        }
+        // results outside the store are written once and moved into place, so size and modification time identify them
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    private boolean accepts(String acceptEncoding, String contentCoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean accepted = false;
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            String coding = parts[0].trim();
+            boolean matchesCoding = coding.equalsIgnoreCase(contentCoding)
+                    || ("gzip".equals(contentCoding) && coding.equalsIgnoreCase("x-gzip"));
+            if (!matchesCoding && !coding.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(parameter.substring(2)) == 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (matchesCoding) {
+                // an explicit entry for the coding wins over the wildcard
+                return !refused;
+            }
+            accepted = !refused;
+        }
+        return accepted;
+    }
+
+    private boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(eTag)) {
+                return true;
+            }
         }
+        return false;
     }
 }
@@ -0,0 +1,487 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.config.ResultCompression;
+import com.celonis.challenge.config.StorageProperties;
+import com.celonis.challenge.exceptions.InternalException;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.StorageReferenceCount;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Content-addressed store of task results. Every distinct content is kept once,
+ * under its SHA-256, and referenced by the storageLocation of any number of tasks.
+ * Results no task references anymore stay available for reuse until their TTL
+ * expires or the store exceeds its size, then they are evicted least recently used first.
+ * <p>
+ * Reference counts are kept per node and only decide which results are candidates for eviction.
+ * Several nodes share task.storage.directory, and a node does not know about the results the
+ * others stored since it started, so a result is only deleted once no task in the database
+ * references it and no store on this node is still about to.
+ */
+@Component
+public class ResultStore {
+
+    private static final Logger log = LogManager.getLogger(ResultStore.class);
+
+    private static final Pattern STORED_NAME = Pattern.compile("([0-9a-f]{64})(\\.gz|\\.deflate)?");
+    private static final int DIGEST_BUFFER_BYTES = 1024 * 1024;
+
+    private final StorageProperties storageProperties;
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    private final Path blobDirectory;
+    private final Path partDirectory;
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    public ResultStore(StorageProperties storageProperties, ProjectGenerationTaskRepository projectGenerationTaskRepository,
+                       MeterRegistry meterRegistry) {
+        this.storageProperties = storageProperties;
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.blobDirectory = Paths.get(storageProperties.getDirectory(), "blobs").toAbsolutePath();
+        this.partDirectory = Paths.get(storageProperties.getDirectory(), "parts").toAbsolutePath();
+
+        Gauge.builder("task.storage.bytes", totalBytes, AtomicLong::get)
+                .register(meterRegistry);
+        Gauge.builder("task.storage.blobs", blobs, Map::size)
+                .register(meterRegistry);
+    }
+
+    /**
+     * LOAD THE STORED RESULTS AND THEIR REFERENCE COUNTS
+     *
+     * @throws IOException IOException
+     */
+    @PostConstruct
+    public void load() throws IOException {
+        Files.createDirectories(blobDirectory);
+        Files.createDirectories(partDirectory);
+        try (Stream<Path> files = Files.walk(blobDirectory)) {
+            files.filter(Files::isRegularFile)
+                    .filter(file -> STORED_NAME.matcher(file.getFileName().toString()).matches())
+                    .forEach(file -> {
+                        Blob blob = new Blob(file, file.toFile().length());
+                        blobs.put(hashOf(file.toString()), blob);
+                        totalBytes.addAndGet(blob.size);
+                    });
+        }
+        reconcile();
+        log.info("Result store holds {} results, {} bytes", blobs.size(), totalBytes.get());
+    }
+
+    /**
+     * STORE THE CONTENT OF A URL
+     * Content already in the store is only referenced again, file sources that are
+     * already stored are not copied at all. New content is compressed on the way in
+     * when task.storage.compression is set, the hash is always the one of the original bytes.
+     *
+     * @param url:              URL
+     * @param progressListener: Receives the progress in percent after every transferred chunk,
+     *                          may throw to abort the copy
+     * @return path of the stored result, to be kept as storageLocation
+     * @throws IOException IOException
+     */
+    public Path store(URL url, IntConsumer progressListener) throws IOException {
+        return store(url, progressListener, storedPath -> {
+        });
+    }
+
+    /**
+     * STORE THE CONTENT OF A URL AND REFERENCE IT
+     * The result cannot be evicted before the reference returns, so the caller can write
+     * the storageLocation of its task there.
+     *
+     * @param url:              URL
+     * @param progressListener: Receives the progress in percent after every transferred chunk,
+     *                          may throw to abort the copy
+     * @param reference:        Receives the path of the stored result once it is in place
+     * @return path of the stored result, to be kept as storageLocation
+     * @throws IOException IOException
+     */
+    public Path store(URL url, IntConsumer progressListener, Consumer<Path> reference) throws IOException {
+        Path stored = write(url, progressListener);
+        String hash = hashOf(stored.toString());
+        try {
+            reference.accept(stored);
+        } finally {
+            blobs.computeIfPresent(hash, (key, blob) -> {
+                blob.storing--;
+                return blob;
+            });
+        }
+        return stored;
+    }
+
+    private Path write(URL url, IntConsumer progressListener) throws IOException {
+        String hash = null;
+        if ("file".equals(url.getProtocol())) {
+            Path source = toPath(url);
+            hash = digest(source);
+            Path existing = reference(hash);
+            if (existing != null) {
+                progressListener.accept(100);
+                return existing;
+            }
+        }
+
+        ResultCompression compression = storageProperties.getCompression();
+        Path partFile = Files.createTempFile(partDirectory, "result", ".part");
+        try {
+            if (compression == ResultCompression.NONE) {
+                copy(url, partFile, progressListener);
+                if (hash == null) {
+                    hash = digest(partFile);
+                }
+            } else {
+                hash = compress(url, partFile, compression, progressListener);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+
+        try {
+            return add(hash, partFile, compression);
+        } catch (UncheckedIOException e) {
+            Files.deleteIfExists(partFile);
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * RELEASE ONE REFERENCE OF A STORED RESULT
+     *
+     * @param storageLocation: storageLocation of a task, locations outside the store are ignored
+     */
+    public void release(String storageLocation) {
+        String hash = hashOf(storageLocation);
+        if (hash == null) {
+            return;
+        }
+        blobs.computeIfPresent(hash, (key, blob) -> {
+            blob.references = Math.max(0, blob.references - 1);
+            blob.lastAccess = System.currentTimeMillis();
+            return blob;
+        });
+        trimToSize();
+    }
+
+    /**
+     * MARK A STORED RESULT AS RECENTLY USED
+     *
+     * @param storageLocation: storageLocation of a task
+     */
+    public void touch(String storageLocation) {
+        String hash = hashOf(storageLocation);
+        if (hash != null) {
+            Blob blob = blobs.get(hash);
+            if (blob != null) {
+                blob.lastAccess = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * SHA-256 OF A STORED RESULT
+     *
+     * @param storageLocation: storageLocation of a task
+     * @return hex SHA-256 of the original bytes, null if the location is not part of the store
+     */
+    public String hashOf(String storageLocation) {
+        if (storageLocation == null) {
+            return null;
+        }
+        Path path = Paths.get(storageLocation).toAbsolutePath();
+        Matcher matcher = STORED_NAME.matcher(path.getFileName().toString());
+        return path.startsWith(blobDirectory) && matcher.matches() ? matcher.group(1) : null;
+    }
+
+    /**
+     * RECOMPUTE THE REFERENCE COUNTS FROM THE TASKS
+     * Needed after tasks were removed with bulk statements. Stores whose task is not written yet
+     * keep their reference.
+     */
+    public void reconcile() {
+        Map<String, Long> references = projectGenerationTaskRepository.countByStorageLocation().stream()
+                .filter(count -> hashOf(count.getStorageLocation()) != null)
+                .collect(Collectors.toMap(count -> hashOf(count.getStorageLocation()), StorageReferenceCount::getReferences, Long::sum));
+        blobs.replaceAll((hash, blob) -> {
+            blob.references = references.getOrDefault(hash, 0L).intValue() + blob.storing;
+            return blob;
+        });
+        trimToSize();
+    }
+
+    /**
+     * EVICT EXPIRED AND LEAST RECENTLY USED UNREFERENCED RESULTS
+     */
+    @Scheduled(fixedDelayString = "${task.storage.eviction-interval-millis:60000}")
+    public void evict() {
+        long expiredBefore = System.currentTimeMillis() - storageProperties.getUnreferencedTtlMillis();
+        blobs.forEach((hash, blob) -> {
+            if (blob.references == 0 && blob.lastAccess < expiredBefore) {
+                remove(hash);
+            }
+        });
+        trimToSize();
+    }
+
+    /**
+     * @return number of stored results
+     */
+    public int getBlobCount() {
+        return blobs.size();
+    }
+
+    /**
+     * @return bytes held by stored results
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private Path reference(String hash) {
+        Blob blob = blobs.computeIfPresent(hash, (key, existing) -> {
+            existing.references++;
+            existing.storing++;
+            existing.lastAccess = System.currentTimeMillis();
+            return existing;
+        });
+        return blob == null ? null : blob.path;
+    }
+
+    private Path add(String hash, Path partFile, ResultCompression compression) {
+        Blob blob = blobs.compute(hash, (key, existing) -> {
+            try {
+                if (existing != null) {
+                    Files.deleteIfExists(partFile);
+                    existing.references++;
+                    existing.storing++;
+                    existing.lastAccess = System.currentTimeMillis();
+                    return existing;
+                }
+                Path target = blobDirectory.resolve(hash.substring(0, 2)).resolve(hash + compression.getSuffix());
+                Files.createDirectories(target.getParent());
+                Files.move(partFile, target, REPLACE_EXISTING, ATOMIC_MOVE);
+                Blob created = new Blob(target, target.toFile().length());
+                created.references = 1;
+                created.storing = 1;
+                totalBytes.addAndGet(created.size);
+                return created;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        trimToSize();
+        return blob.path;
+    }
+
+    private void trimToSize() {
+        if (totalBytes.get() <= storageProperties.getMaxBytes()) {
+            return;
+        }
+        List<Map.Entry<String, Blob>> unreferenced = blobs.entrySet().stream()
+                .filter(entry -> entry.getValue().references == 0)
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                .collect(Collectors.toList());
+        for (Map.Entry<String, Blob> entry : unreferenced) {
+            if (totalBytes.get() <= storageProperties.getMaxBytes()) {
+                return;
+            }
+            remove(entry.getKey());
+        }
+        if (totalBytes.get() > storageProperties.getMaxBytes()) {
+            log.warn("Referenced results use {} bytes, more than the limit of {}", totalBytes.get(), storageProperties.getMaxBytes());
+        }
+    }
+
+    private void remove(String hash) {
+        Blob candidate = blobs.get(hash);
+        if (candidate == null || candidate.references > 0 || candidate.storing > 0) {
+            return;
+        }
+        if (projectGenerationTaskRepository.existsByStorageLocation(candidate.path.toString())) {
+            // stored again through another node, which counts the reference
+            log.debug("Keeping result {}, a task of another node references it", hash);
+            candidate.lastAccess = System.currentTimeMillis();
+            return;
+        }
+        blobs.computeIfPresent(hash, (key, blob) -> {
+            if (blob.references > 0 || blob.storing > 0) {
+                return blob;
+            }
+            try {
+                Files.deleteIfExists(blob.path);
+            } catch (IOException e) {
+                log.warn("Could not delete result {}", blob.path, e);
+                return blob;
+            }
+            totalBytes.addAndGet(-blob.size);
+            log.debug("Evicted result {}", hash);
+            return null;
+        });
+    }
+
+    private void copy(URL url, Path partFile, IntConsumer progressListener) throws IOException {
+        try (FileChannel out = FileChannel.open(partFile, WRITE)) {
+            if ("file".equals(url.getProtocol())) {
+                try (FileChannel in = FileChannel.open(toPath(url), READ)) {
+                    transfer(in, out, in.size(), progressListener);
+                }
+            } else {
+                URLConnection connection = url.openConnection();
+                try (ReadableByteChannel in = Channels.newChannel(connection.getInputStream())) {
+                    transfer(in, out, connection.getContentLengthLong(), progressListener);
+                }
+            }
+        }
+    }
+
+    private String compress(URL url, Path partFile, ResultCompression compression, IntConsumer progressListener) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try (FileChannel in = FileChannel.open(toPath(url), READ)) {
+                return compress(in, in.size(), partFile, compression, progressListener);
+            }
+        }
+        URLConnection connection = url.openConnection();
+        try (ReadableByteChannel in = Channels.newChannel(connection.getInputStream())) {
+            return compress(in, connection.getContentLengthLong(), partFile, compression, progressListener);
+        }
+    }
+
+    private String compress(ReadableByteChannel in, long size, Path partFile, ResultCompression compression,
+                            IntConsumer progressListener) throws IOException {
+        // the bytes pass the heap anyway to be compressed, so they are hashed on the same pass
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_BYTES);
+        long position = 0;
+        long reported = 0;
+        try (OutputStream out = compression.compress(Files.newOutputStream(partFile), storageProperties.getCompressionLevel())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer.array(), 0, read);
+                out.write(buffer.array(), 0, read);
+                buffer.clear();
+                position += read;
+                if (size > 0 && position - reported >= storageProperties.getTransferChunkBytes()) {
+                    reported = position;
+                    progressListener.accept((int) (Math.min(position, size) * 100 / size));
+                }
+            }
+        }
+        if (reported < position || size <= 0) {
+            progressListener.accept(100);
+        }
+        return hex(digest.digest());
+    }
+
+    private void transfer(FileChannel in, FileChannel out, long size, IntConsumer progressListener) throws IOException {
+        long position = 0;
+        while (position < size) {
+            // transferTo lets the kernel copy file to file without going through the heap
+            position += in.transferTo(position, Math.min(storageProperties.getTransferChunkBytes(), size - position), out);
+            progressListener.accept((int) (position * 100 / size));
+        }
+    }
+
+    private void transfer(ReadableByteChannel in, FileChannel out, long size, IntConsumer progressListener) throws IOException {
+        long position = 0;
+        long transferred;
+        while ((transferred = out.transferFrom(in, position, storageProperties.getTransferChunkBytes())) > 0) {
+            position += transferred;
+            if (size > 0) {
+                progressListener.accept((int) (Math.min(position, size) * 100 / size));
+            }
+        }
+        progressListener.accept(100);
+    }
+
+    private String digest(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_BYTES);
+        try (FileChannel in = FileChannel.open(file, READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private Path toPath(URL url) {
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static class Blob {
+
+        private final Path path;
+        private final long size;
+        private volatile int references;
+        // stores on this node whose task does not reference the result in the database yet
+        private volatile int storing;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Blob(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.celonis.challenge.services;
+
+/**
+ * Outcome of one run of the {@link TaskCleanupService}
+ */
+public class TaskCleanupReport {
+
+    private final long deletedRows;
+    private final int batches;
+    private final long elapsedMillis;
+    private final boolean completed;
+
+    public TaskCleanupReport(long deletedRows, int batches, long elapsedMillis, boolean completed) {
+        this.deletedRows = deletedRows;
+        this.batches = batches;
+        this.elapsedMillis = elapsedMillis;
+        this.completed = completed;
+    }
+
+    public long getDeletedRows() {
+        return deletedRows;
+    }
+
+    public int getBatches() {
+        return batches;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return false if the time budget ran out before every stale task was deleted
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+}
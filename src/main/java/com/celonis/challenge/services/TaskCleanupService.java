@@ -1,44 +1,98 @@
 package com.celonis.challenge.services;
 
-import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class TaskCleanupService {
     private static final Logger log = LoggerFactory.getLogger(TaskCleanupService.class);
 
     private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    private final ResultStore resultStore;
+    private final int retentionDays;
+    private final int batchSize;
+    private final long timeBudgetMillis;
+    private final Counter deletedCounter;
+    private final Timer durationTimer;
 
-    public TaskCleanupService(ProjectGenerationTaskRepository projectGenerationTaskRepository) {
+    public TaskCleanupService(ProjectGenerationTaskRepository projectGenerationTaskRepository, ResultStore resultStore,
+                              MeterRegistry meterRegistry,
+                              @Value("${task.cleanup.retention-days:20}") int retentionDays,
+                              @Value("${task.cleanup.batch-size:1000}") int batchSize,
+                              @Value("${task.cleanup.time-budget-millis:30000}") long timeBudgetMillis) {
         this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.resultStore = resultStore;
+        this.retentionDays = retentionDays;
+        this.batchSize = batchSize;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.deletedCounter = meterRegistry.counter("task.cleanup.deleted");
+        this.durationTimer = meterRegistry.timer("task.cleanup.duration");
     }
 
     /**
-     * CLEAN UP PENDING TASKS AFTER days NO OF DAYS
+     * CLEAN UP PENDING TASKS AFTER retentionDays NO OF DAYS
+     * the cadence is configured with task.cleanup.interval-millis,
      * we can also use @Scheduled(cron = "0 0 5 * * ?")
-     * used fixedRate for testing purpose
      */
-    @Scheduled(fixedRate = 600000)
+    @Scheduled(fixedDelayString = "${task.cleanup.interval-millis:600000}")
     public void cleanUpPendingTasks() {
-        int days = 20;
-        Date deadline = Date.from(Instant.now().minus(days, ChronoUnit.DAYS));
-        List<ProjectGenerationTask> pendingTasksList = projectGenerationTaskRepository.findByTaskStatusAndCreationDateBefore(TaskStatus.PENDING, deadline);
+        purgePendingTasks();
+    }
+
+    /**
+     * DELETE STALE PENDING TASKS IN BOUNDED BATCHES
+     * Stops once no stale task is left or the time budget is spent, the next run
+     * continues where this one stopped.
+     *
+     * @return TaskCleanupReport
+     */
+    public TaskCleanupReport purgePendingTasks() {
+        Date deadline = Date.from(Instant.now().minus(retentionDays, ChronoUnit.DAYS));
+        long start = System.nanoTime();
+        long budgetEnd = start + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+
+        long deletedRows = 0;
+        int batches = 0;
+        boolean completed = false;
+        while (System.nanoTime() < budgetEnd) {
+            int deleted = projectGenerationTaskRepository.deleteBatch(TaskStatus.PENDING, deadline, batchSize);
+            deletedRows += deleted;
+            batches++;
+            if (deleted < batchSize) {
+                completed = true;
+                break;
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        TaskCleanupReport report = new TaskCleanupReport(deletedRows, batches, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), completed);
+        deletedCounter.increment(deletedRows);
+        durationTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+        if (deletedRows > 0) {
+            // the bulk DELETEs bypass the result store, count the references of the remaining tasks again
+            resultStore.reconcile();
+        }
 
-        if (!pendingTasksList.isEmpty()) {
-            log.info("Deleting pending tasks of size={} ", pendingTasksList.size());
-            projectGenerationTaskRepository.deleteAll(pendingTasksList);
+        if (deletedRows > 0 || !completed) {
+            log.info("Deleted {} pending tasks in {} batches and {} ms, completed={}",
+                    deletedRows, batches, report.getElapsedMillis(), completed);
         } else {
             log.debug("Clean up job found no pending tasks");
         }
+        return report;
     }
 }
@@ -0,0 +1,263 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs task dependency graphs. A task created with dependsOn stays PENDING until every task it
+ * depends on COMPLETED, then it is queued like an executed task, so independent branches of a
+ * graph run in parallel on the shared pool of every node. When a task it depends on FAILED, was
+ * CANCELED or was deleted, it is canceled, and so on down the graph.
+ * <p>
+ * Finished tasks are picked up from the status events of this node and resolved in batches on one
+ * thread: their waiting dependents are read through the indexed dependency edges and started or
+ * canceled together, each with a compare-and-set on its version, so two nodes resolving the same
+ * task start it once. Every waiting task is also checked once per task.dependencies.check-interval-millis,
+ * for the transitions of a node that stopped before it resolved them.
+ */
+@Service
+public class TaskDependencyService implements TaskEventListener {
+
+    private static final Logger log = LogManager.getLogger(TaskDependencyService.class);
+
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    private final TaskStateMachine taskStateMachine;
+    private final TaskQueueService taskQueueService;
+    private final int batchSize;
+    private final BlockingQueue<String> finishedTasks = new LinkedBlockingQueue<>();
+    private final Counter startedCounter;
+    private final Counter canceledCounter;
+
+    private volatile boolean running;
+    private Thread resolver;
+
+    public TaskDependencyService(ProjectGenerationTaskRepository projectGenerationTaskRepository, TaskStateMachine taskStateMachine,
+                                 TaskQueueService taskQueueService, TaskProgressStore taskProgressStore, MeterRegistry meterRegistry,
+                                 @Value("${task.dependencies.batch-size:500}") int batchSize) {
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.taskStateMachine = taskStateMachine;
+        this.taskQueueService = taskQueueService;
+        this.batchSize = batchSize;
+        this.startedCounter = meterRegistry.counter("task.dependencies.started");
+        this.canceledCounter = meterRegistry.counter("task.dependencies.canceled");
+        Gauge.builder("task.dependencies.backlog", finishedTasks, BlockingQueue::size)
+                .description("Finished tasks whose dependents are not resolved yet")
+                .register(meterRegistry);
+        taskProgressStore.addListener(this);
+    }
+
+    /**
+     * STATUS OF THE TASKS DEPENDED ON
+     *
+     * @param projectGenerationTasks: Project generation tasks, with or without dependencies
+     * @return status of every task they depend on, tasks that do not exist are missing
+     */
+    public Map<String, TaskStatus> findUpstreamStatuses(Collection<ProjectGenerationTask> projectGenerationTasks) {
+        Set<String> upstreamIds = new HashSet<>();
+        for (ProjectGenerationTask projectGenerationTask : projectGenerationTasks) {
+            if (projectGenerationTask.getDependsOn() != null) {
+                upstreamIds.addAll(projectGenerationTask.getDependsOn());
+            }
+        }
+        return upstreamIds.isEmpty() ? Map.of() : projectGenerationTaskRepository.findStatuses(upstreamIds);
+    }
+
+    /**
+     * @param projectGenerationTask: Project generation task
+     * @param upstreamStatuses:      Status of the tasks it depends on
+     * @return true if every task it depends on COMPLETED, always for a task without dependencies
+     */
+    public static boolean isReady(ProjectGenerationTask projectGenerationTask, Map<String, TaskStatus> upstreamStatuses) {
+        for (String upstreamId : projectGenerationTask.getDependsOn()) {
+            if (upstreamStatuses.get(upstreamId) != TaskStatus.COMPLETED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param projectGenerationTask: Project generation task
+     * @param upstreamStatuses:      Status of the tasks it depends on
+     * @return ID of the first task it depends on that failed, was canceled or does not exist, null if there is none
+     */
+    public static String findBrokenDependency(ProjectGenerationTask projectGenerationTask, Map<String, TaskStatus> upstreamStatuses) {
+        for (String upstreamId : projectGenerationTask.getDependsOn()) {
+            TaskStatus status = upstreamStatuses.get(upstreamId);
+            if (status == null || status == TaskStatus.FAILED || status == TaskStatus.CANCELED) {
+                return upstreamId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * START OR CANCEL WAITING TASKS
+     * Tasks whose dependencies all completed are queued as far as the queue of their type has
+     * free slots, tasks with a broken dependency are canceled, the others keep waiting. Ready
+     * tasks beyond the free slots stay PENDING until {@link #resolveWaiting} finds them again.
+     * Tasks changed since they were read are skipped.
+     *
+     * @param waitingTasks: PENDING tasks with dependencies, as read
+     * @return number of tasks started or canceled
+     */
+    public int resolve(List<ProjectGenerationTask> waitingTasks) {
+        Map<String, TaskStatus> upstreamStatuses = findUpstreamStatuses(waitingTasks);
+        List<ProjectGenerationTask> ready = new ArrayList<>();
+        List<ProjectGenerationTask> broken = new ArrayList<>();
+        Map<TaskType, Integer> freeSlots = new EnumMap<>(TaskType.class);
+        int deferred = 0;
+        for (ProjectGenerationTask waitingTask : waitingTasks) {
+            if (waitingTask.getTaskStatus() != TaskStatus.PENDING || waitingTask.getDependsOn().isEmpty()) {
+                continue;
+            }
+            if (isReady(waitingTask, upstreamStatuses)) {
+                // queued tasks are counted once per type and batch
+                int free = freeSlots.computeIfAbsent(waitingTask.getTaskType(), taskQueueService::getFreeSlots);
+                if (free <= 0) {
+                    deferred++;
+                    continue;
+                }
+                freeSlots.put(waitingTask.getTaskType(), free - 1);
+                ready.add(waitingTask);
+            } else if (findBrokenDependency(waitingTask, upstreamStatuses) != null) {
+                broken.add(waitingTask);
+            }
+        }
+
+        if (deferred > 0) {
+            log.warn("{} tasks whose dependencies completed keep waiting, the queue of their type is full", deferred);
+        }
+
+        int resolved = 0;
+        if (!ready.isEmpty()) {
+            int started = taskStateMachine.transitionEach(ready, TaskStatus.RUNNING).size();
+            if (started > 0) {
+                taskQueueService.wakeUp();
+            }
+            startedCounter.increment(started);
+            resolved += started;
+            log.debug("Queued {} tasks whose dependencies completed", started);
+        }
+        if (!broken.isEmpty()) {
+            // the CANCELED events bring the dependents of these tasks back here
+            int canceled = taskStateMachine.transitionEach(broken, TaskStatus.CANCELED).size();
+            canceledCounter.increment(canceled);
+            resolved += canceled;
+            log.info("Canceled {} tasks whose dependencies failed, were canceled or deleted", canceled);
+        }
+        return resolved;
+    }
+
+    /**
+     * RESOLVE THE DEPENDENTS OF FINISHED TASKS
+     *
+     * @param upstreamIds: IDs of tasks that completed, failed or were canceled
+     * @return number of tasks started or canceled
+     */
+    public int resolveDependents(Collection<String> upstreamIds) {
+        List<ProjectGenerationTask> dependents = projectGenerationTaskRepository.findWaitingDependents(upstreamIds);
+        return dependents.isEmpty() ? 0 : resolve(dependents);
+    }
+
+    /**
+     * CHECK EVERY WAITING TASK AGAINST ITS DEPENDENCIES
+     *
+     * @return number of tasks started or canceled
+     */
+    @Scheduled(initialDelayString = "${task.dependencies.check-interval-millis:60000}",
+            fixedDelayString = "${task.dependencies.check-interval-millis:60000}")
+    public int resolveWaiting() {
+        String afterId = null;
+        int resolved = 0;
+        List<ProjectGenerationTask> page;
+        do {
+            page = projectGenerationTaskRepository.findWaiting(afterId, batchSize);
+            if (!page.isEmpty()) {
+                resolved += resolve(page);
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == batchSize);
+        if (resolved > 0) {
+            log.info("Started or canceled {} waiting tasks missed since their dependencies finished", resolved);
+        }
+        return resolved;
+    }
+
+    @Override
+    public void onProgress(String taskId, int progress) {
+    }
+
+    @Override
+    public void onStatusChange(String taskId, TaskStatus previousStatus, TaskStatus status, int progress) {
+        if (status.isFinished()) {
+            finishedTasks.add(taskId);
+        }
+    }
+
+    /**
+     * START RESOLVING FINISHED TASKS
+     * Tasks finished before are resolved first.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        resolver = new Thread(this::resolveUntilStopped, "task-dependencies");
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    /**
+     * Finished tasks not resolved yet are left to the periodic check of any node
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (resolver != null) {
+            resolver.interrupt();
+        }
+    }
+
+    private void resolveUntilStopped() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                batch.add(finishedTasks.take());
+                finishedTasks.drainTo(batch, batchSize - 1);
+                resolveDependents(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.error("Resolving the dependents of {} finished tasks failed", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.TaskStatus;
+
+public interface TaskEventListener {
+
+    /**
+     * Called on the executor thread whenever the progress of a running task changes
+     *
+     * @param taskId:   Task ID
+     * @param progress: New progress
+     */
+    void onProgress(String taskId, int progress);
+
+    /**
+     * Called once the new status of a task has been persisted, at most once per transition
+     *
+     * @param taskId:         Task ID
+     * @param previousStatus: Status the task left
+     * @param status:         New status
+     * @param progress:       Progress at the time of the transition
+     */
+    void onStatusChange(String taskId, TaskStatus previousStatus, TaskStatus status, int progress);
+}
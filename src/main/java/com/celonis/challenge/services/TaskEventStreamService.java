@@ -0,0 +1,226 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.TaskProgressView;
+import com.celonis.challenge.model.TaskStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes progress and status events of tasks to Server-Sent Events subscribers.
+ * Subscribers hold no thread while idle, events are only sent when an executor
+ * reports a change, and tasks without subscribers cost a single map lookup.
+ * Changes are only reported on the node making them, so subscribed tasks without a
+ * run on this node are polled from the database and sent when they changed.
+ */
+@Service
+public class TaskEventStreamService implements TaskEventListener {
+
+    private static final Logger log = LogManager.getLogger(TaskEventStreamService.class);
+
+    private static final String PROGRESS_EVENT = "progress";
+    private static final String STATUS_EVENT = "status";
+
+    private final TaskService taskService;
+
+    private final TaskProgressStore taskProgressStore;
+
+    private final Map<String, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    // last event sent per subscribed task, a polled state equal to it is not sent again
+    private final Map<String, TaskProgressView> lastEvents = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor eventExecutor;
+
+    private final long timeoutMillis;
+
+    public TaskEventStreamService(TaskService taskService, TaskProgressStore taskProgressStore,
+                                  @Value("${task.events.timeout-millis:1800000}") long timeoutMillis,
+                                  @Value("${task.events.queue-capacity:10000}") int queueCapacity) {
+        this.taskService = taskService;
+        this.taskProgressStore = taskProgressStore;
+        this.timeoutMillis = timeoutMillis;
+        this.eventExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "task-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        taskProgressStore.addListener(this);
+    }
+
+    /**
+     * SUBSCRIBE TO THE EVENTS OF ONE OR MORE TASKS
+     * The current state of every task is sent first, the stream completes once
+     * all subscribed tasks reached a final status.
+     *
+     * @param taskIds: Task IDs
+     * @return SseEmitter
+     */
+    public SseEmitter subscribe(Collection<String> taskIds) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscription subscription = new Subscription(emitter, taskIds);
+        emitter.onCompletion(() -> unsubscribe(subscription));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> unsubscribe(subscription));
+
+        // register before reading the snapshot, so no transition in between is lost
+        for (String taskId : subscription.taskIds) {
+            subscriptions.computeIfAbsent(taskId, id -> ConcurrentHashMap.newKeySet()).add(subscription);
+        }
+
+        List<TaskProgressView> snapshots = new ArrayList<>();
+        try {
+            for (String taskId : subscription.taskIds) {
+                snapshots.add(taskService.getProgress(taskId));
+            }
+        } catch (RuntimeException e) {
+            unsubscribe(subscription);
+            throw e;
+        }
+
+        snapshots.forEach(snapshot -> lastEvents.putIfAbsent(snapshot.getId(), snapshot));
+        publish(() -> snapshots.forEach(snapshot -> send(subscription, STATUS_EVENT, snapshot)));
+        return emitter;
+    }
+
+    /**
+     * POLL THE SUBSCRIBED TASKS RUNNING ELSEWHERE
+     * Tasks queued, running or finished on other nodes publish no events here, their persisted
+     * status and progress are read in one pass and sent where they differ from the last event.
+     *
+     * @return number of tasks an event was sent for
+     */
+    @Scheduled(fixedDelayString = "${task.events.poll-interval-millis:1000}")
+    public int pollRemoteTasks() {
+        List<String> taskIds = new ArrayList<>();
+        for (String taskId : subscriptions.keySet()) {
+            if (taskProgressStore.get(taskId) == null) {
+                taskIds.add(taskId);
+            }
+        }
+        if (taskIds.isEmpty()) {
+            return 0;
+        }
+
+        int sent = 0;
+        for (TaskProgressView current : taskService.getPersistedProgress(taskIds)) {
+            TaskProgressView last = lastEvents.get(current.getId());
+            boolean statusChanged = last == null || last.getTaskStatus() != current.getTaskStatus() || last.isQueued() != current.isQueued();
+            if (statusChanged || last.getProgress() != current.getProgress()) {
+                deliver(current.getId(), statusChanged ? STATUS_EVENT : PROGRESS_EVENT, current);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * NUMBER OF TASKS WITH AT LEAST ONE SUBSCRIBER
+     *
+     * @return int
+     */
+    public int getSubscribedTaskCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void onProgress(String taskId, int progress) {
+        deliver(taskId, PROGRESS_EVENT, new TaskProgressView(taskId, TaskStatus.RUNNING, progress));
+    }
+
+    @Override
+    public void onStatusChange(String taskId, TaskStatus previousStatus, TaskStatus status, int progress) {
+        // a task moving to RUNNING is queued, progress events follow once a node runs it
+        deliver(taskId, STATUS_EVENT, new TaskProgressView(taskId, status, progress, status == TaskStatus.RUNNING));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        eventExecutor.shutdownNow();
+        subscriptions.values().forEach(taskSubscriptions -> taskSubscriptions.forEach(s -> s.emitter.complete()));
+    }
+
+    private void deliver(String taskId, String eventName, TaskProgressView event) {
+        Set<Subscription> taskSubscriptions = subscriptions.get(taskId);
+        if (taskSubscriptions == null) {
+            return;
+        }
+        lastEvents.put(taskId, event);
+        publish(() -> taskSubscriptions.forEach(subscription -> send(subscription, eventName, event)));
+    }
+
+    private void publish(Runnable delivery) {
+        try {
+            eventExecutor.execute(delivery);
+        } catch (RejectedExecutionException e) {
+            log.warn("Task event queue is full, dropping event");
+        }
+    }
+
+    private void send(Subscription subscription, String eventName, TaskProgressView event) {
+        try {
+            subscription.emitter.send(SseEmitter.event().name(eventName).data(event));
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Dropping subscriber of tasks {}", subscription.remainingTaskIds, e);
+            unsubscribe(subscription);
+            return;
+        }
+
+        if (STATUS_EVENT.equals(eventName) && event.getTaskStatus().isFinished() && subscription.finish(event.getId())) {
+            subscription.emitter.complete();
+            unsubscribe(subscription);
+        }
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        for (String taskId : subscription.taskIds) {
+            subscriptions.computeIfPresent(taskId, (id, taskSubscriptions) -> {
+                taskSubscriptions.remove(subscription);
+                if (taskSubscriptions.isEmpty()) {
+                    lastEvents.remove(id);
+                    return null;
+                }
+                return taskSubscriptions;
+            });
+        }
+    }
+
+    private static class Subscription {
+
+        private final SseEmitter emitter;
+        private final Set<String> taskIds;
+        private final Set<String> remainingTaskIds;
+
+        Subscription(SseEmitter emitter, Collection<String> taskIds) {
+            this.emitter = emitter;
+            this.taskIds = new LinkedHashSet<>(taskIds);
+            this.remainingTaskIds = ConcurrentHashMap.newKeySet();
+            this.remainingTaskIds.addAll(this.taskIds);
+        }
+
+        /**
+         * @return true if the last open task of the subscription just finished
+         */
+        boolean finish(String taskId) {
+            return remainingTaskIds.remove(taskId) && remainingTaskIds.isEmpty();
+        }
+    }
+}
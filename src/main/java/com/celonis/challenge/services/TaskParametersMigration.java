@@ -0,0 +1,54 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves task parameters left in the task_parameters join table of the former mapping into
+ * the JSON parameters column. Runs before the schedulers and the task recovery start,
+ * so no task is read or deleted while its parameters are still in the join table.
+ */
+@Service
+public class TaskParametersMigration {
+
+    private static final Logger log = LogManager.getLogger(TaskParametersMigration.class);
+
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    private final int batchSize;
+
+    public TaskParametersMigration(ProjectGenerationTaskRepository projectGenerationTaskRepository,
+                                   @Value("${task.migration.parameters-batch-size:1000}") int batchSize) {
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * MIGRATE LEGACY TASK PARAMETERS
+     *
+     * @return number of migrated tasks
+     */
+    @PostConstruct
+    public int migrate() {
+        if (!projectGenerationTaskRepository.hasLegacyParameters()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        int migrated = 0;
+        int batch;
+        do {
+            batch = projectGenerationTaskRepository.migrateLegacyParameters(batchSize);
+            migrated += batch;
+        } while (batch > 0);
+
+        log.info("Moved the parameters of {} tasks into the parameters column in {} ms", migrated,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return migrated;
+    }
+}
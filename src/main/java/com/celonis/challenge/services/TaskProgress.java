@@ -0,0 +1,88 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.TaskStatus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Mutable progress slot of a running task. Allocated once when the task starts,
+ * then updated in place on every tick. Also serves progress reads without
+ * touching the database while the task runs, and holds the in-memory status
+ * the {@link TaskStateMachine} moves with a compare-and-set.
+ */
+public class TaskProgress {
+
+    private static final AtomicReferenceFieldUpdater<TaskProgress, TaskStatus> STATUS =
+            AtomicReferenceFieldUpdater.newUpdater(TaskProgress.class, TaskStatus.class, "status");
+
+    private final String taskId;
+    private final String leaseOwner;
+    private final long version;
+    private final TaskProgressStore taskProgressStore;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile int progress;
+    private volatile TaskStatus status = TaskStatus.RUNNING;
+
+    TaskProgress(String taskId, String leaseOwner, long version, int progress, TaskProgressStore taskProgressStore) {
+        this.taskId = taskId;
+        this.leaseOwner = leaseOwner;
+        this.version = version;
+        this.progress = progress;
+        this.taskProgressStore = taskProgressStore;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * @return node holding the lease of this run
+     */
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public TaskStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return version the RUNNING status of this run was written with
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * MOVE THE SLOT TO A NEW STATUS IF NO OTHER THREAD MOVED IT FIRST
+     *
+     * @param expectedStatus: Status the slot must still be in
+     * @param newStatus:      New status
+     * @return true if the slot was moved
+     */
+    boolean transition(TaskStatus expectedStatus, TaskStatus newStatus) {
+        return STATUS.compareAndSet(this, expectedStatus, newStatus);
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * UPDATE THE PROGRESS, PERSISTED BY THE NEXT FLUSH
+     *
+     * @param progress: Progress between 0 and 100
+     */
+    public void setProgress(int progress) {
+        if (this.progress != progress) {
+            this.progress = progress;
+            dirty.lazySet(true);
+            taskProgressStore.fireProgress(taskId, progress);
+        }
+    }
+
+    boolean clearDirty() {
+        return dirty.get() && dirty.getAndSet(false);
+    }
+}
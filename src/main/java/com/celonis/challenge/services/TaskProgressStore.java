@@ -0,0 +1,171 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskProgressUpdate;
+import com.celonis.challenge.model.TaskStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Write-behind buffer for the progress of running tasks. Executors update their
+ * {@link TaskProgress} slot in memory and the dirty slots are written to the
+ * database in one batched UPDATE per flush interval. Progress changes and status
+ * transitions are also fanned out to the registered {@link TaskEventListener}s.
+ */
+@Component
+public class TaskProgressStore {
+
+    private static final Logger log = LogManager.getLogger(TaskProgressStore.class);
+
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    private final Map<String, TaskProgress> runningTasks = new ConcurrentHashMap<>();
+
+    private final List<TaskEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    public TaskProgressStore(ProjectGenerationTaskRepository projectGenerationTaskRepository) {
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+    }
+
+    /**
+     * REGISTER A RUNNING TASK
+     *
+     * @param taskId:     Task ID
+     * @param leaseOwner: Node the task was claimed by
+     * @param version:    Version the claim was written with
+     * @param progress:   Initial progress, already persisted
+     * @return TaskProgress slot to update
+     */
+    public TaskProgress register(String taskId, String leaseOwner, long version, int progress) {
+        TaskProgress taskProgress = new TaskProgress(taskId, leaseOwner, version, progress, this);
+        runningTasks.put(taskId, taskProgress);
+        return taskProgress;
+    }
+
+    /**
+     * GET THE SLOT OF A RUNNING TASK
+     *
+     * @param taskId: Task ID
+     * @return TaskProgress or null if the task is not running on this node
+     */
+    public TaskProgress get(String taskId) {
+        return runningTasks.get(taskId);
+    }
+
+    /**
+     * IDS OF THE TASKS RUNNING ON THIS NODE
+     *
+     * @return Set<String>
+     */
+    public Set<String> getTaskIds() {
+        return new HashSet<>(runningTasks.keySet());
+    }
+
+    /**
+     * SLOTS OF THE TASKS RUNNING ON THIS NODE
+     *
+     * @return List<TaskProgress>
+     */
+    public List<TaskProgress> getAll() {
+        return new ArrayList<>(runningTasks.values());
+    }
+
+    /**
+     * NUMBER OF TASKS RUNNING ON THIS NODE
+     *
+     * @return int
+     */
+    public int size() {
+        return runningTasks.size();
+    }
+
+    /**
+     * UNREGISTER A TASK LEAVING THE RUNNING STATUS
+     * The caller persists the final progress together with the new status.
+     *
+     * @param taskId: Task ID
+     * @return TaskProgress or null if the task was not registered
+     */
+    public TaskProgress remove(String taskId) {
+        return runningTasks.remove(taskId);
+    }
+
+    /**
+     * UNREGISTER ONE RUN OF A TASK
+     * A slot registered by a later run of the same task is left in place.
+     *
+     * @param taskId:       Task ID
+     * @param taskProgress: Slot of the run
+     * @return true if the slot was still registered
+     */
+    public boolean remove(String taskId, TaskProgress taskProgress) {
+        return runningTasks.remove(taskId, taskProgress);
+    }
+
+    /**
+     * REGISTER A LISTENER FOR PROGRESS AND STATUS EVENTS
+     *
+     * @param listener: Task event listener
+     */
+    public void addListener(TaskEventListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * PUBLISH A PERSISTED STATUS TRANSITION
+     *
+     * @param taskId:         Task ID
+     * @param previousStatus: Status the task left
+     * @param status:         New status
+     * @param progress:       Progress at the time of the transition
+     */
+    public void publishStatus(String taskId, TaskStatus previousStatus, TaskStatus status, int progress) {
+        for (TaskEventListener listener : listeners) {
+            listener.onStatusChange(taskId, previousStatus, status, progress);
+        }
+    }
+
+    void fireProgress(String taskId, int progress) {
+        for (TaskEventListener listener : listeners) {
+            listener.onProgress(taskId, progress);
+        }
+    }
+
+    /**
+     * WRITE DIRTY PROGRESS TO THE DATABASE
+     * Progress of runs whose task was claimed again or left RUNNING since is dropped.
+     */
+    @Scheduled(fixedDelayString = "${task.progress.flush-interval-millis:1000}")
+    public void flush() {
+        List<TaskProgressUpdate> dirtyProgress = new ArrayList<>();
+        for (TaskProgress taskProgress : runningTasks.values()) {
+            if (taskProgress.clearDirty()) {
+                dirtyProgress.add(new TaskProgressUpdate(taskProgress.getTaskId(), taskProgress.getLeaseOwner(),
+                        taskProgress.getVersion(), taskProgress.getProgress()));
+            }
+        }
+
+        if (dirtyProgress.isEmpty()) {
+            return;
+        }
+
+        int updated = projectGenerationTaskRepository.updateRunningProgress(dirtyProgress);
+        log.debug("Flushed progress of {} tasks, {} rows updated", dirtyProgress.size(), updated);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+}
@@ -0,0 +1,433 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.ConflictException;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.executor.TaskDispatcher;
+import com.celonis.challenge.services.executor.TaskExecutor;
+import com.celonis.challenge.services.executor.TaskExecutorRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of task executions. Executing a task only moves it to RUNNING without a lease,
+ * which queues it in the database, up to task.queue.max-queued-per-type tasks per type. One poller
+ * thread per node claims queued tasks, and tasks whose lease expired, in batches no larger than the
+ * free capacity of the {@link TaskDispatcher} and hands them to their executor, and a heartbeat
+ * renews the leases of the tasks running on the node. The heartbeat and the ownership check run on
+ * a lease thread of their own, so the scheduled jobs of the application, which share one thread,
+ * cannot hold them back past the lease. Tasks of a node that stopped renewing its
+ * leases are claimed again by any node, including the same node after a restart.
+ * <p>
+ * The database is the only channel between nodes: a task canceled through another node, or
+ * claimed by another node after this one missed its heartbeats, loses its lease, and the
+ * ownership check stops the local run of every task this node no longer holds.
+ */
+@Service
+public class TaskQueueService {
+
+    private static final Logger log = LogManager.getLogger(TaskQueueService.class);
+
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    private final TaskExecutorRegistry taskExecutorRegistry;
+    private final TaskDispatcher taskDispatcher;
+    private final TaskRecoveryService taskRecoveryService;
+    private final TaskStateMachine taskStateMachine;
+    private final TaskProgressStore taskProgressStore;
+    private final String nodeId;
+    private final long leaseMillis;
+    private final long heartbeatMillis;
+    private final long ownershipCheckMillis;
+    private final long pollIntervalMillis;
+    private final int batchSize;
+    private final int maxRunning;
+    private final int maxQueuedPerType;
+    private final int retryAfterSeconds;
+    private final Counter claimedCounter;
+    private final Counter requeuedCounter;
+    private final Counter lostCounter;
+    private final Semaphore wakeUps = new Semaphore(0);
+    private final ScheduledExecutorService leaseExecutor;
+
+    private volatile boolean running;
+    private Thread poller;
+
+    public TaskQueueService(ProjectGenerationTaskRepository projectGenerationTaskRepository,
+                            TaskExecutorRegistry taskExecutorRegistry, TaskDispatcher taskDispatcher, TaskRecoveryService taskRecoveryService,
+                            TaskStateMachine taskStateMachine, TaskProgressStore taskProgressStore, MeterRegistry meterRegistry,
+                            @Value("${task.queue.node-id:}") String nodeId,
+                            @Value("${task.queue.lease-millis:30000}") long leaseMillis,
+                            @Value("${task.queue.heartbeat-millis:10000}") long heartbeatMillis,
+                            @Value("${task.queue.ownership-check-millis:1000}") long ownershipCheckMillis,
+                            @Value("${task.queue.poll-interval-millis:1000}") long pollIntervalMillis,
+                            @Value("${task.queue.batch-size:100}") int batchSize,
+                            @Value("${task.queue.max-running:0}") int maxRunning,
+                            @Value("${task.queue.max-queued-per-type:10000}") int maxQueuedPerType,
+                            @Value("${task.executor.retry-after-seconds:5}") int retryAfterSeconds) {
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.taskExecutorRegistry = taskExecutorRegistry;
+        this.taskDispatcher = taskDispatcher;
+        this.taskRecoveryService = taskRecoveryService;
+        this.taskStateMachine = taskStateMachine;
+        this.taskProgressStore = taskProgressStore;
+        this.nodeId = nodeId == null || nodeId.isEmpty() ? defaultNodeId() : nodeId;
+        this.leaseMillis = leaseMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        this.ownershipCheckMillis = ownershipCheckMillis;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.batchSize = batchSize;
+        this.maxRunning = maxRunning;
+        this.maxQueuedPerType = maxQueuedPerType;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.claimedCounter = meterRegistry.counter("task.queue.claimed");
+        this.requeuedCounter = meterRegistry.counter("task.queue.requeued");
+        this.lostCounter = meterRegistry.counter("task.queue.lost");
+        this.leaseExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "task-queue-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * QUEUE A TASK FOR EXECUTION
+     * The task is moved to RUNNING with a compare-and-set on the status and version it was
+     * read with, so of concurrent calls for the same task one queues it.
+     *
+     * @param projectGenerationTask: Project generation task
+     * @throws ConflictException        if the task changed since it was read
+     * @throws TooManyRequestsException if max-queued-per-type tasks of its type are queued already
+     */
+    public void enqueue(ProjectGenerationTask projectGenerationTask) {
+        enqueue(projectGenerationTask, getFreeSlots(projectGenerationTask.getTaskType()));
+    }
+
+    /**
+     * QUEUE A TASK FOR EXECUTION WITH THE FREE SLOTS OF ITS TYPE READ BEFORE
+     * Lets a batch count the queued tasks of a type once instead of once per task.
+     *
+     * @param projectGenerationTask: Project generation task
+     * @param freeSlots:             Free slots of its type, as returned by {@link #getFreeSlots} less the tasks queued since
+     * @throws ConflictException        if the task changed since it was read
+     * @throws TooManyRequestsException if no slot is free
+     */
+    public void enqueue(ProjectGenerationTask projectGenerationTask, int freeSlots) {
+        if (freeSlots <= 0) {
+            log.warn("Rejecting task={}, {} {} tasks are queued already", projectGenerationTask.getId(), maxQueuedPerType,
+                    projectGenerationTask.getTaskType());
+            throw new TooManyRequestsException("Task queue is full for " + projectGenerationTask.getTaskType(), retryAfterSeconds);
+        }
+        if (!taskStateMachine.transition(projectGenerationTask, TaskStatus.RUNNING, 0)) {
+            log.warn("Task={} changed since it was read, not queuing it", projectGenerationTask.getId());
+            throw new ConflictException("Task was changed concurrently");
+        }
+        wakeUp();
+    }
+
+    /**
+     * NUMBER OF TASKS OF A TYPE THAT CAN STILL BE QUEUED
+     *
+     * @param taskType: Task type
+     * @return free slots, Integer.MAX_VALUE without limit
+     */
+    public int getFreeSlots(TaskType taskType) {
+        if (maxQueuedPerType <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return maxQueuedPerType - projectGenerationTaskRepository.countQueued(taskType);
+    }
+
+    /**
+     * Lets the poller claim right away instead of at its next interval
+     */
+    public void wakeUp() {
+        if (wakeUps.availablePermits() == 0) {
+            wakeUps.release();
+        }
+    }
+
+    /**
+     * START CLAIMING TASKS
+     * Leases left by a previous run of this node are ended first, so its tasks are claimed at once.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        int expired = projectGenerationTaskRepository.expireLeases(nodeId, new Date());
+        log.info("Starting task queue on node={}, {} leases of its previous run expired", nodeId, expired);
+
+        running = true;
+        poller = new Thread(this::pollUntilStopped, "task-queue-poller");
+        poller.setDaemon(true);
+        poller.start();
+        leaseExecutor.scheduleWithFixedDelay(() -> runLeaseJob(this::heartbeat, "Renewing leases"),
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        leaseExecutor.scheduleWithFixedDelay(() -> runLeaseJob(this::checkOwnership, "Checking ownership"),
+                ownershipCheckMillis, ownershipCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * CLAIM ONE BATCH OF TASKS
+     * Tasks whose lease expired are recovered first, then queued tasks are claimed round-robin per
+     * type and tenant, highest priority first, at most as many as the dispatcher has room for. Types without capacity left are not
+     * claimed, and once the executor of a type rejects a task the other claimed tasks of that type go
+     * back to the queue untouched, while the other types are still executed. A node already running
+     * max-running tasks claims nothing, which leaves the work to the others.
+     *
+     * @return number of claimed tasks handed to an executor, or failed
+     */
+    public int poll() {
+        int limit = Math.min(batchSize, taskDispatcher.getFreeCapacity());
+        if (maxRunning > 0) {
+            limit = Math.min(limit, maxRunning - taskProgressStore.size());
+        }
+        Set<TaskType> saturatedTypes = findSaturatedTypes();
+        if (limit <= 0 || saturatedTypes.size() == TaskType.values().length) {
+            return 0;
+        }
+
+        Date now = new Date();
+        Date leaseExpiresAt = new Date(now.getTime() + leaseMillis);
+        int handled = 0;
+
+        List<ProjectGenerationTask> expired = projectGenerationTaskRepository.claimExpired(nodeId, now, leaseExpiresAt, limit, saturatedTypes);
+        if (!expired.isEmpty()) {
+            claimedCounter.increment(expired.size());
+            stopPreviousRuns(expired);
+            List<ProjectGenerationTask> rejected = taskRecoveryService.recoverTasks(expired);
+            handled += expired.size() - rejected.size();
+            if (!rejected.isEmpty()) {
+                rejected.forEach(task -> saturatedTypes.add(task.getTaskType()));
+                // still expired, the next poll with capacity recovers them
+                projectGenerationTaskRepository.expireClaims(nodeId, rejected, now);
+                requeuedCounter.increment(rejected.size());
+            }
+        }
+
+        if (expired.size() < limit && saturatedTypes.size() < TaskType.values().length) {
+            List<ProjectGenerationTask> queued = projectGenerationTaskRepository.claimQueued(nodeId, leaseExpiresAt,
+                    limit - expired.size(), saturatedTypes);
+            claimedCounter.increment(queued.size());
+            stopPreviousRuns(queued);
+            List<ProjectGenerationTask> rejected = new ArrayList<>();
+            for (ProjectGenerationTask task : queued) {
+                if (saturatedTypes.contains(task.getTaskType())) {
+                    rejected.add(task);
+                } else if (execute(task)) {
+                    handled++;
+                } else {
+                    saturatedTypes.add(task.getTaskType());
+                    rejected.add(task);
+                }
+            }
+            if (!rejected.isEmpty()) {
+                projectGenerationTaskRepository.releaseClaims(nodeId, rejected);
+                requeuedCounter.increment(rejected.size());
+                log.info("No capacity left on node={} for {}, {} claimed tasks went back to the queue", nodeId, saturatedTypes,
+                        rejected.size());
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * RENEW THE LEASES OF THE TASKS RUNNING ON THIS NODE
+     * Runs every task.queue.heartbeat-millis on the lease thread.
+     */
+    public void heartbeat() {
+        Set<String> taskIds = taskProgressStore.getTaskIds();
+        if (taskIds.isEmpty()) {
+            return;
+        }
+
+        Date now = new Date();
+        int renewed = projectGenerationTaskRepository.renewLeases(nodeId, taskIds, now, new Date(now.getTime() + leaseMillis));
+        if (renewed < taskIds.size()) {
+            log.warn("Renewed {} of {} leases on node={}, the other tasks left this node", renewed, taskIds.size(), nodeId);
+            checkOwnership();
+        } else {
+            log.debug("Renewed {} leases on node={}", renewed, nodeId);
+        }
+    }
+
+    /**
+     * STOP THE LOCAL RUNS OF TASKS THIS NODE NO LONGER HOLDS
+     * A run is kept only while its task is RUNNING under a lease of this node at the version
+     * the run started with. Slots are read before the leases, so a run claimed in between is
+     * never taken for a lost one. Runs every task.queue.ownership-check-millis on the lease thread.
+     *
+     * @return number of runs stopped
+     */
+    public int checkOwnership() {
+        List<TaskProgress> slots = taskProgressStore.getAll();
+        if (slots.isEmpty()) {
+            return 0;
+        }
+
+        List<String> taskIds = new ArrayList<>(slots.size());
+        slots.forEach(slot -> taskIds.add(slot.getTaskId()));
+        Map<String, Long> leaseVersions = projectGenerationTaskRepository.findLeaseVersions(nodeId, taskIds);
+
+        int stopped = 0;
+        for (TaskProgress slot : slots) {
+            Long leaseVersion = leaseVersions.get(slot.getTaskId());
+            if (slot.getStatus() != TaskStatus.RUNNING || (leaseVersion != null && leaseVersion == slot.getVersion())) {
+                // a slot leaving RUNNING belongs to a transition of this node, which removes it
+                continue;
+            }
+            if (stop(slot)) {
+                stopped++;
+            }
+        }
+
+        if (stopped > 0) {
+            log.warn("Stopped {} runs on node={}, their tasks were canceled or claimed by another node", stopped, nodeId);
+        }
+        return stopped;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Hands the tasks running on this node back to the queue, after writing their last progress
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (poller != null) {
+            poller.interrupt();
+        }
+        leaseExecutor.shutdownNow();
+
+        Set<String> taskIds = taskProgressStore.getTaskIds();
+        if (!taskIds.isEmpty()) {
+            taskProgressStore.flush();
+            int released = projectGenerationTaskRepository.releaseLeases(nodeId, taskIds);
+            log.info("Stopping task queue on node={}, {} running tasks went back to the queue", nodeId, released);
+        }
+    }
+
+    /**
+     * A task claimed again by this node may still have the run of its previous claim here,
+     * which is stopped before the new run takes its place
+     */
+    private void stopPreviousRuns(List<ProjectGenerationTask> claimed) {
+        for (ProjectGenerationTask task : claimed) {
+            TaskProgress slot = taskProgressStore.get(task.getId());
+            if (slot != null && slot.getVersion() != task.getVersion() && stop(slot)) {
+                log.warn("Stopped the previous run of task={} claimed again by node={}", task.getId(), nodeId);
+            }
+        }
+    }
+
+    /**
+     * Types whose limit in the dispatcher is reached, their tasks would be rejected
+     */
+    private Set<TaskType> findSaturatedTypes() {
+        Set<TaskType> saturatedTypes = EnumSet.noneOf(TaskType.class);
+        for (TaskType taskType : TaskType.values()) {
+            if (taskDispatcher.getAvailablePermits(taskType) <= 0) {
+                saturatedTypes.add(taskType);
+            }
+        }
+        return saturatedTypes;
+    }
+
+    private boolean stop(TaskProgress slot) {
+        boolean abandoned = false;
+        for (TaskExecutor taskExecutor : taskExecutorRegistry.getTaskExecutors()) {
+            abandoned |= taskExecutor.abandon(slot.getTaskId(), slot.getVersion());
+        }
+        // a run that ended since its slot was read already removed the slot
+        if (taskProgressStore.remove(slot.getTaskId(), slot) || abandoned) {
+            lostCounter.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean execute(ProjectGenerationTask task) {
+        try {
+            taskExecutorRegistry.getTaskExecutor(task.getTaskType()).execute(task);
+            return true;
+        } catch (TooManyRequestsException e) {
+            return false;
+        } catch (RuntimeException e) {
+            log.error("Could not execute task={}, failing it", task.getId(), e);
+            taskStateMachine.transition(task, TaskStatus.FAILED, task.getProgress());
+            return true;
+        }
+    }
+
+    /**
+     * A failed run must not cancel the periodic job, which a thrown exception would
+     */
+    private void runLeaseJob(Runnable job, String description) {
+        try {
+            job.run();
+        } catch (RuntimeException e) {
+            log.error("{} failed on node={}", description, nodeId, e);
+        }
+    }
+
+    private void pollUntilStopped() {
+        while (running) {
+            try {
+                if (poll() < batchSize) {
+                    wakeUps.tryAcquire(pollIntervalMillis, TimeUnit.MILLISECONDS);
+                    wakeUps.drainPermits();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.error("Polling the task queue failed on node={}", nodeId, e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(pollIntervalMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Host name and process id, unique among the running nodes but not kept across restarts
+     */
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return host + ":" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    }
+}
@@ -0,0 +1,96 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.TooManyRequestsException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.executor.ResumableTaskExecutor;
+import com.celonis.challenge.services.executor.TaskExecutor;
+import com.celonis.challenge.services.executor.TaskExecutorRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Takes care of the tasks left RUNNING by a node that stopped, once the {@link TaskQueueService}
+ * claimed them after their lease expired. Tasks of a {@link ResumableTaskExecutor} continue
+ * from their persisted progress and all others are failed in JDBC batches.
+ */
+@Service
+public class TaskRecoveryService {
+
+    private static final Logger log = LogManager.getLogger(TaskRecoveryService.class);
+
+    private final TaskExecutorRegistry taskExecutorRegistry;
+    private final TaskStateMachine taskStateMachine;
+    private final boolean resumeEnabled;
+
+    public TaskRecoveryService(TaskExecutorRegistry taskExecutorRegistry, TaskStateMachine taskStateMachine,
+                               @Value("${task.recovery.resume:true}") boolean resumeEnabled) {
+        this.taskExecutorRegistry = taskExecutorRegistry;
+        this.taskStateMachine = taskStateMachine;
+        this.resumeEnabled = resumeEnabled;
+    }
+
+    /**
+     * RESUME OR FAIL TASKS LEFT RUNNING BY A STOPPED NODE
+     * Once the executor of a type has no capacity left, the remaining tasks of that type are handed
+     * back untouched, the tasks of the other types are still recovered.
+     *
+     * @param tasks: Tasks claimed by this node after their lease expired
+     * @return tasks not resumed for lack of capacity, to give back to the queue
+     */
+    public List<ProjectGenerationTask> recoverTasks(List<ProjectGenerationTask> tasks) {
+        List<ProjectGenerationTask> failed = new ArrayList<>();
+        List<ProjectGenerationTask> rejected = new ArrayList<>();
+        Set<TaskType> saturatedTypes = EnumSet.noneOf(TaskType.class);
+        int resumed = 0;
+        for (ProjectGenerationTask task : tasks) {
+            if (saturatedTypes.contains(task.getTaskType())) {
+                rejected.add(task);
+                continue;
+            }
+            try {
+                if (resume(task)) {
+                    resumed++;
+                } else {
+                    failed.add(task);
+                }
+            } catch (TooManyRequestsException e) {
+                log.warn("No capacity left to resume task={}, giving the {} tasks back to the queue", task.getId(), task.getTaskType());
+                saturatedTypes.add(task.getTaskType());
+                rejected.add(task);
+            }
+        }
+
+        // only tasks still at the version of the claim fail, another node may have finished them since
+        int failedCount = failed.isEmpty() ? 0 : taskStateMachine.transitionEach(failed, TaskStatus.FAILED).size();
+        log.warn("Recovered tasks of stopped nodes, resumed={}, failed={}, requeued={}", resumed, failedCount, rejected.size());
+        return rejected;
+    }
+
+    private boolean resume(ProjectGenerationTask task) {
+        if (!resumeEnabled) {
+            return false;
+        }
+        TaskExecutor taskExecutor = taskExecutorRegistry.getTaskExecutor(task.getTaskType());
+        if (!(taskExecutor instanceof ResumableTaskExecutor)) {
+            return false;
+        }
+        try {
+            ((ResumableTaskExecutor) taskExecutor).resume(task);
+            return true;
+        } catch (TooManyRequestsException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            log.error("Could not resume task={}, failing it", task.getId(), e);
+            return false;
+        }
+    }
+}
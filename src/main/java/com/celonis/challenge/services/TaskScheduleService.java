@@ -0,0 +1,355 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.model.TimeOrderedUuidGenerator;
+import com.celonis.challenge.services.executor.HierarchicalTimerWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts tasks at their notBefore time. Tasks created or updated on this node, and the PENDING
+ * tasks of all nodes due within task.schedule.horizon-millis, wait on a {@link HierarchicalTimerWheel},
+ * so the database is read once per horizon instead of polled for due tasks.
+ * <p>
+ * A task without recurrence is queued once due, as if it was executed. A task with a cron
+ * expression or an interval is a schedule: it stays PENDING, and every occurrence moves its
+ * notBefore time to the next one and runs as a new task referencing it by scheduleId. Every node
+ * fires the occurrences it knows about, the compare-and-set on the version lets one of them start it.
+ * <p>
+ * A task leaving PENDING on this node, or deleted through it, leaves the timer wheel at once. Tasks
+ * changed through other nodes stay on it until they are due, where the compare-and-set skips them.
+ */
+@Service
+public class TaskScheduleService implements TaskEventListener {
+
+    private static final Logger log = LogManager.getLogger(TaskScheduleService.class);
+
+    // 64^5 ticks of 100 ms are three years, later times are cascaded again
+    private static final int WHEEL_LEVELS = 5;
+
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    private final TaskStateMachine taskStateMachine;
+    private final TaskQueueService taskQueueService;
+    private final TransactionTemplate transactionTemplate;
+    private final long horizonMillis;
+    private final int loadBatchSize;
+    private final HierarchicalTimerWheel timerWheel;
+    private final ConcurrentMap<String, Firing> scheduled = new ConcurrentHashMap<>();
+    private final ExecutorService firingExecutor;
+    private final Counter firedCounter;
+    private final Counter skippedCounter;
+    private final Timer latenessTimer;
+
+    public TaskScheduleService(ProjectGenerationTaskRepository projectGenerationTaskRepository, TaskStateMachine taskStateMachine,
+                               TaskQueueService taskQueueService, TaskProgressStore taskProgressStore,
+                               TransactionTemplate transactionTemplate, MeterRegistry meterRegistry,
+                               @Value("${task.schedule.tick-millis:100}") long tickMillis,
+                               @Value("${task.schedule.horizon-millis:600000}") long horizonMillis,
+                               @Value("${task.schedule.load-batch-size:1000}") int loadBatchSize) {
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.taskStateMachine = taskStateMachine;
+        this.taskQueueService = taskQueueService;
+        this.transactionTemplate = transactionTemplate;
+        this.horizonMillis = horizonMillis;
+        this.loadBatchSize = loadBatchSize;
+        this.timerWheel = new HierarchicalTimerWheel(tickMillis, WHEEL_LEVELS, System.currentTimeMillis(), "task-schedule-wheel");
+        // firings run on the wheel thread, which must not wait for the database
+        this.firingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "task-schedule");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.firedCounter = meterRegistry.counter("task.schedule.fired");
+        this.skippedCounter = meterRegistry.counter("task.schedule.skipped");
+        this.latenessTimer = Timer.builder("task.schedule.lateness")
+                .description("Time from the notBefore time of a task to its start")
+                .register(meterRegistry);
+        Gauge.builder("task.schedule.pending", timerWheel, HierarchicalTimerWheel::getPendingCount)
+                .description("Tasks waiting on the timer wheel of this node")
+                .register(meterRegistry);
+        taskProgressStore.addListener(this);
+    }
+
+    /**
+     * @param projectGenerationTask: Project generation task
+     * @return true if the task has a cron expression or an interval
+     */
+    public static boolean isRecurring(ProjectGenerationTask projectGenerationTask) {
+        return projectGenerationTask.getCron() != null || projectGenerationTask.getIntervalMillis() != null;
+    }
+
+    /**
+     * NEXT OCCURRENCE OF A RECURRING TASK
+     * Cron expressions are evaluated in the time zone of the server.
+     *
+     * @param projectGenerationTask: Task with a cron expression or an interval
+     * @param previous:              Last occurrence, or the creation time before the first one
+     * @param now:                   Current time, occurrences missed until then are skipped
+     * @return first occurrence after both previous and now
+     * @throws IllegalArgumentException if the cron expression is invalid or never matches
+     */
+    public static Date nextOccurrence(ProjectGenerationTask projectGenerationTask, Date previous, Date now) {
+        if (projectGenerationTask.getCron() != null) {
+            return new CronSequenceGenerator(projectGenerationTask.getCron()).next(previous.after(now) ? previous : now);
+        }
+        long intervalMillis = projectGenerationTask.getIntervalMillis();
+        long missed = Math.max(0, (now.getTime() - previous.getTime()) / intervalMillis);
+        return new Date(previous.getTime() + (missed + 1) * intervalMillis);
+    }
+
+    /**
+     * SCHEDULE A TASK ON THIS NODE
+     * A PENDING task with a notBefore time replaces the earlier version of it on the timer wheel,
+     * other tasks, such as one updated to start no longer at a given time, leave it.
+     *
+     * @param projectGenerationTask: Project generation task, as persisted
+     */
+    public void schedule(ProjectGenerationTask projectGenerationTask) {
+        if (projectGenerationTask.getTaskStatus() == TaskStatus.PENDING && projectGenerationTask.getNotBefore() != null) {
+            scheduleAt(projectGenerationTask.getId(), projectGenerationTask.getTaskType(), projectGenerationTask.getVersion(),
+                    projectGenerationTask.getNotBefore().getTime(), isRecurring(projectGenerationTask));
+        } else {
+            unschedule(projectGenerationTask.getId());
+        }
+    }
+
+    /**
+     * REMOVE A TASK FROM THE TIMER WHEEL OF THIS NODE
+     *
+     * @param taskId: Task ID
+     */
+    public void unschedule(String taskId) {
+        Firing firing = scheduled.remove(taskId);
+        if (firing != null) {
+            firing.timeout.cancel();
+            log.debug("Unscheduled task={}", taskId);
+        }
+    }
+
+    @Override
+    public void onProgress(String taskId, int progress) {
+    }
+
+    @Override
+    public void onStatusChange(String taskId, TaskStatus previousStatus, TaskStatus status, int progress) {
+        // executed or canceled before it was due
+        if (previousStatus == TaskStatus.PENDING) {
+            unschedule(taskId);
+        }
+    }
+
+    /**
+     * START THE TIMER WHEEL
+     * Tasks due within the horizon are loaded first, overdue ones start right away.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        timerWheel.start();
+        int loaded = load();
+        log.info("Started task schedule, {} tasks due within {} ms", loaded, horizonMillis);
+    }
+
+    /**
+     * LOAD THE TASKS DUE WITHIN THE HORIZON
+     * Picks up tasks created or updated on other nodes. Tasks already on the timer wheel at the
+     * same version are kept.
+     *
+     * @return number of tasks read
+     */
+    @Scheduled(initialDelayString = "${task.schedule.load-interval-millis:300000}",
+            fixedDelayString = "${task.schedule.load-interval-millis:300000}")
+    public int load() {
+        Date before = new Date(System.currentTimeMillis() + horizonMillis);
+        Date afterNotBefore = null;
+        String afterId = null;
+        int loaded = 0;
+        List<ProjectGenerationTask> page;
+        do {
+            page = projectGenerationTaskRepository.findScheduled(before, afterNotBefore, afterId, loadBatchSize);
+            for (ProjectGenerationTask projectGenerationTask : page) {
+                schedule(projectGenerationTask);
+            }
+            loaded += page.size();
+            if (!page.isEmpty()) {
+                ProjectGenerationTask last = page.get(page.size() - 1);
+                afterNotBefore = last.getNotBefore();
+                afterId = last.getId();
+            }
+        } while (page.size() == loadBatchSize);
+        log.debug("Loaded {} tasks due before {}", loaded, before);
+        return loaded;
+    }
+
+    /**
+     * @param taskId: Task ID
+     * @return true if the task waits on the timer wheel of this node
+     */
+    boolean isScheduled(String taskId) {
+        return scheduled.containsKey(taskId);
+    }
+
+    @PreDestroy
+    public void stop() {
+        timerWheel.stop();
+        firingExecutor.shutdownNow();
+    }
+
+    private void scheduleAt(String taskId, TaskType taskType, long version, long atMillis, boolean recurring) {
+        scheduled.compute(taskId, (id, current) -> {
+            if (current != null) {
+                if (current.version >= version) {
+                    return current;
+                }
+                current.timeout.cancel();
+            }
+            Firing firing = new Firing(taskId, taskType, version, atMillis, recurring);
+            firing.timeout = timerWheel.schedule(firing, atMillis);
+            return firing;
+        });
+    }
+
+    private void fire(Firing firing) {
+        try {
+            boolean started = firing.recurring ? startOccurrence(firing) : start(firing);
+            if (started) {
+                firedCounter.increment();
+                latenessTimer.record(Math.max(0, System.currentTimeMillis() - firing.atMillis), TimeUnit.MILLISECONDS);
+            } else {
+                // updated, executed, canceled or deleted since, fired by another node, or its queue was full
+                skippedCounter.increment();
+                log.debug("Task={} not started", firing.taskId);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to start scheduled task={}", firing.taskId, e);
+        }
+    }
+
+    private boolean start(Firing firing) {
+        if (taskQueueService.getFreeSlots(firing.taskType) <= 0) {
+            // left PENDING, the next load fires it again
+            log.warn("Task={} not started, the queue of {} is full", firing.taskId, firing.taskType);
+            return false;
+        }
+        if (!taskStateMachine.transition(firing.taskId, TaskStatus.PENDING, firing.version, TaskStatus.RUNNING, 0)) {
+            return false;
+        }
+        taskQueueService.wakeUp();
+        log.info("Queued scheduled task={}", firing.taskId);
+        return true;
+    }
+
+    private boolean startOccurrence(Firing firing) {
+        ProjectGenerationTask schedule = projectGenerationTaskRepository.findById(firing.taskId).orElse(null);
+        if (schedule == null || schedule.getTaskStatus() != TaskStatus.PENDING || schedule.getVersion() != firing.version) {
+            return false;
+        }
+
+        Date now = new Date();
+        Date next = nextOccurrence(schedule, schedule.getNotBefore(), now);
+        ProjectGenerationTask run = newRun(schedule, now);
+        Occurrence occurrence = transactionTemplate.execute(status -> {
+            if (!projectGenerationTaskRepository.advanceSchedule(schedule.getId(), firing.version, next)) {
+                return Occurrence.CHANGED;
+            }
+            if (taskQueueService.getFreeSlots(schedule.getTaskType()) <= 0) {
+                return Occurrence.QUEUE_FULL;
+            }
+            projectGenerationTaskRepository.insertAll(List.of(run));
+            return Occurrence.QUEUED;
+        });
+        if (occurrence == null || occurrence == Occurrence.CHANGED) {
+            return false;
+        }
+
+        scheduleAt(schedule.getId(), schedule.getTaskType(), firing.version + 1, next.getTime(), true);
+        if (occurrence == Occurrence.QUEUE_FULL) {
+            log.warn("Skipped an occurrence of schedule={}, the queue of {} is full, next occurrence at {}", schedule.getId(),
+                    schedule.getTaskType(), next);
+            return false;
+        }
+        taskQueueService.wakeUp();
+        log.info("Started run={} of schedule={}, next occurrence at {}", run.getId(), schedule.getId(), next);
+        return true;
+    }
+
+    private static ProjectGenerationTask newRun(ProjectGenerationTask schedule, Date now) {
+        ProjectGenerationTask run = new ProjectGenerationTask();
+        run.setId(TimeOrderedUuidGenerator.nextId());
+        run.setName(schedule.getName());
+        run.setCreationDate(now);
+        run.setTaskType(schedule.getTaskType());
+        // inserted RUNNING without a lease, which queues it
+        run.setTaskStatus(TaskStatus.RUNNING);
+        run.setParameters(schedule.getParameters() == null ? new HashMap<>() : new HashMap<>(schedule.getParameters()));
+        run.setDeadlineMillis(schedule.getDeadlineMillis());
+        run.setPriority(schedule.getPriority());
+        run.setTenant(schedule.getTenant());
+        run.setScheduleId(schedule.getId());
+        return run;
+    }
+
+    /**
+     * Outcome of the transaction starting an occurrence of a recurring task
+     */
+    private enum Occurrence {
+        QUEUED, QUEUE_FULL, CHANGED
+    }
+
+    /**
+     * Task waiting on the timer wheel, at the version it was scheduled with
+     */
+    private final class Firing implements Runnable {
+
+        private final String taskId;
+        private final TaskType taskType;
+        private final long version;
+        private final long atMillis;
+        private final boolean recurring;
+        private HierarchicalTimerWheel.Timeout timeout;
+
+        private Firing(String taskId, TaskType taskType, long version, long atMillis, boolean recurring) {
+            this.taskId = taskId;
+            this.taskType = taskType;
+            this.version = version;
+            this.atMillis = atMillis;
+            this.recurring = recurring;
+        }
+
+        @Override
+        public void run() {
+            if (!scheduled.remove(taskId, this)) {
+                return;
+            }
+            try {
+                firingExecutor.execute(() -> fire(this));
+            } catch (RejectedExecutionException e) {
+                log.warn("Task schedule stopped, task={} not started", taskId);
+            }
+        }
+    }
+}
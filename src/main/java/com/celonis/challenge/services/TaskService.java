@@ -3,52 +3,143 @@ package com.celonis.challenge.services;
 import com.celonis.challenge.exceptions.BadRequestException;
 import com.celonis.challenge.exceptions.ConflictException;
 import com.celonis.challenge.exceptions.NotFoundException;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
 import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskBatchItem;
+import com.celonis.challenge.model.TaskBatchResult;
+import com.celonis.challenge.model.TaskCursor;
+import com.celonis.challenge.model.TaskPage;
+import com.celonis.challenge.model.TaskPriority;
+import com.celonis.challenge.model.TaskProgressView;
+import com.celonis.challenge.model.TaskQuery;
 import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.model.TimeOrderedUuidGenerator;
 import com.celonis.challenge.services.executor.TaskExecutor;
 import com.celonis.challenge.services.executor.TaskExecutorRegistry;
 import com.celonis.challenge.services.validator.TaskValidatorRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.scheduling.support.CronSequenceGenerator;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 @Service
 public class TaskService {
 
     private static final Logger log = LogManager.getLogger(TaskService.class);
 
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 1000;
+    static final int STREAM_CHUNK_SIZE = 500;
+    static final int MAX_BATCH_SIZE = 10000;
+    static final long MIN_INTERVAL_MILLIS = 1000;
+    static final int MAX_DEPENDENCIES = 100;
+    static final long MAX_DEADLINE_MILLIS = 365L * 24 * 60 * 60 * 1000;
+
     private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
 
     private final TaskExecutorRegistry taskExecutorRegistry;
 
     private final TaskValidatorRegistry taskValidatorRegistry;
 
+    private final TaskProgressStore taskProgressStore;
+
+    private final TaskStateMachine taskStateMachine;
+
+    private final TaskQueueService taskQueueService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ResultStore resultStore;
+
+    private final TaskScheduleService taskScheduleService;
+
+    private final TaskDependencyService taskDependencyService;
+
     public TaskService(ProjectGenerationTaskRepository projectGenerationTaskRepository,
-                       TaskExecutorRegistry taskExecutorRegistry, TaskValidatorRegistry taskValidatorRegistry) {
+                       TaskExecutorRegistry taskExecutorRegistry, TaskValidatorRegistry taskValidatorRegistry,
+                       TaskProgressStore taskProgressStore, TaskStateMachine taskStateMachine,
+                       TaskQueueService taskQueueService, TransactionTemplate transactionTemplate, ResultStore resultStore,
+                       TaskScheduleService taskScheduleService, TaskDependencyService taskDependencyService) {
         this.projectGenerationTaskRepository = projectGenerationTaskRepository;
         this.taskExecutorRegistry = taskExecutorRegistry;
         this.taskValidatorRegistry = taskValidatorRegistry;
+        this.taskProgressStore = taskProgressStore;
+        this.taskStateMachine = taskStateMachine;
+        this.taskQueueService = taskQueueService;
+        this.transactionTemplate = transactionTemplate;
+        this.resultStore = resultStore;
+        this.taskScheduleService = taskScheduleService;
+        this.taskDependencyService = taskDependencyService;
     }
 
     /**
-     * FETCH LIST OF ALL TASKS
+     * FETCH ONE PAGE OF TASKS
      *
-     * @return List<ProjectGenerationTask>
+     * @param taskQuery: Filters, cursor and page size
+     * @return TaskPage
      */
-    public List<ProjectGenerationTask> listTasks() {
-        log.info("Listing all tasks");
-        return projectGenerationTaskRepository.findAll();
+    public TaskPage listTasks(TaskQuery taskQuery) {
+        int limit = taskQuery.getLimit() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(taskQuery.getLimit(), MAX_PAGE_SIZE);
+        log.info("Listing tasks, status={}, type={}, limit={}", taskQuery.getTaskStatus(), taskQuery.getTaskType(), limit);
+
+        taskQuery.setLimit(limit + 1);
+        List<ProjectGenerationTask> tasks = projectGenerationTaskRepository.findPage(taskQuery);
+        if (tasks.size() <= limit) {
+            return new TaskPage(tasks, null);
+        }
+
+        List<ProjectGenerationTask> page = tasks.subList(0, limit);
+        return new TaskPage(page, TaskCursor.of(page.get(limit - 1)).encode());
+    }
+
+    /**
+     * STREAM ALL TASKS MATCHING A QUERY
+     * Tasks are read in keyset chunks, each in its own read-only transaction, so
+     * memory use does not depend on the number of matching tasks.
+     *
+     * @param taskQuery: Filters and starting cursor
+     * @param consumer:  Receives every task while its transaction is open
+     */
+    public void streamTasks(TaskQuery taskQuery, Consumer<ProjectGenerationTask> consumer) {
+        log.info("Streaming tasks, status={}, type={}", taskQuery.getTaskStatus(), taskQuery.getTaskType());
+        taskQuery.setLimit(STREAM_CHUNK_SIZE);
+
+        TaskCursor cursor = taskQuery.getAfter();
+        do {
+            taskQuery.setAfter(cursor);
+            cursor = transactionTemplate.execute(status -> {
+                List<ProjectGenerationTask> chunk = projectGenerationTaskRepository.findPage(taskQuery);
+                chunk.forEach(consumer);
+                return chunk.size() < STREAM_CHUNK_SIZE ? null : TaskCursor.of(chunk.get(chunk.size() - 1));
+            });
+        } while (cursor != null);
     }
 
     /**
      * CREATE A TASK
+     * A task with a notBefore time, a cron expression or an interval is started by the {@link TaskScheduleService},
+     * a task with dependencies by the {@link TaskDependencyService}, right away if they all completed already.
      *
      * @param projectGenerationTask: Project generation task
      * @return ProjectGenerationTask
@@ -56,13 +147,182 @@ public class TaskService {
     public ProjectGenerationTask createTask(ProjectGenerationTask projectGenerationTask) {
         log.info("Creating task with name={}, type={}", projectGenerationTask.getName(), projectGenerationTask.getTaskType());
 
-        validateCreateTask(projectGenerationTask);
+        normalizeDependencies(projectGenerationTask);
+        validateCreateTask(projectGenerationTask, findUpstreamStatuses(List.of(projectGenerationTask)));
 
         projectGenerationTask.setId(null);
         projectGenerationTask.setCreationDate(new Date());
         projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
         projectGenerationTask.setProgress(0);
-        return projectGenerationTaskRepository.save(projectGenerationTask);
+        projectGenerationTask.setPriority(priorityOrDefault(projectGenerationTask));
+        projectGenerationTask.setScheduleId(null);
+        if (projectGenerationTask.getDependsOn().isEmpty()) {
+            ProjectGenerationTask created = projectGenerationTaskRepository.save(projectGenerationTask);
+            taskScheduleService.schedule(created);
+            return created;
+        }
+
+        ProjectGenerationTask created = transactionTemplate.execute(status -> {
+            ProjectGenerationTask saved = projectGenerationTaskRepository.save(projectGenerationTask);
+            projectGenerationTaskRepository.insertDependencies(List.of(saved));
+            return saved;
+        });
+        taskDependencyService.resolve(List.of(created));
+        return created;
+    }
+
+    /**
+     * CREATE MANY TASKS
+     * Every task is validated on its own, the valid ones are inserted with JDBC batch statements.
+     *
+     * @param projectGenerationTasks: Project generation tasks
+     * @return one item per task, the created task or the reason it was rejected
+     */
+    public TaskBatchResult createTasks(List<ProjectGenerationTask> projectGenerationTasks) {
+        checkBatchSize(projectGenerationTasks);
+        log.info("Creating {} tasks", projectGenerationTasks.size());
+
+        TaskBatchItem[] items = new TaskBatchItem[projectGenerationTasks.size()];
+        List<ProjectGenerationTask> validTasks = new ArrayList<>();
+        List<ProjectGenerationTask> waitingTasks = new ArrayList<>();
+        Date now = new Date();
+        List<ProjectGenerationTask> nonNullTasks = new ArrayList<>(projectGenerationTasks);
+        nonNullTasks.removeIf(Objects::isNull);
+        nonNullTasks.forEach(TaskService::normalizeDependencies);
+        Map<String, TaskStatus> upstreamStatuses = findUpstreamStatuses(nonNullTasks);
+        for (int i = 0; i < projectGenerationTasks.size(); i++) {
+            ProjectGenerationTask projectGenerationTask = projectGenerationTasks.get(i);
+            try {
+                if (projectGenerationTask == null || projectGenerationTask.getTaskType() == null || projectGenerationTask.getName() == null) {
+                    throw new BadRequestException("Task name and type are required");
+                }
+                validateCreateTask(projectGenerationTask, upstreamStatuses);
+            } catch (RuntimeException e) {
+                items[i] = failed(i, null, e);
+                continue;
+            }
+
+            projectGenerationTask.setId(TimeOrderedUuidGenerator.nextId());
+            projectGenerationTask.setCreationDate(now);
+            projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
+            projectGenerationTask.setProgress(0);
+            projectGenerationTask.setPriority(priorityOrDefault(projectGenerationTask));
+            projectGenerationTask.setScheduleId(null);
+            projectGenerationTask.setStorageLocation(null);
+            validTasks.add(projectGenerationTask);
+            if (!projectGenerationTask.getDependsOn().isEmpty()) {
+                waitingTasks.add(projectGenerationTask);
+            }
+            items[i] = new TaskBatchItem(i, projectGenerationTask.getId(), HttpStatus.CREATED.value(), null, projectGenerationTask);
+        }
+
+        if (!validTasks.isEmpty()) {
+            projectGenerationTaskRepository.insertAll(validTasks);
+            validTasks.forEach(taskScheduleService::schedule);
+        }
+        if (!waitingTasks.isEmpty()) {
+            taskDependencyService.resolve(waitingTasks);
+        }
+        return new TaskBatchResult(Arrays.asList(items));
+    }
+
+    /**
+     * EXECUTE MANY TASKS
+     * The tasks are loaded in chunks and queued in request order, the queued tasks of a type are
+     * counted once per batch. Tasks beyond the free slots of their type are rejected with 429.
+     *
+     * @param taskIds: Task IDs
+     * @return one item per task ID
+     */
+    public TaskBatchResult executeTasks(List<String> taskIds) {
+        checkBatchSize(taskIds);
+        log.info("Executing {} tasks", taskIds.size());
+
+        Map<String, ProjectGenerationTask> tasks = findAllById(taskIds);
+        Map<String, TaskStatus> upstreamStatuses = findUpstreamStatuses(tasks.values());
+        Map<TaskType, Integer> freeSlots = new EnumMap<>(TaskType.class);
+        List<TaskBatchItem> items = new ArrayList<>(taskIds.size());
+        for (int i = 0; i < taskIds.size(); i++) {
+            String taskId = taskIds.get(i);
+            try {
+                ProjectGenerationTask projectGenerationTask = tasks.get(taskId);
+                if (projectGenerationTask == null) {
+                    throw new NotFoundException();
+                }
+                TaskStateMachine.checkTransition(projectGenerationTask, TaskStatus.RUNNING);
+                checkNotRecurring(projectGenerationTask);
+                checkDependenciesCompleted(projectGenerationTask, upstreamStatuses);
+                int free = freeSlots.computeIfAbsent(projectGenerationTask.getTaskType(), taskQueueService::getFreeSlots);
+                taskQueueService.enqueue(projectGenerationTask, free);
+                freeSlots.put(projectGenerationTask.getTaskType(), free - 1);
+                items.add(new TaskBatchItem(i, taskId, HttpStatus.ACCEPTED.value(), null, null));
+            } catch (RuntimeException e) {
+                items.add(failed(i, taskId, e));
+            }
+        }
+        return new TaskBatchResult(items);
+    }
+
+    /**
+     * CANCEL MANY TASKS
+     * Every task moves with a compare-and-set on the version it was read with, written as JDBC
+     * batches together with the latest progress of its run, and only the runs of the tasks that
+     * moved are stopped. A task completed, claimed or changed in between is answered with a conflict.
+     *
+     * @param taskIds: Task IDs
+     * @return one item per task ID, the canceled task or the reason it was not
+     */
+    public TaskBatchResult cancelTasks(List<String> taskIds) {
+        checkBatchSize(taskIds);
+        log.warn("Canceling {} tasks", taskIds.size());
+
+        Map<String, ProjectGenerationTask> tasks = findAllById(taskIds);
+        Map<String, ProjectGenerationTask> candidates = new LinkedHashMap<>();
+        Map<String, Long> runVersions = new HashMap<>();
+        TaskBatchItem[] items = new TaskBatchItem[taskIds.size()];
+        for (int i = 0; i < taskIds.size(); i++) {
+            String taskId = taskIds.get(i);
+            try {
+                ProjectGenerationTask projectGenerationTask = tasks.get(taskId);
+                if (projectGenerationTask == null) {
+                    throw new NotFoundException();
+                }
+                TaskStateMachine.checkTransition(projectGenerationTask, TaskStatus.CANCELED);
+                if (candidates.putIfAbsent(taskId, projectGenerationTask) == null
+                        && projectGenerationTask.getTaskStatus() == TaskStatus.RUNNING) {
+                    runVersions.put(taskId, projectGenerationTask.getVersion());
+                    takeBufferedProgress(projectGenerationTask);
+                }
+            } catch (RuntimeException e) {
+                items[i] = failed(i, taskId, e);
+            }
+        }
+
+        Set<String> canceled = new HashSet<>();
+        if (!candidates.isEmpty()) {
+            Map<TaskType, TaskExecutor> executors = new EnumMap<>(TaskType.class);
+            for (ProjectGenerationTask projectGenerationTask : taskStateMachine.transitionEach(new ArrayList<>(candidates.values()), TaskStatus.CANCELED)) {
+                canceled.add(projectGenerationTask.getId());
+                Long runVersion = runVersions.get(projectGenerationTask.getId());
+                if (runVersion != null) {
+                    executors.computeIfAbsent(projectGenerationTask.getTaskType(), taskExecutorRegistry::getTaskExecutor)
+                            .cancel(projectGenerationTask.getId(), runVersion);
+                }
+            }
+        }
+        for (int i = 0; i < items.length; i++) {
+            String taskId = taskIds.get(i);
+            if (items[i] != null) {
+                continue;
+            }
+            if (canceled.contains(taskId)) {
+                items[i] = new TaskBatchItem(i, taskId, HttpStatus.OK.value(), null, candidates.get(taskId));
+            } else {
+                log.warn("Task with id={} changed while it was canceled", taskId);
+                items[i] = failed(i, taskId, new ConflictException("Task was changed concurrently"));
+            }
+        }
+        return new TaskBatchResult(Arrays.asList(items));
     }
 
     /**
@@ -87,6 +347,40 @@ public class TaskService {
         return get(taskId);
     }
 
+    /**
+     * GET THE PROGRESS OF A TASK
+     * Running tasks are served from the in-memory progress store, the database
+     * is only read for tasks not running on this node, and only for id, status and progress.
+     *
+     * @param taskId: Task ID
+     * @return TaskProgressView
+     */
+    public TaskProgressView getProgress(String taskId) {
+        TaskProgress taskProgress = taskProgressStore.get(taskId);
+        if (taskProgress != null) {
+            return new TaskProgressView(taskId, taskProgress.getStatus(), taskProgress.getProgress());
+        }
+
+        return projectGenerationTaskRepository.findProgressById(taskId).orElseThrow(NotFoundException::new);
+    }
+
+    /**
+     * GET THE PERSISTED PROGRESS OF MANY TASKS
+     * Read from the database in chunks, the progress of tasks running on any node is
+     * as recent as the last write-behind flush of that node.
+     *
+     * @param taskIds: Task IDs
+     * @return progress of the tasks that exist
+     */
+    public List<TaskProgressView> getPersistedProgress(Collection<String> taskIds) {
+        List<String> ids = new ArrayList<>(taskIds);
+        List<TaskProgressView> progress = new ArrayList<>(ids.size());
+        for (int from = 0; from < ids.size(); from += STREAM_CHUNK_SIZE) {
+            progress.addAll(projectGenerationTaskRepository.findProgressByIdIn(ids.subList(from, Math.min(from + STREAM_CHUNK_SIZE, ids.size()))));
+        }
+        return progress;
+    }
+
     /**
      * UPDATE AN EXISTING TASK
      *
@@ -103,16 +397,37 @@ public class TaskService {
 
         existingTask.setName(projectGenerationTask.getName());
         existingTask.setParameters(projectGenerationTask.getParameters());
+        existingTask.setDeadlineMillis(projectGenerationTask.getDeadlineMillis());
+        existingTask.setPriority(priorityOrDefault(projectGenerationTask));
+        existingTask.setNotBefore(projectGenerationTask.getNotBefore());
+        existingTask.setCron(projectGenerationTask.getCron());
+        existingTask.setIntervalMillis(projectGenerationTask.getIntervalMillis());
+
+        ProjectGenerationTask updated;
+        try {
+            updated = projectGenerationTaskRepository.save(existingTask);
+        } catch (ObjectOptimisticLockingFailureException e) {
+            // the task was started, canceled or updated since it was read
+            throw new ConflictException("Task was changed concurrently");
+        }
+        taskScheduleService.schedule(updated);
+        return updated;
+    }
 
-        return projectGenerationTaskRepository.save(existingTask);
+    private static TaskPriority priorityOrDefault(ProjectGenerationTask projectGenerationTask) {
+        return projectGenerationTask.getPriority() == null ? TaskPriority.NORMAL : projectGenerationTask.getPriority();
     }
 
     /**
      * VALIDATE CREATE TASK
      *
      * @param projectGenerationTask: Project generation task
+     * @param upstreamStatuses:      Status of the tasks it depends on
      */
-    private void validateCreateTask(ProjectGenerationTask projectGenerationTask) {
+    private void validateCreateTask(ProjectGenerationTask projectGenerationTask, Map<String, TaskStatus> upstreamStatuses) {
+        validateDeadline(projectGenerationTask);
+        validateDependencies(projectGenerationTask, upstreamStatuses);
+        validateSchedule(projectGenerationTask);
         taskValidatorRegistry.getTaskValidator(projectGenerationTask.getTaskType()).validate(projectGenerationTask);
     }
 
@@ -127,25 +442,156 @@ public class TaskService {
             throw new ConflictException("Task type cannot be changed once created");
         }
 
-        if (existingTask.getTaskStatus() != TaskStatus.PENDING) {
+        if (!existingTask.getTaskStatus().isEditable()) {
             throw new ConflictException("Only pending tasks can be updated");
         }
 
+        if (!existingTask.getDependsOn().isEmpty() && isScheduled(newTask)) {
+            throw new BadRequestException("A task with dependencies cannot be scheduled");
+        }
+
+        validateDeadline(newTask);
+        validateSchedule(newTask);
         taskValidatorRegistry.getTaskValidator(newTask.getTaskType()).validate(newTask);
     }
 
+    /**
+     * VALIDATE THE DEADLINE OF A TASK
+     *
+     * @param projectGenerationTask: Project generation task, without deadline to use the one of its type
+     */
+    private void validateDeadline(ProjectGenerationTask projectGenerationTask) {
+        Long deadlineMillis = projectGenerationTask.getDeadlineMillis();
+        if (deadlineMillis != null && deadlineMillis <= 0) {
+            throw new BadRequestException("deadlineMillis should be positive");
+        }
+        if (deadlineMillis != null && deadlineMillis > MAX_DEADLINE_MILLIS) {
+            throw new BadRequestException("deadlineMillis should be at most " + MAX_DEADLINE_MILLIS);
+        }
+    }
+
+    /**
+     * VALIDATE THE DEPENDENCIES OF A TASK
+     * A task may only depend on existing tasks, which rules out cycles, and not on failed or canceled ones.
+     *
+     * @param projectGenerationTask: Project generation task, with normalized dependencies
+     * @param upstreamStatuses:      Status of the tasks it depends on
+     */
+    private void validateDependencies(ProjectGenerationTask projectGenerationTask, Map<String, TaskStatus> upstreamStatuses) {
+        List<String> dependsOn = projectGenerationTask.getDependsOn();
+        if (dependsOn.isEmpty()) {
+            return;
+        }
+        if (dependsOn.size() > MAX_DEPENDENCIES) {
+            throw new BadRequestException("At most " + MAX_DEPENDENCIES + " dependencies per task");
+        }
+        if (isScheduled(projectGenerationTask)) {
+            throw new BadRequestException("A task with dependencies cannot be scheduled");
+        }
+        for (String upstreamId : dependsOn) {
+            if (!upstreamStatuses.containsKey(upstreamId)) {
+                throw new BadRequestException("Unknown dependency " + upstreamId);
+            }
+        }
+        String brokenDependency = TaskDependencyService.findBrokenDependency(projectGenerationTask, upstreamStatuses);
+        if (brokenDependency != null) {
+            throw new ConflictException("Dependency " + brokenDependency + " is "
+                    + upstreamStatuses.get(brokenDependency).name().toLowerCase());
+        }
+    }
+
+    /**
+     * Dependencies without duplicates, an empty list for none
+     */
+    private static void normalizeDependencies(ProjectGenerationTask projectGenerationTask) {
+        List<String> dependsOn = projectGenerationTask.getDependsOn();
+        projectGenerationTask.setDependsOn(dependsOn == null ? new ArrayList<>() : new ArrayList<>(new LinkedHashSet<>(dependsOn)));
+    }
+
+    private Map<String, TaskStatus> findUpstreamStatuses(Collection<ProjectGenerationTask> projectGenerationTasks) {
+        for (ProjectGenerationTask projectGenerationTask : projectGenerationTasks) {
+            if (projectGenerationTask.getDependsOn() != null && !projectGenerationTask.getDependsOn().isEmpty()) {
+                return taskDependencyService.findUpstreamStatuses(projectGenerationTasks);
+            }
+        }
+        return Map.of();
+    }
+
+    private static boolean isScheduled(ProjectGenerationTask projectGenerationTask) {
+        return projectGenerationTask.getNotBefore() != null || TaskScheduleService.isRecurring(projectGenerationTask);
+    }
+
+    /**
+     * Tasks with dependencies are started by the {@link TaskDependencyService}, or executed again once they all completed
+     */
+    private static void checkDependenciesCompleted(ProjectGenerationTask projectGenerationTask, Map<String, TaskStatus> upstreamStatuses) {
+        if (!TaskDependencyService.isReady(projectGenerationTask, upstreamStatuses)) {
+            throw new ConflictException("Task waits for its dependencies, it cannot be executed");
+        }
+    }
+
+    /**
+     * VALIDATE THE SCHEDULE OF A TASK
+     * A recurring task without notBefore time gets its first occurrence after now.
+     *
+     * @param projectGenerationTask: Project generation task, with at most one of cron and intervalMillis
+     */
+    private void validateSchedule(ProjectGenerationTask projectGenerationTask) {
+        if (!TaskScheduleService.isRecurring(projectGenerationTask)) {
+            return;
+        }
+        if (projectGenerationTask.getCron() != null && projectGenerationTask.getIntervalMillis() != null) {
+            throw new BadRequestException("Only one of cron and intervalMillis can be set");
+        }
+        if (projectGenerationTask.getIntervalMillis() != null && projectGenerationTask.getIntervalMillis() < MIN_INTERVAL_MILLIS) {
+            throw new BadRequestException("intervalMillis should be at least " + MIN_INTERVAL_MILLIS);
+        }
+        if (projectGenerationTask.getCron() != null && !CronSequenceGenerator.isValidExpression(projectGenerationTask.getCron())) {
+            throw new BadRequestException("Invalid cron expression");
+        }
+        if (projectGenerationTask.getNotBefore() == null) {
+            Date now = new Date();
+            try {
+                projectGenerationTask.setNotBefore(TaskScheduleService.nextOccurrence(projectGenerationTask, now, now));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Cron expression never matches");
+            }
+        }
+    }
+
+    /**
+     * Runs of a recurring task are started by the {@link TaskScheduleService} only
+     */
+    private static void checkNotRecurring(ProjectGenerationTask projectGenerationTask) {
+        if (TaskScheduleService.isRecurring(projectGenerationTask)) {
+            throw new ConflictException("Task runs on its schedule, it cannot be executed");
+        }
+    }
+
     /**
      * DELETE A TASK
+     * The stored result of the task is released. Tasks waiting for it are canceled.
      *
      * @param taskId: Task ID
      */
     public void delete(String taskId) {
         log.info("Deleting task with id={}", taskId);
+        Optional<ProjectGenerationTask> projectGenerationTask = projectGenerationTaskRepository.findById(taskId);
+        String storageLocation = projectGenerationTask.map(ProjectGenerationTask::getStorageLocation).orElse(null);
+        if (projectGenerationTask.isPresent() && !projectGenerationTask.get().getDependsOn().isEmpty()) {
+            projectGenerationTaskRepository.deleteDependencies(List.of(taskId));
+        }
         projectGenerationTaskRepository.deleteById(taskId);
+        taskScheduleService.unschedule(taskId);
+        taskDependencyService.resolveDependents(List.of(taskId));
+        resultStore.release(storageLocation);
     }
 
     /**
      * EXECUTE A TASK
+     * Of concurrent calls for the same task only the one whose compare-and-set moves it
+     * to RUNNING queues it, the others fail with a conflict. A node claims it from the queue.
+     * Once task.queue.max-queued-per-type tasks of its type are queued the call fails with 429.
      *
      * @param taskId: Task ID
      */
@@ -155,24 +601,18 @@ public class TaskService {
 
         ProjectGenerationTask projectGenerationTask = getTask(taskId);
 
-        if (projectGenerationTask.getTaskStatus() == TaskStatus.RUNNING) {
-            log.warn("Task is already running");
-            throw new IllegalStateException("Already running task");
-        }
-
-        if (projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED) {
-            log.warn("Task is already completed");
-            throw new IllegalStateException("Already completed task");
-        }
-
-        TaskExecutor taskExecutor = taskExecutorRegistry.getTaskExecutor(projectGenerationTask.getTaskType());
-        log.info("Resolved executor {}", taskExecutor.getClass().getName());
+        TaskStateMachine.checkTransition(projectGenerationTask, TaskStatus.RUNNING);
+        checkNotRecurring(projectGenerationTask);
+        checkDependenciesCompleted(projectGenerationTask, findUpstreamStatuses(List.of(projectGenerationTask)));
 
-        taskExecutor.execute(projectGenerationTask);
+        taskQueueService.enqueue(projectGenerationTask);
     }
 
     /**
      * CANCEL A TASK
+     * The state machine moves the status to CANCELED with a compare-and-set on the status and
+     * version read, so a task that completed or was canceled in the meantime is not overwritten,
+     * and the run is stopped only once the cancellation is persisted.
      *
      * @param taskId: Task ID
      * @return ProjectGenerationTask
@@ -182,41 +622,75 @@ public class TaskService {
 
         ProjectGenerationTask projectGenerationTask = getTask(taskId);
 
-        if (projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED) {
-            log.warn("Task already completed");
-            throw new BadRequestException("Already completed task, cannot cancel");
-        }
+        TaskStateMachine.checkTransition(projectGenerationTask, TaskStatus.CANCELED);
 
-        if (projectGenerationTask.getTaskStatus() == TaskStatus.CANCELED) {
-            log.warn("Task is already cancelled");
-            throw new BadRequestException("Already canceled task, cannot cancel");
+        TaskStatus previousStatus = projectGenerationTask.getTaskStatus();
+        long version = projectGenerationTask.getVersion();
+        if (previousStatus == TaskStatus.RUNNING) {
+            takeBufferedProgress(projectGenerationTask);
         }
 
-        if (projectGenerationTask.getTaskStatus() == TaskStatus.FAILED) {
-            log.warn("Task is already failed");
-            throw new IllegalStateException("Already failed task, cannot cancel");
+        if (!taskStateMachine.transition(projectGenerationTask, TaskStatus.CANCELED, projectGenerationTask.getProgress())) {
+            log.warn("Task with id={} changed while it was canceled", taskId);
+            throw new ConflictException("Task was changed concurrently");
         }
 
-        TaskExecutor taskExecutor = taskExecutorRegistry.getTaskExecutor(projectGenerationTask.getTaskType());
-        taskExecutor.cancel(projectGenerationTask);
-
-        projectGenerationTask.setTaskStatus(TaskStatus.CANCELED);
-        projectGenerationTaskRepository.save(projectGenerationTask);
+        if (previousStatus == TaskStatus.RUNNING) {
+            taskExecutorRegistry.getTaskExecutor(projectGenerationTask.getTaskType()).cancel(taskId, version);
+        }
 
         log.info("Task with id={} has been cancelled", taskId);
         return projectGenerationTask;
     }
 
     /**
-     * RECOVER TASKS AFTER APPLICATION RESTART
+     * Hands the latest buffered progress of a run on this node to the task, so that the
+     * compare-and-set persists it together with the status
+     */
+    private void takeBufferedProgress(ProjectGenerationTask projectGenerationTask) {
+        TaskProgress taskProgress = taskProgressStore.get(projectGenerationTask.getId());
+        if (taskProgress != null && taskProgress.getVersion() == projectGenerationTask.getVersion()) {
+            projectGenerationTask.setProgress(taskProgress.getProgress());
+        }
+    }
+
+    private void checkBatchSize(List<?> batch) {
+        if (batch == null || batch.isEmpty()) {
+            throw new BadRequestException("At least one task is required");
+        }
+        if (batch.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("At most " + MAX_BATCH_SIZE + " tasks per batch");
+        }
+    }
+
+    private Map<String, ProjectGenerationTask> findAllById(List<String> taskIds) {
+        List<String> distinctIds = new ArrayList<>(new LinkedHashSet<>(taskIds));
+        Map<String, ProjectGenerationTask> tasks = new HashMap<>();
+        for (int from = 0; from < distinctIds.size(); from += STREAM_CHUNK_SIZE) {
+            projectGenerationTaskRepository.findAllById(distinctIds.subList(from, Math.min(from + STREAM_CHUNK_SIZE, distinctIds.size())))
+                    .forEach(task -> tasks.put(task.getId(), task));
+        }
+        return tasks;
+    }
+
+    /**
+     * @return the failed batch item with the status the single-task endpoint answers for the exception
      */
-    @EventListener(ApplicationReadyEvent.class)
-    public void recoverTask() {
-        List<ProjectGenerationTask> runningTasksList = projectGenerationTaskRepository.findByTaskStatus(TaskStatus.RUNNING);
-        if (!runningTasksList.isEmpty()) {
-            log.warn("Updating {} tasks after restart", runningTasksList.size());
-            runningTasksList.forEach(task -> task.setTaskStatus(TaskStatus.FAILED));
-            projectGenerationTaskRepository.saveAll(runningTasksList);
+    private TaskBatchItem failed(int index, String taskId, RuntimeException e) {
+        HttpStatus status;
+        if (e instanceof NotFoundException) {
+            status = HttpStatus.NOT_FOUND;
+        } else if (e instanceof BadRequestException) {
+            status = HttpStatus.BAD_REQUEST;
+        } else if (e instanceof ConflictException || e instanceof IllegalStateException) {
+            status = HttpStatus.CONFLICT;
+        } else if (e instanceof TooManyRequestsException) {
+            status = HttpStatus.TOO_MANY_REQUESTS;
+        } else {
+            log.error("Batch item {} failed", index, e);
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
         }
+        String error = e.getMessage() != null ? e.getMessage() : status.getReasonPhrase();
+        return new TaskBatchItem(index, taskId, status.value(), error, null);
     }
 }
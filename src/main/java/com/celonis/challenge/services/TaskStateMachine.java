@@ -0,0 +1,166 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.ConflictException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single place where tasks change status. A transition must be allowed by {@link TaskStatus},
+ * is decided in memory first with a compare-and-set on the progress slot of a run on this node,
+ * then persisted with a compare-and-set on status and version, and finally published to the
+ * {@link TaskEventListener}s of the {@link TaskProgressStore}. Executors, caches and event streams
+ * learn about transitions from those listeners instead of reading the repository.
+ */
+@Component
+public class TaskStateMachine {
+
+    private static final Logger log = LogManager.getLogger(TaskStateMachine.class);
+
+    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    private final TaskProgressStore taskProgressStore;
+
+    public TaskStateMachine(ProjectGenerationTaskRepository projectGenerationTaskRepository, TaskProgressStore taskProgressStore) {
+        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.taskProgressStore = taskProgressStore;
+    }
+
+    /**
+     * CHECK THAT A TASK MAY MOVE TO A STATUS
+     *
+     * @param projectGenerationTask: Project generation task
+     * @param status:                Status to move to
+     * @throws ConflictException if the transition table does not allow it
+     */
+    public static void checkTransition(ProjectGenerationTask projectGenerationTask, TaskStatus status) {
+        checkTransition(projectGenerationTask.getId(), projectGenerationTask.getTaskStatus(), status);
+    }
+
+    /**
+     * MOVE A TASK TO A NEW STATUS
+     * On success the task follows the persisted row: new status, progress and version.
+     *
+     * @param projectGenerationTask: Project generation task, as read
+     * @param status:                New status
+     * @param progress:              Progress to persist with the status
+     * @return false if the task changed since it was read
+     * @throws ConflictException if the transition table does not allow it
+     */
+    public boolean transition(ProjectGenerationTask projectGenerationTask, TaskStatus status, int progress) {
+        long version = projectGenerationTask.getVersion();
+        if (!transition(projectGenerationTask.getId(), projectGenerationTask.getTaskStatus(), version, status, progress)) {
+            return false;
+        }
+        projectGenerationTask.setTaskStatus(status);
+        projectGenerationTask.setProgress(progress);
+        projectGenerationTask.setVersion(version + 1);
+        return true;
+    }
+
+    /**
+     * MOVE A TASK TO A NEW STATUS
+     *
+     * @param taskId:         Task ID
+     * @param previousStatus: Status the task must still be in
+     * @param version:        Version the task must still have
+     * @param status:         New status
+     * @param progress:       Progress to persist with the status
+     * @return false if the task changed since its status and version were read
+     * @throws ConflictException if the transition table does not allow it
+     */
+    public boolean transition(String taskId, TaskStatus previousStatus, long version, TaskStatus status, int progress) {
+        checkTransition(taskId, previousStatus, status);
+
+        // a run on this node is decided in memory, the loser does not touch the database
+        TaskProgress taskProgress = previousStatus == TaskStatus.RUNNING ? taskProgressStore.get(taskId) : null;
+        if (taskProgress != null && taskProgress.getVersion() != version) {
+            taskProgress = null;
+        }
+        if (taskProgress != null && !taskProgress.transition(previousStatus, status)) {
+            log.debug("Task with id={} left {} in memory before it could move to {}", taskId, previousStatus, status);
+            return false;
+        }
+
+        if (!projectGenerationTaskRepository.compareAndSetStatus(taskId, previousStatus, version, status, progress)) {
+            if (taskProgress != null) {
+                // another node moved the row, the slot is handed back to the run
+                taskProgress.transition(status, previousStatus);
+            }
+            return false;
+        }
+
+        if (taskProgress != null) {
+            taskProgressStore.remove(taskId, taskProgress);
+        }
+        taskProgressStore.publishStatus(taskId, previousStatus, status, progress);
+        return true;
+    }
+
+    /**
+     * MOVE MANY TASKS TO A NEW STATUS
+     * Every task moves with its own compare-and-set on the status, version and progress it was
+     * read with, written as one JDBC batch per chunk, and only the tasks that moved are published.
+     * Runs on this node are decided in memory first, as for a single task.
+     *
+     * @param projectGenerationTasks: Project generation tasks, as read
+     * @param status:                 New status
+     * @return tasks that moved, following the persisted rows
+     * @throws ConflictException if the transition table does not allow it for one of the tasks
+     */
+    public List<ProjectGenerationTask> transitionEach(List<ProjectGenerationTask> projectGenerationTasks, TaskStatus status) {
+        for (ProjectGenerationTask projectGenerationTask : projectGenerationTasks) {
+            checkTransition(projectGenerationTask, status);
+        }
+
+        Map<String, TaskProgress> runs = new HashMap<>();
+        List<ProjectGenerationTask> candidates = new ArrayList<>(projectGenerationTasks.size());
+        for (ProjectGenerationTask projectGenerationTask : projectGenerationTasks) {
+            TaskStatus previousStatus = projectGenerationTask.getTaskStatus();
+            TaskProgress taskProgress = previousStatus == TaskStatus.RUNNING ? taskProgressStore.get(projectGenerationTask.getId()) : null;
+            if (taskProgress != null && taskProgress.getVersion() == projectGenerationTask.getVersion()) {
+                if (!taskProgress.transition(previousStatus, status)) {
+                    log.debug("Task with id={} left {} in memory before it could move to {}", projectGenerationTask.getId(),
+                            previousStatus, status);
+                    continue;
+                }
+                runs.put(projectGenerationTask.getId(), taskProgress);
+            }
+            candidates.add(projectGenerationTask);
+        }
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+
+        List<ProjectGenerationTask> moved = projectGenerationTaskRepository.compareAndSetStatuses(candidates, status);
+        for (ProjectGenerationTask projectGenerationTask : moved) {
+            TaskStatus previousStatus = projectGenerationTask.getTaskStatus();
+            TaskProgress taskProgress = runs.remove(projectGenerationTask.getId());
+            if (taskProgress != null) {
+                taskProgressStore.remove(projectGenerationTask.getId(), taskProgress);
+            }
+            projectGenerationTask.setTaskStatus(status);
+            projectGenerationTask.setVersion(projectGenerationTask.getVersion() + 1);
+            taskProgressStore.publishStatus(projectGenerationTask.getId(), previousStatus, status, projectGenerationTask.getProgress());
+        }
+        // another node moved the rows left, their slots are handed back to the runs
+        runs.values().forEach(taskProgress -> taskProgress.transition(status, TaskStatus.RUNNING));
+        return moved;
+    }
+
+    private static void checkTransition(String taskId, TaskStatus previousStatus, TaskStatus status) {
+        if (!previousStatus.canTransitionTo(status)) {
+            log.warn("Task with id={} cannot move from {} to {}", taskId, previousStatus, status);
+            throw new ConflictException("Task is " + previousStatus.name().toLowerCase() + ", cannot move it to "
+                    + status.name().toLowerCase());
+        }
+    }
+}
@@ -1,31 +1,39 @@
 package com.celonis.challenge.services.executor;
 
+import com.celonis.challenge.exceptions.TooManyRequestsException;
 import com.celonis.challenge.model.ProjectGenerationTask;
-import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.TaskProgress;
+import com.celonis.challenge.services.TaskProgressStore;
+import com.celonis.challenge.services.TaskStateMachine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 @Component
-public class CounterTaskExecutor implements TaskExecutor {
+public class CounterTaskExecutor implements ResumableTaskExecutor {
 
     private static final Logger log = LogManager.getLogger(CounterTaskExecutor.class);
 
-    private final ProjectGenerationTaskRepository projectGenerationTaskRepository;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private static final long TICK_MILLIS = 1000;
 
-    Map<String, AtomicBoolean> canceledTasks = new ConcurrentHashMap<>();
+    private final TaskStateMachine taskStateMachine;
+    private final TaskDispatcher taskDispatcher;
+    private final TaskProgressStore taskProgressStore;
+    private final TaskWatchdog taskWatchdog;
 
-    public CounterTaskExecutor(ProjectGenerationTaskRepository projectGenerationTaskRepository) {
-        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+    Map<String, TaskRun> runningTasks = new ConcurrentHashMap<>();
+
+    public CounterTaskExecutor(TaskStateMachine taskStateMachine, TaskDispatcher taskDispatcher,
+                               TaskProgressStore taskProgressStore, TaskWatchdog taskWatchdog) {
+        this.taskStateMachine = taskStateMachine;
+        this.taskDispatcher = taskDispatcher;
+        this.taskProgressStore = taskProgressStore;
+        this.taskWatchdog = taskWatchdog;
     }
 
     @Override
@@ -35,80 +43,170 @@ public class CounterTaskExecutor implements TaskExecutor {
 
     /**
      * EXECUTE COUNTER TYPE TASK
+     * The value reached is derived from the persisted progress, so a task claimed again
+     * after its node stopped repeats at most one tick.
      *
-     * @param task: Project generation task
+     * @param task: Project generation task, claimed by this node
+     * @throws TooManyRequestsException if the dispatcher has no capacity left
      */
     @Override
     public void execute(ProjectGenerationTask task) {
         int x = Integer.parseInt(task.getParameters().get("x"));
         int y = Integer.parseInt(task.getParameters().get("y"));
+        int start = x + (int) ((long) task.getProgress() * (y - x) / 100);
 
-        log.info("Value of parameters x={}, y={}", x, y);
+        log.info("Value of parameters x={}, y={}, starting task={} at value={}", x, y, task.getId(), start);
 
         String taskId = task.getId();
 
-        AtomicBoolean cancelFlag = new AtomicBoolean(false);
-        canceledTasks.put(task.getId(), cancelFlag);
+        TaskRun run = new TaskRun(task.getVersion());
+        runningTasks.put(taskId, run);
+        TaskProgress taskProgress = taskProgressStore.register(taskId, task.getLeaseOwner(), run.getVersion(), task.getProgress());
+        run.watch(taskWatchdog.watch(task, () -> expire(taskId, run)));
+
+        try {
+            run.attach(taskDispatcher.submit(task, new CounterRun(taskId, x, y, start, run, taskProgress)));
+        } catch (TooManyRequestsException e) {
+            log.warn("Counter task={} rejected by dispatcher", taskId);
+            end(taskId, run);
+            taskProgressStore.remove(taskId, taskProgress);
+            throw e;
+        }
+    }
+
+    /**
+     * RESUME A COUNTER TYPE TASK FROM ITS PERSISTED PROGRESS
+     * Every execution continues from the persisted progress, so resuming is executing.
+     *
+     * @param task: Project generation task, claimed by this node after its previous node stopped
+     * @throws TooManyRequestsException if the dispatcher has no capacity left
+     */
+    @Override
+    public void resume(ProjectGenerationTask task) {
+        execute(task);
+    }
+
+    /**
+     * CANCEL A RUNNING COUNTER TYPE TASK
+     * A counter sleeping between two ticks is woken up, or dropped from the timer wheel, at once.
+     *
+     * @param taskId:  Task ID
+     * @param version: Version the run started with
+     */
+    @Override
+    public void cancel(String taskId, long version) {
+        log.warn("Cancel request for task={}", taskId);
+        TaskRun run = runningTasks.get(taskId);
+        if (run != null && run.getVersion() == version) {
+            log.info("Stopping run of task {}", taskId);
+            run.cancel();
+            runningTasks.remove(taskId, run);
+        }
+    }
+
+    @Override
+    public boolean abandon(String taskId, long version) {
+        TaskRun run = runningTasks.get(taskId);
+        if (run == null || run.getVersion() != version || !runningTasks.remove(taskId, run)) {
+            return false;
+        }
+        log.warn("Task={} left this node, stopping its run", taskId);
+        run.cancel();
+        return true;
+    }
 
-        task.setTaskStatus(TaskStatus.RUNNING);
-        task.setProgress(0);
-        projectGenerationTaskRepository.save(task);
+    /**
+     * Fails a run that exceeded its deadline, unless it ended or was canceled first
+     */
+    private boolean expire(String taskId, TaskRun run) {
+        if (!runningTasks.remove(taskId, run)) {
+            return false;
+        }
+        run.cancel();
 
-        executorService.submit(() -> {
-            log.info("Async thread started for task={}, thread={} ", taskId, Thread.currentThread().getName());
+        TaskProgress taskProgress = taskProgressStore.get(taskId);
+        int progress = taskProgress != null && taskProgress.getVersion() == run.getVersion() ? taskProgress.getProgress() : 0;
+        return taskStateMachine.transition(taskId, TaskStatus.RUNNING, run.getVersion(), TaskStatus.FAILED, progress);
+    }
 
-            try {
-                int current = x;
-                int totalProgress = y - x;
+    private void end(String taskId, TaskRun run) {
+        runningTasks.remove(taskId, run);
+        run.end();
+    }
 
-                while (current <= y) {
-                    if (cancelFlag.get()) {
-                        log.info("Canceled task={}, thread={}", taskId, Thread.currentThread().getName());
-                        ProjectGenerationTask currentTask = projectGenerationTaskRepository.findById(taskId).orElseThrow();
-                        currentTask.setTaskStatus(TaskStatus.CANCELED);
-                        cancelFlag.set(false);
-                        return;
-                    }
-                    int currentProgress = (int) (((double) (current - x) / totalProgress) * 100);
+    /**
+     * Counter loop split into one step per value, so that the dispatcher can
+     * park it between two ticks instead of holding a thread
+     */
+    private class CounterRun implements SteppedTask {
+
+        private final String taskId;
+        private final int x;
+        private final int y;
+        private final int start;
+        private final TaskRun run;
+        private final TaskProgress taskProgress;
+        private int current;
+
+        CounterRun(String taskId, int x, int y, int start, TaskRun run, TaskProgress taskProgress) {
+            this.taskId = taskId;
+            this.x = x;
+            this.y = y;
+            this.start = start;
+            this.run = run;
+            this.taskProgress = taskProgress;
+            this.current = start;
+        }
 
-                    ProjectGenerationTask currentTask = projectGenerationTaskRepository.findById(taskId).orElseThrow();
-                    currentTask.setProgress(currentProgress);
+        @Override
+        public long step() {
+            if (current == start) {
+                log.info("Async execution started for task={}, thread={} ", taskId, Thread.currentThread().getName());
+            }
 
-                    log.info("Counter progress for task={}, thread={}, progress={}", taskId, Thread.currentThread().getName(), currentProgress);
-                    projectGenerationTaskRepository.save(currentTask);
+            if (run.isCanceled()) {
+                // the cancel request moves the status and unregisters the progress slot
+                log.info("Canceled task={}, thread={}", taskId, Thread.currentThread().getName());
+                runningTasks.remove(taskId, run);
+                return DONE;
+            }
 
-                    Thread.sleep(1000);
-                    current++;
+            if (current > y) {
+                end(taskId, run);
+                if (finish(TaskStatus.COMPLETED, 100)) {
+                    log.info("Task completes successfully for task={} ", taskId);
                 }
-
-                ProjectGenerationTask currentTask = projectGenerationTaskRepository.findById(taskId).orElseThrow();
-                currentTask.setProgress(100);
-                currentTask.setTaskStatus(TaskStatus.COMPLETED);
-
-                log.info("Task completes successfully for task={} ", taskId);
-                projectGenerationTaskRepository.save(currentTask);
-            } catch (Exception ex) {
-                log.error("Async execution failed for task={}", taskId);
-                ProjectGenerationTask currentTask = projectGenerationTaskRepository.findById(taskId).orElseThrow();
-                currentTask.setTaskStatus(TaskStatus.FAILED);
-                projectGenerationTaskRepository.save(currentTask);
+                return DONE;
             }
-        });
 
-    }
+            int currentProgress = (int) (((double) (current - x) / (y - x)) * 100);
+            taskProgress.setProgress(currentProgress);
+            log.debug("Counter progress for task={}, thread={}, progress={}", taskId, Thread.currentThread().getName(), currentProgress);
 
-    /**
-     * CANCEL A RUNNING COUNTER TYPE TASK
-     *
-     * @param task: Project generation task
-     */
-    @Override
-    public void cancel(ProjectGenerationTask task) {
-        log.warn("Cancel request for task={}", task.getId());
-        AtomicBoolean cancelFlag = canceledTasks.get(task.getId());
-        if (cancelFlag != null) {
-            log.info("Cancel flag set for task {}", task.getId());
-            cancelFlag.set(true);
+            current++;
+            return TICK_MILLIS;
+        }
+
+        @Override
+        public void abort(Throwable cause) {
+            end(taskId, run);
+            if (run.isCanceled()) {
+                return;
+            }
+            log.error("Async execution failed for task={}", taskId, cause);
+            finish(TaskStatus.FAILED, taskProgress.getProgress());
+        }
+
+        /**
+         * Ends the run with a transition from the version it started with, a task
+         * canceled or restarted in the meantime is left alone.
+         */
+        private boolean finish(TaskStatus status, int progress) {
+            if (!taskStateMachine.transition(taskId, TaskStatus.RUNNING, run.getVersion(), status, progress)) {
+                log.info("Task={} left this run before it ended as {}", taskId, status);
+                return false;
+            }
+            return true;
         }
     }
 }
@@ -1,16 +1,22 @@
 package com.celonis.challenge.services.executor;
 
 import com.celonis.challenge.exceptions.InternalException;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
 import com.celonis.challenge.model.ProjectGenerationTask;
-import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
 import com.celonis.challenge.services.FileService;
+import com.celonis.challenge.services.TaskProgress;
+import com.celonis.challenge.services.TaskProgressStore;
+import com.celonis.challenge.services.TaskStateMachine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class FileStorageTaskExecutor implements TaskExecutor {
@@ -18,11 +24,21 @@ public class FileStorageTaskExecutor implements TaskExecutor {
     private static final Logger log = LogManager.getLogger(FileStorageTaskExecutor.class);
 
     FileService fileService;
-    ProjectGenerationTaskRepository projectGenerationTaskRepository;
+    TaskStateMachine taskStateMachine;
+    TaskProgressStore taskProgressStore;
+    TaskDispatcher taskDispatcher;
+    TaskWatchdog taskWatchdog;
 
-    public FileStorageTaskExecutor(FileService fileService, ProjectGenerationTaskRepository projectGenerationTaskRepository) {
+    Map<String, TaskRun> runningTasks = new ConcurrentHashMap<>();
+
+    public FileStorageTaskExecutor(FileService fileService, TaskStateMachine taskStateMachine,
+                                   TaskProgressStore taskProgressStore, TaskDispatcher taskDispatcher,
+                                   TaskWatchdog taskWatchdog) {
         this.fileService = fileService;
-        this.projectGenerationTaskRepository = projectGenerationTaskRepository;
+        this.taskStateMachine = taskStateMachine;
+        this.taskProgressStore = taskProgressStore;
+        this.taskDispatcher = taskDispatcher;
+        this.taskWatchdog = taskWatchdog;
     }
 
     @Override
@@ -32,47 +48,125 @@ public class FileStorageTaskExecutor implements TaskExecutor {
 
     /**
      * EXECUTE A FILE STORAGE TYPE TASK
+     * The copy runs on the shared dispatcher.
      *
-     * @param task: Project generation task
+     * @param task: Project generation task, claimed by this node
+     * @throws TooManyRequestsException if the dispatcher has no capacity left
      */
     @Override
     public void execute(ProjectGenerationTask task) {
         log.info("Starting task file storage task={} execution", task);
+        URL url = Thread.currentThread().getContextClassLoader().getResource("FileTest.rtf");
+        if (url == null) {
+            throw new InternalException("File not found in resources: FileTest.rtf");
+        }
+
+        String taskId = task.getId();
+        TaskRun run = new TaskRun(task.getVersion());
+        runningTasks.put(taskId, run);
+        TaskProgress taskProgress = taskProgressStore.register(taskId, task.getLeaseOwner(), run.getVersion(), 0);
+        run.watch(taskWatchdog.watch(task, () -> expire(taskId, run)));
+
         try {
-            task.setTaskStatus(TaskStatus.RUNNING);
-            task.setProgress(0);
-            projectGenerationTaskRepository.save(task);
+            run.attach(taskDispatcher.submit(task, () -> store(task, url, run, taskProgress)));
+        } catch (TooManyRequestsException e) {
+            log.warn("File storage task={} rejected by dispatcher", taskId);
+            runningTasks.remove(taskId, run);
+            run.end();
+            taskProgressStore.remove(taskId, taskProgress);
+            throw e;
+        }
+    }
 
-            URL url = Thread.currentThread().getContextClassLoader().getResource("FileTest.rtf");
-            if (url == null) {
-                throw new InternalException("File not found in resources: FileTest.rtf");
+    private void store(ProjectGenerationTask task, URL url, TaskRun run, TaskProgress taskProgress) {
+        String taskId = task.getId();
+        try {
+            fileService.storeResult(task, url, progress -> {
+                if (run.isCanceled()) {
+                    throw new CancellationException();
+                }
+                taskProgress.setProgress(progress);
+            });
+            if (run.isCanceled()) {
+                throw new CancellationException();
             }
 
-            fileService.storeResult(task, url);
-
-            task.setProgress(100);
-            task.setTaskStatus(TaskStatus.COMPLETED);
-            projectGenerationTaskRepository.save(task);
-            log.info("Task file store task={} execution complete", task);
+            if (finish(task, run, TaskStatus.COMPLETED, 100)) {
+                log.info("Task file store task={} execution complete", task);
+            }
+        } catch (CancellationException e) {
+            // the cancel request moves the status and unregisters the progress slot
+            log.info("Canceled task file store task={}", taskId);
         } catch (Exception e) {
+            if (run.isCanceled()) {
+                // the interrupt of the cancel closed the channel the copy was writing to
+                log.info("Canceled task file store task={}", taskId);
+                return;
+            }
             log.error("Error executing task file store task={} execution", task, e);
-            task.setTaskStatus(TaskStatus.FAILED);
-            projectGenerationTaskRepository.save(task);
-            throw new InternalException(e);
+            finish(task, run, TaskStatus.FAILED, taskProgress.getProgress());
+        } finally {
+            runningTasks.remove(taskId, run);
+            run.end();
         }
     }
 
+    /**
+     * Fails a run that exceeded its deadline, unless it ended or was canceled first.
+     * The interrupt stops a copy blocked on a slow source.
+     */
+    private boolean expire(String taskId, TaskRun run) {
+        if (!runningTasks.remove(taskId, run)) {
+            return false;
+        }
+        run.cancel();
+
+        TaskProgress taskProgress = taskProgressStore.get(taskId);
+        int progress = taskProgress != null && taskProgress.getVersion() == run.getVersion() ? taskProgress.getProgress() : 0;
+        return taskStateMachine.transition(taskId, TaskStatus.RUNNING, run.getVersion(), TaskStatus.FAILED, progress);
+    }
+
+    /**
+     * Ends the run with a transition from the version it started with, a task
+     * canceled or restarted in the meantime is left alone.
+     */
+    private boolean finish(ProjectGenerationTask task, TaskRun run, TaskStatus status, int progress) {
+        String taskId = task.getId();
+        if (!taskStateMachine.transition(taskId, TaskStatus.RUNNING, run.getVersion(), status, progress)) {
+            log.info("Task file store task={} left this run before it ended as {}", taskId, status);
+            return false;
+        }
+        task.setProgress(progress);
+        task.setTaskStatus(status);
+        task.setVersion(run.getVersion() + 1);
+        return true;
+    }
+
     /**
      * CANCEL A FILE STORAGE TYPE TASK TASK
+     * The worker copying the file is interrupted, a copy still queued is taken off the queue.
      *
-     * @param task: Project generation task
+     * @param taskId:  Task ID
+     * @param version: Version the run started with
      */
     @Override
-    public void cancel(ProjectGenerationTask task) {
-        log.warn("Request received for cancel task file store task={}", task);
-        if (!task.getTaskStatus().equals(TaskStatus.COMPLETED)) {
-            task.setTaskStatus(TaskStatus.CANCELED);
-            projectGenerationTaskRepository.save(task);
+    public void cancel(String taskId, long version) {
+        log.warn("Request received for cancel task file store task={}", taskId);
+        TaskRun run = runningTasks.get(taskId);
+        if (run != null && run.getVersion() == version) {
+            run.cancel();
+            runningTasks.remove(taskId, run);
+        }
+    }
+
+    @Override
+    public boolean abandon(String taskId, long version) {
+        TaskRun run = runningTasks.get(taskId);
+        if (run == null || run.getVersion() != version || !runningTasks.remove(taskId, run)) {
+            return false;
         }
+        log.warn("Task={} left this node, stopping its run", taskId);
+        run.cancel();
+        return true;
     }
 }
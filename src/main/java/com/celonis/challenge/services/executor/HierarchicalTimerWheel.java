@@ -0,0 +1,242 @@
+package com.celonis.challenge.services.executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hierarchical timer wheel for wall clock times far ahead, driven by a single thread. Every level
+ * has 64 slots, a slot of level n spans 64^n ticks, and a timeout is placed in the lowest level
+ * whose range covers it. When a level wraps, the next slot of the level above is cascaded into
+ * the levels below, so a timeout is moved at most once per level instead of being visited on
+ * every turn of a single wheel. Scheduling and cancelling are O(1), and callbacks run on the wheel
+ * thread, so they must hand any real work off to a pool.
+ */
+public class HierarchicalTimerWheel {
+
+    private static final Logger log = LogManager.getLogger(HierarchicalTimerWheel.class);
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    // a field updater instead of an AtomicInteger per timeout, the wheel holds millions of them
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    private final long tickMillis;
+    private final int levels;
+    private final Queue<Timeout>[][] slots;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final Thread worker;
+
+    private volatile boolean running;
+    private long tick;
+
+    /**
+     * @param tickMillis: Resolution of the wheel, timeouts fire on the first tick at or after their time
+     * @param levels:     Number of levels, the wheel covers 64^levels ticks, later timeouts are cascaded again
+     * @param nowMillis:  Current time, the first tick of the wheel
+     * @param name:       Name of the wheel thread
+     */
+    @SuppressWarnings("unchecked")
+    public HierarchicalTimerWheel(long tickMillis, int levels, long nowMillis, String name) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.levels = Math.max(1, Math.min(levels, 63 / SLOT_BITS));
+        this.slots = new Queue[this.levels][SLOTS];
+        for (Queue<Timeout>[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new ArrayDeque<>();
+            }
+        }
+        this.tick = nowMillis / this.tickMillis;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * START THE WHEEL THREAD
+     */
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    /**
+     * STOP THE WHEEL THREAD
+     * Timeouts not expired yet never run.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * SCHEDULE A CALLBACK
+     *
+     * @param callback: Callback to run once the time is reached, right away for a time in the past
+     * @param atMillis: Wall clock time in epoch milliseconds
+     * @return Timeout handle that can be cancelled
+     */
+    public Timeout schedule(Runnable callback, long atMillis) {
+        // rounded up, a callback never runs before its time
+        Timeout timeout = new Timeout(callback, Math.floorDiv(atMillis - 1, tickMillis) + 1);
+        pendingCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * NUMBER OF TIMEOUTS NOT YET EXPIRED OR CANCELLED
+     *
+     * @return long
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Processes every tick up to the given time, called by the wheel thread, and by tests
+     * of a wheel that was not started
+     *
+     * @return number of expired timeouts
+     */
+    int advanceTo(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        int expired = 0;
+        while (tick <= target) {
+            cascade();
+            transferPendingTimeouts();
+            expired += expire(slots[0][(int) (tick & MASK)]);
+            tick++;
+        }
+        return expired;
+    }
+
+    private void run() {
+        while (running) {
+            long sleepMillis = tick * tickMillis - System.currentTimeMillis();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            advanceTo(System.currentTimeMillis());
+        }
+    }
+
+    private void cascade() {
+        for (int level = 1; level < levels; level++) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            Queue<Timeout> slot = slots[level][(int) ((tick >>> (SLOT_BITS * level)) & MASK)];
+            for (int size = slot.size(); size > 0; size--) {
+                Timeout timeout = slot.poll();
+                if (!timeout.isCancelled()) {
+                    place(timeout);
+                }
+            }
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (!timeout.isCancelled()) {
+                place(timeout);
+            }
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long expiryTick = Math.max(timeout.expiryTick, tick);
+        long delta = expiryTick - tick;
+        int level = 0;
+        while (level < levels - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (level == levels - 1 && delta >= 1L << (SLOT_BITS * levels)) {
+            // beyond the range of the wheel, the last slot of the top level cascades it again in time
+            expiryTick = tick + (1L << (SLOT_BITS * levels)) - 1;
+        }
+        slots[level][(int) ((expiryTick >>> (SLOT_BITS * level)) & MASK)].add(timeout);
+    }
+
+    private int expire(Queue<Timeout> slot) {
+        int expired = 0;
+        for (int size = slot.size(); size > 0; size--) {
+            Timeout timeout = slot.poll();
+            if (timeout.expiryTick > tick) {
+                place(timeout);
+            } else if (timeout.expire()) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Handle of a scheduled callback
+     */
+    public class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable callback;
+        private final long expiryTick;
+        volatile int state = INIT;
+
+        private Timeout(Runnable callback, long expiryTick) {
+            this.callback = callback;
+            this.expiryTick = expiryTick;
+        }
+
+        /**
+         * CANCEL THE TIMEOUT
+         *
+         * @return true if the callback will not run anymore because of this call
+         */
+        public boolean cancel() {
+            if (STATE.compareAndSet(this, INIT, CANCELLED)) {
+                pendingCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private boolean expire() {
+            if (!STATE.compareAndSet(this, INIT, EXPIRED)) {
+                return false;
+            }
+            pendingCount.decrementAndGet();
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.error("Timer wheel callback failed", e);
+            }
+            return true;
+        }
+    }
+
+}
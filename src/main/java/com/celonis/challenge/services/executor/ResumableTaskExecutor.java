@@ -0,0 +1,16 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+
+/**
+ * Executor able to continue a task whose node stopped while it was RUNNING
+ */
+public interface ResumableTaskExecutor extends TaskExecutor {
+
+    /**
+     * Resumes a task from its persisted progress
+     *
+     * @param task: Project Generation Task, claimed by this node after its lease expired
+     */
+    void resume(ProjectGenerationTask task);
+}
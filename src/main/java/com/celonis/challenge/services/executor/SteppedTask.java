@@ -0,0 +1,24 @@
+package com.celonis.challenge.services.executor;
+
+/**
+ * Long-running work split into short steps separated by waits, so that the
+ * dispatcher can release the worker thread between two steps.
+ */
+public interface SteppedTask {
+
+    long DONE = -1;
+
+    /**
+     * Runs one step
+     *
+     * @return delay in milliseconds before the next step, or DONE
+     */
+    long step();
+
+    /**
+     * Called instead of the next step when the task is stopped before reporting DONE
+     *
+     * @param cause: Reason of the abort
+     */
+    void abort(Throwable cause);
+}
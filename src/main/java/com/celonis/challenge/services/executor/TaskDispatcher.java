@@ -0,0 +1,380 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.config.ExecutionMode;
+import com.celonis.challenge.config.TaskExecutorProperties;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.TaskPriority;
+import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Shared, bounded execution engine for every {@link TaskExecutor}.
+ * Submissions beyond the queue capacity or the per-type limit are rejected
+ * with a {@link TooManyRequestsException} instead of piling up threads.
+ * In CONTINUATION mode {@link SteppedTask}s are parked on the {@link TimerWheel}
+ * between steps instead of sleeping on a worker. Every submission returns a
+ * {@link TaskHandle} that stops the work within milliseconds.
+ * Work waiting for a worker is taken from a {@link WeightedFairQueue}, with one flow per task
+ * type, tenant and priority weighted by the type weight and the priority, so a backlog of one
+ * type or tenant does not hold back the others and urgent work does not queue behind it.
+ */
+@Component
+public class TaskDispatcher {
+
+    private static final Logger log = LogManager.getLogger(TaskDispatcher.class);
+
+    private final ThreadPoolExecutor threadPoolExecutor;
+    private final ThreadPoolExecutor continuationExecutor;
+    private final TimerWheel timerWheel;
+    private final ExecutionMode mode;
+    private final Semaphore continuationPermits;
+    private final Map<TaskType, Semaphore> typePermits = new EnumMap<>(TaskType.class);
+    private final Map<TaskType, Counter> queueFullRejections = new EnumMap<>(TaskType.class);
+    private final Map<TaskType, Counter> typeLimitRejections = new EnumMap<>(TaskType.class);
+    private final Map<TaskType, Timer> cancelLatencies = new EnumMap<>(TaskType.class);
+    private final Map<TaskType, Map<TaskPriority, Timer>> dispatchLatencies = new EnumMap<>(TaskType.class);
+    private final Map<TaskType, Integer> typeWeights = new EnumMap<>(TaskType.class);
+    private final int retryAfterSeconds;
+
+    public TaskDispatcher(TaskExecutorProperties properties, TimerWheel timerWheel, MeterRegistry meterRegistry) {
+        this.retryAfterSeconds = properties.getRetryAfterSeconds();
+        this.timerWheel = timerWheel;
+        this.mode = properties.getMode();
+        this.threadPoolExecutor = new ThreadPoolExecutor(
+                properties.getCoreSize(),
+                Math.max(properties.getCoreSize(), properties.getMaxSize()),
+                60L, TimeUnit.SECONDS,
+                new WeightedFairQueue(properties.getQueueCapacity()),
+                new WorkerThreadFactory("task-worker-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        // unbounded queue, the number of suspended tasks is bounded by continuationPermits instead
+        this.continuationExecutor = new ThreadPoolExecutor(
+                properties.getContinuationThreads(), properties.getContinuationThreads(),
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new WorkerThreadFactory("task-continuation-"));
+        this.continuationPermits = new Semaphore(properties.getContinuationCapacity());
+
+        int defaultLimit = mode == ExecutionMode.CONTINUATION
+                ? properties.getContinuationCapacity()
+                : properties.getMaxSize() + properties.getQueueCapacity();
+        for (TaskType taskType : TaskType.values()) {
+            int limit = properties.getTypeLimits().getOrDefault(taskType, defaultLimit);
+            typePermits.put(taskType, new Semaphore(limit));
+            queueFullRejections.put(taskType, Counter.builder("task.executor.rejected")
+                    .tag("type", taskType.name())
+                    .tag("reason", "queue_full")
+                    .register(meterRegistry));
+            typeLimitRejections.put(taskType, Counter.builder("task.executor.rejected")
+                    .tag("type", taskType.name())
+                    .tag("reason", "type_limit")
+                    .register(meterRegistry));
+            cancelLatencies.put(taskType, Timer.builder("task.executor.cancel.latency")
+                    .description("Time from a cancel request to the moment the work stopped")
+                    .tag("type", taskType.name())
+                    .publishPercentiles(0.5, 0.99)
+                    .register(meterRegistry));
+            typeWeights.put(taskType, Math.max(1, properties.getTypeWeights().getOrDefault(taskType, 1)));
+            Map<TaskPriority, Timer> latencies = new EnumMap<>(TaskPriority.class);
+            for (TaskPriority priority : TaskPriority.values()) {
+                latencies.put(priority, Timer.builder("task.executor.dispatch.latency")
+                        .description("Time from a submission to the moment a worker started it")
+                        .tag("type", taskType.name())
+                        .tag("priority", priority.name())
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .register(meterRegistry));
+            }
+            dispatchLatencies.put(taskType, latencies);
+            Gauge.builder("task.executor.in.flight", typePermits.get(taskType), permits -> limit - permits.availablePermits())
+                    .tag("type", taskType.name())
+                    .register(meterRegistry);
+        }
+
+        Gauge.builder("task.executor.queue.depth", threadPoolExecutor, pool -> pool.getQueue().size())
+                .register(meterRegistry);
+        Gauge.builder("task.executor.active", threadPoolExecutor, ThreadPoolExecutor::getActiveCount)
+                .register(meterRegistry);
+        Gauge.builder("task.executor.pool.size", threadPoolExecutor, ThreadPoolExecutor::getPoolSize)
+                .register(meterRegistry);
+        Gauge.builder("task.executor.suspended", timerWheel, TimerWheel::getPendingCount)
+                .register(meterRegistry);
+    }
+
+    /**
+     * SUBMIT A TASK TO THE SHARED POOL
+     *
+     * @param taskType: Task type the work belongs to
+     * @param work:     Work to run asynchronously, interrupted when the handle is canceled
+     * @return TaskHandle to stop the work
+     * @throws TooManyRequestsException if the type limit is reached or the queue is full
+     */
+    public TaskHandle submit(TaskType taskType, Runnable work) {
+        return execute(taskType, null, TaskPriority.NORMAL, handle -> work);
+    }
+
+    /**
+     * SUBMIT THE WORK OF A TASK TO THE SHARED POOL
+     * The work waits for a worker in the flow of the type, tenant and priority of the task.
+     *
+     * @param task: Task the work belongs to
+     * @param work: Work to run asynchronously, interrupted when the handle is canceled
+     * @return TaskHandle to stop the work
+     * @throws TooManyRequestsException if the type limit is reached or the queue is full
+     */
+    public TaskHandle submit(ProjectGenerationTask task, Runnable work) {
+        return execute(task.getTaskType(), task.getTenant(), task.getPriority(), handle -> work);
+    }
+
+    /**
+     * SUBMIT A STEPPED TASK
+     * In THREAD mode the task keeps its worker and sleeps between steps, in
+     * CONTINUATION mode the worker is released and the next step is scheduled
+     * on the timer wheel.
+     *
+     * @param taskType: Task type the work belongs to
+     * @param task:     Stepped task, not aborted when the handle is canceled
+     * @return TaskHandle to stop the task
+     * @throws TooManyRequestsException if the type limit or the capacity is reached
+     */
+    public TaskHandle submit(TaskType taskType, SteppedTask task) {
+        return submit(taskType, null, TaskPriority.NORMAL, task);
+    }
+
+    /**
+     * SUBMIT THE STEPPED WORK OF A TASK
+     * In THREAD mode the work waits for a worker in the flow of the type, tenant and priority of the task.
+     *
+     * @param task:    Task the work belongs to
+     * @param stepped: Stepped task, not aborted when the handle is canceled
+     * @return TaskHandle to stop the task
+     * @throws TooManyRequestsException if the type limit or the capacity is reached
+     */
+    public TaskHandle submit(ProjectGenerationTask task, SteppedTask stepped) {
+        return submit(task.getTaskType(), task.getTenant(), task.getPriority(), stepped);
+    }
+
+    private TaskHandle submit(TaskType taskType, String tenant, TaskPriority priority, SteppedTask task) {
+        if (mode == ExecutionMode.THREAD) {
+            return execute(taskType, tenant, priority, handle -> () -> runBlocking(task, handle));
+        }
+
+        Semaphore permits = acquireTypePermit(taskType);
+        if (!continuationPermits.tryAcquire()) {
+            permits.release();
+            queueFullRejections.get(taskType).increment();
+            log.warn("Rejecting {} task, continuation capacity reached", taskType);
+            throw new TooManyRequestsException("Task capacity reached", retryAfterSeconds);
+        }
+        TaskHandle handle = new TaskHandle(() -> {
+            continuationPermits.release();
+            permits.release();
+        }, cancelLatencies.get(taskType));
+        resume(task, handle);
+        return handle;
+    }
+
+    private TaskHandle execute(TaskType taskType, String tenant, TaskPriority priority, Function<TaskHandle, Runnable> work) {
+        Semaphore permits = acquireTypePermit(taskType);
+        TaskHandle handle = new TaskHandle(permits::release, cancelLatencies.get(taskType));
+        FutureTask<Void> future = new FutureTask<>(work.apply(handle), null);
+        QueuedWork wrapper = new QueuedWork(taskType, tenant, priority, future, handle);
+        handle.runOn(future, () -> {
+            if (threadPoolExecutor.remove(wrapper)) {
+                handle.finish();
+            }
+        });
+        try {
+            threadPoolExecutor.execute(wrapper);
+            return handle;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            queueFullRejections.get(taskType).increment();
+            log.warn("Rejecting {} task, queue is full", taskType);
+            throw new TooManyRequestsException("Task queue is full", retryAfterSeconds);
+        }
+    }
+
+    private Semaphore acquireTypePermit(TaskType taskType) {
+        Semaphore permits = typePermits.get(taskType);
+        if (!permits.tryAcquire()) {
+            typeLimitRejections.get(taskType).increment();
+            log.warn("Rejecting {} task, concurrency limit reached", taskType);
+            throw new TooManyRequestsException("Concurrency limit reached for " + taskType, retryAfterSeconds);
+        }
+        return permits;
+    }
+
+    private void runBlocking(SteppedTask task, TaskHandle handle) {
+        try {
+            long delay;
+            while ((delay = task.step()) != SteppedTask.DONE) {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            if (!handle.isCanceled()) {
+                Thread.currentThread().interrupt();
+                task.abort(e);
+            }
+        } catch (RuntimeException e) {
+            if (!handle.isCanceled()) {
+                task.abort(e);
+            }
+        }
+    }
+
+    private void resume(SteppedTask task, TaskHandle handle) {
+        try {
+            continuationExecutor.execute(() -> runStep(task, handle));
+        } catch (RejectedExecutionException e) {
+            handle.finish();
+            task.abort(e);
+        }
+    }
+
+    private void runStep(SteppedTask task, TaskHandle handle) {
+        if (handle.isCanceled()) {
+            handle.finish();
+            return;
+        }
+
+        long delay;
+        try {
+            delay = task.step();
+        } catch (RuntimeException e) {
+            handle.finish();
+            if (!handle.isCanceled()) {
+                task.abort(e);
+            }
+            return;
+        }
+
+        if (delay == SteppedTask.DONE) {
+            handle.finish();
+            return;
+        }
+        handle.park(timerWheel.schedule(() -> resume(task, handle), delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * NUMBER OF TASKS WAITING FOR A WORKER
+     *
+     * @return int
+     */
+    public int getQueueDepth() {
+        return threadPoolExecutor.getQueue().size();
+    }
+
+    /**
+     * NUMBER OF TASKS THAT CAN BE SUBMITTED NOW
+     * Idle and not yet started workers plus free queue slots, and the free continuation capacity in
+     * CONTINUATION mode. Submissions may still be rejected by the limit of their type.
+     *
+     * @return int
+     */
+    public int getFreeCapacity() {
+        int free = threadPoolExecutor.getMaximumPoolSize() - threadPoolExecutor.getActiveCount()
+                + threadPoolExecutor.getQueue().remainingCapacity();
+        if (mode == ExecutionMode.CONTINUATION) {
+            free += continuationPermits.availablePermits();
+        }
+        return Math.max(0, free);
+    }
+
+    /**
+     * NUMBER OF TASKS OF A TYPE THAT CAN BE SUBMITTED BEFORE ITS LIMIT IS REACHED
+     *
+     * @param taskType: Task type
+     * @return int
+     */
+    public int getAvailablePermits(TaskType taskType) {
+        return typePermits.get(taskType).availablePermits();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        log.info("Shutting down task dispatcher");
+        threadPoolExecutor.shutdownNow();
+        continuationExecutor.shutdownNow();
+    }
+
+    /**
+     * Work of one task on the queue, a future canceled in the queue never runs its work,
+     * the wrapper still releases the permit
+     */
+    private class QueuedWork implements Runnable, WeightedFairQueue.Weighted {
+
+        private final TaskType taskType;
+        private final TaskPriority priority;
+        private final List<Object> flow;
+        private final FutureTask<Void> future;
+        private final TaskHandle handle;
+        private final long submittedAt = System.nanoTime();
+
+        QueuedWork(TaskType taskType, String tenant, TaskPriority priority, FutureTask<Void> future, TaskHandle handle) {
+            this.taskType = taskType;
+            this.priority = priority;
+            this.flow = Arrays.asList(taskType, tenant, priority);
+            this.future = future;
+            this.handle = handle;
+        }
+
+        @Override
+        public void run() {
+            dispatchLatencies.get(taskType).get(priority).record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+            try {
+                future.run();
+            } finally {
+                handle.finish();
+            }
+        }
+
+        @Override
+        public Object getFlow() {
+            return flow;
+        }
+
+        @Override
+        public double getWeight() {
+            return typeWeights.get(taskType) * priority.getWeight();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -13,16 +13,30 @@ public interface TaskExecutor {
     TaskType getSupportedTaskType();
 
     /**
-     * Executes a task
+     * Executes a task claimed from the queue by this node. The task is RUNNING at the version of
+     * the claim, which identifies the run, and its progress is the persisted one.
      *
      * @param task: Project Generation Task
+     * @throws com.celonis.challenge.exceptions.TooManyRequestsException if the task cannot run now
      */
     void execute(ProjectGenerationTask task);
 
     /**
-     * Cancels a task
+     * Stops the run of a task started at the given version, once the caller persisted the
+     * cancellation of the task.
      *
-     * @param task: Project Generation Task
+     * @param taskId:  Task ID
+     * @param version: Version the run started with
+     */
+    void cancel(String taskId, long version);
+
+    /**
+     * Stops the run of a task started at the given version without writing the task, once this
+     * node lost its lease because the task was canceled or claimed on another node.
+     *
+     * @param taskId:  Task ID
+     * @param version: Version the run started with
+     * @return whether a run of that version was stopped
      */
-    void cancel(ProjectGenerationTask task);
+    boolean abandon(String taskId, long version);
 }
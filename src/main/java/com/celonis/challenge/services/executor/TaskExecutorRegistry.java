@@ -3,6 +3,7 @@ package com.celonis.challenge.services.executor;
 import com.celonis.challenge.model.TaskType;
 import org.springframework.stereotype.Component;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,4 +32,13 @@ public class TaskExecutorRegistry {
         }
         return executor;
     }
+
+    /**
+     * ALL TASK EXECUTORS
+     *
+     * @return Collection<TaskExecutor>
+     */
+    public Collection<TaskExecutor> getTaskExecutors() {
+        return executorsMap.values();
+    }
 }
@@ -0,0 +1,100 @@
+package com.celonis.challenge.services.executor;
+
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of work submitted to the {@link TaskDispatcher}. Cancelling it stops the work right
+ * away instead of at its next poll of a flag: a worker running it is interrupted, queued work
+ * is taken off the queue and a stepped task parked on the {@link TimerWheel} is dropped from
+ * the wheel. The time from the cancel to the moment the work stopped is recorded.
+ */
+public class TaskHandle {
+
+    private static final long NOT_CANCELED = Long.MIN_VALUE;
+
+    private final Runnable release;
+    private final Timer cancelLatency;
+    private final AtomicLong canceledAt = new AtomicLong(NOT_CANCELED);
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile Future<?> future;
+    private volatile Runnable dequeue;
+    private volatile TimerWheel.Timeout timeout;
+
+    TaskHandle(Runnable release, Timer cancelLatency) {
+        this.release = release;
+        this.cancelLatency = cancelLatency;
+    }
+
+    /**
+     * STOP THE WORK
+     *
+     * @return false if the work already stopped or was canceled before
+     */
+    public boolean cancel() {
+        if (finished.get() || !canceledAt.compareAndSet(NOT_CANCELED, System.nanoTime())) {
+            return false;
+        }
+
+        Future<?> runningFuture = future;
+        if (runningFuture != null) {
+            runningFuture.cancel(true);
+        }
+        Runnable queuedWork = dequeue;
+        if (queuedWork != null) {
+            queuedWork.run();
+        }
+        TimerWheel.Timeout parked = timeout;
+        if (parked != null && parked.cancel()) {
+            finish();
+        }
+        return true;
+    }
+
+    public boolean isCanceled() {
+        return canceledAt.get() != NOT_CANCELED;
+    }
+
+    /**
+     * @return true once the work stopped and released its capacity
+     */
+    public boolean isDone() {
+        return finished.get();
+    }
+
+    void runOn(Future<?> future, Runnable dequeue) {
+        this.future = future;
+        this.dequeue = dequeue;
+    }
+
+    /**
+     * Parks a stepped task until its next step, unless it was canceled while its last step ran
+     */
+    void park(TimerWheel.Timeout timeout) {
+        this.timeout = timeout;
+        if (isCanceled() && timeout.cancel()) {
+            finish();
+        }
+    }
+
+    /**
+     * Releases the capacity held by the work, once
+     */
+    void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        future = null;
+        dequeue = null;
+        timeout = null;
+        release.run();
+        long canceled = canceledAt.get();
+        if (canceled != NOT_CANCELED) {
+            cancelLatency.record(System.nanoTime() - canceled, TimeUnit.NANOSECONDS);
+        }
+    }
+}
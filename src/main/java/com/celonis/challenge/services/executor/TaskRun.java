@@ -0,0 +1,65 @@
+package com.celonis.challenge.services.executor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One execution of a task, identified by the version its RUNNING status was written with.
+ * A cancel only reaches the run it was meant for, not a later run of the same task, and
+ * stops it through the {@link TaskHandle} of its dispatcher submission. The deadline of the
+ * run is dropped from the {@link TimerWheel} once the run ended or was canceled.
+ */
+class TaskRun {
+
+    private final long version;
+    private final AtomicBoolean canceled = new AtomicBoolean();
+    private volatile TaskHandle handle;
+    private volatile TimerWheel.Timeout deadline;
+
+    TaskRun(long version) {
+        this.version = version;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    boolean isCanceled() {
+        return canceled.get();
+    }
+
+    /**
+     * Attaches the submission of the run, a cancel that came first is passed on
+     */
+    void attach(TaskHandle handle) {
+        this.handle = handle;
+        if (handle != null && canceled.get()) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * Watches the run with the deadline of the {@link TaskWatchdog}, null if it has none
+     */
+    void watch(TimerWheel.Timeout deadline) {
+        this.deadline = deadline;
+    }
+
+    void cancel() {
+        canceled.set(true);
+        TaskHandle submission = handle;
+        if (submission != null) {
+            submission.cancel();
+        }
+        end();
+    }
+
+    /**
+     * Drops the deadline of a run that ended
+     */
+    void end() {
+        TimerWheel.Timeout watched = deadline;
+        if (watched != null) {
+            watched.cancel();
+        }
+    }
+}
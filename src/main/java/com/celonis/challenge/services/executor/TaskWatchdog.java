@@ -0,0 +1,116 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.config.TaskExecutorProperties;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Enforces execution deadlines of running tasks with one timeout per run on the shared
+ * {@link TimerWheel}, so no thread is held per task. The deadline of a task is its own
+ * deadlineMillis or, when it has none, the one configured for its type. Overdue runs are
+ * handed to a single watchdog thread, which lets their executor fail them.
+ */
+@Component
+public class TaskWatchdog {
+
+    private static final Logger log = LogManager.getLogger(TaskWatchdog.class);
+
+    private final TimerWheel timerWheel;
+    private final Map<TaskType, Long> typeDeadlines;
+    private final Map<TaskType, Counter> timeouts = new EnumMap<>(TaskType.class);
+    private final ExecutorService expiryExecutor;
+
+    public TaskWatchdog(TaskExecutorProperties properties, TimerWheel timerWheel, MeterRegistry meterRegistry) {
+        this.timerWheel = timerWheel;
+        this.typeDeadlines = properties.getDeadlineMillis();
+        for (TaskType taskType : TaskType.values()) {
+            timeouts.put(taskType, Counter.builder("task.executor.timeouts")
+                    .description("Runs failed because they exceeded their deadline")
+                    .tag("type", taskType.name())
+                    .register(meterRegistry));
+        }
+        // expiries run on the wheel thread, which must not wait for the database
+        this.expiryExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "task-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * WATCH A RUN OF A TASK
+     *
+     * @param task:       Project generation task, about to run
+     * @param onDeadline: Stops the run, returns false if it ended in the meantime
+     * @return Timeout to cancel once the run ended, null if the task has no deadline
+     */
+    public TimerWheel.Timeout watch(ProjectGenerationTask task, BooleanSupplier onDeadline) {
+        long deadlineMillis = getDeadlineMillis(task);
+        if (deadlineMillis <= 0) {
+            return null;
+        }
+
+        String taskId = task.getId();
+        TaskType taskType = task.getTaskType();
+        return timerWheel.schedule(() -> {
+            try {
+                expiryExecutor.execute(() -> expire(taskId, taskType, deadlineMillis, onDeadline));
+            } catch (RejectedExecutionException e) {
+                log.warn("Watchdog stopped, deadline of task={} not enforced", taskId);
+            }
+        }, deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * DEADLINE OF A TASK
+     *
+     * @param task: Project generation task
+     * @return deadline in milliseconds from the start of a run, 0 if the task may run forever
+     */
+    public long getDeadlineMillis(ProjectGenerationTask task) {
+        if (task.getDeadlineMillis() != null) {
+            return task.getDeadlineMillis();
+        }
+        return typeDeadlines.getOrDefault(task.getTaskType(), 0L);
+    }
+
+    /**
+     * NUMBER OF RUNS FAILED FOR EXCEEDING THEIR DEADLINE
+     *
+     * @param taskType: Task type
+     * @return long
+     */
+    public long getTimeoutCount(TaskType taskType) {
+        return (long) timeouts.get(taskType).count();
+    }
+
+    private void expire(String taskId, TaskType taskType, long deadlineMillis, BooleanSupplier onDeadline) {
+        try {
+            if (onDeadline.getAsBoolean()) {
+                timeouts.get(taskType).increment();
+                log.warn("Task={} exceeded its deadline of {} ms and was failed", taskId, deadlineMillis);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to stop overdue task={}", taskId, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        expiryExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,196 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.config.TaskExecutorProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timer wheel driven by a single thread. Scheduling and cancelling are O(1)
+ * and no thread is held per pending timeout. Callbacks run on the wheel thread,
+ * so they must hand any real work off to a pool.
+ */
+@Component
+public class TimerWheel {
+
+    private static final Logger log = LogManager.getLogger(TimerWheel.class);
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Queue<Timeout>[] buckets;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final long startTime;
+    private final Thread worker;
+
+    private volatile boolean running = true;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(TaskExecutorProperties properties) {
+        int size = Integer.highestOneBit(Math.max(1, properties.getTimerWheelSize() - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, properties.getTimerTickMillis()));
+        this.mask = size - 1;
+        this.buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "task-timer-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * SCHEDULE A CALLBACK
+     *
+     * @param callback: Callback to run once the delay elapsed
+     * @param delay:    Delay, delays beyond the range of the wheel clock never expire
+     * @param unit:     Unit of the delay
+     * @return Timeout handle that can be cancelled
+     */
+    public Timeout schedule(Runnable callback, long delay, TimeUnit unit) {
+        long now = System.nanoTime() - startTime;
+        long delayNanos = unit.toNanos(Math.max(0, delay));
+        // saturates instead of overflowing to a deadline in the past
+        long deadline = delayNanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delayNanos;
+        Timeout timeout = new Timeout(callback, deadline);
+        pendingCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * NUMBER OF TIMEOUTS NOT YET EXPIRED OR CANCELLED
+     *
+     * @return long
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                return;
+            }
+            transferPendingTimeouts();
+            expire(buckets[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) {
+                return deadline;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long expiryTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (expiryTick - tick) / buckets.length;
+            buckets[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket, long deadline) {
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.poll();
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            if (timeout.remainingRounds > 0 || timeout.deadline > deadline) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+                continue;
+            }
+            timeout.expire();
+        }
+    }
+
+    /**
+     * Handle of a scheduled callback
+     */
+    public class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable callback;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        private long remainingRounds;
+
+        private Timeout(Runnable callback, long deadline) {
+            this.callback = callback;
+            this.deadline = deadline;
+        }
+
+        /**
+         * CANCEL THE TIMEOUT
+         *
+         * @return true if the callback will not run anymore because of this call
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(INIT, CANCELLED)) {
+                pendingCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            pendingCount.decrementAndGet();
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.error("Timer wheel callback failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.celonis.challenge.services.executor;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded work queue of the {@link TaskDispatcher} ordered by weighted fair queuing instead of
+ * arrival. Every queued element gets a virtual finish time, the one of the previous element of
+ * its flow, or the current virtual time if later, plus the inverse of its weight; workers take
+ * the element with the earliest finish time from a binary heap. A flow with a backlog of
+ * thousands of elements thereby gets its weighted share of the workers, not all of them, and
+ * offer and take stay O(log n).
+ */
+class WeightedFairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * Element of a flow, elements of other classes share one flow of weight 1
+     */
+    interface Weighted {
+
+        /**
+         * @return key of the flow, compared with equals
+         */
+        Object getFlow();
+
+        /**
+         * @return share of the flow, higher is served more often
+         */
+        double getWeight();
+    }
+
+    private static final Object DEFAULT_FLOW = new Object();
+
+    private static final int MAX_IDLE_FLOWS = 1024;
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>();
+    private final Map<Object, Double> finishTimes = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+    private int pruneAt = MAX_IDLE_FLOWS;
+
+    WeightedFairQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (heap.size() >= capacity) {
+                return false;
+            }
+            Object flow = DEFAULT_FLOW;
+            double weight = 1;
+            if (runnable instanceof Weighted) {
+                flow = ((Weighted) runnable).getFlow();
+                weight = ((Weighted) runnable).getWeight();
+            }
+            double start = Math.max(virtualTime, finishTimes.getOrDefault(flow, 0.0));
+            double finish = start + 1 / weight;
+            finishTimes.put(flow, finish);
+            heap.add(new Entry(runnable, finish, sequence++));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) throws InterruptedException {
+        // ThreadPoolExecutor only offers, a full queue is a rejection like for offer
+        if (!offer(runnable)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        return offer(runnable);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (heap.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (heap.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Entry entry = heap.peek();
+            return entry == null ? null : entry.runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes queued work by identity, in O(n), used when queued work is canceled
+     */
+    @Override
+    public boolean remove(Object runnable) {
+        lock.lock();
+        try {
+            return heap.removeIf(entry -> entry.runnable == runnable);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return heap.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - heap.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !heap.isEmpty()) {
+                collection.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the queued work, in no particular order
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(heap.size());
+            heap.forEach(entry -> snapshot.add(entry.runnable));
+        } finally {
+            lock.unlock();
+        }
+        Iterator<Runnable> iterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = iterator.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                WeightedFairQueue.this.remove(last);
+            }
+        };
+    }
+
+    private Runnable dequeue() {
+        Entry entry = heap.poll();
+        if (entry == null) {
+            return null;
+        }
+        virtualTime = entry.finish;
+        if (heap.isEmpty()) {
+            finishTimes.clear();
+        } else if (finishTimes.size() > pruneAt) {
+            // flows finished before the virtual time start from it anyway
+            finishTimes.values().removeIf(finish -> finish <= virtualTime);
+            pruneAt = Math.max(MAX_IDLE_FLOWS, 2 * finishTimes.size());
+        }
+        return entry.runnable;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final Runnable runnable;
+        private final double finish;
+        private final long sequence;
+
+        Entry(Runnable runnable, double finish, long sequence) {
+            this.runnable = runnable;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byFinish = Double.compare(finish, other.finish);
+            return byFinish != 0 ? byFinish : Long.compare(sequence, other.sequence);
+        }
+    }
+}
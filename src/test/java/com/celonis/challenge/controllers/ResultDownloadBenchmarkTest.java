@@ -0,0 +1,142 @@
+package com.celonis.challenge.controllers;
+
+import com.celonis.challenge.config.StorageProperties;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput of concurrent GET /api/tasks/{id}/result downloads through Tomcat,
+ * with sendfile and with the FileChannel fallback.
+ */
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class ResultDownloadBenchmarkTest {
+
+    private static final int PAYLOAD_BYTES = 64 * 1024 * 1024;
+    private static final int CLIENTS = 8;
+    private static final int DOWNLOADS_PER_CLIENT = 8;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private StorageProperties storageProperties;
+
+    @TempDir
+    Path directory;
+
+    private String taskId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path result = directory.resolve("result.rtf");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileChannel out = FileChannel.open(result, CREATE, WRITE)) {
+            for (int written = 0; written < PAYLOAD_BYTES; written += block.length) {
+                out.write(ByteBuffer.wrap(block));
+            }
+        }
+
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setName("download benchmark");
+        task.setTaskType(TaskType.STORE_FILE);
+        task.setTaskStatus(TaskStatus.COMPLETED);
+        task.setProgress(100);
+        task.setCreationDate(new Date());
+        task.setStorageLocation(result.toString());
+        taskId = projectGenerationTaskRepository.save(task).getId();
+    }
+
+    @Test
+    void concurrentDownloads() throws Exception {
+        storageProperties.setSendfile(false);
+        download(null);
+        double channelFull = download(null);
+        double channelRange = download("bytes=1048576-");
+
+        storageProperties.setSendfile(true);
+        download(null);
+        double sendfileFull = download(null);
+        double sendfileRange = download("bytes=1048576-");
+
+        System.out.printf("%d clients x %d downloads of %d MB%n", CLIENTS, DOWNLOADS_PER_CLIENT, PAYLOAD_BYTES >> 20);
+        System.out.printf("%-20s %14s %14s%n", "delivery", "full MB/s", "range MB/s");
+        System.out.printf("%-20s %14.0f %14.0f%n", "FileChannel", channelFull, channelRange);
+        System.out.printf("%-20s %14.0f %14.0f%n", "sendfile", sendfileFull, sendfileRange);
+    }
+
+    private double download(String range) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        long start = System.nanoTime();
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            results.add(clients.submit(() -> {
+                long bytes = 0;
+                for (int d = 0; d < DOWNLOADS_PER_CLIENT; d++) {
+                    bytes += downloadOnce(range);
+                }
+                return bytes;
+            }));
+        }
+        long total = 0;
+        for (Future<Long> result : results) {
+            total += result.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+        return total / (1024.0 * 1024.0) / seconds;
+    }
+
+    private long downloadOnce(String range) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/api/tasks/" + taskId + "/result").openConnection();
+        connection.setRequestProperty("Celonis-Auth", "totally_secret");
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        assertEquals(range == null ? 200 : 206, connection.getResponseCode());
+
+        long bytes = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = connection.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes += read;
+            }
+        }
+        assertEquals(connection.getContentLengthLong(), bytes);
+        return bytes;
+    }
+}
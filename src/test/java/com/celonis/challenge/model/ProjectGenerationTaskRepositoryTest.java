@@ -0,0 +1,573 @@
+package com.celonis.challenge.model;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+
+@DataJpaTest
+class ProjectGenerationTaskRepositoryTest {
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private TestEntityManager testEntityManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void updateRunningProgressOnlyTouchesRunningTasks() {
+        ProjectGenerationTask running = leased(persist("running", TaskStatus.RUNNING, 10), "node-a");
+        ProjectGenerationTask completed = leased(persist("completed", TaskStatus.COMPLETED, 100), "node-a");
+
+        int updated = projectGenerationTaskRepository.updateRunningProgress(List.of(
+                new TaskProgressUpdate(running.getId(), "node-a", running.getVersion(), 55),
+                new TaskProgressUpdate(completed.getId(), "node-a", completed.getVersion(), 20)));
+        testEntityManager.clear();
+
+        assertEquals(1, updated);
+        assertEquals(55, projectGenerationTaskRepository.findById(running.getId()).orElseThrow().getProgress());
+        assertEquals(100, projectGenerationTaskRepository.findById(completed.getId()).orElseThrow().getProgress());
+    }
+
+    @Test
+    void updateRunningProgressSkipsTasksClaimedByAnotherRun() {
+        ProjectGenerationTask lost = leased(persist("lost", TaskStatus.RUNNING, 10), "node-a");
+        long lostVersion = lost.getVersion();
+        // claimed again by another node, which resumed the task and wrote its own progress
+        jdbcTemplate.update("UPDATE project_generation_task SET lease_owner = 'node-b', task_progress = 30, version = version + 1"
+                + " WHERE id = ?", lost.getId());
+        ProjectGenerationTask stale = leased(persist("stale", TaskStatus.RUNNING, 10), "node-a");
+        jdbcTemplate.update("UPDATE project_generation_task SET version = version + 1 WHERE id = ?", stale.getId());
+
+        int updated = projectGenerationTaskRepository.updateRunningProgress(List.of(
+                new TaskProgressUpdate(lost.getId(), "node-a", lostVersion, 55),
+                new TaskProgressUpdate(stale.getId(), "node-a", stale.getVersion(), 55)));
+        testEntityManager.clear();
+
+        assertEquals(0, updated);
+        assertEquals(30, projectGenerationTaskRepository.findById(lost.getId()).orElseThrow().getProgress());
+        assertEquals(10, projectGenerationTaskRepository.findById(stale.getId()).orElseThrow().getProgress());
+    }
+
+    @Test
+    void updateStorageLocationRequiresTheLeaseOfTheRun() {
+        ProjectGenerationTask leased = leased(persist("leased", TaskStatus.RUNNING, 10), "node-a");
+        ProjectGenerationTask canceled = leased(persist("canceled", TaskStatus.RUNNING, 10), "node-a");
+        jdbcTemplate.update("UPDATE project_generation_task SET task_status = 'CANCELED', version = version + 1 WHERE id = ?",
+                canceled.getId());
+
+        assertEquals(0, projectGenerationTaskRepository.updateStorageLocation(leased.getId(), "/results/a", "node-b", leased.getVersion()));
+        assertEquals(0, projectGenerationTaskRepository.updateStorageLocation(leased.getId(), "/results/a", "node-a", leased.getVersion() - 1));
+        assertEquals(0, projectGenerationTaskRepository.updateStorageLocation(canceled.getId(), "/results/a", "node-a", canceled.getVersion()));
+        assertEquals(1, projectGenerationTaskRepository.updateStorageLocation(leased.getId(), "/results/a", "node-a", leased.getVersion()));
+        testEntityManager.clear();
+
+        assertEquals("/results/a", projectGenerationTaskRepository.findById(leased.getId()).orElseThrow().getStorageLocation());
+        assertNull(projectGenerationTaskRepository.findById(canceled.getId()).orElseThrow().getStorageLocation());
+    }
+
+    @Test
+    void findPageWalksKeysetInCreationOrder() {
+        ProjectGenerationTask first = persist("first", TaskStatus.PENDING, 0, new Date(1000));
+        ProjectGenerationTask second = persist("second", TaskStatus.PENDING, 0, new Date(2000));
+        ProjectGenerationTask third = persist("third", TaskStatus.PENDING, 0, new Date(2000));
+        persist("running", TaskStatus.RUNNING, 0, new Date(1500));
+
+        TaskQuery taskQuery = new TaskQuery();
+        taskQuery.setTaskStatus(TaskStatus.PENDING);
+        taskQuery.setLimit(2);
+        List<ProjectGenerationTask> firstPage = projectGenerationTaskRepository.findPage(taskQuery);
+
+        taskQuery.setAfter(TaskCursor.of(firstPage.get(1)));
+        List<ProjectGenerationTask> secondPage = projectGenerationTaskRepository.findPage(taskQuery);
+
+        List<String> sameDate = second.getId().compareTo(third.getId()) < 0
+                ? List.of(second.getId(), third.getId())
+                : List.of(third.getId(), second.getId());
+        assertEquals(List.of(first.getId(), sameDate.get(0)), ids(firstPage));
+        assertEquals(List.of(sameDate.get(1)), ids(secondPage));
+    }
+
+    @Test
+    void findPageFiltersOnTypeAndCreationDate() {
+        persist("old", TaskStatus.PENDING, 0, new Date(1000));
+        ProjectGenerationTask recent = persist("recent", TaskStatus.PENDING, 0, new Date(5000));
+
+        TaskQuery taskQuery = new TaskQuery();
+        taskQuery.setTaskType(TaskType.COUNTER);
+        taskQuery.setCreatedFrom(new Date(2000));
+        taskQuery.setCreatedTo(new Date(6000));
+        taskQuery.setLimit(10);
+
+        assertEquals(List.of(recent.getId()), ids(projectGenerationTaskRepository.findPage(taskQuery)));
+
+        taskQuery.setTaskType(TaskType.STORE_FILE);
+        assertTrue(projectGenerationTaskRepository.findPage(taskQuery).isEmpty());
+    }
+
+    @Test
+    void findProgressProjections() {
+        ProjectGenerationTask running = persist("running", TaskStatus.RUNNING, 30);
+        persist("completed", TaskStatus.COMPLETED, 100);
+        ProjectGenerationTask oldPending = persist("old pending", TaskStatus.PENDING, 0, new Date(1000));
+        persist("new pending", TaskStatus.PENDING, 0, new Date());
+
+        TaskProgressView progress = projectGenerationTaskRepository.findProgressById(running.getId()).orElseThrow();
+        assertEquals(TaskStatus.RUNNING, progress.getTaskStatus());
+        assertEquals(30, progress.getProgress());
+        assertTrue(projectGenerationTaskRepository.findProgressById("missing").isEmpty());
+
+        List<TaskProgressView> runningTasks = projectGenerationTaskRepository.findProgressByTaskStatus(TaskStatus.RUNNING);
+        assertEquals(List.of(running.getId()), runningTasks.stream().map(TaskProgressView::getId).collect(Collectors.toList()));
+
+        assertEquals(List.of(oldPending.getId()),
+                projectGenerationTaskRepository.findIdsByTaskStatusAndCreationDateBefore(TaskStatus.PENDING, new Date(2000)));
+    }
+
+    @Test
+    void deleteBatchRemovesTasksWithParametersInBoundedBatches() {
+        for (int i = 0; i < 3; i++) {
+            ProjectGenerationTask stale = persist("stale " + i, TaskStatus.PENDING, 0, new Date(1000));
+            stale.getParameters().put("x", "1");
+            testEntityManager.persistAndFlush(stale);
+        }
+        ProjectGenerationTask recent = persist("recent", TaskStatus.PENDING, 0, new Date(5000));
+        ProjectGenerationTask running = persist("running", TaskStatus.RUNNING, 0, new Date(1000));
+        ProjectGenerationTask scheduled = persist("scheduled", TaskStatus.PENDING, 0, new Date(1000));
+        scheduled.setNotBefore(new Date(System.currentTimeMillis() + 60_000));
+        testEntityManager.persistAndFlush(scheduled);
+        testEntityManager.clear();
+
+        assertEquals(2, projectGenerationTaskRepository.deleteBatch(TaskStatus.PENDING, new Date(2000), 2));
+        assertEquals(1, projectGenerationTaskRepository.deleteBatch(TaskStatus.PENDING, new Date(2000), 2));
+        assertEquals(0, projectGenerationTaskRepository.deleteBatch(TaskStatus.PENDING, new Date(2000), 2));
+
+        List<String> remaining = ids(projectGenerationTaskRepository.findAll());
+        assertEquals(3, remaining.size());
+        assertTrue(remaining.containsAll(List.of(recent.getId(), running.getId(), scheduled.getId())));
+    }
+
+    @Test
+    void compareAndSetStatusRequiresStatusAndVersion() {
+        String id = persist("pending", TaskStatus.PENDING, 0).getId();
+        testEntityManager.clear();
+
+        assertTrue(projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.PENDING, 0, TaskStatus.RUNNING, 0));
+        assertFalse(projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.PENDING, 0, TaskStatus.RUNNING, 0));
+        assertFalse(projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.RUNNING, 0, TaskStatus.CANCELED, 0));
+        assertTrue(projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.RUNNING, 1, TaskStatus.CANCELED, 35));
+
+        ProjectGenerationTask canceled = projectGenerationTaskRepository.findById(id).orElseThrow();
+        assertEquals(TaskStatus.CANCELED, canceled.getTaskStatus());
+        assertEquals(35, canceled.getProgress());
+        assertEquals(2, canceled.getVersion());
+    }
+
+    @Test
+    void staleTaskCannotOverwriteStatusTransition() {
+        String id = persist("pending", TaskStatus.PENDING, 0).getId();
+        testEntityManager.clear();
+        ProjectGenerationTask stale = projectGenerationTaskRepository.findById(id).orElseThrow();
+        testEntityManager.clear();
+
+        projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.PENDING, 0, TaskStatus.RUNNING, 0);
+        stale.setName("renamed");
+
+        assertThrows(ObjectOptimisticLockingFailureException.class, () -> projectGenerationTaskRepository.saveAndFlush(stale));
+    }
+
+    @Test
+    void claimQueuedLeasesRunningTasksWithoutOwnerInCreationOrder() {
+        ProjectGenerationTask second = persist("second", TaskStatus.RUNNING, 0, new Date(2000));
+        ProjectGenerationTask first = persist("first", TaskStatus.RUNNING, 0, new Date(1000));
+        persist("pending", TaskStatus.PENDING, 0, new Date(500));
+        testEntityManager.clear();
+        Date leaseExpiresAt = new Date(System.currentTimeMillis() + 30_000);
+
+        List<ProjectGenerationTask> claimed = projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 1, List.of());
+
+        assertEquals(List.of(first.getId()), ids(claimed));
+        assertEquals("node-1", claimed.get(0).getLeaseOwner());
+        assertEquals(1, claimed.get(0).getVersion());
+        assertEquals(TaskPriority.NORMAL, claimed.get(0).getPriority());
+        assertEquals(List.of(second.getId()), ids(projectGenerationTaskRepository.claimQueued("node-2", leaseExpiresAt, 10, List.of())));
+        assertTrue(projectGenerationTaskRepository.claimQueued("node-2", leaseExpiresAt, 10, List.of()).isEmpty());
+        assertTrue(projectGenerationTaskRepository.claimExpired("node-2", new Date(), leaseExpiresAt, 10, List.of()).isEmpty());
+    }
+
+    @Test
+    void leasesAreRenewedByTheirOwnerAndClaimedOnceExpired() {
+        String id = persist("running", TaskStatus.RUNNING, 0).getId();
+        testEntityManager.clear();
+        long now = System.currentTimeMillis();
+        projectGenerationTaskRepository.claimQueued("node-1", new Date(now + 1000), 10, List.of());
+
+        assertEquals(0, projectGenerationTaskRepository.renewLeases("node-2", List.of(id), new Date(now), new Date(now + 5000)));
+        assertEquals(1, projectGenerationTaskRepository.renewLeases("node-1", List.of(id), new Date(now), new Date(now + 5000)));
+        // a node that missed its lease must not take the task back from a claim in progress
+        assertEquals(0, projectGenerationTaskRepository.renewLeases("node-1", List.of(id), new Date(now + 5001), new Date(now + 9000)));
+        assertTrue(projectGenerationTaskRepository.claimExpired("node-2", new Date(now + 2000), new Date(now + 9000), 10, List.of()).isEmpty());
+
+        List<ProjectGenerationTask> claimed = projectGenerationTaskRepository.claimExpired("node-2", new Date(now + 6000), new Date(now + 9000), 10, List.of());
+
+        assertEquals(List.of(id), ids(claimed));
+        assertEquals("node-2", claimed.get(0).getLeaseOwner());
+        // the claim moved the version, so the run of node-1 can no longer complete the task
+        assertFalse(projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100));
+        assertTrue(projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.RUNNING, 2, TaskStatus.COMPLETED, 100));
+        assertNull(jdbcTemplate.queryForObject("SELECT lease_owner FROM project_generation_task WHERE id = ?", String.class, id));
+    }
+
+    @Test
+    void findLeaseVersionsOnlyReturnsTasksStillHeldByTheNode() {
+        String held = persist("held", TaskStatus.RUNNING, 0, new Date(1000)).getId();
+        String canceled = persist("canceled", TaskStatus.RUNNING, 0, new Date(2000)).getId();
+        String released = persist("released", TaskStatus.RUNNING, 0, new Date(3000)).getId();
+        testEntityManager.clear();
+        projectGenerationTaskRepository.claimQueued("node-1", new Date(System.currentTimeMillis() + 30_000), 10, List.of());
+
+        projectGenerationTaskRepository.compareAndSetStatus(canceled, TaskStatus.RUNNING, 1, TaskStatus.CANCELED, 0);
+        projectGenerationTaskRepository.releaseLeases("node-1", List.of(released));
+
+        assertEquals(Map.of(held, 1L), projectGenerationTaskRepository.findLeaseVersions("node-1", List.of(held, canceled, released)));
+        assertTrue(projectGenerationTaskRepository.findLeaseVersions("node-2", List.of(held)).isEmpty());
+    }
+
+    @Test
+    void releasedAndExpiredLeasesAreClaimedAgain() {
+        String released = persist("released", TaskStatus.RUNNING, 0, new Date(1000)).getId();
+        String expired = persist("expired", TaskStatus.RUNNING, 0, new Date(2000)).getId();
+        testEntityManager.clear();
+        long now = System.currentTimeMillis();
+        Date leaseExpiresAt = new Date(now + 30_000);
+        projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 10, List.of());
+
+        assertEquals(0, projectGenerationTaskRepository.releaseLeases("node-2", List.of(released)));
+        assertEquals(1, projectGenerationTaskRepository.releaseLeases("node-1", List.of(released)));
+        assertEquals(1, projectGenerationTaskRepository.expireLeases("node-1", new Date(now)));
+
+        assertEquals(List.of(released), ids(projectGenerationTaskRepository.claimQueued("node-2", leaseExpiresAt, 10, List.of())));
+        assertEquals(List.of(expired), ids(projectGenerationTaskRepository.claimExpired("node-2", new Date(now + 1), leaseExpiresAt, 10, List.of())));
+    }
+
+    @Test
+    void claimsSkipExcludedTypesAndUnstartedClaimsAreUndone() {
+        ProjectGenerationTask counter = persist("counter", TaskStatus.RUNNING, 0, new Date(1000));
+        ProjectGenerationTask file = persist("file", TaskStatus.RUNNING, 0, new Date(2000));
+        file.setTaskType(TaskType.STORE_FILE);
+        testEntityManager.persistAndFlush(file);
+        testEntityManager.clear();
+        long now = System.currentTimeMillis();
+        Date leaseExpiresAt = new Date(now + 30_000);
+        assertEquals(1, projectGenerationTaskRepository.countQueued(TaskType.COUNTER));
+
+        List<ProjectGenerationTask> claimed = projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 10, List.of(TaskType.COUNTER));
+        assertEquals(List.of(file.getId()), ids(claimed));
+        long queuedVersion = claimed.get(0).getVersion() - 1;
+
+        // back in the queue at the version a request may have read before the claim
+        assertEquals(0, projectGenerationTaskRepository.releaseClaims("node-2", claimed));
+        assertEquals(1, projectGenerationTaskRepository.releaseClaims("node-1", claimed));
+        assertEquals(List.of(counter.getId(), file.getId()), ids(projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 10, List.of())));
+        assertEquals(0, projectGenerationTaskRepository.countQueued(TaskType.COUNTER));
+        assertEquals(queuedVersion + 1, (long) jdbcTemplate.queryForObject(
+                "SELECT version FROM project_generation_task WHERE id = ?", Long.class, file.getId()));
+
+        // still expired at the version of the claim, for the next claim of expired tasks
+        projectGenerationTaskRepository.expireLeases("node-1", new Date(now));
+        List<ProjectGenerationTask> expired = projectGenerationTaskRepository.claimExpired("node-2", new Date(now + 1), leaseExpiresAt, 1, List.of());
+        assertEquals(List.of(counter.getId()), ids(expired));
+        assertEquals(1, projectGenerationTaskRepository.expireClaims("node-2", expired, new Date(now)));
+        assertFalse(projectGenerationTaskRepository.compareAndSetStatus(counter.getId(), TaskStatus.RUNNING, expired.get(0).getVersion() - 1,
+                TaskStatus.COMPLETED, 100));
+        assertEquals(List.of(counter.getId(), file.getId()),
+                ids(projectGenerationTaskRepository.claimExpired("node-3", new Date(now + 1), leaseExpiresAt, 10, List.of())));
+    }
+
+    @Test
+    void claimQueuedSharesTheBatchBetweenTypesAndTenantsByPriority() {
+        List<String> flood = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            flood.add(queued(TaskType.COUNTER, "a", TaskPriority.NORMAL, new Date(1000 + i)).getId());
+        }
+        String file = queued(TaskType.STORE_FILE, "a", TaskPriority.NORMAL, new Date(5000)).getId();
+        String low = queued(TaskType.COUNTER, "b", TaskPriority.LOW, new Date(500)).getId();
+        String high = queued(TaskType.COUNTER, "b", TaskPriority.HIGH, new Date(6000)).getId();
+        testEntityManager.clear();
+        Date leaseExpiresAt = new Date(System.currentTimeMillis() + 30_000);
+
+        // one task of every flow, the older counters of tenant a and the older LOW task wait
+        assertEquals(List.of(high, flood.get(0), file),
+                ids(projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 3, List.of())));
+        assertEquals(List.of(flood.get(1), flood.get(2), flood.get(3), low),
+                ids(projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 10, List.of())));
+
+        // with more flows than the limit, the next claim starts with the next flow
+        queued(TaskType.COUNTER, "c", TaskPriority.NORMAL, new Date(1000));
+        queued(TaskType.COUNTER, "c", TaskPriority.NORMAL, new Date(2000));
+        queued(TaskType.COUNTER, "d", TaskPriority.NORMAL, new Date(1000));
+        queued(TaskType.COUNTER, "d", TaskPriority.NORMAL, new Date(2000));
+        testEntityManager.clear();
+        String firstTenant = projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 1, List.of()).get(0).getTenant();
+        String secondTenant = projectGenerationTaskRepository.claimQueued("node-1", leaseExpiresAt, 1, List.of()).get(0).getTenant();
+        assertNotEquals(firstTenant, secondTenant);
+    }
+
+    @Test
+    void findScheduledPagesPendingTasksDueBeforeAGivenTime() {
+        ProjectGenerationTask later = scheduled("later", TaskStatus.PENDING, new Date(3000));
+        ProjectGenerationTask first = scheduled("first", TaskStatus.PENDING, new Date(1000));
+        ProjectGenerationTask second = scheduled("second", TaskStatus.PENDING, new Date(2000));
+        scheduled("canceled", TaskStatus.CANCELED, new Date(1000));
+        scheduled("too late", TaskStatus.PENDING, new Date(9000));
+        persist("unscheduled", TaskStatus.PENDING, 0);
+        testEntityManager.clear();
+
+        List<ProjectGenerationTask> page = projectGenerationTaskRepository.findScheduled(new Date(5000), null, null, 2);
+        assertEquals(List.of(first.getId(), second.getId()), ids(page));
+        assertEquals(new Date(2000), new Date(page.get(1).getNotBefore().getTime()));
+        assertEquals(List.of(later.getId()), ids(projectGenerationTaskRepository.findScheduled(new Date(5000),
+                page.get(1).getNotBefore(), page.get(1).getId(), 2)));
+    }
+
+    @Test
+    void advanceScheduleMovesAnOccurrenceOnce() {
+        ProjectGenerationTask schedule = scheduled("schedule", TaskStatus.PENDING, new Date(1000));
+        long version = schedule.getVersion();
+        testEntityManager.clear();
+
+        assertTrue(projectGenerationTaskRepository.advanceSchedule(schedule.getId(), version, new Date(2000)));
+        assertFalse(projectGenerationTaskRepository.advanceSchedule(schedule.getId(), version, new Date(2000)));
+
+        ProjectGenerationTask advanced = projectGenerationTaskRepository.findById(schedule.getId()).orElseThrow();
+        assertEquals(new Date(2000), new Date(advanced.getNotBefore().getTime()));
+        assertEquals(version + 1, advanced.getVersion());
+    }
+
+    @Test
+    void insertAllWritesTasksWithParameters() {
+        List<ProjectGenerationTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+            projectGenerationTask.setId(UUID.randomUUID().toString());
+            projectGenerationTask.setName("batch " + i);
+            projectGenerationTask.setTaskType(TaskType.COUNTER);
+            projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
+            projectGenerationTask.setCreationDate(new Date(1000));
+            projectGenerationTask.setParameters(Map.of("x", "1", "y", String.valueOf(i + 2)));
+            projectGenerationTask.setPriority(i % 2 == 0 ? TaskPriority.NORMAL : TaskPriority.HIGH);
+            projectGenerationTask.setTenant("tenant-" + i % 3);
+            tasks.add(projectGenerationTask);
+        }
+
+        assertEquals(1200, projectGenerationTaskRepository.insertAll(tasks));
+
+        ProjectGenerationTask last = projectGenerationTaskRepository.findById(tasks.get(1199).getId()).orElseThrow();
+        assertEquals("batch 1199", last.getName());
+        assertEquals(TaskStatus.PENDING, last.getTaskStatus());
+        assertEquals(Map.of("x", "1", "y", "1201"), last.getParameters());
+        assertEquals(TaskPriority.HIGH, last.getPriority());
+        assertEquals("tenant-2", last.getTenant());
+        assertEquals(1200, projectGenerationTaskRepository.count());
+    }
+
+    @Test
+    void dependencyEdgesLeadFromFinishedTasksToTheirWaitingDependents() {
+        ProjectGenerationTask first = persist("first", TaskStatus.COMPLETED, 100);
+        ProjectGenerationTask second = persist("second", TaskStatus.RUNNING, 0);
+        ProjectGenerationTask both = dependent("both", TaskStatus.PENDING, first, second);
+        ProjectGenerationTask started = dependent("started", TaskStatus.RUNNING, first);
+        ProjectGenerationTask onlySecond = dependent("only second", TaskStatus.PENDING, second);
+        assertEquals(3, projectGenerationTaskRepository.insertAll(List.of(both, started, onlySecond)));
+
+        // the task waiting for both is read once
+        assertEquals(List.of(both.getId()), ids(projectGenerationTaskRepository.findWaitingDependents(List.of(first.getId()))));
+        List<ProjectGenerationTask> waiting = projectGenerationTaskRepository.findWaitingDependents(List.of(first.getId(), second.getId()));
+        assertEquals(2, waiting.size());
+        assertTrue(ids(waiting).containsAll(List.of(both.getId(), onlySecond.getId())));
+        assertEquals(List.of(first.getId(), second.getId()),
+                waiting.get(ids(waiting).indexOf(both.getId())).getDependsOn());
+        assertEquals(2, projectGenerationTaskRepository.findWaiting(null, 10).size());
+
+        assertEquals(Map.of(first.getId(), TaskStatus.COMPLETED, second.getId(), TaskStatus.RUNNING),
+                projectGenerationTaskRepository.findStatuses(List.of(first.getId(), second.getId(), "missing")));
+
+        // the first edges of both go with the task
+        assertEquals(2, projectGenerationTaskRepository.deleteBatch(TaskStatus.PENDING, new Date(), 10));
+        assertEquals(1, countEdges());
+    }
+
+    @Test
+    void compareAndSetStatusesSkipsTasksChangedSinceTheyWereRead() {
+        ProjectGenerationTask first = persist("first", TaskStatus.PENDING, 0);
+        ProjectGenerationTask second = persist("second", TaskStatus.PENDING, 0);
+        testEntityManager.clear();
+        projectGenerationTaskRepository.compareAndSetStatus(second.getId(), TaskStatus.PENDING, second.getVersion(), TaskStatus.CANCELED, 0);
+
+        List<ProjectGenerationTask> updated = projectGenerationTaskRepository.compareAndSetStatuses(List.of(first, second), TaskStatus.RUNNING);
+
+        assertEquals(List.of(first.getId()), ids(updated));
+        assertEquals(TaskStatus.RUNNING, projectGenerationTaskRepository.findById(first.getId()).orElseThrow().getTaskStatus());
+        assertEquals(TaskStatus.CANCELED, projectGenerationTaskRepository.findById(second.getId()).orElseThrow().getTaskStatus());
+    }
+
+    @Test
+    void compareAndSetStatusesTellsLostRowsApartWhenTheDriverReportsNoBatchCounts() {
+        ProjectGenerationTask first = persist("first", TaskStatus.PENDING, 0);
+        ProjectGenerationTask second = persist("second", TaskStatus.PENDING, 0);
+        testEntityManager.clear();
+        projectGenerationTaskRepository.compareAndSetStatus(second.getId(), TaskStatus.PENDING, second.getVersion(), TaskStatus.CANCELED, 0);
+        // what MySQL with rewriteBatchedStatements or Oracle answer to a batch
+        JdbcTemplate noBatchCounts = spy(jdbcTemplate);
+        doAnswer(invocation -> {
+            int[] counts = (int[]) invocation.callRealMethod();
+            Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+            return counts;
+        }).when(noBatchCounts).batchUpdate(anyString(), anyList());
+
+        List<ProjectGenerationTask> updated = new ProjectGenerationTaskRepositoryImpl(noBatchCounts)
+                .compareAndSetStatuses(List.of(first, second), TaskStatus.RUNNING);
+
+        assertEquals(List.of(first.getId()), ids(updated));
+        assertEquals(TaskStatus.CANCELED, projectGenerationTaskRepository.findById(second.getId()).orElseThrow().getTaskStatus());
+    }
+
+    @Test
+    void parametersAreStoredAsOneJsonColumn() {
+        ProjectGenerationTask task = persist("counter", TaskStatus.PENDING, 0);
+        task.getParameters().put("y", "10");
+        task.getParameters().put("x", "1");
+        testEntityManager.flush();
+        testEntityManager.clear();
+
+        assertEquals("{\"x\":\"1\",\"y\":\"10\"}", jdbcTemplate.queryForObject(
+                "SELECT parameters FROM project_generation_task WHERE id = ?", String.class, task.getId()));
+
+        ProjectGenerationTask loaded = projectGenerationTaskRepository.findById(task.getId()).orElseThrow();
+        loaded.getParameters().put("y", "20");
+        testEntityManager.flush();
+        testEntityManager.clear();
+
+        assertEquals(Map.of("x", "1", "y", "20"), projectGenerationTaskRepository.findById(task.getId()).orElseThrow().getParameters());
+    }
+
+    @Test
+    void migrateLegacyParametersMovesJoinTableRows() {
+        assertFalse(projectGenerationTaskRepository.hasLegacyParameters());
+        jdbcTemplate.execute("CREATE TABLE task_parameters (task_id VARCHAR(255) NOT NULL, "
+                + "parameter_value VARCHAR(255), parameter_key VARCHAR(255) NOT NULL, PRIMARY KEY (task_id, parameter_key))");
+        try {
+            migrateLegacyParameters();
+        } finally {
+            // DDL commits the test transaction on H2, so nothing may be left behind for the other tests
+            jdbcTemplate.execute("DELETE FROM project_generation_task");
+            jdbcTemplate.execute("DROP TABLE task_parameters");
+        }
+    }
+
+    private void migrateLegacyParameters() {
+        ProjectGenerationTask first = persist("first", TaskStatus.PENDING, 0);
+        ProjectGenerationTask second = persist("second", TaskStatus.PENDING, 0);
+        ProjectGenerationTask updated = persist("updated", TaskStatus.PENDING, 0);
+        updated.getParameters().put("x", "5");
+        testEntityManager.flush();
+        testEntityManager.clear();
+        for (ProjectGenerationTask task : List.of(first, second, updated)) {
+            jdbcTemplate.update("INSERT INTO task_parameters VALUES (?, '1', 'x')", task.getId());
+            jdbcTemplate.update("INSERT INTO task_parameters VALUES (?, '9', 'y')", task.getId());
+        }
+
+        assertTrue(projectGenerationTaskRepository.hasLegacyParameters());
+        assertEquals(2, projectGenerationTaskRepository.migrateLegacyParameters(2));
+        assertEquals(1, projectGenerationTaskRepository.migrateLegacyParameters(2));
+        assertEquals(0, projectGenerationTaskRepository.migrateLegacyParameters(2));
+
+        assertFalse(projectGenerationTaskRepository.hasLegacyParameters());
+        assertEquals(Map.of("x", "1", "y", "9"), projectGenerationTaskRepository.findById(first.getId()).orElseThrow().getParameters());
+        assertEquals(Map.of("x", "1", "y", "9"), projectGenerationTaskRepository.findById(second.getId()).orElseThrow().getParameters());
+        assertEquals(Map.of("x", "5"), projectGenerationTaskRepository.findById(updated.getId()).orElseThrow().getParameters());
+    }
+
+    private List<String> ids(List<ProjectGenerationTask> tasks) {
+        return tasks.stream().map(ProjectGenerationTask::getId).collect(Collectors.toList());
+    }
+
+    private ProjectGenerationTask dependent(String name, TaskStatus taskStatus, ProjectGenerationTask... upstream) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setId(UUID.randomUUID().toString());
+        projectGenerationTask.setName(name);
+        projectGenerationTask.setTaskType(TaskType.COUNTER);
+        projectGenerationTask.setTaskStatus(taskStatus);
+        projectGenerationTask.setCreationDate(new Date(1000));
+        for (ProjectGenerationTask upstreamTask : upstream) {
+            projectGenerationTask.getDependsOn().add(upstreamTask.getId());
+        }
+        return projectGenerationTask;
+    }
+
+    private int countEdges() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM task_dependency", Integer.class);
+    }
+
+    private ProjectGenerationTask scheduled(String name, TaskStatus taskStatus, Date notBefore) {
+        ProjectGenerationTask projectGenerationTask = persist(name, taskStatus, 0);
+        projectGenerationTask.setNotBefore(notBefore);
+        projectGenerationTask.setIntervalMillis(60_000L);
+        return testEntityManager.persistAndFlush(projectGenerationTask);
+    }
+
+    private ProjectGenerationTask queued(TaskType taskType, String tenant, TaskPriority priority, Date creationDate) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setName(tenant);
+        projectGenerationTask.setTaskType(taskType);
+        projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
+        projectGenerationTask.setTenant(tenant);
+        projectGenerationTask.setPriority(priority);
+        projectGenerationTask.setCreationDate(creationDate);
+        return testEntityManager.persistAndFlush(projectGenerationTask);
+    }
+
+    private ProjectGenerationTask leased(ProjectGenerationTask projectGenerationTask, String owner) {
+        jdbcTemplate.update("UPDATE project_generation_task SET lease_owner = ? WHERE id = ?", owner, projectGenerationTask.getId());
+        return projectGenerationTask;
+    }
+
+    private ProjectGenerationTask persist(String name, TaskStatus taskStatus, int progress) {
+        return persist(name, taskStatus, progress, new Date());
+    }
+
+    private ProjectGenerationTask persist(String name, TaskStatus taskStatus, int progress, Date creationDate) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setName(name);
+        projectGenerationTask.setTaskType(TaskType.COUNTER);
+        projectGenerationTask.setTaskStatus(taskStatus);
+        projectGenerationTask.setProgress(progress);
+        projectGenerationTask.setCreationDate(creationDate);
+        return testEntityManager.persistAndFlush(projectGenerationTask);
+    }
+}
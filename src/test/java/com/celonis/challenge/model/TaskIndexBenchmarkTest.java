@@ -0,0 +1,93 @@
+package com.celonis.challenge.model;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Latency of the status/creation-date and type access paths with and without the entity indexes.
+ * Uses 1M rows by default, run with -Dbenchmark.rows=10000000 (and a larger heap) for the full table.
+ */
+@Tag("benchmark")
+@DataJpaTest(showSql = false)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskIndexBenchmarkTest {
+
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 1_000_000);
+    private static final int ITERATIONS = 20;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+        // 0.1% pending, 0.1% running, 1% STORE_FILE, one row per second back in time
+        jdbcTemplate.update("INSERT INTO project_generation_task "
+                + "(id, task_name, created_on, task_type, task_status, task_progress, version) "
+                + "SELECT CAST(X AS VARCHAR), CONCAT('benchmark-', X), DATEADD('SECOND', -X, CURRENT_TIMESTAMP), "
+                + "CASE WHEN MOD(X, 100) = 0 THEN 'STORE_FILE' ELSE 'COUNTER' END, "
+                + "CASE MOD(X, 1000) WHEN 1 THEN 'PENDING' WHEN 2 THEN 'RUNNING' ELSE 'COMPLETED' END, "
+                + "100, 0 FROM SYSTEM_RANGE(1, ?)", ROWS);
+    }
+
+    @Test
+    void indexedAccessPaths() {
+        jdbcTemplate.execute("DROP INDEX idx_task_status_created_on");
+        jdbcTemplate.execute("DROP INDEX idx_task_type");
+        Map<String, Double> withoutIndexes = measureAll();
+
+        jdbcTemplate.execute("CREATE INDEX idx_task_status_created_on ON project_generation_task (task_status, created_on)");
+        jdbcTemplate.execute("CREATE INDEX idx_task_type ON project_generation_task (task_type)");
+        Map<String, Double> withIndexes = measureAll();
+
+        System.out.printf("%d rows%n", ROWS);
+        System.out.printf("%-36s %14s %14s%n", "query", "no index (ms)", "indexed (ms)");
+        withoutIndexes.forEach((query, millis) ->
+                System.out.printf("%-36s %14.2f %14.2f%n", query, millis, withIndexes.get(query)));
+
+        assertTrue(withIndexes.get("pending ids before date") < withoutIndexes.get("pending ids before date"));
+    }
+
+    private Map<String, Double> measureAll() {
+        Date deadline = Date.from(Instant.now().minus(10, ChronoUnit.DAYS));
+        TaskQuery storeFileTasks = new TaskQuery();
+        storeFileTasks.setTaskType(TaskType.STORE_FILE);
+        storeFileTasks.setLimit(50);
+
+        Map<String, Double> latencies = new LinkedHashMap<>();
+        latencies.put("pending ids before date", measure(() ->
+                projectGenerationTaskRepository.findIdsByTaskStatusAndCreationDateBefore(TaskStatus.PENDING, deadline)));
+        latencies.put("running progress projection", measure(() ->
+                projectGenerationTaskRepository.findProgressByTaskStatus(TaskStatus.RUNNING)));
+        latencies.put("count by type", measure(() ->
+                jdbcTemplate.queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE task_type = 'STORE_FILE'", Long.class)));
+        latencies.put("first page of type", measure(() -> projectGenerationTaskRepository.findPage(storeFileTasks)));
+        return latencies;
+    }
+
+    private double measure(Runnable query) {
+        query.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            query.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}
@@ -0,0 +1,120 @@
+package com.celonis.challenge.model;
+
+import org.hibernate.Session;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Inserts/sec of tasks with two parameters each: JPA persist without and with JDBC batching,
+ * and the JDBC batch insert with random and with time-ordered ids.
+ * Uses 100k tasks by default, change with -Dbenchmark.rows. Runs against H2 unless
+ * -Dspring.datasource.url (with user and password) points to a MySQL schema.
+ */
+@Tag("benchmark")
+@DataJpaTest(showSql = false)
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskInsertBenchmarkTest {
+
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 100_000);
+    private static final int FLUSH_EVERY = 1000;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        clear();
+    }
+
+    @Test
+    void insertThroughput() {
+        persist(1);
+        clear();
+        double unbatched = persist(1);
+        clear();
+        double batched = persist(100);
+        clear();
+        insertAll(() -> UUID.randomUUID().toString());
+        clear();
+        double randomIds = insertAll(() -> UUID.randomUUID().toString());
+        clear();
+        double orderedIds = insertAll(TimeOrderedUuidGenerator::nextId);
+
+        System.out.printf("%d tasks with 2 parameters%n", ROWS);
+        System.out.printf("%-36s %14s%n", "insert path", "tasks/s");
+        System.out.printf("%-36s %14.0f%n", "JPA persist, unbatched", unbatched);
+        System.out.printf("%-36s %14.0f%n", "JPA persist, batch_size=100", batched);
+        System.out.printf("%-36s %14.0f%n", "JDBC batch, random UUIDs", randomIds);
+        System.out.printf("%-36s %14.0f%n", "JDBC batch, time-ordered UUIDs", orderedIds);
+
+        assertEquals(ROWS, projectGenerationTaskRepository.count());
+    }
+
+    private double persist(int batchSize) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        entityManager.unwrap(Session.class).setJdbcBatchSize(batchSize);
+        long start = System.nanoTime();
+        entityManager.getTransaction().begin();
+        for (int i = 0; i < ROWS; i++) {
+            entityManager.persist(task(i, null));
+            if ((i + 1) % FLUSH_EVERY == 0) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        entityManager.getTransaction().commit();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        entityManager.close();
+        return ROWS / seconds;
+    }
+
+    private double insertAll(Supplier<String> ids) {
+        List<ProjectGenerationTask> tasks = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            tasks.add(task(i, ids.get()));
+        }
+        long start = System.nanoTime();
+        projectGenerationTaskRepository.insertAll(tasks);
+        return ROWS / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private ProjectGenerationTask task(int i, String id) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setId(id);
+        projectGenerationTask.setName("benchmark-" + i);
+        projectGenerationTask.setTaskType(TaskType.COUNTER);
+        projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
+        projectGenerationTask.setCreationDate(new Date());
+        projectGenerationTask.setParameters(Map.of("x", "1", "y", String.valueOf(i + 2)));
+        return projectGenerationTask;
+    }
+
+    private void clear() {
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+}
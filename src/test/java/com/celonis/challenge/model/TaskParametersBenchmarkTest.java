@@ -0,0 +1,195 @@
+package com.celonis.challenge.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Read and write latency of task parameters stored in the former task_parameters join table
+ * and in the JSON parameters column. Writes insert a batch of tasks with four parameters, reads
+ * load a page of tasks with their parameters: one query per task as the lazy collection did,
+ * IN queries of 100 tasks as with @BatchSize, or one query for the JSON column.
+ * Uses 1000 tasks per operation and 50 operations, change with -Dbenchmark.rows and
+ * -Dbenchmark.iterations. Runs against H2 unless -Dspring.datasource.url points to a MySQL schema.
+ */
+@Tag("benchmark")
+@DataJpaTest(showSql = false)
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskParametersBenchmarkTest {
+
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 1000);
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 50);
+    private static final int WARMUP = 10;
+    private static final int IN_CHUNK = 100;
+    private static final TaskParametersConverter CONVERTER = new TaskParametersConverter();
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private long sequence;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.execute("CREATE TABLE legacy_task (id VARCHAR(255) NOT NULL PRIMARY KEY, task_name VARCHAR(255), "
+                + "created_on TIMESTAMP, task_type VARCHAR(255), task_status VARCHAR(255), task_progress INT NOT NULL, "
+                + "storage_location VARCHAR(255))");
+        jdbcTemplate.execute("CREATE TABLE legacy_task_parameters (task_id VARCHAR(255) NOT NULL, parameter_value VARCHAR(255), "
+                + "parameter_key VARCHAR(255) NOT NULL, PRIMARY KEY (task_id, parameter_key))");
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP TABLE legacy_task_parameters");
+        jdbcTemplate.execute("DROP TABLE legacy_task");
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+
+    @Test
+    void compareSchemas() {
+        double[] joinWrites = new double[ITERATIONS];
+        double[] jsonWrites = new double[ITERATIONS];
+        for (int i = -WARMUP; i < ITERATIONS; i++) {
+            List<ProjectGenerationTask> tasks = tasks();
+            long start = System.nanoTime();
+            insertJoinTable(tasks);
+            double joinMillis = (System.nanoTime() - start) / 1e6;
+            tasks = tasks();
+            start = System.nanoTime();
+            projectGenerationTaskRepository.insertAll(tasks);
+            double jsonMillis = (System.nanoTime() - start) / 1e6;
+            if (i >= 0) {
+                joinWrites[i] = joinMillis;
+                jsonWrites[i] = jsonMillis;
+            }
+        }
+
+        double[] perTaskReads = new double[ITERATIONS];
+        double[] batchedReads = new double[ITERATIONS];
+        double[] jsonReads = new double[ITERATIONS];
+        for (int i = -WARMUP; i < ITERATIONS; i++) {
+            int offset = Math.floorMod(i, ITERATIONS) * ROWS;
+            long start = System.nanoTime();
+            Map<String, Map<String, String>> perTask = readJoinTable(offset, 1);
+            double perTaskMillis = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            Map<String, Map<String, String>> batched = readJoinTable(offset, IN_CHUNK);
+            double batchedMillis = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            Map<String, Map<String, String>> json = readJsonColumn(offset);
+            double jsonMillis = (System.nanoTime() - start) / 1e6;
+            assertEquals(ROWS, perTask.size());
+            assertEquals(ROWS, batched.size());
+            assertEquals(ROWS, json.size());
+            if (i >= 0) {
+                perTaskReads[i] = perTaskMillis;
+                batchedReads[i] = batchedMillis;
+                jsonReads[i] = jsonMillis;
+            }
+        }
+
+        long joinRows = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM legacy_task", Long.class)
+                + jdbcTemplate.queryForObject("SELECT COUNT(*) FROM legacy_task_parameters", Long.class);
+        long jsonRows = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM project_generation_task", Long.class);
+
+        System.out.printf("%d tasks with 4 parameters per operation, %d operations%n", ROWS, ITERATIONS);
+        System.out.printf("%-36s %10s %10s%n", "operation", "p50 ms", "p99 ms");
+        print("write, join table", joinWrites);
+        print("write, JSON column", jsonWrites);
+        print("read, join table per task", perTaskReads);
+        print("read, join table IN " + IN_CHUNK, batchedReads);
+        print("read, JSON column", jsonReads);
+        System.out.printf("rows for %d tasks: join table %d, JSON column %d%n", jsonRows, joinRows, jsonRows);
+
+        assertEquals(jsonRows * 5, joinRows);
+    }
+
+    private List<ProjectGenerationTask> tasks() {
+        List<ProjectGenerationTask> tasks = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            long n = sequence++;
+            ProjectGenerationTask task = new ProjectGenerationTask();
+            task.setId(TimeOrderedUuidGenerator.nextId());
+            task.setName("benchmark-" + n);
+            task.setTaskType(TaskType.COUNTER);
+            task.setTaskStatus(TaskStatus.PENDING);
+            task.setCreationDate(new Timestamp(n));
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("x", "1");
+            parameters.put("y", String.valueOf(n + 2));
+            parameters.put("step", "1");
+            parameters.put("label", "counter-" + n);
+            task.setParameters(parameters);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private void insertJoinTable(List<ProjectGenerationTask> tasks) {
+        List<Object[]> taskRows = new ArrayList<>(tasks.size());
+        List<Object[]> parameterRows = new ArrayList<>();
+        for (ProjectGenerationTask task : tasks) {
+            taskRows.add(new Object[]{task.getId(), task.getName(), task.getCreationDate(), task.getTaskType().name(),
+                    task.getTaskStatus().name(), task.getProgress()});
+            task.getParameters().forEach((key, value) -> parameterRows.add(new Object[]{task.getId(), value, key}));
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO legacy_task (id, task_name, created_on, task_type, task_status, task_progress) "
+                + "VALUES (?, ?, ?, ?, ?, ?)", taskRows);
+        jdbcTemplate.batchUpdate("INSERT INTO legacy_task_parameters (task_id, parameter_value, parameter_key) VALUES (?, ?, ?)",
+                parameterRows);
+    }
+
+    private Map<String, Map<String, String>> readJoinTable(int offset, int chunkSize) {
+        Map<String, Map<String, String>> parametersById = new HashMap<>();
+        List<String> ids = jdbcTemplate.queryForList("SELECT id FROM legacy_task ORDER BY created_on LIMIT ? OFFSET ?",
+                String.class, ROWS, offset);
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            List<String> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+            chunk.forEach(id -> parametersById.put(id, new HashMap<>()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            jdbcTemplate.query("SELECT task_id, parameter_key, parameter_value FROM legacy_task_parameters WHERE task_id IN ("
+                            + placeholders + ")",
+                    rs -> {
+                        parametersById.get(rs.getString(1)).put(rs.getString(2), rs.getString(3));
+                    }, chunk.toArray());
+        }
+        return parametersById;
+    }
+
+    private Map<String, Map<String, String>> readJsonColumn(int offset) {
+        Map<String, Map<String, String>> parametersById = new HashMap<>();
+        jdbcTemplate.query("SELECT id, parameters FROM project_generation_task ORDER BY created_on LIMIT ? OFFSET ?",
+                rs -> {
+                    parametersById.put(rs.getString(1), CONVERTER.convertToEntityAttribute(rs.getString(2)));
+                }, ROWS, offset);
+        return parametersById;
+    }
+
+    private static void print(String operation, double[] millis) {
+        double[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-36s %10.2f %10.2f%n", operation, sorted[sorted.length / 2],
+                sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.99) - 1)]);
+    }
+}
@@ -0,0 +1,34 @@
+package com.celonis.challenge.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeOrderedUuidGeneratorTest {
+
+    @Test
+    void idsAreVersion7AndIncreasing() {
+        String previous = TimeOrderedUuidGenerator.nextId();
+        for (int i = 0; i < 100_000; i++) {
+            String next = TimeOrderedUuidGenerator.nextId();
+            assertTrue(next.compareTo(previous) > 0, next + " <= " + previous);
+            previous = next;
+        }
+
+        UUID uuid = UUID.fromString(previous);
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+    }
+
+    @Test
+    void idsStartWithTheCreationTime() {
+        long before = System.currentTimeMillis();
+        UUID uuid = UUID.fromString(TimeOrderedUuidGenerator.nextId());
+
+        long millis = uuid.getMostSignificantBits() >>> 16;
+        assertTrue(millis >= before && millis <= System.currentTimeMillis() + 1000);
+    }
+}
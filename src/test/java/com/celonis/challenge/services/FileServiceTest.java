@@ -1,24 +1,42 @@
 package com.celonis.challenge.services;
 
+import com.celonis.challenge.config.ResultCompression;
+import com.celonis.challenge.config.StorageProperties;
 import com.celonis.challenge.exceptions.BadRequestException;
 import com.celonis.challenge.exceptions.InternalException;
 import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class FileServiceTest {
 
@@ -29,14 +47,28 @@ class FileServiceTest {
 
     private ProjectGenerationTask projectGenerationTask;
 
+    private StorageProperties storageProperties;
+
+    private ResultStore resultStore;
+
+    @TempDir
+    Path storageDirectory;
+
     @BeforeEach
-    void setUp() {
+    void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
-        fileService = new FileService(projectGenerationTaskRepository);
+        storageProperties = new StorageProperties();
+        storageProperties.setDirectory(storageDirectory.resolve("results").toString());
+        resultStore = new ResultStore(storageProperties, projectGenerationTaskRepository, new SimpleMeterRegistry());
+        resultStore.load();
+        fileService = new FileService(projectGenerationTaskRepository, storageProperties, resultStore);
 
         projectGenerationTask = new ProjectGenerationTask();
         projectGenerationTask.setId("task-1");
         projectGenerationTask.setTaskType(TaskType.STORE_FILE);
+        projectGenerationTask.setLeaseOwner("node-a");
+        projectGenerationTask.setVersion(1);
+        when(projectGenerationTaskRepository.updateStorageLocation(anyString(), anyString(), any(), anyLong())).thenReturn(1);
     }
 
     @Test
@@ -45,19 +77,19 @@ class FileServiceTest {
 
         assertThrows(
                 BadRequestException.class,
-                () -> fileService.getTaskResult(projectGenerationTask)
+                () -> fileService.writeTaskResult(projectGenerationTask, new MockHttpServletRequest(), new MockHttpServletResponse())
         );
     }
 
     @Test
-    void getTaskResultForPendingTask() {
+    void getTaskResultForPendingTask() throws Exception {
         projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
 
-        ResponseEntity<FileSystemResource> response =
-                fileService.getTaskResult(projectGenerationTask);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, new MockHttpServletRequest(), response);
 
-        assertEquals(200, response.getStatusCodeValue());
-        assertNull(response.getBody());
+        assertEquals(200, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
     }
 
     @Test
@@ -67,26 +99,96 @@ class FileServiceTest {
 
         assertThrows(
                 InternalException.class,
-                () -> fileService.getTaskResult(projectGenerationTask)
+                () -> fileService.writeTaskResult(projectGenerationTask, new MockHttpServletRequest(), new MockHttpServletResponse())
         );
     }
 
     @Test
     void getTaskResultForExistingFile() throws Exception {
-        File temp = File.createTempFile("test", ".rtf");
-        try (FileWriter fw = new FileWriter(temp)) {
-            fw.write("hello");
-        }
+        completedTaskWithResult("hello");
 
-        projectGenerationTask.setTaskStatus(TaskStatus.COMPLETED);
-        projectGenerationTask.setStorageLocation(temp.getAbsolutePath());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, new MockHttpServletRequest(), response);
 
-        ResponseEntity<FileSystemResource> response =
-                fileService.getTaskResult(projectGenerationTask);
+        assertEquals(200, response.getStatus());
+        assertEquals("hello", response.getContentAsString());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertNotNull(response.getHeader(HttpHeaders.ETAG));
+        assertTrue(response.getHeader(HttpHeaders.CONTENT_DISPOSITION).contains("task-1.rtf"));
+    }
+
+    @Test
+    void getTaskResultNotModifiedForMatchingETag() throws Exception {
+        completedTaskWithResult("hello");
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, new MockHttpServletRequest(), first);
 
-        assertEquals(200, response.getStatusCodeValue());
-        assertNotNull(response.getBody());
-        assertTrue(response.getBody().getFile().exists());
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\", " + first.getHeader(HttpHeaders.ETAG));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void getTaskResultServesByteRange() throws Exception {
+        completedTaskWithResult("0123456789");
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=2-5");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("2345", response.getContentAsString());
+        assertEquals("bytes 2-5/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(4, response.getContentLengthLong());
+    }
+
+    @Test
+    void getTaskResultIgnoresRangeWhenIfRangeIsStale() throws Exception {
+        completedTaskWithResult("0123456789");
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=5-");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"stale\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("0123456789", response.getContentAsString());
+    }
+
+    @Test
+    void getTaskResultRejectsUnsatisfiableRange() throws Exception {
+        completedTaskWithResult("0123456789");
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=20-30");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void getTaskResultHandsFileToSendfile() throws Exception {
+        completedTaskWithResult("0123456789");
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        request.addHeader(HttpHeaders.RANGE, "bytes=-3");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(projectGenerationTask.getStorageLocation(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertEquals(7L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(10L, request.getAttribute("org.apache.tomcat.sendfile.end"));
     }
 
     @Test
@@ -100,6 +202,195 @@ class FileServiceTest {
 
         assertNotNull(projectGenerationTask.getStorageLocation());
         assertTrue(new File(projectGenerationTask.getStorageLocation()).exists());
-        verify(projectGenerationTaskRepository).save(projectGenerationTask);
+        verify(projectGenerationTaskRepository).updateStorageLocation(projectGenerationTask.getId(), projectGenerationTask.getStorageLocation(), "node-a", 1);
+
+        Path stored = Paths.get(projectGenerationTask.getStorageLocation());
+        assertEquals(storageDirectory.resolve("results").resolve("blobs"), stored.getParent().getParent());
+        assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(stored));
+        assertEquals(0, storageDirectory.resolve("results").resolve("parts").toFile().list().length);
+    }
+
+    @Test
+    void storeResultReleasesPreviousResult() throws Exception {
+        Path first = storageDirectory.resolve("first.bin");
+        Files.write(first, new byte[]{1});
+        Path second = storageDirectory.resolve("second.bin");
+        Files.write(second, new byte[]{2});
+
+        fileService.storeResult(projectGenerationTask, first.toUri().toURL());
+        fileService.storeResult(projectGenerationTask, second.toUri().toURL());
+        storageProperties.setUnreferencedTtlMillis(-1);
+        resultStore.evict();
+
+        assertEquals(1, resultStore.getBlobCount());
+        assertArrayEquals(new byte[]{2}, Files.readAllBytes(Paths.get(projectGenerationTask.getStorageLocation())));
+    }
+
+    @Test
+    void storeResultOfUnchangedContentKeepsOneReference() throws Exception {
+        Path source = storageDirectory.resolve("same.bin");
+        Files.write(source, new byte[]{1});
+
+        fileService.storeResult(projectGenerationTask, source.toUri().toURL());
+        fileService.storeResult(projectGenerationTask, source.toUri().toURL());
+        resultStore.release(projectGenerationTask.getStorageLocation());
+        storageProperties.setUnreferencedTtlMillis(-1);
+        resultStore.evict();
+
+        // the second run did not leave a reference no task holds
+        assertEquals(0, resultStore.getBlobCount());
+    }
+
+    @Test
+    void storeResultOfRunThatLostItsLeaseKeepsThePreviousResult() throws Exception {
+        Path first = storageDirectory.resolve("first.bin");
+        Files.write(first, new byte[]{1});
+        Path second = storageDirectory.resolve("second.bin");
+        Files.write(second, new byte[]{2});
+        fileService.storeResult(projectGenerationTask, first.toUri().toURL());
+        String previousLocation = projectGenerationTask.getStorageLocation();
+        // the task was canceled or claimed by another node while the copy ran
+        when(projectGenerationTaskRepository.updateStorageLocation(anyString(), anyString(), any(), anyLong())).thenReturn(0);
+
+        fileService.storeResult(projectGenerationTask, second.toUri().toURL());
+        storageProperties.setUnreferencedTtlMillis(-1);
+        resultStore.evict();
+
+        assertEquals(previousLocation, projectGenerationTask.getStorageLocation());
+        assertEquals(1, resultStore.getBlobCount());
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(Paths.get(previousLocation)));
+    }
+
+    @Test
+    void getTaskResultUsesContentHashAsETag() throws Exception {
+        fileService.storeResult(projectGenerationTask, getClass().getClassLoader().getResource("FileTest.rtf"));
+        projectGenerationTask.setTaskStatus(TaskStatus.COMPLETED);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, new MockHttpServletRequest(), response);
+
+        assertEquals("\"" + resultStore.hashOf(projectGenerationTask.getStorageLocation()) + "\"", response.getHeader(HttpHeaders.ETAG));
+    }
+
+    @Test
+    void storeResultReportsProgressPerChunk() throws Exception {
+        Path source = storageDirectory.resolve("source.bin");
+        Files.write(source, new byte[1000]);
+        storageProperties.setTransferChunkBytes(250);
+
+        List<Integer> progress = new ArrayList<>();
+        fileService.storeResult(projectGenerationTask, source.toUri().toURL(), progress::add);
+
+        assertEquals(List.of(25, 50, 75, 100), progress);
+        assertEquals(1000, Files.size(Paths.get(projectGenerationTask.getStorageLocation())));
+    }
+
+    @Test
+    void storeResultRemovesPartFileWhenAborted() throws Exception {
+        Path source = storageDirectory.resolve("source.bin");
+        Files.write(source, new byte[1000]);
+        storageProperties.setTransferChunkBytes(250);
+
+        assertThrows(IllegalStateException.class, () -> fileService.storeResult(projectGenerationTask, source.toUri().toURL(), progress -> {
+            throw new IllegalStateException("aborted");
+        }));
+
+        assertEquals(0, storageDirectory.resolve("results").resolve("parts").toFile().list().length);
+        assertNull(projectGenerationTask.getStorageLocation());
+    }
+
+    @Test
+    void storeResultCompressesWhenConfigured() throws Exception {
+        storageProperties.setCompression(ResultCompression.GZIP);
+        byte[] content = repeatedText();
+
+        completedTaskWithCompressedResult(content);
+
+        Path stored = Paths.get(projectGenerationTask.getStorageLocation());
+        assertTrue(stored.getFileName().toString().endsWith(".gz"));
+        assertTrue(Files.size(stored) < content.length / 5);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(stored))) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void getTaskResultSendsCompressedResultToAcceptingClient() throws Exception {
+        storageProperties.setCompression(ResultCompression.GZIP);
+        byte[] content = repeatedText();
+        completedTaskWithCompressedResult(content);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeader(HttpHeaders.VARY));
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(Files.size(Paths.get(projectGenerationTask.getStorageLocation())), response.getContentLengthLong());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void getTaskResultDecompressesForOtherClients() throws Exception {
+        storageProperties.setCompression(ResultCompression.DEFLATE);
+        byte[] content = repeatedText();
+        completedTaskWithCompressedResult(content);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate;q=0");
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fileService.writeTaskResult(projectGenerationTask, request, response);
+
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("none", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals("\"" + resultStore.hashOf(projectGenerationTask.getStorageLocation()) + "\"", response.getHeader(HttpHeaders.ETAG));
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void compressedResultsShareTheHashOfTheOriginalBytes() throws Exception {
+        Path source = storageDirectory.resolve("source.rtf");
+        Files.write(source, repeatedText());
+        fileService.storeResult(projectGenerationTask, source.toUri().toURL());
+        String rawLocation = projectGenerationTask.getStorageLocation();
+
+        storageProperties.setCompression(ResultCompression.GZIP);
+        ProjectGenerationTask other = new ProjectGenerationTask();
+        other.setId("task-2");
+        fileService.storeResult(other, source.toUri().toURL());
+
+        assertEquals(rawLocation, other.getStorageLocation());
+        assertEquals(1, resultStore.getBlobCount());
+    }
+
+    private byte[] repeatedText() {
+        StringBuilder text = new StringBuilder("{\\rtf1\\ansi ");
+        for (int i = 0; i < 2000; i++) {
+            text.append("\\par line ").append(i % 50).append(" of the generated project report");
+        }
+        return text.append('}').toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void completedTaskWithCompressedResult(byte[] content) throws Exception {
+        Path source = storageDirectory.resolve("source.rtf");
+        Files.write(source, content);
+        fileService.storeResult(projectGenerationTask, source.toUri().toURL());
+        projectGenerationTask.setTaskStatus(TaskStatus.COMPLETED);
+    }
+
+    private void completedTaskWithResult(String content) throws Exception {
+        File temp = storageDirectory.resolve("task-1.rtf").toFile();
+        try (FileWriter fw = new FileWriter(temp)) {
+            fw.write(content);
+        }
+        projectGenerationTask.setTaskStatus(TaskStatus.COMPLETED);
+        projectGenerationTask.setStorageLocation(temp.getAbsolutePath());
     }
 }
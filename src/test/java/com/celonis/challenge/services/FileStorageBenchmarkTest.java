@@ -0,0 +1,96 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.config.StorageProperties;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Copies a 1 GB result with the former heap stream copy and with FileChannel transfers.
+ * The payload size can be changed with -Dbenchmark.bytes.
+ */
+@Tag("benchmark")
+class FileStorageBenchmarkTest {
+
+    private static final long PAYLOAD_BYTES = Long.getLong("benchmark.bytes", 1024L * 1024 * 1024);
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @TempDir
+    Path directory;
+
+    private Path source;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(projectGenerationTaskRepository.updateStorageLocation(anyString(), anyString(), any(), anyLong())).thenReturn(1);
+        source = directory.resolve("payload.bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileChannel out = FileChannel.open(source, CREATE, WRITE)) {
+            for (long written = 0; written < PAYLOAD_BYTES; written += block.length) {
+                out.write(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, PAYLOAD_BYTES - written)));
+            }
+        }
+    }
+
+    @Test
+    void storeLargeResult() throws Exception {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setDirectory(directory.resolve("results").toString());
+        ResultStore resultStore = new ResultStore(storageProperties, projectGenerationTaskRepository, new SimpleMeterRegistry());
+        resultStore.load();
+        FileService fileService = new FileService(projectGenerationTaskRepository, storageProperties, resultStore);
+
+        Path streamCopy = directory.resolve("stream-copy.bin");
+        long start = System.nanoTime();
+        try (InputStream is = new FileInputStream(source.toFile());
+             OutputStream os = new FileOutputStream(streamCopy.toFile())) {
+            IOUtils.copy(is, os);
+        }
+        double streamSeconds = (System.nanoTime() - start) / 1e9;
+        Files.delete(streamCopy);
+
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setId("benchmark");
+        start = System.nanoTime();
+        fileService.storeResult(task, source.toUri().toURL());
+        double channelSeconds = (System.nanoTime() - start) / 1e9;
+
+        double megabytes = PAYLOAD_BYTES / (1024.0 * 1024.0);
+        System.out.printf("payload %.0f MB%n", megabytes);
+        System.out.printf("%-24s %10s %10s%n", "copy", "seconds", "MB/s");
+        System.out.printf("%-24s %10.2f %10.0f%n", "stream copy (commons-io)", streamSeconds, megabytes / streamSeconds);
+        System.out.printf("%-24s %10.2f %10.0f%n", "FileChannel.transferTo", channelSeconds, megabytes / channelSeconds);
+
+        assertEquals(PAYLOAD_BYTES, Files.size(Paths.get(task.getStorageLocation())));
+    }
+}
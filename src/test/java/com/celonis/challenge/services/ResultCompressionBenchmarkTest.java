@@ -0,0 +1,153 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.config.ResultCompression;
+import com.celonis.challenge.config.StorageProperties;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.BufferedWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Disk usage, network bytes and CPU cost of storing and serving an RTF result
+ * per compression. The payload size can be changed with -Dbenchmark.bytes.
+ */
+@Tag("benchmark")
+class ResultCompressionBenchmarkTest {
+
+    private static final long PAYLOAD_BYTES = Long.getLong("benchmark.bytes", 64L * 1024 * 1024);
+    private static final String[] WORDS = {"project", "task", "report", "generated", "counter", "status", "result",
+            "the", "of", "and", "storage", "file", "download", "completed", "pending", "running"};
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @TempDir
+    Path directory;
+
+    private Path source;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(projectGenerationTaskRepository.updateStorageLocation(anyString(), anyString(), any(), anyLong())).thenReturn(1);
+        source = directory.resolve("payload.rtf");
+        Random random = new Random(42);
+        long written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(source, StandardCharsets.US_ASCII)) {
+            out.write("{\\rtf1\\ansi\\deff0 ");
+            while (written < PAYLOAD_BYTES) {
+                StringBuilder line = new StringBuilder("\\par ");
+                for (int i = 0; i < 12; i++) {
+                    line.append(WORDS[random.nextInt(WORDS.length)]).append(' ').append(random.nextInt(10_000)).append(' ');
+                }
+                out.write(line.toString());
+                written += line.length();
+            }
+            out.write('}');
+        }
+    }
+
+    @Test
+    void compareCompressions() throws Exception {
+        long payload = Files.size(source);
+        System.out.printf("payload %.0f MB%n", payload / (1024.0 * 1024.0));
+        System.out.printf("%-8s %12s %10s %12s %12s %14s %14s%n", "storage", "disk MB", "ratio", "store cpu ms",
+                "encoded MB", "encoded cpu ms", "decoded cpu ms");
+        for (ResultCompression compression : ResultCompression.values()) {
+            StorageProperties storageProperties = new StorageProperties();
+            storageProperties.setDirectory(directory.resolve(compression.name()).toString());
+            storageProperties.setCompression(compression);
+            storageProperties.setSendfile(false);
+            ResultStore resultStore = new ResultStore(storageProperties, projectGenerationTaskRepository, new SimpleMeterRegistry());
+            resultStore.load();
+            FileService fileService = new FileService(projectGenerationTaskRepository, storageProperties, resultStore);
+
+            ProjectGenerationTask task = new ProjectGenerationTask();
+            task.setId(compression.name());
+            task.setTaskType(TaskType.STORE_FILE);
+            long start = threads.getCurrentThreadCpuTime();
+            fileService.storeResult(task, source.toUri().toURL());
+            double storeMillis = (threads.getCurrentThreadCpuTime() - start) / 1e6;
+            task.setTaskStatus(TaskStatus.COMPLETED);
+
+            MockHttpServletRequest accepting = new MockHttpServletRequest();
+            accepting.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+            CountingResponse encoded = new CountingResponse();
+            start = threads.getCurrentThreadCpuTime();
+            fileService.writeTaskResult(task, accepting, encoded);
+            double encodedMillis = (threads.getCurrentThreadCpuTime() - start) / 1e6;
+
+            CountingResponse decoded = new CountingResponse();
+            start = threads.getCurrentThreadCpuTime();
+            fileService.writeTaskResult(task, new MockHttpServletRequest(), decoded);
+            double decodedMillis = (threads.getCurrentThreadCpuTime() - start) / 1e6;
+
+            System.out.printf("%-8s %12.1f %10.1f %12.0f %12.1f %14.0f %14.0f%n", compression.name().toLowerCase(),
+                    resultStore.getTotalBytes() / (1024.0 * 1024.0), (double) payload / resultStore.getTotalBytes(), storeMillis,
+                    encoded.bytes / (1024.0 * 1024.0), encodedMillis, decodedMillis);
+
+            assertEquals(resultStore.getTotalBytes(), encoded.bytes);
+            assertEquals(payload, decoded.bytes);
+        }
+    }
+
+    /**
+     * Counts the body instead of buffering it, so the numbers show the cost of reading and decoding.
+     */
+    private static class CountingResponse extends MockHttpServletResponse {
+
+        private long bytes;
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    bytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    bytes += len;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.config.StorageProperties;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.StorageReferenceCount;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+class ResultStoreTest {
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @TempDir
+    Path directory;
+
+    private StorageProperties storageProperties;
+
+    private ResultStore resultStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        storageProperties = new StorageProperties();
+        storageProperties.setDirectory(directory.resolve("results").toString());
+        resultStore = new ResultStore(storageProperties, projectGenerationTaskRepository, new SimpleMeterRegistry());
+        resultStore.load();
+    }
+
+    @Test
+    void sameContentIsStoredOnce() throws Exception {
+        Path first = source("first.bin", "same content");
+        Path second = source("second.bin", "same content");
+
+        Path a = resultStore.store(first.toUri().toURL(), progress -> { });
+        Path b = resultStore.store(second.toUri().toURL(), progress -> { });
+
+        assertEquals(a, b);
+        assertEquals(1, resultStore.getBlobCount());
+        assertEquals(12, resultStore.getTotalBytes());
+        assertEquals(a.getFileName().toString(), resultStore.hashOf(a.toString()));
+    }
+
+    @Test
+    void releasedResultIsEvictedAfterTtl() throws Exception {
+        Path stored = resultStore.store(source("result.bin", "content").toUri().toURL(), progress -> { });
+        resultStore.store(source("copy.bin", "content").toUri().toURL(), progress -> { });
+
+        resultStore.release(stored.toString());
+        storageProperties.setUnreferencedTtlMillis(-1);
+        resultStore.evict();
+        assertTrue(Files.exists(stored));
+
+        resultStore.release(stored.toString());
+        resultStore.evict();
+        assertFalse(Files.exists(stored));
+        assertEquals(0, resultStore.getBlobCount());
+        assertEquals(0, resultStore.getTotalBytes());
+    }
+
+    @Test
+    void leastRecentlyUsedUnreferencedResultsAreEvictedAboveMaxBytes() throws Exception {
+        storageProperties.setMaxBytes(10);
+        Path oldest = resultStore.store(source("a.bin", "aaaa").toUri().toURL(), progress -> { });
+        Path newer = resultStore.store(source("b.bin", "bbbb").toUri().toURL(), progress -> { });
+        resultStore.release(oldest.toString());
+        Thread.sleep(5);
+        resultStore.release(newer.toString());
+
+        Path referenced = resultStore.store(source("c.bin", "cccc").toUri().toURL(), progress -> { });
+
+        assertFalse(Files.exists(oldest));
+        assertTrue(Files.exists(newer));
+        assertTrue(Files.exists(referenced));
+        assertEquals(8, resultStore.getTotalBytes());
+    }
+
+    @Test
+    void reconcileRecountsReferencesFromTasks() throws Exception {
+        Path kept = resultStore.store(source("kept.bin", "kept").toUri().toURL(), progress -> { });
+        Path dropped = resultStore.store(source("dropped.bin", "dropped").toUri().toURL(), progress -> { });
+        when(projectGenerationTaskRepository.countByStorageLocation())
+                .thenReturn(Collections.singletonList(new StorageReferenceCount(kept.toString(), 1L)));
+
+        resultStore.reconcile();
+        storageProperties.setUnreferencedTtlMillis(-1);
+        resultStore.evict();
+
+        assertTrue(Files.exists(kept));
+        assertFalse(Files.exists(dropped));
+    }
+
+    @Test
+    void resultReferencedThroughAnotherNodeIsNotEvicted() throws Exception {
+        Path stored = resultStore.store(source("result.bin", "content").toUri().toURL(), progress -> { });
+        resultStore.release(stored.toString());
+        // a task stored the same content through another node sharing the directory
+        when(projectGenerationTaskRepository.existsByStorageLocation(stored.toString())).thenReturn(true);
+
+        storageProperties.setUnreferencedTtlMillis(-1);
+        resultStore.evict();
+
+        assertTrue(Files.exists(stored));
+        assertEquals(1, resultStore.getBlobCount());
+    }
+
+    @Test
+    void reconcileKeepsResultsWhoseTaskIsNotWrittenYet() throws Exception {
+        storageProperties.setUnreferencedTtlMillis(-1);
+
+        Path stored = resultStore.store(source("result.bin", "content").toUri().toURL(), progress -> { }, storedPath -> {
+            // the storageLocation of the task is not written yet
+            resultStore.reconcile();
+            resultStore.evict();
+            assertTrue(Files.exists(storedPath));
+        });
+
+        when(projectGenerationTaskRepository.countByStorageLocation())
+                .thenReturn(Collections.singletonList(new StorageReferenceCount(stored.toString(), 1L)));
+        when(projectGenerationTaskRepository.existsByStorageLocation(stored.toString())).thenReturn(true);
+        resultStore.reconcile();
+        resultStore.evict();
+        assertTrue(Files.exists(stored));
+    }
+
+    @Test
+    void locationsOutsideTheStoreAreIgnored() throws Exception {
+        Path outside = source("outside.rtf", "outside");
+
+        resultStore.release(outside.toString());
+
+        assertNull(resultStore.hashOf(outside.toString()));
+        assertTrue(Files.exists(outside));
+    }
+
+    private Path source(String name, String content) throws Exception {
+        return Files.write(directory.resolve(name), content.getBytes());
+    }
+}
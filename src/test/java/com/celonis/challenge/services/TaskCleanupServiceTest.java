@@ -0,0 +1,69 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TaskCleanupServiceTest {
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Mock
+    private ResultStore resultStore;
+
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void purgeDeletesBatchesUntilOneIsNotFull() {
+        TaskCleanupService taskCleanupService = new TaskCleanupService(projectGenerationTaskRepository, resultStore, meterRegistry, 20, 100, 60_000);
+        when(projectGenerationTaskRepository.deleteBatch(eq(TaskStatus.PENDING), any(Date.class), eq(100)))
+                .thenReturn(100, 100, 42);
+
+        TaskCleanupReport report = taskCleanupService.purgePendingTasks();
+
+        assertEquals(242, report.getDeletedRows());
+        assertEquals(3, report.getBatches());
+        assertTrue(report.isCompleted());
+        assertEquals(242, meterRegistry.counter("task.cleanup.deleted").count());
+        verify(projectGenerationTaskRepository, times(3)).deleteBatch(eq(TaskStatus.PENDING), any(Date.class), eq(100));
+        verify(resultStore).reconcile();
+    }
+
+    @Test
+    void purgeStopsWhenTimeBudgetIsSpent() {
+        TaskCleanupService taskCleanupService = new TaskCleanupService(projectGenerationTaskRepository, resultStore, meterRegistry, 20, 100, 50);
+        when(projectGenerationTaskRepository.deleteBatch(eq(TaskStatus.PENDING), any(Date.class), eq(100))).thenAnswer(invocation -> {
+            Thread.sleep(20);
+            return 100;
+        });
+
+        TaskCleanupReport report = taskCleanupService.purgePendingTasks();
+
+        assertFalse(report.isCompleted());
+        assertTrue(report.getBatches() <= 4);
+        assertEquals(report.getBatches() * 100L, report.getDeletedRows());
+    }
+}
@@ -0,0 +1,186 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.model.TimeOrderedUuidGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs a wide graph, one task with thousands of dependents, and a deep one, a chain of tasks,
+ * with dependents resolved from status events against resolving them by polling the waiting
+ * tasks, the way clients orchestrated graphs before. Queued tasks complete on a pool of workers
+ * standing in for the executors of the nodes.
+ */
+@Tag("benchmark")
+@DataJpaTest(showSql = false)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskDependencyBenchmarkTest {
+
+    private static final int WIDTH = 5_000;
+    private static final int DEPTH = 200;
+    private static final int WORKERS = 8;
+    private static final long POLL_INTERVAL_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 120_000;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        clear();
+    }
+
+    @Test
+    void wideAndDeepGraphs() throws InterruptedException {
+        // warms up the JIT and the database, not reported
+        run("wide", this::insertWide, false);
+
+        System.out.printf("%-6s %-10s %8s %10s %12s%n", "graph", "resolution", "tasks", "millis", "ms/level");
+        long wideEvents = report("wide", WIDTH + 1, 2, false, run("wide", this::insertWide, false));
+        report("wide", WIDTH + 1, 2, true, run("wide", this::insertWide, true));
+        long deepEvents = report("deep", DEPTH, DEPTH, false, run("deep", this::insertDeep, false));
+        long deepPolling = report("deep", DEPTH, DEPTH, true, run("deep", this::insertDeep, true));
+
+        assertTrue(wideEvents > 0);
+        // a level of the chain no longer waits for the next poll
+        assertTrue(deepEvents < deepPolling);
+    }
+
+    private static long report(String graph, int tasks, int levels, boolean polling, long millis) {
+        System.out.printf("%-6s %-10s %8d %10d %12.1f%n", graph, polling ? "polling" : "events", tasks, millis, (double) millis / levels);
+        return millis;
+    }
+
+    /**
+     * @return milliseconds from queuing the first task until every task of the graph completed
+     */
+    private long run(String graph, GraphInserter inserter, boolean polling) throws InterruptedException {
+        clear();
+        TaskProgressStore taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        TaskStateMachine taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore);
+        TaskDependencyService taskDependencyService = new TaskDependencyService(projectGenerationTaskRepository, taskStateMachine,
+                mock(TaskQueueService.class), taskProgressStore, new SimpleMeterRegistry(), 500);
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        taskProgressStore.addListener(new TaskEventListener() {
+            @Override
+            public void onProgress(String taskId, int progress) {
+            }
+
+            @Override
+            public void onStatusChange(String taskId, TaskStatus previousStatus, TaskStatus status, int progress) {
+                if (status == TaskStatus.RUNNING) {
+                    workers.execute(() -> taskStateMachine.transition(projectGenerationTaskRepository.findById(taskId).orElseThrow(),
+                            TaskStatus.COMPLETED, 100));
+                }
+            }
+        });
+
+        List<ProjectGenerationTask> tasks = inserter.insert();
+        Thread poller = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                taskDependencyService.resolveWaiting();
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        if (polling) {
+            poller.start();
+        } else {
+            taskDependencyService.start();
+        }
+
+        long start = System.nanoTime();
+        taskStateMachine.transition(tasks.get(0), TaskStatus.RUNNING, 0);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (countCompleted() < tasks.size()) {
+            assertTrue(System.currentTimeMillis() < deadline, graph + " graph did not complete");
+            Thread.sleep(5);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        poller.interrupt();
+        taskDependencyService.stop();
+        workers.shutdownNow();
+        return millis;
+    }
+
+    /**
+     * One root with WIDTH dependents
+     */
+    private List<ProjectGenerationTask> insertWide() {
+        List<ProjectGenerationTask> tasks = new ArrayList<>();
+        ProjectGenerationTask root = task();
+        tasks.add(root);
+        for (int i = 0; i < WIDTH; i++) {
+            ProjectGenerationTask dependent = task();
+            dependent.getDependsOn().add(root.getId());
+            tasks.add(dependent);
+        }
+        projectGenerationTaskRepository.insertAll(tasks);
+        return tasks;
+    }
+
+    /**
+     * A chain of DEPTH tasks, each depending on the one before
+     */
+    private List<ProjectGenerationTask> insertDeep() {
+        List<ProjectGenerationTask> tasks = new ArrayList<>();
+        tasks.add(task());
+        for (int i = 1; i < DEPTH; i++) {
+            ProjectGenerationTask dependent = task();
+            dependent.getDependsOn().add(tasks.get(i - 1).getId());
+            tasks.add(dependent);
+        }
+        projectGenerationTaskRepository.insertAll(tasks);
+        return tasks;
+    }
+
+    private ProjectGenerationTask task() {
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setId(TimeOrderedUuidGenerator.nextId());
+        task.setName("benchmark");
+        task.setTaskType(TaskType.COUNTER);
+        task.setTaskStatus(TaskStatus.PENDING);
+        task.setCreationDate(new Date());
+        return task;
+    }
+
+    private int countCompleted() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE task_status = 'COMPLETED'", Integer.class);
+    }
+
+    private void clear() {
+        jdbcTemplate.update("DELETE FROM task_dependency");
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+
+    private interface GraphInserter {
+        List<ProjectGenerationTask> insert();
+    }
+}
@@ -0,0 +1,201 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.model.TimeOrderedUuidGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs dependency graphs against the database, with the transitions of the executors made by the test.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskDependencyServiceTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private TaskStateMachine taskStateMachine;
+
+    private TaskQueueService taskQueueService;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private TaskDependencyService taskDependencyService;
+
+    @BeforeEach
+    void setUp() {
+        TaskProgressStore taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore);
+        taskQueueService = mock(TaskQueueService.class);
+        when(taskQueueService.getFreeSlots(any())).thenReturn(Integer.MAX_VALUE);
+        meterRegistry = new SimpleMeterRegistry();
+        taskDependencyService = new TaskDependencyService(projectGenerationTaskRepository, taskStateMachine, taskQueueService,
+                taskProgressStore, meterRegistry, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        taskDependencyService.stop();
+        jdbcTemplate.update("DELETE FROM task_dependency");
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+
+    @Test
+    void tasksStartOnceAllTheirDependenciesCompleted() throws InterruptedException {
+        String a = insertTask(TaskStatus.PENDING);
+        String b = insertTask(TaskStatus.PENDING, a);
+        String c = insertTask(TaskStatus.PENDING, a);
+        String d = insertTask(TaskStatus.PENDING, b, c);
+        taskDependencyService.start();
+
+        run(a, TaskStatus.COMPLETED);
+        // both branches run in parallel
+        waitUntil(() -> status(b) == TaskStatus.RUNNING && status(c) == TaskStatus.RUNNING);
+        finish(b, TaskStatus.COMPLETED);
+        Thread.sleep(200);
+        assertEquals(TaskStatus.PENDING, status(d));
+
+        finish(c, TaskStatus.COMPLETED);
+        waitUntil(() -> status(d) == TaskStatus.RUNNING);
+        assertEquals(3, count("task.dependencies.started"));
+        verify(taskQueueService, atLeastOnce()).wakeUp();
+    }
+
+    @Test
+    void failureCancelsEveryTaskDownTheGraph() throws InterruptedException {
+        String a = insertTask(TaskStatus.PENDING);
+        String other = insertTask(TaskStatus.PENDING);
+        String b = insertTask(TaskStatus.PENDING, a);
+        String c = insertTask(TaskStatus.PENDING, b, other);
+        String d = insertTask(TaskStatus.PENDING, c);
+        taskDependencyService.start();
+
+        run(a, TaskStatus.FAILED);
+
+        waitUntil(() -> status(d) == TaskStatus.CANCELED);
+        assertEquals(TaskStatus.CANCELED, status(b));
+        assertEquals(TaskStatus.CANCELED, status(c));
+        assertEquals(TaskStatus.PENDING, status(other));
+        assertEquals(3, count("task.dependencies.canceled"));
+    }
+
+    @Test
+    void resolveWaitingCatchesUpOnTransitionsNoNodeResolved() {
+        String completed = insertTask(TaskStatus.COMPLETED);
+        String deleted = insertTask(TaskStatus.PENDING);
+        String pending = insertTask(TaskStatus.PENDING);
+        List<String> ready = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ready.add(insertTask(TaskStatus.PENDING, completed));
+        }
+        String orphan = insertTask(TaskStatus.PENDING, completed, deleted);
+        String waiting = insertTask(TaskStatus.PENDING, completed, pending);
+        projectGenerationTaskRepository.deleteById(deleted);
+
+        // pages of 2 tasks
+        assertEquals(6, taskDependencyService.resolveWaiting());
+
+        ready.forEach(id -> assertEquals(TaskStatus.RUNNING, status(id), "task " + id));
+        assertEquals(TaskStatus.CANCELED, status(orphan));
+        assertEquals(TaskStatus.PENDING, status(waiting));
+        assertEquals(0, taskDependencyService.resolveWaiting());
+    }
+
+    @Test
+    void readyTasksBeyondTheFreeSlotsOfTheirTypeKeepWaiting() {
+        when(taskQueueService.getFreeSlots(TaskType.COUNTER)).thenReturn(2);
+        String completed = insertTask(TaskStatus.COMPLETED);
+        List<String> ready = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ready.add(insertTask(TaskStatus.PENDING, completed));
+        }
+
+        assertEquals(2, taskDependencyService.resolveDependents(List.of(completed)));
+
+        assertEquals(2, ready.stream().filter(id -> status(id) == TaskStatus.RUNNING).count());
+        assertEquals(3, ready.stream().filter(id -> status(id) == TaskStatus.PENDING).count());
+        // queued tasks are counted once per type and batch
+        verify(taskQueueService).getFreeSlots(TaskType.COUNTER);
+
+        // the periodic check starts the others once slots are free again
+        when(taskQueueService.getFreeSlots(TaskType.COUNTER)).thenReturn(Integer.MAX_VALUE);
+        assertEquals(3, taskDependencyService.resolveWaiting());
+        ready.forEach(id -> assertEquals(TaskStatus.RUNNING, status(id), "task " + id));
+    }
+
+    private String insertTask(TaskStatus taskStatus, String... dependsOn) {
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setId(TimeOrderedUuidGenerator.nextId());
+        task.setName("dependency");
+        task.setTaskType(TaskType.COUNTER);
+        task.setTaskStatus(taskStatus);
+        task.setCreationDate(new Date());
+        task.setDependsOn(List.of(dependsOn));
+        projectGenerationTaskRepository.insertAll(List.of(task));
+        return task.getId();
+    }
+
+    /**
+     * Queues a task and finishes it, the way a claiming node runs it
+     */
+    private void run(String id, TaskStatus status) {
+        assertTrue(taskStateMachine.transition(task(id), TaskStatus.RUNNING, 0));
+        finish(id, status);
+    }
+
+    private void finish(String id, TaskStatus status) {
+        assertTrue(taskStateMachine.transition(task(id), status, status == TaskStatus.COMPLETED ? 100 : 0));
+    }
+
+    private ProjectGenerationTask task(String id) {
+        return projectGenerationTaskRepository.findById(id).orElseThrow();
+    }
+
+    private TaskStatus status(String id) {
+        return task(id).getTaskStatus();
+    }
+
+    private long count(String name) {
+        return (long) meterRegistry.get(name).counter().count();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met within " + TIMEOUT_MILLIS + " ms");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.NotFoundException;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskProgressView;
+import com.celonis.challenge.model.TaskStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TaskEventStreamServiceTest {
+
+    @Mock
+    private TaskService taskService;
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    private TaskProgressStore taskProgressStore;
+
+    private TaskEventStreamService taskEventStreamService;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.initMocks(this);
+        taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        taskEventStreamService = new TaskEventStreamService(taskService, taskProgressStore, 60_000, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        taskEventStreamService.shutdown();
+    }
+
+    @Test
+    void subscriptionEndsWhenTaskReachesFinalStatus() throws InterruptedException {
+        when(taskService.getProgress("task-1")).thenReturn(new TaskProgressView("task-1", TaskStatus.PENDING, 0));
+
+        SseEmitter emitter = taskEventStreamService.subscribe(List.of("task-1"));
+        assertNotNull(emitter);
+        assertEquals(1, taskEventStreamService.getSubscribedTaskCount());
+
+        taskProgressStore.register("task-1", "node-a", 0, 0).setProgress(50);
+        taskProgressStore.publishStatus("task-1", TaskStatus.RUNNING, TaskStatus.COMPLETED, 100);
+
+        waitUntilNoSubscribers();
+    }
+
+    @Test
+    void multiplexedSubscriptionWaitsForAllTasks() throws InterruptedException {
+        when(taskService.getProgress("task-1")).thenReturn(new TaskProgressView("task-1", TaskStatus.RUNNING, 10));
+        when(taskService.getProgress("task-2")).thenReturn(new TaskProgressView("task-2", TaskStatus.RUNNING, 20));
+
+        taskEventStreamService.subscribe(List.of("task-1", "task-2"));
+        assertEquals(2, taskEventStreamService.getSubscribedTaskCount());
+
+        taskProgressStore.publishStatus("task-1", TaskStatus.RUNNING, TaskStatus.FAILED, 10);
+        Thread.sleep(100);
+        assertEquals(2, taskEventStreamService.getSubscribedTaskCount());
+
+        taskProgressStore.publishStatus("task-2", TaskStatus.RUNNING, TaskStatus.CANCELED, 20);
+        waitUntilNoSubscribers();
+    }
+
+    @Test
+    void tasksRunningOnOtherNodesArePolledFromTheDatabase() throws InterruptedException {
+        when(taskService.getProgress("remote")).thenReturn(new TaskProgressView("remote", TaskStatus.RUNNING, 0, true));
+        when(taskService.getProgress("local")).thenReturn(new TaskProgressView("local", TaskStatus.RUNNING, 0));
+        taskProgressStore.register("local", "node-a", 0, 0);
+        taskEventStreamService.subscribe(List.of("remote", "local"));
+
+        when(taskService.getPersistedProgress(List.of("remote")))
+                .thenReturn(List.of(new TaskProgressView("remote", TaskStatus.RUNNING, 0, true)))
+                .thenReturn(List.of(new TaskProgressView("remote", TaskStatus.RUNNING, 0, false)))
+                .thenReturn(List.of(new TaskProgressView("remote", TaskStatus.RUNNING, 40, false)))
+                .thenReturn(List.of(new TaskProgressView("remote", TaskStatus.COMPLETED, 100, false)));
+
+        // unchanged since the snapshot, then claimed by another node, then its flushed progress
+        assertEquals(0, taskEventStreamService.pollRemoteTasks());
+        assertEquals(1, taskEventStreamService.pollRemoteTasks());
+        assertEquals(1, taskEventStreamService.pollRemoteTasks());
+        assertEquals(1, taskEventStreamService.pollRemoteTasks());
+        verify(taskService, never()).getPersistedProgress(List.of("remote", "local"));
+
+        taskProgressStore.publishStatus("local", TaskStatus.RUNNING, TaskStatus.COMPLETED, 100);
+        waitUntilNoSubscribers();
+        assertEquals(0, taskEventStreamService.pollRemoteTasks());
+    }
+
+    @Test
+    void subscribeToUnknownTaskLeavesNoSubscription() {
+        when(taskService.getProgress("missing")).thenThrow(new NotFoundException());
+
+        assertThrows(NotFoundException.class, () -> taskEventStreamService.subscribe(List.of("missing")));
+        assertEquals(0, taskEventStreamService.getSubscribedTaskCount());
+    }
+
+    private void waitUntilNoSubscribers() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            if (taskEventStreamService.getSubscribedTaskCount() == 0) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Subscription was not released");
+    }
+}
@@ -0,0 +1,107 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.executor.TaskExecutorRegistry;
+import com.celonis.challenge.services.validator.TaskValidatorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares GET /progress served by two repository reads against the in-memory progress store.
+ * Every repository call runs in its own persistence context, like one HTTP request would.
+ */
+@Tag("benchmark")
+@DataJpaTest(showSql = false)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskProgressBenchmarkTest {
+
+    private static final int TASKS = 1_000;
+    private static final long DURATION_MILLIS = 3_000;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private TaskProgressStore taskProgressStore;
+
+    private TaskService taskService;
+
+    private final List<String> taskIds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        projectGenerationTaskRepository.deleteAll();
+        taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        taskService = new TaskService(projectGenerationTaskRepository, new TaskExecutorRegistry(List.of()),
+                new TaskValidatorRegistry(List.of()), taskProgressStore,
+                new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore), null, transactionTemplate, null, null, null);
+
+        List<ProjectGenerationTask> tasks = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            ProjectGenerationTask task = new ProjectGenerationTask();
+            task.setName("benchmark-" + i);
+            task.setTaskType(TaskType.COUNTER);
+            task.setTaskStatus(TaskStatus.RUNNING);
+            task.setCreationDate(new Date());
+            task.getParameters().put("x", "1");
+            task.getParameters().put("y", "1000");
+            tasks.add(task);
+        }
+        projectGenerationTaskRepository.saveAll(tasks).forEach(task -> {
+            taskIds.add(task.getId());
+            taskProgressStore.register(task.getId(), "node-a", 0, 0).setProgress(50);
+        });
+    }
+
+    @Test
+    void progressReads() {
+        TaskProgressStore emptyStore = new TaskProgressStore(projectGenerationTaskRepository);
+        TaskService uncachedService = new TaskService(projectGenerationTaskRepository, new TaskExecutorRegistry(List.of()),
+                new TaskValidatorRegistry(List.of()), emptyStore,
+                new TaskStateMachine(projectGenerationTaskRepository, emptyStore), null, transactionTemplate, null, null, null);
+
+        double repositoryPath = measure(taskId -> {
+            ProjectGenerationTask task = taskService.getTask(taskId);
+            taskService.getTask(task.getId()).getProgress();
+        });
+        double cacheMiss = measure(uncachedService::getProgress);
+        double cacheHit = measure(taskService::getProgress);
+
+        System.out.printf("%-28s %14s%n", "path", "requests/sec");
+        System.out.printf("%-28s %14.0f%n", "two repository reads", repositoryPath);
+        System.out.printf("%-28s %14.0f%n", "progress cache miss", cacheMiss);
+        System.out.printf("%-28s %14.0f%n", "progress cache hit", cacheHit);
+
+        assertTrue(cacheHit > repositoryPath);
+    }
+
+    private double measure(Consumer<String> request) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        while (System.nanoTime() < end) {
+            request.accept(taskIds.get((int) (operations % taskIds.size())));
+            operations++;
+        }
+        return operations / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,91 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskProgressUpdate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+class TaskProgressStoreTest {
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    private TaskProgressStore taskProgressStore;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.initMocks(this);
+        taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+    }
+
+    @Test
+    void flushCoalescesUpdatesOfOneInterval() {
+        TaskProgress first = taskProgressStore.register("task-1", "node-a", 0, 0);
+        TaskProgress second = taskProgressStore.register("task-2", "node-a", 0, 0);
+        taskProgressStore.register("task-3", "node-a", 0, 0);
+
+        first.setProgress(10);
+        first.setProgress(20);
+        second.setProgress(5);
+
+        taskProgressStore.flush();
+
+        verify(projectGenerationTaskRepository).updateRunningProgress(argThat(updates ->
+                progressByTaskId(updates).equals(Map.of("task-1", 20, "task-2", 5))));
+    }
+
+    @Test
+    void flushSkipsCleanSlots() {
+        TaskProgress taskProgress = taskProgressStore.register("task-1", "node-a", 0, 0);
+        taskProgress.setProgress(10);
+
+        taskProgressStore.flush();
+        taskProgressStore.flush();
+
+        verify(projectGenerationTaskRepository).updateRunningProgress(argThat(updates ->
+                progressByTaskId(updates).equals(Map.of("task-1", 10))));
+        verifyNoMoreInteractions(projectGenerationTaskRepository);
+    }
+
+    @Test
+    void flushWritesUnderTheLeaseAndVersionOfTheRun() {
+        taskProgressStore.register("task-1", "node-a", 3, 0).setProgress(10);
+
+        taskProgressStore.flush();
+
+        verify(projectGenerationTaskRepository).updateRunningProgress(argThat(updates -> {
+            TaskProgressUpdate update = updates.iterator().next();
+            return updates.size() == 1 && "node-a".equals(update.getLeaseOwner()) && update.getVersion() == 3;
+        }));
+    }
+
+    @Test
+    void removedTasksAreNotFlushed() {
+        TaskProgress taskProgress = taskProgressStore.register("task-1", "node-a", 0, 0);
+        taskProgress.setProgress(10);
+
+        assertSame(taskProgress, taskProgressStore.remove("task-1"));
+        assertNull(taskProgressStore.get("task-1"));
+
+        taskProgressStore.flush();
+        verify(projectGenerationTaskRepository, never()).updateRunningProgress(anyCollection());
+    }
+
+    private static Map<String, Integer> progressByTaskId(Collection<TaskProgressUpdate> updates) {
+        return updates.stream().collect(Collectors.toMap(TaskProgressUpdate::getTaskId, TaskProgressUpdate::getProgress));
+    }
+}
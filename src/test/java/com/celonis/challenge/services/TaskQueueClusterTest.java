@@ -0,0 +1,241 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.ChallengeApplication;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.fail;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs several nodes of the application in one JVM, sharing nothing but one in-memory
+ * database, the way nodes behind a load balancer share the production database.
+ */
+class TaskQueueClusterTest {
+
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    private final String database = "cluster-" + UUID.randomUUID();
+
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(ConfigurableApplicationContext::close);
+    }
+
+    @Test
+    void queuedTasksAreSpreadOverTheNodesAndRunOnce() throws InterruptedException {
+        startNodes(3, 3);
+        List<String> ids = createTasks(nodes.get(0), 9, 3);
+
+        ids.forEach(nodes.get(0).getBean(TaskService.class)::executeTask);
+
+        waitUntil(() -> countTasks(TaskStatus.COMPLETED) == 9);
+        for (ConfigurableApplicationContext node : nodes) {
+            // every node runs at most 3 tasks, so none of them could take all the work
+            assertEquals(3, claimed(node), "tasks claimed by " + nodeId(node));
+        }
+    }
+
+    @Test
+    void cancelThroughAnotherNodeStopsTheRun() throws InterruptedException {
+        startNodes(3, 0);
+        String id = createTasks(nodes.get(0), 1, 1000).get(0);
+        nodes.get(0).getBean(TaskService.class).executeTask(id);
+        waitUntil(() -> leaseOwner(id) != null);
+        ConfigurableApplicationContext owner = node(leaseOwner(id));
+        waitUntil(() -> owner.getBean(TaskProgressStore.class).get(id) != null);
+
+        ConfigurableApplicationContext other = nodes.get((nodes.indexOf(owner) + 1) % nodes.size());
+        assertNull(other.getBean(TaskProgressStore.class).get(id));
+        other.getBean(TaskService.class).cancelTask(id);
+
+        waitUntil(() -> owner.getBean(TaskProgressStore.class).get(id) == null);
+        assertEquals(1, lost(owner));
+        Thread.sleep(1500);
+        assertEquals(TaskStatus.CANCELED, status(id));
+        assertNull(leaseOwner(id));
+    }
+
+    @Test
+    void tasksOfAStoppedNodeAreTakenOverByTheOthers() throws InterruptedException {
+        startNodes(3, 3);
+        List<String> ids = createTasks(nodes.get(0), 9, 4);
+        ids.forEach(nodes.get(0).getBean(TaskService.class)::executeTask);
+        waitUntil(() -> countLeased() == 9);
+
+        ConfigurableApplicationContext stopped = nodes.remove(2);
+        stopped.close();
+
+        waitUntil(() -> countTasks(TaskStatus.COMPLETED) == 9);
+        // the 3 tasks handed back by the stopped node were claimed a second time
+        assertEquals(9, claimed(nodes.get(0)) + claimed(nodes.get(1)));
+    }
+
+    @Test
+    void runsOfANodeThatMissedItsLeasesAreStopped() throws InterruptedException {
+        startNodes(3, 0);
+        List<String> ids = createTasks(nodes.get(0), 3, 5);
+        ids.forEach(nodes.get(0).getBean(TaskService.class)::executeTask);
+        waitUntil(() -> countLeased() == 3);
+
+        // what the other nodes see of a node stuck past its lease
+        jdbcTemplate().update("UPDATE project_generation_task SET lease_expires_at = ? WHERE task_status = 'RUNNING'",
+                new Date(System.currentTimeMillis() - 1000));
+
+        waitUntil(() -> countTasks(TaskStatus.COMPLETED) == 3);
+        long lost = 0;
+        long claimed = 0;
+        for (ConfigurableApplicationContext node : nodes) {
+            lost += lost(node);
+            claimed += claimed(node);
+        }
+        // every first run gave way to the run of the node that claimed the task again
+        assertEquals(3, lost);
+        assertEquals(6, claimed);
+    }
+
+    @Test
+    void leasesAreRenewedWhileAScheduledJobHoldsTheScheduler() throws InterruptedException {
+        startNodes(2, 0);
+        String id = createTasks(nodes.get(0), 1, 1000).get(0);
+        nodes.get(0).getBean(TaskService.class).executeTask(id);
+        waitUntil(() -> leaseOwner(id) != null);
+        ConfigurableApplicationContext owner = node(leaseOwner(id));
+
+        // a cleanup or eviction run taking longer than the lease, on the one thread of the scheduled jobs
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        owner.getBean(TaskScheduler.class).schedule(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, new Date());
+        try {
+            assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            Date leaseExpiresAt = leaseExpiresAt(id);
+            waitUntil(() -> leaseExpiresAt(id).after(leaseExpiresAt));
+            Thread.sleep(2000);
+
+            assertEquals(nodeId(owner), leaseOwner(id));
+            assertEquals(1, claimed(nodes.get(0)) + claimed(nodes.get(1)));
+            assertEquals(0, lost(owner));
+            assertEquals(TaskStatus.RUNNING, status(id));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private void startNodes(int count, int maxRunning) {
+        for (int i = 0; i < count; i++) {
+            // arguments, unlike default properties, take precedence over application.properties
+            nodes.add(new SpringApplicationBuilder(ChallengeApplication.class).run(
+                    "--server.port=0",
+                    "--spring.datasource.url=jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1",
+                    // the first node creates the schema the others connect to
+                    "--spring.jpa.hibernate.ddl-auto=" + (i == 0 ? "create" : "none"),
+                    "--task.queue.node-id=node-" + i,
+                    "--task.queue.lease-millis=1500",
+                    "--task.queue.heartbeat-millis=300",
+                    "--task.queue.ownership-check-millis=100",
+                    "--task.queue.poll-interval-millis=100",
+                    "--task.queue.batch-size=2",
+                    "--task.queue.max-running=" + maxRunning,
+                    "--task.progress.flush-interval-millis=200"));
+        }
+    }
+
+    private List<String> createTasks(ConfigurableApplicationContext node, int count, int y) {
+        TaskService taskService = node.getBean(TaskService.class);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ProjectGenerationTask task = new ProjectGenerationTask();
+            task.setName("cluster-" + i);
+            task.setTaskType(TaskType.COUNTER);
+            task.setParameters(Map.of("x", "1", "y", String.valueOf(y)));
+            ids.add(taskService.createTask(task).getId());
+        }
+        return ids;
+    }
+
+    private ConfigurableApplicationContext node(String nodeId) {
+        for (ConfigurableApplicationContext node : nodes) {
+            if (nodeId(node).equals(nodeId)) {
+                return node;
+            }
+        }
+        throw new IllegalStateException("No node " + nodeId);
+    }
+
+    private String nodeId(ConfigurableApplicationContext node) {
+        return node.getBean(TaskQueueService.class).getNodeId();
+    }
+
+    private long claimed(ConfigurableApplicationContext node) {
+        return (long) node.getBean(MeterRegistry.class).get("task.queue.claimed").counter().count();
+    }
+
+    private long lost(ConfigurableApplicationContext node) {
+        return (long) node.getBean(MeterRegistry.class).get("task.queue.lost").counter().count();
+    }
+
+    private JdbcTemplate jdbcTemplate() {
+        return nodes.get(0).getBean(JdbcTemplate.class);
+    }
+
+    private TaskStatus status(String id) {
+        return TaskStatus.valueOf(jdbcTemplate().queryForObject(
+                "SELECT task_status FROM project_generation_task WHERE id = ?", String.class, id));
+    }
+
+    private String leaseOwner(String id) {
+        return jdbcTemplate().queryForObject("SELECT lease_owner FROM project_generation_task WHERE id = ?", String.class, id);
+    }
+
+    private Date leaseExpiresAt(String id) {
+        return jdbcTemplate().queryForObject("SELECT lease_expires_at FROM project_generation_task WHERE id = ?", Date.class, id);
+    }
+
+    private int countTasks(TaskStatus taskStatus) {
+        return jdbcTemplate().queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE task_status = ?",
+                Integer.class, taskStatus.name());
+    }
+
+    private int countLeased() {
+        return jdbcTemplate().queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE lease_owner IS NOT NULL",
+                Integer.class);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met within " + TIMEOUT_MILLIS + " ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.TooManyRequestsException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.executor.ResumableTaskExecutor;
+import com.celonis.challenge.services.executor.TaskExecutor;
+import com.celonis.challenge.services.executor.TaskExecutorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TaskRecoveryServiceTest {
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Mock
+    private ResumableTaskExecutor counterTaskExecutor;
+
+    @Mock
+    private TaskExecutor fileStorageTaskExecutor;
+
+    private TaskStateMachine taskStateMachine;
+
+    private TaskExecutorRegistry taskExecutorRegistry;
+
+    private final List<List<String>> failedBatches = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(counterTaskExecutor.getSupportedTaskType()).thenReturn(TaskType.COUNTER);
+        when(fileStorageTaskExecutor.getSupportedTaskType()).thenReturn(TaskType.STORE_FILE);
+        taskExecutorRegistry = new TaskExecutorRegistry(List.of(counterTaskExecutor, fileStorageTaskExecutor));
+        taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, new TaskProgressStore(projectGenerationTaskRepository));
+
+        when(projectGenerationTaskRepository.compareAndSetStatuses(anyList(), eq(TaskStatus.FAILED)))
+                .thenAnswer(invocation -> {
+                    List<ProjectGenerationTask> tasks = new ArrayList<>(invocation.<List<ProjectGenerationTask>>getArgument(0));
+                    failedBatches.add(tasks.stream().map(ProjectGenerationTask::getId).collect(Collectors.toList()));
+                    // a task another node finished since the claim is no longer at the claimed version
+                    tasks.removeIf(task -> task.getId().startsWith("finished"));
+                    return tasks;
+                });
+    }
+
+    @Test
+    void recoverTasksResumesCountersAndFailsTheRest() {
+        ProjectGenerationTask counter = runningTask("counter", TaskType.COUNTER);
+        ProjectGenerationTask file = runningTask("file", TaskType.STORE_FILE);
+
+        List<ProjectGenerationTask> requeued = newRecoveryService(true).recoverTasks(List.of(counter, file));
+
+        assertTrue(requeued.isEmpty());
+        verify(counterTaskExecutor).resume(counter);
+        verify(fileStorageTaskExecutor, never()).execute(any());
+        assertEquals(List.of(List.of(file.getId())), failedBatches);
+        assertEquals(TaskStatus.FAILED, file.getTaskStatus());
+    }
+
+    @Test
+    void recoverTasksFailsCountersWhenResumeIsDisabled() {
+        ProjectGenerationTask counter = runningTask("counter", TaskType.COUNTER);
+
+        assertTrue(newRecoveryService(false).recoverTasks(List.of(counter)).isEmpty());
+
+        verify(counterTaskExecutor, never()).resume(any());
+        assertEquals(List.of(List.of(counter.getId())), failedBatches);
+    }
+
+    @Test
+    void recoverTasksHandsBackTasksWithoutCapacity() {
+        ProjectGenerationTask first = runningTask("counter-1", TaskType.COUNTER);
+        ProjectGenerationTask second = runningTask("counter-2", TaskType.COUNTER);
+        ProjectGenerationTask file = runningTask("file", TaskType.STORE_FILE);
+        doThrow(new TooManyRequestsException("Task capacity reached", 5)).when(counterTaskExecutor).resume(first);
+
+        List<ProjectGenerationTask> requeued = newRecoveryService(true).recoverTasks(List.of(first, second, file));
+
+        // once the capacity of a type is reached its other tasks are not even tried, the other types still are
+        assertEquals(List.of(first, second), requeued);
+        verify(counterTaskExecutor, times(1)).resume(any());
+        assertEquals(List.of(List.of(file.getId())), failedBatches);
+    }
+
+    @Test
+    void recoverTasksOnlyFailsTasksStillAtTheClaimedVersion() {
+        ProjectGenerationTask file = runningTask("file", TaskType.STORE_FILE);
+        ProjectGenerationTask finished = runningTask("finished-file", TaskType.STORE_FILE);
+
+        newRecoveryService(true).recoverTasks(List.of(file, finished));
+
+        assertEquals(List.of(List.of(file.getId(), finished.getId())), failedBatches);
+        assertEquals(TaskStatus.FAILED, file.getTaskStatus());
+        assertEquals(TaskStatus.RUNNING, finished.getTaskStatus());
+    }
+
+    private TaskRecoveryService newRecoveryService(boolean resumeEnabled) {
+        return new TaskRecoveryService(taskExecutorRegistry, taskStateMachine, resumeEnabled);
+    }
+
+    private ProjectGenerationTask runningTask(String id, TaskType taskType) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setId(id);
+        projectGenerationTask.setTaskType(taskType);
+        projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
+        projectGenerationTask.setVersion(2);
+        return projectGenerationTask;
+    }
+}
@@ -0,0 +1,261 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.model.TimeOrderedUuidGenerator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fires scheduled tasks from two schedule services sharing one database, the way two nodes do.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskScheduleServiceTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private TaskProgressStore taskProgressStore;
+
+    private TaskStateMachine taskStateMachine;
+
+    private TaskQueueService taskQueueService;
+
+    private final List<TaskScheduleService> nodes = new ArrayList<>();
+
+    private final List<MeterRegistry> meterRegistries = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore);
+        taskQueueService = mock(TaskQueueService.class);
+        when(taskQueueService.getFreeSlots(any())).thenReturn(Integer.MAX_VALUE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(TaskScheduleService::stop);
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+
+    @Test
+    void dueTaskIsQueuedOnceAtItsTime() throws InterruptedException {
+        Date notBefore = new Date(System.currentTimeMillis() + 300);
+        String id = insertTask(notBefore, null);
+        startNodes(2);
+
+        waitUntil(() -> count("task.schedule.fired") + count("task.schedule.skipped") == 2);
+
+        assertEquals(1, count("task.schedule.fired"));
+        assertEquals(TaskStatus.RUNNING, task(id).getTaskStatus());
+        assertEquals(1, task(id).getVersion());
+        verify(taskQueueService, times(1)).wakeUp();
+    }
+
+    @Test
+    void dueTaskStaysPendingWhileTheQueueIsFull() throws InterruptedException {
+        when(taskQueueService.getFreeSlots(TaskType.COUNTER)).thenReturn(0);
+        String id = insertTask(new Date(System.currentTimeMillis() + 100), null);
+        TaskScheduleService node = newNode();
+        node.start();
+
+        waitUntil(() -> count("task.schedule.skipped") == 1);
+        assertEquals(TaskStatus.PENDING, task(id).getTaskStatus());
+        assertEquals(0, task(id).getVersion());
+        verify(taskQueueService, never()).wakeUp();
+
+        // the next load fires it again once a slot is free
+        when(taskQueueService.getFreeSlots(TaskType.COUNTER)).thenReturn(1);
+        node.load();
+        waitUntil(() -> count("task.schedule.fired") == 1);
+        assertEquals(TaskStatus.RUNNING, task(id).getTaskStatus());
+    }
+
+    @Test
+    void recurringTaskStartsOneRunPerOccurrence() throws InterruptedException {
+        String id = insertTask(new Date(System.currentTimeMillis() + 100), 200L);
+        startNodes(2);
+
+        waitUntil(() -> countRuns(id) >= 3);
+        nodes.forEach(TaskScheduleService::stop);
+        Thread.sleep(100);
+
+        ProjectGenerationTask schedule = task(id);
+        int runs = countRuns(id);
+        // every run advanced the schedule once, no occurrence ran on both nodes
+        assertEquals(runs, schedule.getVersion());
+        assertEquals(TaskStatus.PENDING, schedule.getTaskStatus());
+        List<ProjectGenerationTask> runTasks = projectGenerationTaskRepository.findAll();
+        runTasks.removeIf(task -> !id.equals(task.getScheduleId()));
+        for (ProjectGenerationTask run : runTasks) {
+            assertEquals("scheduled", run.getName());
+            assertEquals(Map.of("x", "1", "y", "3"), run.getParameters());
+            assertNull(run.getIntervalMillis());
+            // queued without a lease
+            assertEquals(TaskStatus.RUNNING, run.getTaskStatus());
+            assertNull(run.getLeaseOwner());
+        }
+    }
+
+    @Test
+    void occurrenceIsSkippedWhileTheQueueIsFull() throws InterruptedException {
+        when(taskQueueService.getFreeSlots(TaskType.COUNTER)).thenReturn(0);
+        String id = insertTask(new Date(System.currentTimeMillis() + 100), 200L);
+        startNodes(1);
+
+        waitUntil(() -> count("task.schedule.skipped") >= 2);
+        nodes.forEach(TaskScheduleService::stop);
+
+        // no run is left behind, the schedule still moves on to its next occurrences
+        assertEquals(0, countRuns(id));
+        assertEquals(0, count("task.schedule.fired"));
+        assertTrue(task(id).getVersion() >= 2);
+        verify(taskQueueService, never()).wakeUp();
+    }
+
+    @Test
+    void canceledScheduleStopsFiring() throws InterruptedException {
+        String id = insertTask(new Date(System.currentTimeMillis() + 300), 200L);
+        startNodes(1);
+        assertTrue(nodes.get(0).isScheduled(id));
+        ProjectGenerationTask schedule = task(id);
+        assertTrue(taskStateMachine.transition(schedule, TaskStatus.CANCELED, 0));
+
+        // off the timer wheel right away instead of once it was due
+        assertFalse(nodes.get(0).isScheduled(id));
+        Thread.sleep(500);
+        assertEquals(0, countRuns(id));
+        assertEquals(0, count("task.schedule.fired") + count("task.schedule.skipped"));
+    }
+
+    @Test
+    void updatedOrDeletedTasksLeaveTheTimerWheel() {
+        long now = System.currentTimeMillis();
+        String updated = insertTask(new Date(now + 60_000), null);
+        String deleted = insertTask(new Date(now + 60_000), null);
+        TaskScheduleService node = newNode();
+        node.load();
+
+        ProjectGenerationTask unscheduled = task(updated);
+        unscheduled.setNotBefore(null);
+        node.schedule(unscheduled);
+        node.unschedule(deleted);
+
+        assertFalse(node.isScheduled(updated));
+        assertFalse(node.isScheduled(deleted));
+        assertEquals(0.0, meterRegistries.get(0).get("task.schedule.pending").gauge().value());
+    }
+
+    @Test
+    void loadKeepsTasksDueWithinTheHorizon() {
+        long now = System.currentTimeMillis();
+        List<String> near = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            near.add(insertTask(new Date(now + 60_000 + i), null));
+        }
+        String far = insertTask(new Date(now + 3_600_000), null);
+        TaskScheduleService node = newNode();
+
+        // pages of 2 tasks
+        assertEquals(5, node.load());
+
+        near.forEach(id -> assertTrue(node.isScheduled(id), "task " + id));
+        assertFalse(node.isScheduled(far));
+    }
+
+    private void startNodes(int count) {
+        for (int i = 0; i < count; i++) {
+            newNode().start();
+        }
+    }
+
+    private TaskScheduleService newNode() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TaskScheduleService node = new TaskScheduleService(projectGenerationTaskRepository, taskStateMachine, taskQueueService, taskProgressStore,
+                new TransactionTemplate(transactionManager), meterRegistry, 10, 600_000, 2);
+        nodes.add(node);
+        meterRegistries.add(meterRegistry);
+        return node;
+    }
+
+    private String insertTask(Date notBefore, Long intervalMillis) {
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setId(TimeOrderedUuidGenerator.nextId());
+        task.setName("scheduled");
+        task.setTaskType(TaskType.COUNTER);
+        task.setTaskStatus(TaskStatus.PENDING);
+        task.setCreationDate(new Date());
+        task.setParameters(Map.of("x", "1", "y", "3"));
+        task.setNotBefore(notBefore);
+        task.setIntervalMillis(intervalMillis);
+        projectGenerationTaskRepository.insertAll(List.of(task));
+        return task.getId();
+    }
+
+    private ProjectGenerationTask task(String id) {
+        return projectGenerationTaskRepository.findById(id).orElseThrow();
+    }
+
+    private int countRuns(String scheduleId) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE schedule_id = ?",
+                Integer.class, scheduleId);
+    }
+
+    private long count(String name) {
+        long count = 0;
+        for (MeterRegistry meterRegistry : meterRegistries) {
+            count += (long) meterRegistry.get(name).counter().count();
+        }
+        return count;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met within " + TIMEOUT_MILLIS + " ms");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.ConflictException;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.model.TimeOrderedUuidGenerator;
+import com.celonis.challenge.services.executor.CounterTaskExecutor;
+import com.celonis.challenge.services.executor.SteppedTask;
+import com.celonis.challenge.services.executor.TaskDispatcher;
+import com.celonis.challenge.services.executor.TaskExecutorRegistry;
+import com.celonis.challenge.services.executor.TaskWatchdog;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Races status transitions of the same tasks from many threads against the database,
+ * with the real compare-and-set updates and no lock in the application.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TaskServiceConcurrencyTest {
+
+    private static final int TASKS = 200;
+    private static final int THREADS = 8;
+
+    @Autowired
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    private TaskService taskService;
+
+    private TaskExecutorRegistry taskExecutorRegistry;
+
+    private TaskStateMachine taskStateMachine;
+
+    private TaskProgressStore taskProgressStore;
+
+    private TaskDispatcher taskDispatcher;
+
+    private ExecutorService threads;
+
+    @BeforeEach
+    void setUp() {
+        // runs are counted instead of started, so every task stays RUNNING once it won the race
+        taskDispatcher = mock(TaskDispatcher.class);
+        when(taskDispatcher.getFreeCapacity()).thenReturn(Integer.MAX_VALUE);
+        when(taskDispatcher.getAvailablePermits(any())).thenReturn(Integer.MAX_VALUE);
+        doAnswer(invocation -> {
+            submitted.incrementAndGet();
+            return null;
+        }).when(taskDispatcher).submit(any(ProjectGenerationTask.class), any(SteppedTask.class));
+        taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore);
+        CounterTaskExecutor counterTaskExecutor = new CounterTaskExecutor(taskStateMachine, taskDispatcher, taskProgressStore,
+                mock(TaskWatchdog.class));
+        taskExecutorRegistry = new TaskExecutorRegistry(List.of(counterTaskExecutor));
+        taskService = new TaskService(projectGenerationTaskRepository, taskExecutorRegistry,
+                null, taskProgressStore, taskStateMachine, newQueue("node-0"), null, null, null, null);
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        threads.shutdownNow();
+        jdbcTemplate.update("DELETE FROM project_generation_task");
+    }
+
+    @Test
+    void concurrentExecutesStartEveryTaskOnce() throws Exception {
+        List<String> ids = insertTasks(TaskStatus.PENDING);
+        Map<String, AtomicInteger> starts = new ConcurrentHashMap<>();
+        AtomicInteger conflicts = new AtomicInteger();
+
+        race(thread -> {
+            List<String> order = new ArrayList<>(ids);
+            Collections.shuffle(order);
+            for (String id : order) {
+                try {
+                    taskService.executeTask(id);
+                    starts.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+                } catch (ConflictException e) {
+                    conflicts.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(TASKS, starts.size());
+        starts.forEach((id, count) -> assertEquals(1, count.get(), "starts of task " + id));
+        assertEquals(TASKS * (THREADS - 1), conflicts.get());
+        // queued, no node runs them yet
+        assertEquals(0, submitted.get());
+        assertEquals(TASKS, countRows(TaskStatus.RUNNING, 1));
+    }
+
+    @Test
+    void concurrentClaimsHandEveryTaskToOneNode() throws Exception {
+        List<String> ids = insertTasks(TaskStatus.PENDING);
+        ids.forEach(taskService::executeTask);
+        AtomicInteger handled = new AtomicInteger();
+
+        race(thread -> {
+            TaskQueueService node = newQueue("node-" + thread);
+            int claimed;
+            while ((claimed = node.poll()) > 0) {
+                handled.addAndGet(claimed);
+            }
+        });
+
+        assertEquals(TASKS, handled.get());
+        assertEquals(TASKS, submitted.get());
+        assertEquals(TASKS, countRows(TaskStatus.RUNNING, 2));
+        assertEquals(0, (int) jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM project_generation_task WHERE lease_owner IS NULL", Integer.class));
+    }
+
+    @Test
+    void rejectedClaimsGoBackToTheQueueAtTheVersionTheyWereQueuedWith() {
+        List<String> ids = insertTasks(TaskStatus.PENDING);
+        ids.forEach(taskService::executeTask);
+        doThrow(new TooManyRequestsException("Concurrency limit reached for COUNTER", 5))
+                .when(taskDispatcher).submit(any(ProjectGenerationTask.class), any(SteppedTask.class));
+        TaskQueueService node = newQueue("node-1");
+
+        assertEquals(0, node.poll());
+        // the other tasks of the rejected type are not tried, and a cancel that read them before still wins
+        verify(taskDispatcher, times(1)).submit(any(ProjectGenerationTask.class), any(SteppedTask.class));
+        assertEquals(TASKS, countRows(TaskStatus.RUNNING, 1));
+        assertEquals(TASKS, (int) jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM project_generation_task WHERE lease_owner IS NULL", Integer.class));
+
+        // a type without permits left is not claimed at all
+        when(taskDispatcher.getAvailablePermits(TaskType.COUNTER)).thenReturn(0);
+        assertEquals(0, node.poll());
+        verify(taskDispatcher, times(1)).submit(any(ProjectGenerationTask.class), any(SteppedTask.class));
+        assertEquals(TASKS, countRows(TaskStatus.RUNNING, 1));
+    }
+
+    @Test
+    void cancelAndCompletionOfTheSameRunNeverBothWin() throws Exception {
+        List<String> ids = insertTasks(TaskStatus.PENDING);
+        ids.forEach(taskService::executeTask);
+        Map<String, TaskStatus> winners = new ConcurrentHashMap<>();
+
+        race(thread -> {
+            for (String id : ids) {
+                if (thread % 2 == 0) {
+                    try {
+                        taskService.cancelTask(id);
+                        assertNull(winners.put(id, TaskStatus.CANCELED), "second winner for task " + id);
+                    } catch (ConflictException e) {
+                        // the task completed or was canceled by another thread first
+                    }
+                } else if (projectGenerationTaskRepository.compareAndSetStatus(id, TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100)) {
+                    // what the run does when it reaches its last value
+                    assertNull(winners.put(id, TaskStatus.COMPLETED), "second winner for task " + id);
+                }
+            }
+        });
+
+        assertEquals(TASKS, winners.size());
+        for (String id : ids) {
+            TaskStatus status = TaskStatus.valueOf(jdbcTemplate.queryForObject(
+                    "SELECT task_status FROM project_generation_task WHERE id = ?", String.class, id));
+            assertEquals(winners.get(id), status, "status of task " + id);
+        }
+        assertEquals(TASKS, countRows(TaskStatus.CANCELED, 2) + countRows(TaskStatus.COMPLETED, 2));
+    }
+
+    private TaskQueueService newQueue(String nodeId) {
+        return new TaskQueueService(projectGenerationTaskRepository, taskExecutorRegistry, taskDispatcher,
+                new TaskRecoveryService(taskExecutorRegistry, taskStateMachine, true), taskStateMachine, taskProgressStore,
+                new SimpleMeterRegistry(), nodeId, 30_000, 10_000, 1000, 1000, 20, 0, 0, 5);
+    }
+
+    private List<String> insertTasks(TaskStatus taskStatus) {
+        List<ProjectGenerationTask> tasks = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            ProjectGenerationTask task = new ProjectGenerationTask();
+            task.setId(TimeOrderedUuidGenerator.nextId());
+            task.setName("race-" + i);
+            task.setTaskType(TaskType.COUNTER);
+            task.setTaskStatus(taskStatus);
+            task.setCreationDate(new Date());
+            task.setParameters(Map.of("x", "1", "y", "1000"));
+            tasks.add(task);
+        }
+        projectGenerationTaskRepository.insertAll(tasks);
+        List<String> ids = new ArrayList<>();
+        tasks.forEach(task -> ids.add(task.getId()));
+        return ids;
+    }
+
+    private void race(Contender contender) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+            futures.add(threads.submit(() -> {
+                start.await();
+                contender.run(thread);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private int countRows(TaskStatus taskStatus, long version) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM project_generation_task WHERE task_status = ? AND version = ?",
+                Integer.class, taskStatus.name(), version);
+    }
+
+    @FunctionalInterface
+    private interface Contender {
+        void run(int thread);
+    }
+}
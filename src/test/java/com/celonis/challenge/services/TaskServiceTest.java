@@ -1,7 +1,16 @@
 package com.celonis.challenge.services;
 
+import com.celonis.challenge.exceptions.BadRequestException;
+import com.celonis.challenge.exceptions.ConflictException;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
 import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskBatchResult;
+import com.celonis.challenge.model.TaskCursor;
+import com.celonis.challenge.model.TaskPage;
+import com.celonis.challenge.model.TaskPriority;
+import com.celonis.challenge.model.TaskProgressView;
+import com.celonis.challenge.model.TaskQuery;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
 import com.celonis.challenge.services.executor.TaskExecutor;
@@ -10,10 +19,16 @@ import com.celonis.challenge.services.validator.TaskValidator;
 import com.celonis.challenge.services.validator.TaskValidatorRegistry;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,7 +36,20 @@ import java.util.Optional;
 
 import static org.junit.Assert.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -42,6 +70,27 @@ class TaskServiceTest {
     @Mock
     TaskExecutor taskExecutor;
 
+    @Mock
+    private TaskProgressStore taskProgressStore;
+
+    @Mock
+    private TaskStateMachine taskStateMachine;
+
+    @Mock
+    private TaskQueueService taskQueueService;
+
+    @Mock
+    private TransactionTemplate transactionTemplate;
+
+    @Mock
+    private ResultStore resultStore;
+
+    @Mock
+    private TaskScheduleService taskScheduleService;
+
+    @Mock
+    private TaskDependencyService taskDependencyService;
+
     @InjectMocks
     private TaskService taskService;
 
@@ -52,6 +101,7 @@ class TaskServiceTest {
         projectGenerationTask1.setName("testing task 1");
         projectGenerationTask1.setProgress(50);
         projectGenerationTask1.setTaskType(TaskType.STORE_FILE);
+        projectGenerationTask1.setCreationDate(new Date(1000));
 
         Map<String, String> params = new HashMap<>();
         params.put("x", "1");
@@ -63,16 +113,66 @@ class TaskServiceTest {
         projectGenerationTask2.setProgress(50);
         projectGenerationTask2.setParameters(params);
         projectGenerationTask2.setTaskType(TaskType.COUNTER);
+        projectGenerationTask2.setCreationDate(new Date(2000));
 
         List<ProjectGenerationTask> TaskList = List.of(projectGenerationTask1, projectGenerationTask2);
 
-        when(projectGenerationTaskRepository.findAll()).thenReturn(TaskList);
+        TaskQuery taskQuery = new TaskQuery();
+        when(projectGenerationTaskRepository.findPage(taskQuery)).thenReturn(TaskList);
 
-        List<ProjectGenerationTask> result = taskService.listTasks();
-        assertEquals(TaskList, result);
-        assertEquals(2, result.size());
+        TaskPage result = taskService.listTasks(taskQuery);
+        assertEquals(TaskList, result.getItems());
+        assertEquals(2, result.getItems().size());
+        assertNull(result.getNextCursor());
+        assertEquals(51, taskQuery.getLimit());
 
-        verify(projectGenerationTaskRepository).findAll();
+        verify(projectGenerationTaskRepository).findPage(taskQuery);
+    }
+
+    @Test
+    void listTasksReturnsCursorOfLastItemWhenMoreRowsExist() {
+        ProjectGenerationTask projectGenerationTask1 = new ProjectGenerationTask();
+        projectGenerationTask1.setId("abc1");
+        projectGenerationTask1.setCreationDate(new Date(1000));
+
+        ProjectGenerationTask projectGenerationTask2 = new ProjectGenerationTask();
+        projectGenerationTask2.setId("abc2");
+        projectGenerationTask2.setCreationDate(new Date(2000));
+
+        TaskQuery taskQuery = new TaskQuery();
+        taskQuery.setLimit(1);
+        when(projectGenerationTaskRepository.findPage(taskQuery)).thenReturn(List.of(projectGenerationTask1, projectGenerationTask2));
+
+        TaskPage result = taskService.listTasks(taskQuery);
+
+        assertEquals(List.of(projectGenerationTask1), result.getItems());
+        TaskCursor cursor = TaskCursor.decode(result.getNextCursor());
+        assertEquals("abc1", cursor.getId());
+        assertEquals(new Date(1000), cursor.getCreationDate());
+    }
+
+    @Test
+    void streamTasksReadsChunksUntilExhausted() {
+        List<ProjectGenerationTask> fullChunk = new ArrayList<>();
+        for (int i = 0; i < TaskService.STREAM_CHUNK_SIZE; i++) {
+            ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+            projectGenerationTask.setId("stream" + i);
+            projectGenerationTask.setCreationDate(new Date(i));
+            fullChunk.add(projectGenerationTask);
+        }
+        ProjectGenerationTask last = new ProjectGenerationTask();
+        last.setId("last");
+        last.setCreationDate(new Date(TaskService.STREAM_CHUNK_SIZE));
+
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+        when(projectGenerationTaskRepository.findPage(any(TaskQuery.class))).thenReturn(fullChunk).thenReturn(List.of(last));
+
+        List<ProjectGenerationTask> streamed = new ArrayList<>();
+        taskService.streamTasks(new TaskQuery(), streamed::add);
+
+        assertEquals(TaskService.STREAM_CHUNK_SIZE + 1, streamed.size());
+        verify(projectGenerationTaskRepository, times(2)).findPage(any(TaskQuery.class));
     }
 
     @Test
@@ -85,12 +185,14 @@ class TaskServiceTest {
         projectGenerationTask.setName("testing task 1");
         projectGenerationTask.setTaskType(TaskType.COUNTER);
         projectGenerationTask.setParameters(params);
+        projectGenerationTask.setPriority(null);
 
         when(taskValidatorRegistry.getTaskValidator(TaskType.COUNTER)).thenReturn(taskValidator);
         when(projectGenerationTaskRepository.save(projectGenerationTask)).thenReturn(projectGenerationTask);
 
         ProjectGenerationTask result = taskService.createTask(projectGenerationTask);
 
+        assertEquals(TaskPriority.NORMAL, result.getPriority());
         assertEquals(TaskType.COUNTER, result.getTaskType());
         assertEquals("testing task 1", result.getName());
         assertEquals(0, result.getProgress());
@@ -121,6 +223,30 @@ class TaskServiceTest {
 
     }
 
+    @Test
+    void getProgressOfRunningTaskSkipsRepository() {
+        TaskProgress taskProgress = new TaskProgress("progressTaskTest1", "node-a", 0, 0, new TaskProgressStore(projectGenerationTaskRepository));
+        taskProgress.setProgress(42);
+        when(taskProgressStore.get("progressTaskTest1")).thenReturn(taskProgress);
+
+        TaskProgressView result = taskService.getProgress("progressTaskTest1");
+
+        assertEquals(TaskStatus.RUNNING, result.getTaskStatus());
+        assertEquals(42, result.getProgress());
+        verifyNoInteractions(projectGenerationTaskRepository);
+    }
+
+    @Test
+    void getProgressFallsBackToRepository() {
+        when(projectGenerationTaskRepository.findProgressById("progressTaskTest2"))
+                .thenReturn(Optional.of(new TaskProgressView("progressTaskTest2", TaskStatus.COMPLETED, 100)));
+
+        TaskProgressView result = taskService.getProgress("progressTaskTest2");
+
+        assertEquals(TaskStatus.COMPLETED, result.getTaskStatus());
+        assertEquals(100, result.getProgress());
+    }
+
     @Test
     void update() {
         ProjectGenerationTask existingTask = new ProjectGenerationTask();
@@ -146,6 +272,19 @@ class TaskServiceTest {
 
     }
 
+    @Test
+    void updateConflictsWhenTaskChangedConcurrently() {
+        ProjectGenerationTask existingTask = task("updateTaskTest2", "existing testing task 2", TaskType.COUNTER, TaskStatus.PENDING);
+        ProjectGenerationTask newTask = task(null, "updated testing task 2", TaskType.COUNTER, null);
+
+        when(projectGenerationTaskRepository.findById(existingTask.getId())).thenReturn(Optional.of(existingTask));
+        when(taskValidatorRegistry.getTaskValidator(TaskType.COUNTER)).thenReturn(taskValidator);
+        when(projectGenerationTaskRepository.save(existingTask))
+                .thenThrow(new ObjectOptimisticLockingFailureException(ProjectGenerationTask.class, existingTask.getId()));
+
+        assertThrows(ConflictException.class, () -> taskService.update("updateTaskTest2", newTask));
+    }
+
     @Test
     void delete() {
         ProjectGenerationTask existingTask = new ProjectGenerationTask();
@@ -156,6 +295,21 @@ class TaskServiceTest {
 
         taskService.delete("deleteTaskTest1");
         verify(projectGenerationTaskRepository).deleteById(existingTask.getId());
+        verify(taskScheduleService).unschedule(existingTask.getId());
+    }
+
+    @Test
+    void deleteReleasesStoredResult() {
+        ProjectGenerationTask existingTask = new ProjectGenerationTask();
+        existingTask.setId("deleteTaskTest2");
+        existingTask.setTaskType(TaskType.STORE_FILE);
+        existingTask.setStorageLocation("/results/blobs/ab/abc");
+        when(projectGenerationTaskRepository.findById("deleteTaskTest2")).thenReturn(Optional.of(existingTask));
+
+        taskService.delete("deleteTaskTest2");
+
+        verify(projectGenerationTaskRepository).deleteById("deleteTaskTest2");
+        verify(resultStore).release("/results/blobs/ab/abc");
     }
 
     @Test
@@ -167,9 +321,18 @@ class TaskServiceTest {
         projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
 
         when(projectGenerationTaskRepository.findById("executeTaskTest1")).thenReturn(Optional.of(projectGenerationTask));
-        when(taskExecutorRegistry.getTaskExecutor(TaskType.COUNTER)).thenReturn(taskExecutor);
         taskService.executeTask("executeTaskTest1");
-        verify(taskExecutor).execute(projectGenerationTask);
+        verify(taskQueueService).enqueue(projectGenerationTask);
+        verifyNoInteractions(taskExecutor);
+    }
+
+    @Test
+    void executeTaskConflictsForCompletedTask() {
+        ProjectGenerationTask projectGenerationTask = task("executeTaskTest2", "execute testing task 2", TaskType.COUNTER, TaskStatus.COMPLETED);
+        when(projectGenerationTaskRepository.findById("executeTaskTest2")).thenReturn(Optional.of(projectGenerationTask));
+
+        assertThrows(ConflictException.class, () -> taskService.executeTask("executeTaskTest2"));
+        verifyNoInteractions(taskQueueService, taskStateMachine);
     }
 
     @Test
@@ -180,33 +343,261 @@ class TaskServiceTest {
         projectGenerationTask.setTaskType(TaskType.COUNTER);
         projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
 
+        projectGenerationTask.setVersion(3);
+
         when(projectGenerationTaskRepository.findById("cancelTaskTest1")).thenReturn(Optional.of(projectGenerationTask));
         when(taskExecutorRegistry.getTaskExecutor(TaskType.COUNTER)).thenReturn(taskExecutor);
+        when(taskStateMachine.transition(projectGenerationTask, TaskStatus.CANCELED, 0)).thenReturn(true);
         ProjectGenerationTask result = taskService.cancelTask("cancelTaskTest1");
         assertEquals(TaskType.COUNTER, result.getTaskType());
         assertEquals("cancel testing task 1", result.getName());
-        assertEquals(TaskStatus.CANCELED, result.getTaskStatus());
 
-        verify(projectGenerationTaskRepository).save(projectGenerationTask);
+        // the run is stopped at the version it was read with, after the compare-and-set
+        InOrder inOrder = inOrder(taskStateMachine, taskExecutor);
+        inOrder.verify(taskStateMachine).transition(projectGenerationTask, TaskStatus.CANCELED, 0);
+        inOrder.verify(taskExecutor).cancel("cancelTaskTest1", 3);
+        verify(projectGenerationTaskRepository, never()).save(any());
     }
 
     @Test
-    void recoverTask() {
-        ProjectGenerationTask projectGenerationTask1 = new ProjectGenerationTask();
-        projectGenerationTask1.setTaskStatus(TaskStatus.RUNNING);
-        projectGenerationTask1.setId("recoverTaskTest1");
+    void cancelTaskPersistsBufferedProgressOfTheRun() {
+        ProjectGenerationTask projectGenerationTask = task("cancelTaskTest3", "cancel testing task 3", TaskType.COUNTER, TaskStatus.RUNNING);
+        projectGenerationTask.setVersion(2);
+        TaskProgress taskProgress = new TaskProgress("cancelTaskTest3", "node-a", 2, 0, new TaskProgressStore(projectGenerationTaskRepository));
+        taskProgress.setProgress(60);
+        when(projectGenerationTaskRepository.findById("cancelTaskTest3")).thenReturn(Optional.of(projectGenerationTask));
+        when(taskProgressStore.get("cancelTaskTest3")).thenReturn(taskProgress);
+        when(taskExecutorRegistry.getTaskExecutor(TaskType.COUNTER)).thenReturn(taskExecutor);
+        when(taskStateMachine.transition(projectGenerationTask, TaskStatus.CANCELED, 60)).thenReturn(true);
 
-        ProjectGenerationTask projectGenerationTask2 = new ProjectGenerationTask();
-        projectGenerationTask1.setTaskStatus(TaskStatus.RUNNING);
-        projectGenerationTask1.setId("recoverTaskTest2");
+        taskService.cancelTask("cancelTaskTest3");
 
-        when(projectGenerationTaskRepository.findByTaskStatus(TaskStatus.RUNNING)).thenReturn(List.of(projectGenerationTask1, projectGenerationTask2));
+        verify(taskExecutor).cancel("cancelTaskTest3", 2);
+    }
+
+    @Test
+    void cancelTaskConflictsWhenTaskChangedConcurrently() {
+        ProjectGenerationTask projectGenerationTask = task("cancelTaskTest2", "cancel testing task 2", TaskType.COUNTER, TaskStatus.RUNNING);
+        when(projectGenerationTaskRepository.findById("cancelTaskTest2")).thenReturn(Optional.of(projectGenerationTask));
+        when(taskStateMachine.transition(projectGenerationTask, TaskStatus.CANCELED, 0)).thenReturn(false);
+
+        assertThrows(ConflictException.class, () -> taskService.cancelTask("cancelTaskTest2"));
+        // the run goes on, it belongs to whoever changed the task
+        verifyNoInteractions(taskExecutorRegistry, taskExecutor);
+    }
+
+    @Test
+    void createTaskRejectsNonPositiveDeadline() {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setName("testing task 1");
+        projectGenerationTask.setTaskType(TaskType.COUNTER);
+        projectGenerationTask.setDeadlineMillis(0L);
+
+        assertThrows(BadRequestException.class, () -> taskService.createTask(projectGenerationTask));
+
+        verify(projectGenerationTaskRepository, never()).save(any());
+    }
 
-        taskService.recoverTask();
+    @Test
+    void createTaskRejectsDeadlineAboveMaximum() {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setName("testing task 1");
+        projectGenerationTask.setTaskType(TaskType.COUNTER);
+        projectGenerationTask.setDeadlineMillis(Long.MAX_VALUE);
+
+        assertThrows(BadRequestException.class, () -> taskService.createTask(projectGenerationTask));
+
+        verify(projectGenerationTaskRepository, never()).save(any());
+    }
+
+    @Test
+    void createTaskSchedulesRecurringTaskAtItsFirstOccurrence() {
+        ProjectGenerationTask projectGenerationTask = task(null, "every minute", TaskType.COUNTER, null);
+        projectGenerationTask.setIntervalMillis(60_000L);
+        when(taskValidatorRegistry.getTaskValidator(TaskType.COUNTER)).thenReturn(taskValidator);
+        when(projectGenerationTaskRepository.save(projectGenerationTask)).thenReturn(projectGenerationTask);
+        long now = System.currentTimeMillis();
+
+        taskService.createTask(projectGenerationTask);
+
+        long firstOccurrence = projectGenerationTask.getNotBefore().getTime();
+        assertTrue(firstOccurrence >= now + 60_000 && firstOccurrence <= System.currentTimeMillis() + 60_000);
+        verify(taskScheduleService).schedule(projectGenerationTask);
+    }
+
+    @Test
+    void createTaskRejectsInvalidSchedule() {
+        ProjectGenerationTask invalidCron = task(null, "invalid cron", TaskType.COUNTER, null);
+        invalidCron.setCron("every day");
+        ProjectGenerationTask shortInterval = task(null, "short interval", TaskType.COUNTER, null);
+        shortInterval.setIntervalMillis(10L);
+        ProjectGenerationTask both = task(null, "both", TaskType.COUNTER, null);
+        both.setCron("0 0 * * * *");
+        both.setIntervalMillis(60_000L);
+        ProjectGenerationTask never = task(null, "never", TaskType.COUNTER, null);
+        never.setCron("0 0 0 30 2 *");
+
+        for (ProjectGenerationTask projectGenerationTask : List.of(invalidCron, shortInterval, both, never)) {
+            assertThrows(BadRequestException.class, () -> taskService.createTask(projectGenerationTask), projectGenerationTask.getName());
+        }
+        verify(projectGenerationTaskRepository, never()).save(any());
+        verifyNoInteractions(taskScheduleService);
+    }
+
+    @Test
+    void executeTaskConflictsForRecurringTask() {
+        ProjectGenerationTask projectGenerationTask = task("executeTaskTest3", "hourly", TaskType.COUNTER, TaskStatus.PENDING);
+        projectGenerationTask.setCron("0 0 * * * *");
+        when(projectGenerationTaskRepository.findById("executeTaskTest3")).thenReturn(Optional.of(projectGenerationTask));
 
-        assertEquals(TaskStatus.FAILED, projectGenerationTask1.getTaskStatus());
-        assertEquals(TaskStatus.FAILED, projectGenerationTask2.getTaskStatus());
+        assertThrows(ConflictException.class, () -> taskService.executeTask("executeTaskTest3"));
+        verifyNoInteractions(taskQueueService, taskStateMachine);
+    }
+
+    @Test
+    void createTaskWithDependenciesInsertsItsEdgesAndResolvesIt() {
+        ProjectGenerationTask projectGenerationTask = task(null, "downstream", TaskType.COUNTER, null);
+        projectGenerationTask.setDependsOn(List.of("upstream-1", "upstream-2", "upstream-1"));
+        when(taskDependencyService.findUpstreamStatuses(List.of(projectGenerationTask)))
+                .thenReturn(Map.of("upstream-1", TaskStatus.COMPLETED, "upstream-2", TaskStatus.RUNNING));
+        when(taskValidatorRegistry.getTaskValidator(TaskType.COUNTER)).thenReturn(taskValidator);
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+        when(projectGenerationTaskRepository.save(projectGenerationTask)).thenReturn(projectGenerationTask);
+
+        taskService.createTask(projectGenerationTask);
+
+        assertEquals(List.of("upstream-1", "upstream-2"), projectGenerationTask.getDependsOn());
+        verify(projectGenerationTaskRepository).insertDependencies(List.of(projectGenerationTask));
+        verify(taskDependencyService).resolve(List.of(projectGenerationTask));
+        verifyNoInteractions(taskScheduleService);
+    }
+
+    @Test
+    void createTaskRejectsInvalidDependencies() {
+        when(taskDependencyService.findUpstreamStatuses(any()))
+                .thenReturn(Map.of("completed", TaskStatus.COMPLETED, "failed", TaskStatus.FAILED));
+        ProjectGenerationTask unknown = task(null, "unknown", TaskType.COUNTER, null);
+        unknown.setDependsOn(List.of("completed", "missing"));
+        ProjectGenerationTask scheduled = task(null, "scheduled", TaskType.COUNTER, null);
+        scheduled.setDependsOn(List.of("completed"));
+        scheduled.setNotBefore(new Date(System.currentTimeMillis() + 60_000));
+        ProjectGenerationTask failed = task(null, "failed", TaskType.COUNTER, null);
+        failed.setDependsOn(List.of("failed"));
+
+        assertThrows(BadRequestException.class, () -> taskService.createTask(unknown));
+        assertThrows(BadRequestException.class, () -> taskService.createTask(scheduled));
+        assertThrows(ConflictException.class, () -> taskService.createTask(failed));
+        verify(projectGenerationTaskRepository, never()).save(any());
+        verifyNoInteractions(transactionTemplate);
+    }
+
+    @Test
+    void executeTaskConflictsWhileDependenciesWait() {
+        ProjectGenerationTask projectGenerationTask = task("executeTaskTest4", "downstream", TaskType.COUNTER, TaskStatus.CANCELED);
+        projectGenerationTask.setDependsOn(List.of("upstream"));
+        when(projectGenerationTaskRepository.findById("executeTaskTest4")).thenReturn(Optional.of(projectGenerationTask));
+        when(taskDependencyService.findUpstreamStatuses(List.of(projectGenerationTask))).thenReturn(Map.of("upstream", TaskStatus.RUNNING));
+
+        assertThrows(ConflictException.class, () -> taskService.executeTask("executeTaskTest4"));
+        verifyNoInteractions(taskQueueService);
+    }
+
+    @Test
+    void createTasksInsertsValidTasksInOneBatch() {
+        ProjectGenerationTask valid = task(null, "valid", TaskType.STORE_FILE, null);
+        ProjectGenerationTask invalid = task(null, "invalid", TaskType.COUNTER, null);
+        ProjectGenerationTask untyped = task(null, "untyped", null, null);
+
+        TaskValidator counterValidator = mock(TaskValidator.class);
+        when(taskValidatorRegistry.getTaskValidator(TaskType.STORE_FILE)).thenReturn(taskValidator);
+        when(taskValidatorRegistry.getTaskValidator(TaskType.COUNTER)).thenReturn(counterValidator);
+        lenient().doThrow(new BadRequestException("Missing required parameters x and y")).when(counterValidator).validate(invalid);
+
+        TaskBatchResult result = taskService.createTasks(List.of(valid, invalid, untyped));
+
+        assertEquals(1, result.getSucceeded());
+        assertEquals(2, result.getFailed());
+        assertEquals(201, result.getItems().get(0).getStatus());
+        assertNotNull(result.getItems().get(0).getTaskId());
+        assertEquals(TaskStatus.PENDING, valid.getTaskStatus());
+        assertEquals(400, result.getItems().get(1).getStatus());
+        assertEquals("Missing required parameters x and y", result.getItems().get(1).getError());
+        assertEquals(400, result.getItems().get(2).getStatus());
+        verify(projectGenerationTaskRepository).insertAll(List.of(valid));
+    }
+
+    @Test
+    void createTasksRejectsOversizedBatch() {
+        List<ProjectGenerationTask> tasks = new ArrayList<>();
+        for (int i = 0; i <= TaskService.MAX_BATCH_SIZE; i++) {
+            tasks.add(new ProjectGenerationTask());
+        }
+
+        assertThrows(BadRequestException.class, () -> taskService.createTasks(tasks));
+        verifyNoInteractions(projectGenerationTaskRepository);
+    }
+
+    @Test
+    void executeTasksReportsEveryItem() {
+        ProjectGenerationTask pending = task("pending", "pending", TaskType.COUNTER, TaskStatus.PENDING);
+        ProjectGenerationTask completed = task("completed", "completed", TaskType.COUNTER, TaskStatus.COMPLETED);
+        ProjectGenerationTask raced = task("raced", "raced", TaskType.COUNTER, TaskStatus.PENDING);
+        ProjectGenerationTask full = task("full", "full", TaskType.STORE_FILE, TaskStatus.PENDING);
+        when(projectGenerationTaskRepository.findAllById(List.of("pending", "missing", "completed", "raced", "full")))
+                .thenReturn(List.of(pending, completed, raced, full));
+        when(taskQueueService.getFreeSlots(TaskType.COUNTER)).thenReturn(5);
+        when(taskQueueService.getFreeSlots(TaskType.STORE_FILE)).thenReturn(0);
+        lenient().doThrow(new ConflictException("Task was changed concurrently")).when(taskQueueService).enqueue(raced, 4);
+        lenient().doThrow(new TooManyRequestsException("Task queue is full", 5)).when(taskQueueService).enqueue(full, 0);
+
+        TaskBatchResult result = taskService.executeTasks(List.of("pending", "missing", "completed", "raced", "full"));
+
+        assertEquals(List.of(202, 404, 409, 409, 429), statuses(result));
+        verify(taskQueueService).enqueue(pending, 5);
+        verify(taskQueueService, never()).enqueue(eq(completed), anyInt());
+        // queued tasks are counted once per type and batch
+        verify(taskQueueService).getFreeSlots(TaskType.COUNTER);
+    }
+
+    @Test
+    void cancelTasksAnswersConflictForTasksThatChangedInBetween() {
+        ProjectGenerationTask running = task("running", "running", TaskType.COUNTER, TaskStatus.RUNNING);
+        running.setProgress(40);
+        ProjectGenerationTask raced = task("raced", "raced", TaskType.COUNTER, TaskStatus.RUNNING);
+        raced.setVersion(4);
+        ProjectGenerationTask pending = task("pending", "pending", TaskType.COUNTER, TaskStatus.PENDING);
+        ProjectGenerationTask completed = task("completed", "completed", TaskType.COUNTER, TaskStatus.COMPLETED);
+        when(projectGenerationTaskRepository.findAllById(List.of("running", "raced", "pending", "completed")))
+                .thenReturn(List.of(running, raced, pending, completed));
+        when(taskExecutorRegistry.getTaskExecutor(TaskType.COUNTER)).thenReturn(taskExecutor);
+        // the pending task was executed and the raced one completed since they were read
+        when(taskStateMachine.transitionEach(List.of(running, raced, pending), TaskStatus.CANCELED)).thenReturn(List.of(running));
+
+        TaskBatchResult result = taskService.cancelTasks(List.of("running", "raced", "pending", "completed"));
+
+        assertEquals(List.of(200, 409, 409, 409), statuses(result));
+        // only the run of the task that moved is stopped
+        verify(taskExecutor).cancel("running", running.getVersion());
+        verify(taskExecutor, never()).cancel(eq("raced"), anyLong());
+        verify(taskExecutor, never()).cancel(eq("completed"), anyLong());
+        // the progress of the run is written by the compare-and-set of the status
+        verify(projectGenerationTaskRepository, never()).updateRunningProgress(any());
+        verify(projectGenerationTaskRepository, never()).save(any());
+    }
+
+    private ProjectGenerationTask task(String id, String name, TaskType taskType, TaskStatus taskStatus) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setId(id);
+        projectGenerationTask.setName(name);
+        projectGenerationTask.setTaskType(taskType);
+        projectGenerationTask.setTaskStatus(taskStatus);
+        return projectGenerationTask;
+    }
 
-        verify(projectGenerationTaskRepository).saveAll(List.of(projectGenerationTask1, projectGenerationTask2));
+    private List<Integer> statuses(TaskBatchResult result) {
+        List<Integer> statuses = new ArrayList<>();
+        result.getItems().forEach(item -> statuses.add(item.getStatus()));
+        return statuses;
     }
-}
\ No newline at end of file
+}
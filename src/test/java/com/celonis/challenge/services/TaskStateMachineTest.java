@@ -0,0 +1,186 @@
+package com.celonis.challenge.services;
+
+import com.celonis.challenge.exceptions.ConflictException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TaskStateMachineTest {
+
+    @Mock
+    private ProjectGenerationTaskRepository projectGenerationTaskRepository;
+
+    private TaskProgressStore taskProgressStore;
+
+    private TaskStateMachine taskStateMachine;
+
+    private final List<String> events = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.initMocks(this);
+        taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        taskProgressStore.addListener(new TaskEventListener() {
+            @Override
+            public void onProgress(String taskId, int progress) {
+            }
+
+            @Override
+            public void onStatusChange(String taskId, TaskStatus previousStatus, TaskStatus status, int progress) {
+                events.add(taskId + ":" + previousStatus + "->" + status);
+            }
+        });
+        taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore);
+        when(projectGenerationTaskRepository.compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt())).thenReturn(true);
+    }
+
+    @Test
+    void transitionTableAllowsOnlyTaskLifecycle() {
+        assertTrue(TaskStatus.PENDING.canTransitionTo(TaskStatus.RUNNING));
+        assertTrue(TaskStatus.PENDING.canTransitionTo(TaskStatus.CANCELED));
+        assertTrue(TaskStatus.RUNNING.canTransitionTo(TaskStatus.COMPLETED));
+        assertTrue(TaskStatus.FAILED.canTransitionTo(TaskStatus.RUNNING));
+        assertTrue(TaskStatus.CANCELED.canTransitionTo(TaskStatus.RUNNING));
+
+        assertFalse(TaskStatus.RUNNING.canTransitionTo(TaskStatus.RUNNING));
+        assertFalse(TaskStatus.RUNNING.canTransitionTo(TaskStatus.PENDING));
+        assertFalse(TaskStatus.CANCELED.canTransitionTo(TaskStatus.CANCELED));
+        assertFalse(TaskStatus.FAILED.canTransitionTo(TaskStatus.CANCELED));
+        for (TaskStatus status : TaskStatus.values()) {
+            assertFalse(TaskStatus.COMPLETED.canTransitionTo(status), "COMPLETED to " + status);
+        }
+        assertFalse(TaskStatus.PENDING.isFinished());
+        assertTrue(TaskStatus.CANCELED.isFinished());
+    }
+
+    @Test
+    void transitionPersistsUpdatesTaskAndPublishes() {
+        ProjectGenerationTask task = task("task-1", TaskStatus.PENDING, 4);
+
+        assertTrue(taskStateMachine.transition(task, TaskStatus.RUNNING, 0));
+
+        verify(projectGenerationTaskRepository).compareAndSetStatus("task-1", TaskStatus.PENDING, 4, TaskStatus.RUNNING, 0);
+        assertEquals(TaskStatus.RUNNING, task.getTaskStatus());
+        assertEquals(5, task.getVersion());
+        assertEquals(List.of("task-1:PENDING->RUNNING"), events);
+    }
+
+    @Test
+    void forbiddenTransitionConflictsWithoutWriting() {
+        ProjectGenerationTask task = task("task-1", TaskStatus.COMPLETED, 2);
+
+        assertThrows(ConflictException.class, () -> taskStateMachine.transition(task, TaskStatus.CANCELED, 100));
+
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    void runOnThisNodeIsDecidedInMemory() {
+        TaskProgress taskProgress = taskProgressStore.register("task-1", "node-a", 1, 40);
+        // a cancel on another thread won the slot and is about to persist
+        assertTrue(taskProgress.transition(TaskStatus.RUNNING, TaskStatus.CANCELED));
+
+        assertFalse(taskStateMachine.transition("task-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100));
+
+        assertEquals(TaskStatus.CANCELED, taskProgress.getStatus());
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    void leavingRunningUnregistersSlot() {
+        TaskProgress taskProgress = taskProgressStore.register("task-1", "node-a", 1, 40);
+
+        assertTrue(taskStateMachine.transition("task-1", TaskStatus.RUNNING, 1, TaskStatus.CANCELED, 40));
+
+        assertEquals(TaskStatus.CANCELED, taskProgress.getStatus());
+        assertNull(taskProgressStore.get("task-1"));
+        assertEquals(List.of("task-1:RUNNING->CANCELED"), events);
+    }
+
+    @Test
+    void slotIsHandedBackWhenAnotherNodeMovedTheRow() {
+        TaskProgress taskProgress = taskProgressStore.register("task-1", "node-a", 1, 40);
+        when(projectGenerationTaskRepository.compareAndSetStatus("task-1", TaskStatus.RUNNING, 1, TaskStatus.CANCELED, 40)).thenReturn(false);
+
+        assertFalse(taskStateMachine.transition("task-1", TaskStatus.RUNNING, 1, TaskStatus.CANCELED, 40));
+
+        assertEquals(TaskStatus.RUNNING, taskProgress.getStatus());
+        assertSame(taskProgress, taskProgressStore.get("task-1"));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    void slotOfLaterRunIsLeftAlone() {
+        TaskProgress laterRun = taskProgressStore.register("task-1", "node-a", 3, 10);
+        when(projectGenerationTaskRepository.compareAndSetStatus("task-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100)).thenReturn(false);
+
+        assertFalse(taskStateMachine.transition("task-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100));
+
+        assertEquals(TaskStatus.RUNNING, laterRun.getStatus());
+        assertSame(laterRun, taskProgressStore.get("task-1"));
+    }
+
+    @Test
+    void transitionEachDecidesRunsOnThisNodeInMemory() {
+        taskProgressStore.register("task-1", "node-a", 1, 40);
+        TaskProgress lost = taskProgressStore.register("task-2", "node-a", 1, 10);
+        ProjectGenerationTask first = task("task-1", TaskStatus.RUNNING, 1);
+        ProjectGenerationTask second = task("task-2", TaskStatus.RUNNING, 1);
+        // the second task was claimed by another node since it was read
+        when(projectGenerationTaskRepository.compareAndSetStatuses(List.of(first, second), TaskStatus.CANCELED)).thenReturn(List.of(first));
+
+        assertEquals(List.of(first), taskStateMachine.transitionEach(List.of(first, second), TaskStatus.CANCELED));
+
+        assertNull(taskProgressStore.get("task-1"));
+        assertEquals(TaskStatus.RUNNING, lost.getStatus());
+        assertSame(lost, taskProgressStore.get("task-2"));
+        assertEquals(TaskStatus.RUNNING, second.getTaskStatus());
+        assertEquals(List.of("task-1:RUNNING->CANCELED"), events);
+    }
+
+    @Test
+    void transitionEachPublishesOnlyTheTasksThatMoved() {
+        ProjectGenerationTask first = task("task-1", TaskStatus.PENDING, 2);
+        ProjectGenerationTask second = task("task-2", TaskStatus.PENDING, 0);
+        // the second task was canceled since it was read
+        when(projectGenerationTaskRepository.compareAndSetStatuses(List.of(first, second), TaskStatus.RUNNING)).thenReturn(List.of(first));
+
+        assertEquals(List.of(first), taskStateMachine.transitionEach(List.of(first, second), TaskStatus.RUNNING));
+
+        assertEquals(TaskStatus.RUNNING, first.getTaskStatus());
+        assertEquals(3, first.getVersion());
+        assertEquals(TaskStatus.PENDING, second.getTaskStatus());
+        assertEquals(List.of("task-1:PENDING->RUNNING"), events);
+    }
+
+    private ProjectGenerationTask task(String id, TaskStatus taskStatus, long version) {
+        ProjectGenerationTask projectGenerationTask = new ProjectGenerationTask();
+        projectGenerationTask.setId(id);
+        projectGenerationTask.setTaskStatus(taskStatus);
+        projectGenerationTask.setVersion(version);
+        return projectGenerationTask;
+    }
+}
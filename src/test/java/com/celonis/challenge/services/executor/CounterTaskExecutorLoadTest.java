@@ -0,0 +1,116 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.config.ExecutionMode;
+import com.celonis.challenge.config.TaskExecutorProperties;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.ProjectGenerationTaskRepository;
+import com.celonis.challenge.model.TaskStatus;
+import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.TaskProgressStore;
+import com.celonis.challenge.services.TaskStateMachine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Keeps an increasing number of counters alive in CONTINUATION mode and checks thread
+ * count and resident memory at each level against the baseline taken before the first one.
+ * Run with mvn test -Pbenchmark -Dload.maxTasks=100000
+ */
+@Tag("benchmark")
+class CounterTaskExecutorLoadTest {
+
+    private static final Logger log = LogManager.getLogger(CounterTaskExecutorLoadTest.class);
+
+    private static final int MAX_EXTRA_THREADS = 10;
+
+    // a suspended counter is a few small objects, the rest is room for heap sizing and GC
+    private static final long MAX_RSS_KB_PER_TASK = 4;
+
+    private static final long RSS_SLACK_KB = 64 * 1024;
+
+    @Test
+    void threadCountStaysFlatWhileConcurrentCountersGrow() throws Exception {
+        int maxTasks = Integer.getInteger("load.maxTasks", 20_000);
+
+        ProjectGenerationTaskRepository repository = mock(ProjectGenerationTaskRepository.class, withSettings().stubOnly());
+        when(repository.compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt())).thenReturn(true);
+
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.setMode(ExecutionMode.CONTINUATION);
+        properties.setContinuationCapacity(maxTasks);
+        TimerWheel timerWheel = new TimerWheel(properties);
+        TaskDispatcher taskDispatcher = new TaskDispatcher(properties, timerWheel, new SimpleMeterRegistry());
+        TaskProgressStore taskProgressStore = new TaskProgressStore(repository);
+        CounterTaskExecutor counterTaskExecutor = new CounterTaskExecutor(new TaskStateMachine(repository, taskProgressStore),
+                taskDispatcher, taskProgressStore, new TaskWatchdog(properties, timerWheel, new SimpleMeterRegistry()));
+
+        int baselineThreads = liveThreads();
+        long baselineKb = residentKb();
+
+        int started = 0;
+        for (int level = maxTasks / 8; level <= maxTasks; level *= 2) {
+            for (; started < level; started++) {
+                counterTaskExecutor.execute(newCounter("load-" + started));
+            }
+            Thread.sleep(1500);
+
+            int threads = liveThreads();
+            long rssKb = residentKb();
+            log.info("tasks={} threads={} suspended={} rss={} kB", level, threads, timerWheel.getPendingCount(), rssKb);
+            assertTrue(threads - baselineThreads <= MAX_EXTRA_THREADS,
+                    "thread count grew from " + baselineThreads + " to " + threads);
+            if (baselineKb >= 0) {
+                assertTrue(rssKb - baselineKb <= level * MAX_RSS_KB_PER_TASK + RSS_SLACK_KB,
+                        "resident memory grew from " + baselineKb + " kB to " + rssKb + " kB for " + level + " tasks");
+            }
+        }
+
+        taskDispatcher.shutdown();
+        timerWheel.stop();
+    }
+
+    private ProjectGenerationTask newCounter(String id) {
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setId(id);
+        task.setTaskType(TaskType.COUNTER);
+        task.setTaskStatus(TaskStatus.PENDING);
+        task.getParameters().put("x", "1");
+        task.getParameters().put("y", "60");
+        return task;
+    }
+
+    private int liveThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * @return resident set size of this JVM, -1 where /proc is not available
+     */
+    private long residentKb() throws IOException {
+        if (!Files.isReadable(Paths.get("/proc/self/status"))) {
+            return -1;
+        }
+        return Files.readAllLines(Paths.get("/proc/self/status")).stream()
+                .filter(line -> line.startsWith("VmRSS:"))
+                .map(line -> Long.parseLong(line.replaceAll("\\D", "")))
+                .findFirst()
+                .orElse(-1L);
+    }
+}
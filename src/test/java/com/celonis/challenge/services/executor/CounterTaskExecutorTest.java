@@ -1,22 +1,44 @@
 package com.celonis.challenge.services.executor;
 
+import com.celonis.challenge.config.ExecutionMode;
+import com.celonis.challenge.config.TaskExecutorProperties;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
 import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
+import com.celonis.challenge.services.TaskProgress;
+import com.celonis.challenge.services.TaskProgressStore;
+import com.celonis.challenge.services.TaskStateMachine;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.fail;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -25,7 +47,14 @@ class CounterTaskExecutorTest {
     @Mock
     private ProjectGenerationTaskRepository projectGenerationTaskRepository;
 
-    @InjectMocks
+    private TimerWheel timerWheel;
+
+    private TaskDispatcher taskDispatcher;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private TaskWatchdog taskWatchdog;
+
     private CounterTaskExecutor counterTaskExecutor;
 
     private ProjectGenerationTask projectGenerationTask;
@@ -33,17 +62,45 @@ class CounterTaskExecutorTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.initMocks(this);
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.getTypeLimits().put(TaskType.COUNTER, 1);
+        timerWheel = new TimerWheel(properties);
+        meterRegistry = new SimpleMeterRegistry();
+        taskDispatcher = new TaskDispatcher(properties, timerWheel, meterRegistry);
+        taskWatchdog = new TaskWatchdog(properties, timerWheel, meterRegistry);
+        TaskProgressStore taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        counterTaskExecutor = new CounterTaskExecutor(new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore),
+                taskDispatcher, taskProgressStore, taskWatchdog);
+
         projectGenerationTask = new ProjectGenerationTask();
         projectGenerationTask.setId("async-1");
         projectGenerationTask.setName("async counter task test-1");
         projectGenerationTask.setTaskType(TaskType.COUNTER);
-        projectGenerationTask.setTaskStatus(TaskStatus.PENDING);
+        // as claimed from the queue
+        projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
+        projectGenerationTask.setVersion(1);
 
         Map<String, String> parameters = new HashMap<>();
         parameters.put("x", "1");
         parameters.put("y", "3");
 
         projectGenerationTask.setParameters(parameters);
+
+        // the row follows every successful compare-and-set, like the database would
+        when(projectGenerationTaskRepository.compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt())).thenAnswer(invocation -> {
+            if (projectGenerationTask.getId().equals(invocation.getArgument(0))) {
+                projectGenerationTask.setTaskStatus(invocation.getArgument(3));
+                projectGenerationTask.setProgress(invocation.getArgument(4));
+            }
+            return true;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        taskDispatcher.shutdown();
+        taskWatchdog.shutdown();
+        timerWheel.stop();
     }
 
     @Test
@@ -52,19 +109,16 @@ class CounterTaskExecutorTest {
     }
 
     @Test
-    void execute_shouldSetTaskRunningImmediately() {
-        when(projectGenerationTaskRepository.save(projectGenerationTask)).thenReturn(projectGenerationTask);
-
+    void execute_shouldRunClaimedTaskWithoutWritingIt() {
         counterTaskExecutor.execute(projectGenerationTask);
 
-        verify(projectGenerationTaskRepository).save(projectGenerationTask);
-        assertEquals(TaskStatus.RUNNING, projectGenerationTask.getTaskStatus());
-        assertEquals(0, projectGenerationTask.getProgress());
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt());
+        verify(projectGenerationTaskRepository, never()).save(any());
+        assertEquals(1, counterTaskExecutor.runningTasks.get("async-1").getVersion());
     }
 
     @Test
     void execute_shouldEventuallyCompleteTask() throws InterruptedException {
-        when(projectGenerationTaskRepository.findById(projectGenerationTask.getId())).thenReturn(Optional.of(projectGenerationTask));
         counterTaskExecutor.execute(projectGenerationTask);
 
         waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED);
@@ -72,6 +126,52 @@ class CounterTaskExecutorTest {
         assertEquals(100, projectGenerationTask.getProgress());
     }
 
+    @Test
+    void execute_shouldCompleteTaskInContinuationMode() throws InterruptedException {
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.setMode(ExecutionMode.CONTINUATION);
+        TaskDispatcher continuationDispatcher = new TaskDispatcher(properties, timerWheel, new SimpleMeterRegistry());
+        TaskProgressStore taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        CounterTaskExecutor continuationExecutor = new CounterTaskExecutor(new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore),
+                continuationDispatcher, taskProgressStore, taskWatchdog);
+
+        continuationExecutor.execute(projectGenerationTask);
+
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED);
+        assertEquals(100, projectGenerationTask.getProgress());
+        continuationDispatcher.shutdown();
+    }
+
+    @Test
+    void execute_shouldUnregisterRunWhenRejected() {
+        counterTaskExecutor.execute(projectGenerationTask);
+
+        ProjectGenerationTask secondTask = new ProjectGenerationTask();
+        secondTask.setId("async-2");
+        secondTask.setTaskType(TaskType.COUNTER);
+        secondTask.setTaskStatus(TaskStatus.RUNNING);
+        secondTask.setVersion(1);
+        secondTask.setParameters(projectGenerationTask.getParameters());
+
+        // the queue gives the rejected task back, nothing of its run is left here
+        assertThrows(TooManyRequestsException.class, () -> counterTaskExecutor.execute(secondTask));
+        assertEquals(List.of("async-1"), new ArrayList<>(counterTaskExecutor.runningTasks.keySet()));
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(eq("async-2"), any(), anyLong(), any(), anyInt());
+    }
+
+    @Test
+    void resume_shouldContinueFromPersistedProgress() throws InterruptedException {
+        projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
+        projectGenerationTask.setProgress(99);
+        projectGenerationTask.getParameters().put("y", "101");
+
+        counterTaskExecutor.resume(projectGenerationTask);
+
+        // 99% of 1..101 leaves two ticks, a restart from x would need a hundred
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED);
+        assertEquals(100, projectGenerationTask.getProgress());
+    }
+
     private void waitUntil(Check condition) throws InterruptedException {
         int retries = 20;
         while (retries-- > 0) {
@@ -91,20 +191,136 @@ class CounterTaskExecutorTest {
 
     @Test
     void cancel() throws InterruptedException {
-        when(projectGenerationTaskRepository.save(projectGenerationTask)).thenReturn(projectGenerationTask);
-        when(projectGenerationTaskRepository.findById(projectGenerationTask.getId())).thenReturn(Optional.of(projectGenerationTask));
-
         projectGenerationTask.getParameters().put("x", "1");
-        projectGenerationTask.getParameters().put("y", "10");
+        projectGenerationTask.getParameters().put("y", "3");
 
         counterTaskExecutor.execute(projectGenerationTask);
 
         Thread.sleep(300);
 
-        counterTaskExecutor.cancel(projectGenerationTask);
+        counterTaskExecutor.cancel(projectGenerationTask.getId(), projectGenerationTask.getVersion());
 
-        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.CANCELED || projectGenerationTask.getTaskStatus() == TaskStatus.FAILED);
+        // the sleeping worker is interrupted, the caller persists the cancellation
+        waitUntil(() -> cancelLatency().count() == 1);
+        assertTrue(cancelLatency().max(TimeUnit.MILLISECONDS) < 500, "stopped after " + cancelLatency().max(TimeUnit.MILLISECONDS) + " ms");
+        assertTrue(counterTaskExecutor.runningTasks.isEmpty());
+        Thread.sleep(3500);
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), eq(TaskStatus.COMPLETED), anyInt());
         Assertions.assertNotEquals(TaskStatus.COMPLETED, projectGenerationTask.getTaskStatus());
-        assertEquals(TaskStatus.CANCELED, projectGenerationTask.getTaskStatus());
     }
-}
\ No newline at end of file
+
+    @Test
+    void execute_shouldFailTaskPastItsDeadline() throws InterruptedException {
+        projectGenerationTask.getParameters().put("y", "1000");
+        projectGenerationTask.setDeadlineMillis(100L);
+
+        counterTaskExecutor.execute(projectGenerationTask);
+
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.FAILED);
+        verify(projectGenerationTaskRepository).compareAndSetStatus("async-1", TaskStatus.RUNNING, 1, TaskStatus.FAILED, 0);
+        assertEquals(1, taskWatchdog.getTimeoutCount(TaskType.COUNTER));
+        assertTrue(counterTaskExecutor.runningTasks.isEmpty());
+        // the worker sleeping between two ticks was released
+        waitUntil(() -> cancelLatency().count() == 1);
+    }
+
+    @Test
+    void cancel_shouldDropDeadlineFromTimerWheel() throws InterruptedException {
+        projectGenerationTask.setDeadlineMillis(60_000L);
+        counterTaskExecutor.execute(projectGenerationTask);
+        assertEquals(1, timerWheel.getPendingCount());
+
+        counterTaskExecutor.cancel(projectGenerationTask.getId(), projectGenerationTask.getVersion());
+
+        assertEquals(0, timerWheel.getPendingCount());
+        Thread.sleep(200);
+        assertEquals(0, taskWatchdog.getTimeoutCount(TaskType.COUNTER));
+    }
+
+    @Test
+    void cancel_shouldIgnoreOtherRunOfTheTask() throws InterruptedException {
+        counterTaskExecutor.execute(projectGenerationTask);
+
+        ProjectGenerationTask staleTask = new ProjectGenerationTask();
+        staleTask.setId(projectGenerationTask.getId());
+        staleTask.setVersion(0);
+        counterTaskExecutor.cancel(staleTask.getId(), staleTask.getVersion());
+
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED);
+        verify(projectGenerationTaskRepository, timeout(1000)).compareAndSetStatus("async-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100);
+    }
+
+    @Test
+    void abandon_shouldStopRunWithoutWritingTask() throws InterruptedException {
+        projectGenerationTask.setDeadlineMillis(60_000L);
+        counterTaskExecutor.execute(projectGenerationTask);
+
+        assertFalse(counterTaskExecutor.abandon("async-1", 0));
+        assertTrue(counterTaskExecutor.abandon("async-1", 1));
+
+        assertNull(counterTaskExecutor.runningTasks.get("async-1"));
+        assertEquals(0, timerWheel.getPendingCount());
+        Thread.sleep(1500);
+        // the task belongs to another node now, this one must not complete it
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt());
+        assertFalse(counterTaskExecutor.abandon("async-1", 1));
+    }
+
+    @Test
+    void cancel_shouldReleaseEveryRunOfManyTasks() throws InterruptedException {
+        int tasks = 10_000;
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.setMode(ExecutionMode.CONTINUATION);
+        SimpleMeterRegistry continuationMeters = new SimpleMeterRegistry();
+        TaskDispatcher continuationDispatcher = new TaskDispatcher(properties, timerWheel, continuationMeters);
+        TaskProgressStore taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        TaskStateMachine taskStateMachine = new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore);
+        CounterTaskExecutor continuationExecutor = new CounterTaskExecutor(taskStateMachine, continuationDispatcher, taskProgressStore, taskWatchdog);
+
+        List<ProjectGenerationTask> running = new ArrayList<>(tasks);
+        List<WeakReference<TaskProgress>> slots = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            ProjectGenerationTask task = new ProjectGenerationTask();
+            task.setId("cancel-" + i);
+            task.setTaskType(TaskType.COUNTER);
+            task.setTaskStatus(TaskStatus.RUNNING);
+            task.getParameters().put("x", "1");
+            task.getParameters().put("y", "1000");
+            continuationExecutor.execute(task);
+            running.add(task);
+            slots.add(new WeakReference<>(taskProgressStore.get(task.getId())));
+        }
+        Thread.sleep(300);
+
+        for (ProjectGenerationTask task : running) {
+            // what TaskService.cancelTask does
+            long version = task.getVersion();
+            assertTrue(taskStateMachine.transition(task, TaskStatus.CANCELED, task.getProgress()));
+            continuationExecutor.cancel(task.getId(), version);
+        }
+
+        Timer latency = continuationMeters.get("task.executor.cancel.latency").tag("type", "COUNTER").timer();
+        waitUntil(() -> latency.count() == tasks);
+        System.out.printf("cancel latency of %d tasks: mean %.3f ms, max %.3f ms%n", tasks,
+                latency.mean(TimeUnit.MILLISECONDS), latency.max(TimeUnit.MILLISECONDS));
+        assertTrue(latency.max(TimeUnit.MILLISECONDS) < 500, "stopped after " + latency.max(TimeUnit.MILLISECONDS) + " ms");
+        assertTrue(continuationExecutor.runningTasks.isEmpty());
+        assertEquals(0, timerWheel.getPendingCount());
+        for (ProjectGenerationTask task : running) {
+            assertNull(taskProgressStore.get(task.getId()));
+        }
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), eq(TaskStatus.FAILED), anyInt());
+
+        // nothing holds on to the runs anymore, not even the buckets of the timer wheel
+        running.clear();
+        waitUntil(() -> {
+            System.gc();
+            return slots.stream().allMatch(slot -> slot.get() == null);
+        });
+        continuationDispatcher.shutdown();
+    }
+
+    private Timer cancelLatency() {
+        return meterRegistry.get("task.executor.cancel.latency").tag("type", "COUNTER").timer();
+    }
+}
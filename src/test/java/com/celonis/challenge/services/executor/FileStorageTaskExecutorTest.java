@@ -1,19 +1,37 @@
 package com.celonis.challenge.services.executor;
 
+import com.celonis.challenge.config.TaskExecutorProperties;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
 import com.celonis.challenge.model.ProjectGenerationTask;
 import com.celonis.challenge.model.ProjectGenerationTaskRepository;
 import com.celonis.challenge.model.TaskStatus;
 import com.celonis.challenge.model.TaskType;
 import com.celonis.challenge.services.FileService;
+import com.celonis.challenge.services.TaskProgressStore;
+import com.celonis.challenge.services.TaskStateMachine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
+import static org.junit.Assert.fail;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -25,6 +43,12 @@ class FileStorageTaskExecutorTest {
     @Mock
     FileService fileService;
 
+    TimerWheel timerWheel;
+
+    TaskDispatcher taskDispatcher;
+
+    TaskWatchdog taskWatchdog;
+
     FileStorageTaskExecutor fileStorageTaskExecutor;
 
     ProjectGenerationTask projectGenerationTask;
@@ -33,11 +57,31 @@ class FileStorageTaskExecutorTest {
     void setUp() {
         MockitoAnnotations.initMocks(this);
 
-        fileStorageTaskExecutor = new FileStorageTaskExecutor(fileService, projectGenerationTaskRepository);
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.getTypeLimits().put(TaskType.STORE_FILE, 1);
+        timerWheel = new TimerWheel(properties);
+        taskDispatcher = new TaskDispatcher(properties, timerWheel, new SimpleMeterRegistry());
+        taskWatchdog = new TaskWatchdog(properties, timerWheel, new SimpleMeterRegistry());
+        TaskProgressStore taskProgressStore = new TaskProgressStore(projectGenerationTaskRepository);
+        fileStorageTaskExecutor = new FileStorageTaskExecutor(fileService,
+                new TaskStateMachine(projectGenerationTaskRepository, taskProgressStore), taskProgressStore, taskDispatcher,
+                taskWatchdog);
         projectGenerationTask = new ProjectGenerationTask();
         projectGenerationTask.setId("File task-1");
         projectGenerationTask.setName("File task-1");
         projectGenerationTask.setTaskType(TaskType.STORE_FILE);
+        // as claimed from the queue
+        projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
+        projectGenerationTask.setVersion(1);
+
+        when(projectGenerationTaskRepository.compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt())).thenReturn(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        taskDispatcher.shutdown();
+        taskWatchdog.shutdown();
+        timerWheel.stop();
     }
 
     @Test
@@ -46,11 +90,13 @@ class FileStorageTaskExecutorTest {
     }
 
     @Test
-    void executeSuccessFlow() throws IOException {
+    void executeSuccessFlow() throws Exception {
         fileStorageTaskExecutor.execute(projectGenerationTask);
 
-        verify(projectGenerationTaskRepository, atLeastOnce()).save(projectGenerationTask);
-        verify(fileService).storeResult(eq(projectGenerationTask), any());
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED);
+        verify(projectGenerationTaskRepository).compareAndSetStatus("File task-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100);
+        verify(projectGenerationTaskRepository, never()).save(any());
+        verify(fileService).storeResult(eq(projectGenerationTask), any(), any());
         assertEquals(TaskType.STORE_FILE, projectGenerationTask.getTaskType());
         assertEquals("File task-1", projectGenerationTask.getName());
         assertEquals(100, projectGenerationTask.getProgress());
@@ -58,21 +104,157 @@ class FileStorageTaskExecutorTest {
     }
 
     @Test
-    void cancelForIncompleteTask() throws IOException {
-        projectGenerationTask.setTaskStatus(TaskStatus.RUNNING);
-        fileStorageTaskExecutor.cancel(projectGenerationTask);
+    void executeReturnsBeforeTheCopyFinishes() throws Exception {
+        CountDownLatch copyStarted = new CountDownLatch(1);
+        CountDownLatch releaseCopy = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            invocation.<IntConsumer>getArgument(2).accept(40);
+            copyStarted.countDown();
+            releaseCopy.await();
+            return null;
+        }).when(fileService).storeResult(eq(projectGenerationTask), any(), any());
+
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+
+        assertTrue(copyStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(TaskStatus.RUNNING, projectGenerationTask.getTaskStatus());
+        releaseCopy.countDown();
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.COMPLETED);
+    }
+
+    @Test
+    void executeFailsTaskWhenCopyFails() throws Exception {
+        doThrow(new IOException("disk full")).when(fileService).storeResult(eq(projectGenerationTask), any(), any());
+
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+
+        waitUntil(() -> projectGenerationTask.getTaskStatus() == TaskStatus.FAILED);
+    }
+
+    @Test
+    void executeUnregistersRunWhenRejected() throws Exception {
+        CountDownLatch releaseCopy = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            releaseCopy.await();
+            return null;
+        }).when(fileService).storeResult(any(), any(), any());
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+
+        ProjectGenerationTask secondTask = new ProjectGenerationTask();
+        secondTask.setId("File task-2");
+        secondTask.setTaskType(TaskType.STORE_FILE);
+        secondTask.setTaskStatus(TaskStatus.RUNNING);
+        secondTask.setVersion(1);
+
+        // the queue gives the rejected task back, nothing of its run is left here
+        assertThrows(TooManyRequestsException.class, () -> fileStorageTaskExecutor.execute(secondTask));
+        assertEquals(List.of("File task-1"), new ArrayList<>(fileStorageTaskExecutor.runningTasks.keySet()));
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(eq("File task-2"), any(), anyLong(), any(), anyInt());
+        releaseCopy.countDown();
+    }
+
+    @Test
+    void cancelStopsRunningCopy() throws Exception {
+        CountDownLatch copyStarted = new CountDownLatch(1);
+        CountDownLatch releaseCopy = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            copyStarted.countDown();
+            releaseCopy.await();
+            invocation.<IntConsumer>getArgument(2).accept(50);
+            return null;
+        }).when(fileService).storeResult(eq(projectGenerationTask), any(), any());
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+        assertTrue(copyStarted.await(5, TimeUnit.SECONDS));
 
-        assertEquals(TaskStatus.CANCELED, projectGenerationTask.getTaskStatus());
-        verify(projectGenerationTaskRepository, atLeastOnce()).save(projectGenerationTask);
+        fileStorageTaskExecutor.cancel(projectGenerationTask.getId(), projectGenerationTask.getVersion());
+        releaseCopy.countDown();
+
+        // the caller persists the cancellation, the run must not complete or fail the task
+        Thread.sleep(500);
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), eq(TaskStatus.RUNNING), anyLong(), any(), anyInt());
+        assertEquals(TaskStatus.RUNNING, projectGenerationTask.getTaskStatus());
+    }
+
+    @Test
+    void cancelInterruptsBlockedCopy() throws Exception {
+        CountDownLatch copyStarted = new CountDownLatch(1);
+        CountDownLatch copyInterrupted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            copyStarted.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                copyInterrupted.countDown();
+                throw new ClosedByInterruptException();
+            }
+            return null;
+        }).when(fileService).storeResult(eq(projectGenerationTask), any(), any());
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+        assertTrue(copyStarted.await(5, TimeUnit.SECONDS));
+
+        fileStorageTaskExecutor.cancel(projectGenerationTask.getId(), projectGenerationTask.getVersion());
+
+        assertTrue(copyInterrupted.await(1, TimeUnit.SECONDS));
+        waitUntil(() -> fileStorageTaskExecutor.runningTasks.isEmpty());
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), eq(TaskStatus.RUNNING), anyLong(), any(), anyInt());
+    }
+
+    @Test
+    void copyPastItsDeadlineIsInterruptedAndFailed() throws Exception {
+        CountDownLatch copyInterrupted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                copyInterrupted.countDown();
+                throw new ClosedByInterruptException();
+            }
+            return null;
+        }).when(fileService).storeResult(eq(projectGenerationTask), any(), any());
+        projectGenerationTask.setDeadlineMillis(100L);
+
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+
+        assertTrue(copyInterrupted.await(5, TimeUnit.SECONDS));
+        verify(projectGenerationTaskRepository, timeout(1000)).compareAndSetStatus("File task-1", TaskStatus.RUNNING, 1, TaskStatus.FAILED, 0);
+        assertEquals(1, taskWatchdog.getTimeoutCount(TaskType.STORE_FILE));
+        waitUntil(() -> fileStorageTaskExecutor.runningTasks.isEmpty());
+    }
+
+    @Test
+    void runDoesNotCompleteTaskThatLeftIt() throws Exception {
+        when(projectGenerationTaskRepository.compareAndSetStatus("File task-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100)).thenReturn(false);
+
+        fileStorageTaskExecutor.execute(projectGenerationTask);
+
+        verify(projectGenerationTaskRepository, timeout(5000)).compareAndSetStatus("File task-1", TaskStatus.RUNNING, 1, TaskStatus.COMPLETED, 100);
+        assertEquals(TaskStatus.RUNNING, projectGenerationTask.getTaskStatus());
     }
 
     @Test
     void cancelForCompletedTask() throws IOException {
         projectGenerationTask.setTaskStatus(TaskStatus.COMPLETED);
 
-        fileStorageTaskExecutor.cancel(projectGenerationTask);
+        fileStorageTaskExecutor.cancel(projectGenerationTask.getId(), projectGenerationTask.getVersion());
 
         assertEquals(TaskStatus.COMPLETED, projectGenerationTask.getTaskStatus());
         verify(projectGenerationTaskRepository, never()).save(projectGenerationTask);
+        verify(projectGenerationTaskRepository, never()).compareAndSetStatus(anyString(), any(), anyLong(), any(), anyInt());
+    }
+
+    private void waitUntil(Check condition) throws InterruptedException {
+        int retries = 50;
+        while (retries-- > 0) {
+            if (condition.ok()) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        fail("Async condition not met within time");
+    }
+
+    @FunctionalInterface
+    interface Check {
+        boolean ok();
     }
-}
\ No newline at end of file
+}
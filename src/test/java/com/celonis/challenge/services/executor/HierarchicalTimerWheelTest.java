@@ -0,0 +1,107 @@
+package com.celonis.challenge.services.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HierarchicalTimerWheelTest {
+
+    @Test
+    void timeoutsFireOnTheirTickOnEveryLevel() {
+        // 1 ms ticks, so levels end at 64, 4096 and 262144 ms
+        HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, 4, 0, "test-wheel");
+        Map<Long, Long> firedAt = new HashMap<>();
+        long[] now = {0};
+        List<Long> times = new ArrayList<>(List.of(0L, 1L, 63L, 64L, 65L, 4095L, 4096L, 4097L, 262_143L, 262_144L, 1_000_000L));
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            times.add((long) random.nextInt(2_000_000));
+        }
+        for (long time : times) {
+            wheel.schedule(() -> firedAt.put(time, now[0]), time);
+        }
+
+        for (now[0] = 0; now[0] <= 2_000_000; now[0]++) {
+            wheel.advanceTo(now[0]);
+        }
+
+        assertEquals(times.stream().distinct().count(), firedAt.size());
+        firedAt.forEach((time, at) -> assertEquals(time, at, "fire time of timeout at " + time));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    void timeoutsBeyondTheRangeAreCascadedAgain() {
+        // 2 levels of 1 ms ticks cover 4096 ms only
+        HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, 2, 0, "test-wheel");
+        long[] firedAt = {-1};
+        long[] now = {0};
+        wheel.schedule(() -> firedAt[0] = now[0], 10_000);
+
+        for (now[0] = 0; now[0] <= 20_000; now[0]++) {
+            wheel.advanceTo(now[0]);
+        }
+
+        assertEquals(10_000, firedAt[0]);
+    }
+
+    @Test
+    void timeoutsAreRoundedUpToTheNextTick() {
+        HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(100, 5, 1000, "test-wheel");
+        wheel.schedule(() -> {
+        }, 1250);
+        wheel.schedule(() -> {
+        }, 500);
+
+        // the past is due at once
+        assertEquals(1, wheel.advanceTo(1000));
+        assertEquals(0, wheel.advanceTo(1299));
+        assertEquals(1, wheel.advanceTo(1300));
+    }
+
+    @Test
+    void cancelledTimeoutsNeverFire() {
+        HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, 3, 0, "test-wheel");
+        List<String> fired = new ArrayList<>();
+        HierarchicalTimerWheel.Timeout near = wheel.schedule(() -> fired.add("near"), 10);
+        HierarchicalTimerWheel.Timeout far = wheel.schedule(() -> fired.add("far"), 100_000);
+        wheel.schedule(() -> fired.add("kept"), 5000);
+        wheel.advanceTo(5);
+
+        assertTrue(near.cancel());
+        assertTrue(far.cancel());
+        wheel.advanceTo(200_000);
+
+        assertEquals(List.of("kept"), fired);
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    void startedWheelFiresOnTheWallClock() throws InterruptedException {
+        HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(10, 5, System.currentTimeMillis(), "test-wheel");
+        CountDownLatch fired = new CountDownLatch(1);
+        long at = System.currentTimeMillis() + 100;
+        long[] firedAt = {0};
+        wheel.start();
+        try {
+            wheel.schedule(() -> {
+                firedAt[0] = System.currentTimeMillis();
+                fired.countDown();
+            }, at);
+
+            assertTrue(fired.await(1, TimeUnit.SECONDS));
+            assertTrue(firedAt[0] >= at, "fired " + (at - firedAt[0]) + " ms early");
+        } finally {
+            wheel.stop();
+        }
+    }
+}
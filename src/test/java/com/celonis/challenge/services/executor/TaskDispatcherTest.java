@@ -0,0 +1,193 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.config.TaskExecutorProperties;
+import com.celonis.challenge.exceptions.TooManyRequestsException;
+import com.celonis.challenge.model.ProjectGenerationTask;
+import com.celonis.challenge.model.TaskPriority;
+import com.celonis.challenge.model.TaskType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskDispatcherTest {
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private TimerWheel timerWheel;
+
+    private TaskDispatcher taskDispatcher;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() {
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.setCoreSize(1);
+        properties.setMaxSize(1);
+        properties.setQueueCapacity(1);
+        properties.setRetryAfterSeconds(7);
+        properties.getTypeLimits().put(TaskType.COUNTER, 10);
+        properties.getTypeLimits().put(TaskType.STORE_FILE, 1);
+
+        meterRegistry = new SimpleMeterRegistry();
+        timerWheel = new TimerWheel(properties);
+        taskDispatcher = new TaskDispatcher(properties, timerWheel, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        taskDispatcher.shutdown();
+        timerWheel.stop();
+    }
+
+    @Test
+    void submitRejectsWhenQueueIsFull() {
+        // one worker and one queue slot
+        assertEquals(2, taskDispatcher.getFreeCapacity());
+        taskDispatcher.submit(TaskType.COUNTER, this::block);
+        taskDispatcher.submit(TaskType.COUNTER, this::block);
+
+        TooManyRequestsException exception = assertThrows(TooManyRequestsException.class,
+                () -> taskDispatcher.submit(TaskType.COUNTER, this::block));
+
+        assertEquals(7, exception.getRetryAfterSeconds());
+        assertEquals(1, taskDispatcher.getQueueDepth());
+        assertEquals(1.0, meterRegistry.get("task.executor.rejected")
+                .tag("type", "COUNTER").tag("reason", "queue_full").counter().count());
+    }
+
+    @Test
+    void submitRejectsWhenTypeLimitIsReached() {
+        taskDispatcher.submit(TaskType.STORE_FILE, this::block);
+        assertEquals(0, taskDispatcher.getAvailablePermits(TaskType.STORE_FILE));
+        assertEquals(10, taskDispatcher.getAvailablePermits(TaskType.COUNTER));
+
+        assertThrows(TooManyRequestsException.class, () -> taskDispatcher.submit(TaskType.STORE_FILE, this::block));
+        assertEquals(1.0, meterRegistry.get("task.executor.rejected")
+                .tag("type", "STORE_FILE").tag("reason", "type_limit").counter().count());
+    }
+
+    @Test
+    void submitReleasesTypePermitAfterCompletion() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        taskDispatcher.submit(TaskType.STORE_FILE, done::countDown);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        CountDownLatch secondDone = new CountDownLatch(1);
+        waitForPermit(() -> taskDispatcher.submit(TaskType.STORE_FILE, secondDone::countDown));
+        assertTrue(secondDone.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelTakesQueuedWorkOffTheQueue() {
+        taskDispatcher.submit(TaskType.COUNTER, this::block);
+        TaskHandle queued = taskDispatcher.submit(TaskType.COUNTER, this::block);
+        assertEquals(1, taskDispatcher.getQueueDepth());
+
+        assertTrue(queued.cancel());
+
+        assertTrue(queued.isDone());
+        assertEquals(0, taskDispatcher.getQueueDepth());
+        assertEquals(1, meterRegistry.get("task.executor.cancel.latency").tag("type", "COUNTER").timer().count());
+        taskDispatcher.submit(TaskType.COUNTER, this::block);
+    }
+
+    @Test
+    void cancelInterruptsRunningWork() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        TaskHandle running = taskDispatcher.submit(TaskType.STORE_FILE, () -> {
+            started.countDown();
+            block();
+            if (Thread.currentThread().isInterrupted()) {
+                interrupted.countDown();
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        assertTrue(running.cancel());
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+
+        CountDownLatch secondDone = new CountDownLatch(1);
+        waitForPermit(() -> taskDispatcher.submit(TaskType.STORE_FILE, secondDone::countDown));
+        assertTrue(secondDone.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void queuedWorkIsTakenFairlyAcrossTypesAndTenants() throws InterruptedException {
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.setCoreSize(1);
+        properties.setMaxSize(1);
+        properties.setQueueCapacity(100);
+        TaskDispatcher fairDispatcher = new TaskDispatcher(properties, timerWheel, meterRegistry);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(13);
+        try {
+            fairDispatcher.submit(TaskType.COUNTER, this::block);
+            for (int i = 0; i < 10; i++) {
+                fairDispatcher.submit(task(TaskType.COUNTER, "flood", TaskPriority.NORMAL), record(order, "flood", done));
+            }
+            fairDispatcher.submit(task(TaskType.STORE_FILE, "flood", TaskPriority.NORMAL), record(order, "file", done));
+            fairDispatcher.submit(task(TaskType.COUNTER, "other", TaskPriority.NORMAL), record(order, "other", done));
+            fairDispatcher.submit(task(TaskType.COUNTER, "flood", TaskPriority.HIGH), record(order, "urgent", done));
+
+            release.countDown();
+            assertTrue(done.await(1, TimeUnit.SECONDS));
+        } finally {
+            fairDispatcher.shutdown();
+        }
+
+        // submitted last, yet none of them waits for the flood to drain
+        assertTrue(order.subList(0, 4).containsAll(List.of("file", "other", "urgent")), "order " + order);
+        assertEquals(1, meterRegistry.get("task.executor.dispatch.latency")
+                .tag("type", "COUNTER").tag("priority", "HIGH").timer().count());
+        assertEquals(1, meterRegistry.get("task.executor.dispatch.latency")
+                .tag("type", "STORE_FILE").tag("priority", "NORMAL").timer().count());
+    }
+
+    private static ProjectGenerationTask task(TaskType taskType, String tenant, TaskPriority priority) {
+        ProjectGenerationTask task = new ProjectGenerationTask();
+        task.setTaskType(taskType);
+        task.setTenant(tenant);
+        task.setPriority(priority);
+        return task;
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    private void waitForPermit(Runnable submission) throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            try {
+                submission.run();
+                return;
+            } catch (TooManyRequestsException e) {
+                Thread.sleep(50);
+            }
+        }
+        submission.run();
+    }
+
+    private void block() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
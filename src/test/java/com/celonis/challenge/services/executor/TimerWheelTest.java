@@ -0,0 +1,80 @@
+package com.celonis.challenge.services.executor;
+
+import com.celonis.challenge.config.TaskExecutorProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    private TimerWheel timerWheel;
+
+    @BeforeEach
+    void setUp() {
+        TaskExecutorProperties properties = new TaskExecutorProperties();
+        properties.setTimerTickMillis(5);
+        properties.setTimerWheelSize(8);
+        timerWheel = new TimerWheel(properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        timerWheel.stop();
+    }
+
+    @Test
+    void scheduleRunsCallbackAfterDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        timerWheel.schedule(fired::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 95);
+        assertEquals(0, timerWheel.getPendingCount());
+    }
+
+    @Test
+    void scheduleBeyondOneRevolution() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+
+        // 8 buckets of 5 ms, so 200 ms needs several rounds
+        timerWheel.schedule(fired::countDown, 200, TimeUnit.MILLISECONDS);
+
+        assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void delayBeyondTheClockRangeDoesNotFire() throws InterruptedException {
+        AtomicBoolean fired = new AtomicBoolean();
+
+        // converted to nanoseconds it would overflow to a deadline in the past
+        timerWheel.schedule(() -> fired.set(true), Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(100);
+        assertFalse(fired.get());
+        assertEquals(1, timerWheel.getPendingCount());
+    }
+
+    @Test
+    void cancelledTimeoutNeverFires() throws InterruptedException {
+        AtomicBoolean fired = new AtomicBoolean();
+
+        TimerWheel.Timeout timeout = timerWheel.schedule(() -> fired.set(true), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        Thread.sleep(150);
+        assertFalse(fired.get());
+        assertEquals(0, timerWheel.getPendingCount());
+    }
+}
@@ -0,0 +1,121 @@
+package com.celonis.challenge.services.executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WeightedFairQueueTest {
+
+    @Test
+    void backlogOfOneFlowDoesNotHoldBackAnother() {
+        WeightedFairQueue queue = new WeightedFairQueue(1000);
+        for (int i = 0; i < 500; i++) {
+            queue.offer(new Work("counter", 1));
+        }
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new Work("file", 1));
+        }
+
+        // arrived last, served every other time
+        assertEquals(Map.of("counter", 10, "file", 10), countFlows(queue, 20));
+    }
+
+    @Test
+    void flowsAreServedInProportionToTheirWeight() {
+        WeightedFairQueue queue = new WeightedFairQueue(1000);
+        for (int i = 0; i < 300; i++) {
+            queue.offer(new Work("tenant-a", 1));
+            queue.offer(new Work("tenant-b", 3));
+        }
+
+        assertEquals(Map.of("tenant-a", 25, "tenant-b", 75), countFlows(queue, 100));
+    }
+
+    @Test
+    void idleFlowStartsAtTheCurrentVirtualTime() {
+        WeightedFairQueue queue = new WeightedFairQueue(1000);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new Work("busy", 1));
+        }
+        countFlows(queue, 50);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new Work("late", 1));
+        }
+
+        // no credit for the time it had nothing queued, the flows alternate from now on
+        assertEquals(Map.of("busy", 5, "late", 5), countFlows(queue, 10));
+    }
+
+    @Test
+    void offerFailsOnceCapacityIsReached() {
+        WeightedFairQueue queue = new WeightedFairQueue(2);
+
+        assertTrue(queue.offer(new Work("a", 1)));
+        assertTrue(queue.offer(new Work("a", 1)));
+        assertFalse(queue.offer(new Work("b", 1)));
+        assertEquals(0, queue.remainingCapacity());
+    }
+
+    @Test
+    void removeTakesWorkOffByIdentity() throws InterruptedException {
+        WeightedFairQueue queue = new WeightedFairQueue(10);
+        Work first = new Work("a", 1);
+        Work second = new Work("a", 1);
+        Runnable plain = () -> {
+        };
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(plain);
+
+        assertTrue(queue.remove(first));
+        assertFalse(queue.remove(first));
+        assertSame(plain, queue.poll(10, TimeUnit.MILLISECONDS));
+        assertSame(second, queue.take());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    private static Map<String, Integer> countFlows(WeightedFairQueue queue, int polls) {
+        List<Runnable> polled = new ArrayList<>();
+        queue.drainTo(polled, polls);
+        Map<String, Integer> counts = new HashMap<>();
+        for (Runnable runnable : polled) {
+            counts.merge((String) ((Work) runnable).getFlow(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static class Work implements Runnable, WeightedFairQueue.Weighted {
+
+        private final String flow;
+        private final double weight;
+
+        Work(String flow, double weight) {
+            this.flow = flow;
+            this.weight = weight;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public Object getFlow() {
+            return flow;
+        }
+
+        @Override
+        public double getWeight() {
+            return weight;
+        }
+    }
+}